@@ -30,11 +30,21 @@ package io.smartspaces.scheduling.quartz.orientdb;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.InternalClassLoaderHelper;
+import io.smartspaces.scheduling.quartz.orientdb.internal.LeaseLockProvider;
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockPriority;
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockStatistics;
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockStatisticsSnapshot;
 import io.smartspaces.scheduling.quartz.orientdb.internal.LockProvider;
+import io.smartspaces.scheduling.quartz.orientdb.internal.NamedLockProvider;
 import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.TriggerStateManager;
 import io.smartspaces.scheduling.quartz.orientdb.internal.cluster.CheckinExecutor;
 import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector;
 import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector.TransactionMethod;
+import io.smartspaces.scheduling.quartz.orientdb.internal.transfer.ScheduleExporter;
+import io.smartspaces.scheduling.quartz.orientdb.internal.transfer.ScheduleImportResult;
+import io.smartspaces.scheduling.quartz.orientdb.internal.transfer.ScheduleImporter;
+import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.StandardMisfireHandler;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
 
 import org.quartz.Calendar;
@@ -48,24 +58,36 @@ import org.quartz.Trigger;
 import org.quartz.Trigger.CompletedExecutionInstruction;
 import org.quartz.Trigger.TriggerState;
 import org.quartz.TriggerKey;
+import org.quartz.impl.StdSchedulerFactory;
 import org.quartz.impl.matchers.GroupMatcher;
 import org.quartz.spi.ClassLoadHelper;
 import org.quartz.spi.JobStore;
 import org.quartz.spi.OperableTrigger;
 import org.quartz.spi.SchedulerSignaler;
 import org.quartz.spi.TriggerFiredResult;
+import org.quartz.utils.Key;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 /**
  * The Quartz Job Store that uses OrientDB.
  */
@@ -73,6 +95,12 @@ public class OrientDbJobStore implements JobStore {
 
   private static final Logger LOG = LoggerFactory.getLogger(OrientDbJobStore.class);
 
+  /**
+   * The default number of records committed in one transaction when
+   * importing a schedule.
+   */
+  private static final int TRANSFER_BATCH_SIZE = 1000;
+
   private String collectionPrefix = "quartz_";
   private String dbName;
   private String authDbName;
@@ -96,11 +124,111 @@ public class OrientDbJobStore implements JobStore {
    */
   private long dbRetryInterval = 15000L; // 15 secs
 
+  /**
+   * {@code true} if the store locks should hand out the lock in arrival order.
+   */
+  private boolean lockFair = false;
+
+  /**
+   * The number of stripes for key locks, {@code 0} for one lock per key.
+   */
+  private int lockStripes = NamedLockProvider.DEFAULT_STRIPES;
+
+  /**
+   * {@code true} if key locks should be striped by group rather than by key.
+   */
+  private boolean lockStripeByGroup = false;
+
+  /**
+   * The maximum time in milliseconds the scheduler thread waits for a lock,
+   * {@code 0} for no limit.
+   */
+  private long lockSchedulerTimeoutMillis = NamedLockProvider.DEFAULT_SCHEDULER_TIMEOUT_MILLIS;
+
+  /**
+   * The maximum time in milliseconds admin and bulk operations wait for a lock,
+   * {@code 0} for no limit.
+   */
+  private long lockAdminTimeoutMillis = NamedLockProvider.DEFAULT_ADMIN_TIMEOUT_MILLIS;
+
+  /**
+   * {@code true} if lock wait and hold times should be recorded and published
+   * through JMX. Off by default, as recording adds to every lock request.
+   */
+  private boolean lockInstrumentation = false;
+
+  /**
+   * {@code true} if locks should also hold across all nodes sharing the
+   * database, by taking leases in the database. Every node needs its own
+   * instance ID, the default instance ID is refused. A node starting only
+   * recovers the triggers it acquired or blocked itself.
+   */
+  private boolean lockDistributed = false;
+
+  /**
+   * The time in milliseconds a lease on a lock lasts without being renewed.
+   */
+  private long lockLeaseMillis = LeaseLockProvider.DEFAULT_LEASE_MILLIS;
+
+  /**
+   * The maximum number of misfired triggers handled in the first transaction,
+   * later transactions adapt to the lock hold budget.
+   */
+  private int maxMisfiresToHandleAtATime =
+      StandardMisfireHandler.DEFAULT_MAX_MISFIRES_TO_HANDLE_AT_A_TIME;
+
+  /**
+   * The time in milliseconds the trigger lock should be held for one batch of
+   * misfired triggers.
+   */
+  private long misfireLockHoldBudgetMillis = StandardMisfireHandler.DEFAULT_LOCK_HOLD_BUDGET_MILLIS;
+
+  /**
+   * The backlog of misfired triggers at which they are recovered in bulk, with
+   * acquisition paused, {@code 0} or less to never recover in bulk.
+   */
+  private long misfireBulkRecoveryThreshold =
+      StandardMisfireHandler.DEFAULT_BULK_RECOVERY_THRESHOLD;
+
+  /**
+   * The number of threads computing new fire times during a bulk recovery.
+   */
+  private int misfireBulkRecoveryThreads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The size in bytes from which serialized job data and calendars are stored
+   * compressed, no compression if not positive. Compressed records can't be
+   * read by versions without compression.
+   */
+  private int compressionThreshold = 0;
+
+  /**
+   * The number of records committed in one transaction when importing a
+   * schedule.
+   */
+  private int transferBatchSize = TRANSFER_BATCH_SIZE;
+
+  /**
+   * The number of threads committing batches when importing a schedule.
+   */
+  private int transferThreads = 1;
+
+  /**
+   * The JMX names the statistics are registered under.
+   */
+  private final List<ObjectName> statisticsNames = new ArrayList<>();
+
   /**
    * The clock to use for timing events.
    */
   private Clock clock = Clock.SYSTEM_CLOCK;
 
+  /**
+   * The comma separated class names of the codecs asked to store job data
+   * values before the built in ones, {@code null} if none.
+   */
+  private String jobDataCodecs;
+
   /**
    * The executor service to use for threads.
    */
@@ -111,11 +239,6 @@ public class OrientDbJobStore implements JobStore {
    */
   private StandardOrientDbStoreAssembler assembler = new StandardOrientDbStoreAssembler();
 
-  /**
-   * The future for controlling the misfire handler.
-   */
-  private Future<?> misfireFuture;
-
   /**
    * Construct a job store.
    */
@@ -159,8 +282,23 @@ public class OrientDbJobStore implements JobStore {
   @Override
   public void initialize(ClassLoadHelper loadHelper, SchedulerSignaler schedulerSignaler)
       throws SchedulerConfigException {
+    // The store is not clustered for Quartz, so every node would get the
+    // default instance ID and take the triggers of the others for its own.
+    if (lockDistributed
+        && (instanceId == null || StdSchedulerFactory.DEFAULT_INSTANCE_ID.equals(instanceId))) {
+      throw new SchedulerConfigException(
+          "Distributed locks need a unique instance ID for every node, set "
+              + StdSchedulerFactory.PROP_SCHED_INSTANCE_ID);
+    }
+
     assembler.build(this, getClassLoaderHelper(loadHelper), schedulerSignaler, clock,
         dbRetryInterval);
+    registerStatistics();
+
+    LeaseLockProvider leaseLockProvider = assembler.getLeaseLockProvider();
+    if (leaseLockProvider != null) {
+      leaseLockProvider.startRenewal(executorService);
+    }
 
     try {
       assembler.getOrientDbConnector().doInTransactionWithoutLock(new TransactionMethod<Void>() {
@@ -176,9 +314,48 @@ public class OrientDbJobStore implements JobStore {
         throw (SchedulerConfigException) e.getCause();
       }
     }
+
+    recoverTriggerStates();
+  }
+
+  /**
+   * Recover the triggers left acquired or blocked by jobs which were running
+   * when the scheduler last stopped.
+   *
+   * <p>
+   * No job of this instance can be running yet. Jobs of other nodes sharing the
+   * database can, so with distributed locks only the triggers this instance
+   * held are recovered.
+   *
+   * @throws SchedulerConfigException
+   *           the triggers could not be recovered
+   */
+  private void recoverTriggerStates() throws SchedulerConfigException {
+    try {
+      int recovered = assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
+          new TransactionMethod<Integer>() {
+            @Override
+            public Integer doInTransaction() throws JobPersistenceException {
+              TriggerStateManager triggerStateManager = assembler.getTriggerStateManager();
+              return lockDistributed ? triggerStateManager.recoverStates(instanceId)
+                  : triggerStateManager.recoverStates();
+            }
+          });
+      if (recovered > 0) {
+        LOG.info("Recovered {} triggers left acquired or blocked", recovered);
+      }
+    } catch (JobPersistenceException e) {
+      throw new SchedulerConfigException("Cannot recover triggers", e);
+    }
   }
 
   private void completeInitialize() throws JobPersistenceException {
+    // Other nodes would change the groups behind the back of the registries.
+    if (!lockDistributed) {
+      assembler.getJobDao().loadGroupRegistry();
+      assembler.getTriggerDao().loadGroupRegistry();
+    }
+
     if (isClustered()) {
       try {
         assembler.getTriggerRecoverer().recover();
@@ -198,17 +375,68 @@ public class OrientDbJobStore implements JobStore {
     }
   }
 
+  /**
+   * Get a snapshot of the lock statistics.
+   * 
+   * @return the snapshot, {@code null} if locks are not instrumented
+   */
+  public LockStatisticsSnapshot getLockStatistics() {
+    LockStatistics lockStatistics = assembler.getLockStatistics();
+    return lockStatistics != null ? lockStatistics.getSnapshot() : null;
+  }
+
+  /**
+   * Publish the lock, misfire and compression statistics through JMX.
+   */
+  private void registerStatistics() {
+    LockStatistics lockStatistics = assembler.getLockStatistics();
+    if (lockStatistics != null) {
+      registerStatistics("LockStatistics", lockStatistics);
+    }
+    registerStatistics("MisfireStatistics", assembler.getMisfireHandler().getStatistics());
+    registerStatistics("CompressionStatistics", assembler.getCompressionStatistics());
+  }
+
+  /**
+   * Publish statistics through JMX.
+   * 
+   * @param type
+   *          the type of the statistics in the JMX name
+   * @param statistics
+   *          the MXBean for the statistics
+   */
+  private void registerStatistics(String type, Object statistics) {
+    try {
+      ObjectName name = new ObjectName(getClass().getPackage().getName() + ":type=" + type
+          + ",scheduler=" + ObjectName.quote(String.valueOf(schedulerName)) + ",instance="
+          + ObjectName.quote(String.valueOf(instanceId)));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, name);
+      statisticsNames.add(name);
+    } catch (JMException e) {
+      LOG.warn("Could not register the {} with JMX", type, e);
+    }
+  }
+
+  /**
+   * Remove the statistics from JMX which were published.
+   */
+  private void unregisterStatistics() {
+    for (ObjectName name : statisticsNames) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (JMException e) {
+        LOG.warn("Could not unregister {} from JMX", name, e);
+      }
+    }
+    statisticsNames.clear();
+  }
+
   @Override
   public void schedulerStarted() throws SchedulerException {
     LOG.debug("scheduler started");
 
-    misfireFuture = executorService.submit(new Runnable() {
-      @Override
-      public void run() {
-        Thread.currentThread().setName("Quartz-Misfire");
-        assembler.getMisfireHandler().scanForMisfires();
-      }
-    });
+    assembler.getMisfireHandler().startScanForMisfires(executorService);
+    assembler.getJobDataMigrator().start(executorService);
   }
 
   @Override
@@ -231,6 +459,14 @@ public class OrientDbJobStore implements JobStore {
       }
 
       assembler.getMisfireHandler().shutdownScanForMisfires();
+      assembler.getJobDataMigrator().stop();
+
+      unregisterStatistics();
+
+      LeaseLockProvider leaseLockProvider = assembler.getLeaseLockProvider();
+      if (leaseLockProvider != null) {
+        leaseLockProvider.shutdown();
+      }
 
       OrientDbConnector orientDbConnector = assembler.getOrientDbConnector();
       if (orientDbConnector != null) {
@@ -259,9 +495,7 @@ public class OrientDbJobStore implements JobStore {
   public void storeJob(final JobDetail newJob, final boolean replaceExisting)
       throws JobPersistenceException {
     LOG.debug("Adding job {} with replace={}", newJob, replaceExisting);
-    String lockRequired = replaceExisting ? LockProvider.LOCK_TRIGGER : null;
-    lockRequired = LockProvider.LOCK_TRIGGER;
-    assembler.getOrientDbConnector().doInTransaction(lockRequired, new TransactionMethod<Void>() {
+    doInJobTransaction(newJob.getKey(), new TransactionMethod<Void>() {
       @Override
       public Void doInTransaction() throws JobPersistenceException {
         assembler.getJobDao().storeJob(newJob, replaceExisting);
@@ -272,9 +506,35 @@ public class OrientDbJobStore implements JobStore {
   }
 
   @Override
-  public void storeJobsAndTriggers(Map<JobDetail, Set<? extends Trigger>> triggersAndJobs,
-      boolean replace) throws ObjectAlreadyExistsException, JobPersistenceException {
+  public void storeJobsAndTriggers(final Map<JobDetail, Set<? extends Trigger>> triggersAndJobs,
+      final boolean replace) throws ObjectAlreadyExistsException, JobPersistenceException {
+    LOG.debug("Storing {} jobs with their triggers with replace={}", triggersAndJobs.size(),
+        replace);
 
+    // One transaction, so that nothing is stored if something exists and may
+    // not be replaced or a write fails.
+    assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
+        new TransactionMethod<Void>() {
+          @Override
+          public Void doInTransaction() throws JobPersistenceException {
+            assembler.getPersister().storeJobsAndTriggers(triggersAndJobs, replace);
+
+            return null;
+          }
+        });
+
+    long earliestNextFireTime = Long.MAX_VALUE;
+    for (Set<? extends Trigger> triggers : triggersAndJobs.values()) {
+      for (Trigger trigger : triggers) {
+        if (trigger.getNextFireTime() != null) {
+          earliestNextFireTime =
+              Math.min(earliestNextFireTime, trigger.getNextFireTime().getTime());
+        }
+      }
+    }
+    if (earliestNextFireTime != Long.MAX_VALUE) {
+      assembler.getMisfireHandler().schedulingChanged(earliestNextFireTime);
+    }
   }
 
   @Override
@@ -282,7 +542,7 @@ public class OrientDbJobStore implements JobStore {
       throws JobPersistenceException {
     LOG.debug("Adding job {}  and trigger {}", newJob, newTrigger);
     assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<Void>() {
+        Arrays.asList(newJob.getKey(), newTrigger.getKey()), new TransactionMethod<Void>() {
           @Override
           public Void doInTransaction() throws JobPersistenceException {
             assembler.getPersister().storeJobAndTrigger(newJob, newTrigger);
@@ -290,19 +550,19 @@ public class OrientDbJobStore implements JobStore {
             return null;
           }
         });
+    triggersChanged(newTrigger);
   }
 
 
   @Override
   public boolean removeJob(final JobKey jobKey) throws JobPersistenceException {
     LOG.debug("Removing job {}", jobKey);
-    return assembler.getOrientDbConnector()
-        .doInTransaction(LockProvider.LOCK_TRIGGER, new TransactionMethod<Boolean>() {
-          @Override
-          public Boolean doInTransaction() throws JobPersistenceException {
-            return assembler.getPersister().removeJob(jobKey);
-          }
-        }).booleanValue();
+    return doInJobTransaction(jobKey, new TransactionMethod<Boolean>() {
+      @Override
+      public Boolean doInTransaction() throws JobPersistenceException {
+        return assembler.getPersister().removeJob(jobKey);
+      }
+    }).booleanValue();
   }
 
   @Override
@@ -333,28 +593,27 @@ public class OrientDbJobStore implements JobStore {
   public void storeTrigger(final OperableTrigger newTrigger, final boolean replaceExisting)
       throws JobPersistenceException {
     LOG.debug("Store trigger {} with replace", newTrigger, replaceExisting);
-    String lockRequired = replaceExisting ? LockProvider.LOCK_TRIGGER : null;
-    lockRequired = LockProvider.LOCK_TRIGGER;
-    assembler.getOrientDbConnector().doInTransaction(lockRequired, new TransactionMethod<Void>() {
-      @Override
-      public Void doInTransaction() throws JobPersistenceException {
-        assembler.getPersister().storeTrigger(newTrigger, Constants.STATE_WAITING, replaceExisting);
+    doInTriggerTransaction(newTrigger.getKey(), newTrigger.getJobKey(),
+        new TransactionMethod<Void>() {
+          @Override
+          public Void doInTransaction() throws JobPersistenceException {
+            assembler.getPersister().storeTrigger(newTrigger, Constants.STATE_WAITING, replaceExisting);
 
-        return null;
-      }
-    });
+            return null;
+          }
+        });
+    triggersChanged(newTrigger);
   }
 
   @Override
   public boolean removeTrigger(final TriggerKey triggerKey) throws JobPersistenceException {
     LOG.debug("Removing trigger {}", triggerKey);
-    return assembler.getOrientDbConnector()
-        .doInTransaction(LockProvider.LOCK_TRIGGER, new TransactionMethod<Boolean>() {
-          @Override
-          public Boolean doInTransaction() throws JobPersistenceException {
-            return assembler.getPersister().removeTrigger(triggerKey);
-          }
-        }).booleanValue();
+    return doInTriggerTransaction(triggerKey, null, new TransactionMethod<Boolean>() {
+      @Override
+      public Boolean doInTransaction() throws JobPersistenceException {
+        return assembler.getPersister().removeTrigger(triggerKey);
+      }
+    }).booleanValue();
   }
 
   @Override
@@ -373,14 +632,19 @@ public class OrientDbJobStore implements JobStore {
   public boolean replaceTrigger(final TriggerKey triggerKey, final OperableTrigger newTrigger)
       throws JobPersistenceException {
     LOG.debug("Replacing trigger {} with {}", triggerKey, newTrigger);
-    return assembler.getOrientDbConnector()
-        .doInTransaction(LockProvider.LOCK_TRIGGER, new TransactionMethod<Boolean>() {
+    boolean replaced = doInTriggerTransaction(triggerKey, newTrigger.getJobKey(),
+        new TransactionMethod<Boolean>() {
           @Override
           public Boolean doInTransaction() throws JobPersistenceException {
             return assembler.getPersister().replaceTrigger(triggerKey, newTrigger,
                 Constants.STATE_WAITING);
           }
         }).booleanValue();
+    if (replaced) {
+      triggersChanged(newTrigger);
+    }
+
+    return replaced;
   }
 
   @Override
@@ -427,6 +691,11 @@ public class OrientDbJobStore implements JobStore {
         new TransactionMethod<Void>() {
           @Override
           public Void doInTransaction() throws JobPersistenceException {
+            // Truncation drops indexes other nodes may be using.
+            if (!lockDistributed && truncateSchedulingData()) {
+              return null;
+            }
+
             assembler.getJobDao().removeAll();
             assembler.getTriggerDao().removeAll();
             assembler.getCalendarDao().removeAll();
@@ -438,6 +707,93 @@ public class OrientDbJobStore implements JobStore {
         });
   }
 
+  /**
+   * Empty the classes holding the scheduling data without deleting their
+   * records one at a time in a transaction.
+   * 
+   * <p>
+   * The truncation runs on a connection of its own while the caller holds the
+   * trigger lock, as it cannot be part of a transaction. The classes are
+   * truncated one after the other, so a failure can leave some of them
+   * emptied. The locks and scheduler records are kept.
+   * 
+   * @return {@code true} if all classes were truncated, {@code false} if one
+   *         could not be and the data must be deleted instead
+   * 
+   * @throws JobPersistenceException
+   *           an index could not be created again after a truncation
+   */
+  private boolean truncateSchedulingData() throws JobPersistenceException {
+    return assembler.getOrientDbConnector()
+        .doInSeparateConnection(new TransactionMethod<Boolean>() {
+          @Override
+          public Boolean doInTransaction() throws JobPersistenceException {
+            if (!assembler.getTriggerDao().truncate() || !assembler.getJobDao().truncate()
+                || !assembler.getCalendarDao().truncate()
+                || !assembler.getPausedJobGroupsDao().truncate()
+                || !assembler.getPausedTriggerGroupsDao().truncate()) {
+              LOG.warn("Could not truncate the scheduling data, deleting it instead");
+              return false;
+            }
+
+            return true;
+          }
+        }).booleanValue();
+  }
+
+  /**
+   * Write all calendars, jobs, triggers and paused groups, one record per line,
+   * for {@link #importSchedule(Reader, long, boolean)} into another store.
+   * 
+   * <p>
+   * The records are streamed without locks. Changes made during the export
+   * may be missing from it, the schedulers should be in standby for an exact
+   * copy.
+   * 
+   * @param writer
+   *          the writer for the export, which is flushed but not closed
+   * 
+   * @return the number of records written
+   * 
+   * @throws JobPersistenceException
+   *           the schedule could not be read or written
+   */
+  public long exportSchedule(Writer writer) throws JobPersistenceException {
+    return new ScheduleExporter(assembler).export(writer);
+  }
+
+  /**
+   * Import a schedule written by {@link #exportSchedule(Writer)}.
+   * 
+   * <p>
+   * The records are committed in batches of {@link #getTransferBatchSize()}
+   * records, by {@link #getTransferThreads()} threads. Records which already
+   * exist are replaced or left alone, so an import which stopped can be run
+   * again, or resumed from the number of lines it reported as imported.
+   * 
+   * @param reader
+   *          the reader for the export, which is not closed
+   * @param resumeFromLine
+   *          the number of lines of the export already imported, {@code 0} to
+   *          import all of it
+   * @param replaceExisting
+   *          {@code true} if calendars, jobs and triggers which exist should be
+   *          replaced, {@code false} if they should be left alone
+   * 
+   * @return the result of the import
+   * 
+   * @throws JobPersistenceException
+   *           the import stopped, the message gives the number of lines which
+   *           were imported
+   */
+  public ScheduleImportResult importSchedule(Reader reader, long resumeFromLine,
+      boolean replaceExisting) throws JobPersistenceException {
+    BufferedReader bufferedReader =
+        reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    return new ScheduleImporter(assembler, transferBatchSize, transferThreads)
+        .importSchedule(bufferedReader, resumeFromLine, replaceExisting);
+  }
+
   @Override
   public void storeCalendar(final String name, final Calendar calendar, boolean replaceExisting,
       boolean updateTriggers) throws JobPersistenceException {
@@ -607,15 +963,14 @@ public class OrientDbJobStore implements JobStore {
   @Override
   public void pauseTrigger(final TriggerKey triggerKey) throws JobPersistenceException {
     LOG.debug("Pause trigger {}", triggerKey);
-    assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<Void>() {
-          @Override
-          public Void doInTransaction() throws JobPersistenceException {
-            assembler.getTriggerStateManager().pause(triggerKey);
+    doInTriggerTransaction(triggerKey, null, new TransactionMethod<Void>() {
+      @Override
+      public Void doInTransaction() throws JobPersistenceException {
+        assembler.getTriggerStateManager().pause(triggerKey);
 
-            return null;
-          }
-        });
+        return null;
+      }
+    });
   }
 
   @Override
@@ -634,28 +989,31 @@ public class OrientDbJobStore implements JobStore {
   @Override
   public void resumeTrigger(final TriggerKey triggerKey) throws JobPersistenceException {
     LOG.debug("Resume trigger {}", triggerKey);
-    assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<Void>() {
-          @Override
-          public Void doInTransaction() throws JobPersistenceException {
-            assembler.getTriggerStateManager().resume(triggerKey);
+    doInTriggerTransaction(triggerKey, null, new TransactionMethod<Void>() {
+      @Override
+      public Void doInTransaction() throws JobPersistenceException {
+        assembler.getTriggerStateManager().resume(triggerKey);
 
-            return null;
-          }
-        });
+        return null;
+      }
+    });
+    triggersResumed();
   }
 
   @Override
   public Collection<String> resumeTriggers(final GroupMatcher<TriggerKey> matcher)
       throws JobPersistenceException {
     LOG.debug("Resume triggers matching {}", matcher);
-    return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<Collection<String>>() {
+    Collection<String> groups = assembler.getOrientDbConnector().doInTransaction(
+        LockProvider.LOCK_TRIGGER, new TransactionMethod<Collection<String>>() {
           @Override
           public Collection<String> doInTransaction() throws JobPersistenceException {
             return assembler.getTriggerStateManager().resumeTriggerGroup(matcher);
           }
         });
+    triggersResumed();
+
+    return groups;
   }
 
   @Override
@@ -696,20 +1054,20 @@ public class OrientDbJobStore implements JobStore {
             return null;
           }
         });
+    triggersResumed();
   }
 
   @Override
   public void pauseJob(final JobKey jobKey) throws JobPersistenceException {
     LOG.debug("Pause job {}", jobKey);
-    assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<Void>() {
-          @Override
-          public Void doInTransaction() throws JobPersistenceException {
-            assembler.getTriggerStateManager().pauseJob(jobKey);
+    doInJobTransaction(jobKey, new TransactionMethod<Void>() {
+      @Override
+      public Void doInTransaction() throws JobPersistenceException {
+        assembler.getTriggerStateManager().pauseJob(jobKey);
 
-            return null;
-          }
-        });
+        return null;
+      }
+    });
   }
 
   @Override
@@ -728,28 +1086,31 @@ public class OrientDbJobStore implements JobStore {
   @Override
   public void resumeJob(final JobKey jobKey) throws JobPersistenceException {
     LOG.debug("Resume job {}", jobKey);
-    assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<Void>() {
-          @Override
-          public Void doInTransaction() throws JobPersistenceException {
-            assembler.getTriggerStateManager().resumeJob(jobKey);
+    doInJobTransaction(jobKey, new TransactionMethod<Void>() {
+      @Override
+      public Void doInTransaction() throws JobPersistenceException {
+        assembler.getTriggerStateManager().resumeJob(jobKey);
 
-            return null;
-          }
-        });
+        return null;
+      }
+    });
+    triggersResumed();
   }
 
   @Override
   public Collection<String> resumeJobs(final GroupMatcher<JobKey> groupMatcher)
       throws JobPersistenceException {
     LOG.debug("Resume jobs matching job {}", groupMatcher);
-    return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<Collection<String>>() {
+    Collection<String> groups = assembler.getOrientDbConnector().doInTransaction(
+        LockProvider.LOCK_TRIGGER, new TransactionMethod<Collection<String>>() {
           @Override
           public Collection<String> doInTransaction() throws JobPersistenceException {
             return assembler.getTriggerStateManager().resumeJobs(groupMatcher);
           }
         });
+    triggersResumed();
+
+    return groups;
   }
 
   @Override
@@ -759,7 +1120,7 @@ public class OrientDbJobStore implements JobStore {
         new Date(noLaterThan), maxCount, timeWindow);
 
     return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<List<OperableTrigger>>() {
+        LockPriority.SCHEDULER, new TransactionMethod<List<OperableTrigger>>() {
           @Override
           public List<OperableTrigger> doInTransaction() throws JobPersistenceException {
             return assembler.getTriggerRunner().acquireNext(noLaterThan, maxCount, timeWindow);
@@ -772,7 +1133,7 @@ public class OrientDbJobStore implements JobStore {
     LOG.debug("Releasing acquired trigger {}", trigger);
     try {
       assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-          new TransactionMethod<Void>() {
+          LockPriority.SCHEDULER, new TransactionMethod<Void>() {
             @Override
             public Void doInTransaction() throws JobPersistenceException {
               assembler.getTriggerStateManager().releaseAcquiredTrigger(trigger);
@@ -780,6 +1141,7 @@ public class OrientDbJobStore implements JobStore {
               return null;
             }
           });
+      triggersChanged(trigger);
     } catch (JobPersistenceException e) {
       LOG.error("Error while release acquired trigger ", e);
     }
@@ -790,7 +1152,7 @@ public class OrientDbJobStore implements JobStore {
       throws JobPersistenceException {
     LOG.debug("Triggers fired {}", triggers);
     return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<List<TriggerFiredResult>>() {
+        LockPriority.SCHEDULER, new TransactionMethod<List<TriggerFiredResult>>() {
           @Override
           public List<TriggerFiredResult> doInTransaction() throws JobPersistenceException {
             return assembler.getTriggerRunner().triggersFired(triggers);
@@ -805,7 +1167,7 @@ public class OrientDbJobStore implements JobStore {
         triggerInstCode);
     try {
       assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
-          new TransactionMethod<Void>() {
+          LockPriority.SCHEDULER, new TransactionMethod<Void>() {
             @Override
             public Void doInTransaction() throws JobPersistenceException {
               assembler.getJobCompleteHandler().jobComplete(trigger, job, triggerInstCode);
@@ -813,11 +1175,123 @@ public class OrientDbJobStore implements JobStore {
               return null;
             }
           });
+      if (job.isConcurrentExectionDisallowed()) {
+        // The other triggers of the job were unblocked and may have misfired.
+        triggersResumed();
+      }
     } catch (JobPersistenceException e) {
       LOG.error("Error while trigger job completed ", e);
     }
   }
 
+  /**
+   * Tell the misfire handler that a trigger was stored or became waiting.
+   * 
+   * @param trigger
+   *          the trigger
+   */
+  private void triggersChanged(OperableTrigger trigger) {
+    Date nextFireTime = trigger.getNextFireTime();
+    if (nextFireTime != null) {
+      assembler.getMisfireHandler().schedulingChanged(nextFireTime.getTime());
+    }
+  }
+
+  /**
+   * Tell the misfire handler that triggers which may have misfired became
+   * waiting.
+   */
+  private void triggersResumed() {
+    assembler.getMisfireHandler().schedulingChanged(0);
+  }
+
+  /**
+   * Do a method in a transaction holding only the lock for a job.
+   * 
+   * <p>
+   * Other single key operations can run at the same time, operations on the
+   * whole set of triggers wait for it.
+   * 
+   * @param jobKey
+   *          the key of the job
+   * @param method
+   *          the method to run in the transaction
+   * 
+   * @return the result of the method
+   * 
+   * @throws JobPersistenceException
+   *           something bad happened
+   */
+  private <T> T doInJobTransaction(JobKey jobKey, TransactionMethod<T> method)
+      throws JobPersistenceException {
+    return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
+        Collections.singletonList(jobKey), method);
+  }
+
+  /**
+   * Do a method in a transaction holding only the locks for a trigger and its
+   * job.
+   * 
+   * <p>
+   * The job lock keeps operations on a job and on its triggers from
+   * interleaving. The job of a stored trigger is looked up before locking and
+   * the lookup is repeated if the trigger moved to another job in between.
+   * 
+   * @param triggerKey
+   *          the key of the trigger
+   * @param newJobKey
+   *          the key of a job the trigger is being moved to, can be
+   *          {@code null}
+   * @param method
+   *          the method to run in the transaction
+   * 
+   * @return the result of the method
+   * 
+   * @throws JobPersistenceException
+   *           something bad happened
+   */
+  private <T> T doInTriggerTransaction(final TriggerKey triggerKey, JobKey newJobKey,
+      final TransactionMethod<T> method) throws JobPersistenceException {
+    while (true) {
+      final JobKey jobKey = assembler.getOrientDbConnector()
+          .doInTransactionWithoutLock(new TransactionMethod<JobKey>() {
+            @Override
+            public JobKey doInTransaction() throws JobPersistenceException {
+              return assembler.getTriggerDao().getJobKey(triggerKey);
+            }
+          });
+
+      Set<Key<?>> keys = new HashSet<>();
+      keys.add(triggerKey);
+      if (jobKey != null) {
+        keys.add(jobKey);
+      }
+      if (newJobKey != null) {
+        keys.add(newJobKey);
+      }
+
+      final boolean[] moved = new boolean[1];
+      T result = assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER, keys,
+          new TransactionMethod<T>() {
+            @Override
+            public T doInTransaction() throws JobPersistenceException {
+              JobKey currentJobKey = assembler.getTriggerDao().getJobKey(triggerKey);
+              if (currentJobKey == null ? jobKey != null : !currentJobKey.equals(jobKey)) {
+                moved[0] = true;
+                return null;
+              }
+
+              return method.doInTransaction();
+            }
+          });
+      if (!moved[0]) {
+        return result;
+      }
+
+      LOG.debug("Trigger {} changed its job while being locked, locking again", triggerKey);
+    }
+  }
+
   @Override
   public void setInstanceId(String instanceId) {
     this.instanceId = instanceId;
@@ -899,6 +1373,70 @@ public class OrientDbJobStore implements JobStore {
     return misfireThreshold;
   }
 
+  public int getMaxMisfiresToHandleAtATime() {
+    return maxMisfiresToHandleAtATime;
+  }
+
+  public void setMaxMisfiresToHandleAtATime(int maxMisfiresToHandleAtATime) {
+    this.maxMisfiresToHandleAtATime = maxMisfiresToHandleAtATime;
+  }
+
+  public long getMisfireLockHoldBudgetMillis() {
+    return misfireLockHoldBudgetMillis;
+  }
+
+  public void setMisfireLockHoldBudgetMillis(long misfireLockHoldBudgetMillis) {
+    this.misfireLockHoldBudgetMillis = misfireLockHoldBudgetMillis;
+  }
+
+  public String getJobDataCodecs() {
+    return jobDataCodecs;
+  }
+
+  public void setJobDataCodecs(String jobDataCodecs) {
+    this.jobDataCodecs = jobDataCodecs;
+  }
+
+  public long getMisfireBulkRecoveryThreshold() {
+    return misfireBulkRecoveryThreshold;
+  }
+
+  public void setMisfireBulkRecoveryThreshold(long misfireBulkRecoveryThreshold) {
+    this.misfireBulkRecoveryThreshold = misfireBulkRecoveryThreshold;
+  }
+
+  public int getMisfireBulkRecoveryThreads() {
+    return misfireBulkRecoveryThreads;
+  }
+
+  public void setMisfireBulkRecoveryThreads(int misfireBulkRecoveryThreads) {
+    this.misfireBulkRecoveryThreads = misfireBulkRecoveryThreads;
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  public void setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public int getTransferBatchSize() {
+    return transferBatchSize;
+  }
+
+  public void setTransferBatchSize(int transferBatchSize) {
+    this.transferBatchSize = transferBatchSize;
+  }
+
+  public int getTransferThreads() {
+    return transferThreads;
+  }
+
+  public void setTransferThreads(int transferThreads) {
+    this.transferThreads = transferThreads;
+  }
+
   public void setTriggerTimeoutMillis(long triggerTimeoutMillis) {
     this.triggerTimeoutMillis = triggerTimeoutMillis;
   }
@@ -939,6 +1477,70 @@ public class OrientDbJobStore implements JobStore {
     this.dbRetryInterval = dbRetryInterval;
   }
 
+  public boolean isLockFair() {
+    return lockFair;
+  }
+
+  public void setLockFair(boolean lockFair) {
+    this.lockFair = lockFair;
+  }
+
+  public int getLockStripes() {
+    return lockStripes;
+  }
+
+  public void setLockStripes(int lockStripes) {
+    this.lockStripes = lockStripes;
+  }
+
+  public boolean isLockStripeByGroup() {
+    return lockStripeByGroup;
+  }
+
+  public void setLockStripeByGroup(boolean lockStripeByGroup) {
+    this.lockStripeByGroup = lockStripeByGroup;
+  }
+
+  public long getLockSchedulerTimeoutMillis() {
+    return lockSchedulerTimeoutMillis;
+  }
+
+  public void setLockSchedulerTimeoutMillis(long lockSchedulerTimeoutMillis) {
+    this.lockSchedulerTimeoutMillis = lockSchedulerTimeoutMillis;
+  }
+
+  public long getLockAdminTimeoutMillis() {
+    return lockAdminTimeoutMillis;
+  }
+
+  public void setLockAdminTimeoutMillis(long lockAdminTimeoutMillis) {
+    this.lockAdminTimeoutMillis = lockAdminTimeoutMillis;
+  }
+
+  public boolean isLockInstrumentation() {
+    return lockInstrumentation;
+  }
+
+  public void setLockInstrumentation(boolean lockInstrumentation) {
+    this.lockInstrumentation = lockInstrumentation;
+  }
+
+  public boolean isLockDistributed() {
+    return lockDistributed;
+  }
+
+  public void setLockDistributed(boolean lockDistributed) {
+    this.lockDistributed = lockDistributed;
+  }
+
+  public long getLockLeaseMillis() {
+    return lockLeaseMillis;
+  }
+
+  public void setLockLeaseMillis(long lockLeaseMillis) {
+    this.lockLeaseMillis = lockLeaseMillis;
+  }
+
   public ScheduledExecutorService getExecutorService() {
     return executorService;
   }
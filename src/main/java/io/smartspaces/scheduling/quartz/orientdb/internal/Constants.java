@@ -32,12 +32,37 @@ public interface Constants {
 
   String JOB_REQUESTS_RECOVERY = "requestsRecovery";
 
+  /**
+   * The legacy field holding the Java serialized job data, Base64 encoded.
+   */
   String JOB_DATA = "jobData";
 
+  /**
+   * The field giving the format the job data is stored in, missing for the
+   * legacy formats.
+   */
+  String JOB_DATA_FORMAT = "jobDataFormat";
+
+  /**
+   * The field holding job data values of simple types, as an embedded map.
+   */
+  String JOB_DATA_TYPED = "jobDataTyped";
+
+  /**
+   * The field holding job data values of other types, as binary.
+   */
+  String JOB_DATA_BINARY = "jobDataBinary";
+
   String TRIGGER_NEXT_FIRE_TIME = "nextFireTime";
   String TRIGGER_JOB_ID = "jobId";
   String TRIGGER_STATE = "state";
 
+  /**
+   * The field naming the instance which acquired a trigger, or fired the job
+   * which blocked it.
+   */
+  String TRIGGER_INSTANCE_ID = "instanceId";
+
   String TRIGGER_CALENDAR_NAME = "calendarName";
   String TRIGGER_CLASS = "class";
   String TRIGGER_DESCRIPTION = "description";
@@ -63,16 +88,40 @@ public interface Constants {
     /**
      * A job lock.
      */
-    job
+    job,
+
+    /**
+     * A lease on a named store lock.
+     */
+    named,
+
+    /**
+     * A lease on a key under a named store lock.
+     */
+    key
   }
 
   String LOCK_TYPE = "type";
 
   String LOCK_INSTANCE_ID = "instanceId";
   String LOCK_TIME = "time";
+  String LOCK_LEASE_EXPIRES = "leaseExpires";
+  String LOCK_TOKEN = "token";
 
   String KEY_NAME = "keyName";
   String KEY_GROUP = "keyGroup";
+
+  /**
+   * The unique index on the group and name of jobs, without the collection
+   * prefix.
+   */
+  String JOB_KEY_INDEX = "JOBS.key_NAME.key_group";
+
+  /**
+   * The unique index on the group and name of triggers, without the collection
+   * prefix.
+   */
+  String TRIGGER_KEY_INDEX = "TRIGGERS.key_NAME.key_group";
   
 
   String SCHEDULER_NAME_FIELD = "schedulerName";
@@ -83,6 +132,39 @@ public interface Constants {
   String CALENDAR_NAME = "name";
   String CALENDAR_SERIALIZED_OBJECT = "serializedObject";
 
+  /**
+   * The calendar document field naming the type of a calendar stored as
+   * fields, {@code null} if the calendar is serialized.
+   */
+  String CALENDAR_TYPE = "type";
+  String CALENDAR_DESCRIPTION = "description";
+  String CALENDAR_TIME_ZONE = "timeZone";
+
+  /**
+   * The calendar document field holding the base calendar as an embedded
+   * document.
+   */
+  String CALENDAR_BASE_CALENDAR = "baseCalendar";
+
+  /**
+   * The calendar document field holding the sorted list of excluded days.
+   */
+  String CALENDAR_EXCLUDED = "excluded";
+  String CALENDAR_CRON_EXPRESSION = "cronExpression";
+
+  /**
+   * The calendar document fields giving a daily time range as milliseconds
+   * after midnight.
+   */
+  String CALENDAR_RANGE_START = "rangeStart";
+  String CALENDAR_RANGE_END = "rangeEnd";
+  String CALENDAR_INVERT_TIME_RANGE = "invertTimeRange";
+
+
+  /**
+   * The schema version document field giving the version number.
+   */
+  String SCHEMA_VERSION = "version";
 
   String STATE_WAITING = "waiting";
   String STATE_EXECUTING = "executing";
@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.quartz.utils.Key;
+
+/**
+ * A lock provider recording statistics about the locks of another provider.
+ *
+ * <p>
+ * Locks are attributed to the method of the caller class they were obtained
+ * for. Finding the method walks the stack, so only a sample of the lock
+ * requests is attributed. The method of the lock held the longest is found
+ * from the stack of its holder when it is asked for.
+ */
+public class InstrumentedLockProvider implements LockProvider {
+
+  /**
+   * The suffix for the statistics name of key locks.
+   */
+  private static final String KEY_LOCK_SUFFIX = "[key]";
+
+  /**
+   * The method name used when the caller cannot be found.
+   */
+  private static final String UNKNOWN_METHOD = "unknown";
+
+  /**
+   * One in this many lock requests is attributed to its method.
+   */
+  private static final int METHOD_SAMPLE_INTERVAL = 16;
+
+  /**
+   * The provider doing the locking.
+   */
+  private final LockProvider delegate;
+
+  /**
+   * The statistics to record into.
+   */
+  private final LockStatistics statistics;
+
+  /**
+   * The name of the class whose methods locks are attributed to.
+   */
+  private final String callerClassName;
+
+  /**
+   * The locks held by the current thread, most recent first.
+   */
+  private final ThreadLocal<Deque<LockStatistics.Hold>> holds =
+      ThreadLocal.withInitial(ArrayDeque::new);
+
+  /**
+   * Construct a new provider.
+   *
+   * @param delegate
+   *          the provider doing the locking
+   * @param statistics
+   *          the statistics to record into
+   * @param callerClass
+   *          the class whose methods locks are attributed to
+   */
+  public InstrumentedLockProvider(LockProvider delegate, LockStatistics statistics,
+      Class<?> callerClass) {
+    this.delegate = delegate;
+    this.statistics = statistics;
+    this.callerClassName = callerClass.getName();
+
+    statistics.setCallerMethodFinder(this::findCallerMethod);
+  }
+
+  @Override
+  public boolean obtainLock(String lockName) throws LockException {
+    return obtain(lockName, () -> delegate.obtainLock(lockName));
+  }
+
+  @Override
+  public boolean obtainLock(String lockName, LockPriority priority) throws LockException {
+    return obtain(lockName, () -> delegate.obtainLock(lockName, priority));
+  }
+
+  @Override
+  public void releaseLock(String lockName) throws LockException {
+    try {
+      delegate.releaseLock(lockName);
+    } finally {
+      // A lost lease fails the release, but the lock is no longer held.
+      release(lockName);
+    }
+  }
+
+  @Override
+  public boolean obtainLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    return obtain(lockName + KEY_LOCK_SUFFIX, () -> delegate.obtainLock(lockName, keys));
+  }
+
+  @Override
+  public void releaseLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    try {
+      delegate.releaseLock(lockName, keys);
+    } finally {
+      release(lockName + KEY_LOCK_SUFFIX);
+    }
+  }
+
+  @Override
+  public void checkLocksHeld() throws LockException {
+    delegate.checkLocksHeld();
+  }
+
+  /**
+   * Get the statistics being recorded.
+   *
+   * @return the statistics
+   */
+  public LockStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Obtain a lock and record the wait.
+   *
+   * @param statisticsName
+   *          the name of the lock in the statistics
+   * @param obtainer
+   *          obtains the lock from the delegate
+   *
+   * @return {@code true} if the lock was obtained
+   *
+   * @throws LockException
+   *           the delegate could not obtain the lock
+   */
+  private boolean obtain(String statisticsName, LockObtainer obtainer) throws LockException {
+    String method = null;
+    if (ThreadLocalRandom.current().nextInt(METHOD_SAMPLE_INTERVAL) == 0) {
+      method = findCallerMethod(new Throwable().getStackTrace());
+    }
+
+    statistics.startWaiting(statisticsName);
+    long start = System.nanoTime();
+    boolean obtained = false;
+    try {
+      obtained = obtainer.obtain();
+    } finally {
+      statistics.stopWaiting(statisticsName, method, System.nanoTime() - start, obtained);
+    }
+
+    if (obtained) {
+      holds.get().push(statistics.startHold(statisticsName, method));
+    }
+
+    return obtained;
+  }
+
+  /**
+   * Record the release of a lock held by the current thread.
+   *
+   * @param statisticsName
+   *          the name of the lock in the statistics
+   */
+  private void release(String statisticsName) {
+    Iterator<LockStatistics.Hold> threadHolds = holds.get().iterator();
+    while (threadHolds.hasNext()) {
+      LockStatistics.Hold hold = threadHolds.next();
+      if (hold.getLockName().equals(statisticsName)) {
+        threadHolds.remove();
+        statistics.endHold(hold);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Find the method of the caller class a lock is requested for.
+   *
+   * <p>
+   * Private helpers of the caller class which only start transactions are
+   * skipped. If the caller class is not on the stack, the first method outside
+   * of the locking and connection classes is used.
+   *
+   * @param stack
+   *          the stack of the thread requesting or holding the lock
+   *
+   * @return the method as {@code SimpleClassName.method}
+   */
+  private String findCallerMethod(StackTraceElement[] stack) {
+    StackTraceElement fallback = null;
+    for (StackTraceElement element : stack) {
+      String className = element.getClassName();
+      if (className.equals(callerClassName)) {
+        if (!element.getMethodName().startsWith("doIn")) {
+          return getMethodName(element);
+        }
+      } else if (fallback == null && !isLockingClass(className)) {
+        fallback = element;
+      }
+    }
+
+    return fallback != null ? getMethodName(fallback) : UNKNOWN_METHOD;
+  }
+
+  /**
+   * Is a class part of obtaining locks rather than a user of them?
+   *
+   * @param className
+   *          the name of the class
+   *
+   * @return {@code true} if the class only passes lock requests on
+   */
+  private boolean isLockingClass(String className) {
+    return className.equals(InstrumentedLockProvider.class.getName())
+        || className.startsWith(callerClassName + "$")
+        || className.endsWith("OrientDbConnector") || className.endsWith("LockProvider");
+  }
+
+  /**
+   * Get the name of the method of a stack frame.
+   *
+   * @param element
+   *          the stack frame
+   *
+   * @return the method as {@code SimpleClassName.method}
+   */
+  private static String getMethodName(StackTraceElement element) {
+    String className = element.getClassName();
+    return className.substring(className.lastIndexOf('.') + 1) + "."
+        + element.getMethodName();
+  }
+
+  /**
+   * Obtains a lock from the delegate.
+   */
+  private interface LockObtainer {
+
+    /**
+     * Obtain the lock.
+     *
+     * @return {@code true} if the lock was obtained
+     *
+     * @throws LockException
+     *           the lock could not be obtained
+     */
+    boolean obtain() throws LockException;
+  }
+}
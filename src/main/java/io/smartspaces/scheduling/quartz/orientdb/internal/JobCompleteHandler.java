@@ -61,7 +61,11 @@ public class JobCompleteHandler {
     }
 
     if (job.isConcurrentExectionDisallowed()) {
-      // TODO(keith): Need to change state on other jobs. See JDBCJobStore
+      ODocument jobDoc = jobDao.getJob(job.getKey());
+      if (jobDoc != null) {
+        triggerDao.changeStateByJobId(jobDoc.getIdentity(), TriggerStateTransitions.UNBLOCK);
+        signaler.signalSchedulingChange(0L);
+      }
     }
 
     processCompletedTrigger(trigger, executionInstruction);
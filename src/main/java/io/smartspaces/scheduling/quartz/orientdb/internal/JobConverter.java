@@ -19,7 +19,10 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal;
 
-import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.quartz.Job;
 import org.quartz.JobBuilder;
@@ -27,29 +30,47 @@ import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
 import org.quartz.JobPersistenceException;
+import org.quartz.impl.JobDetailImpl;
 import org.quartz.spi.ClassLoadHelper;
 
 import com.orientechnologies.orient.core.record.impl.ODocument;
 
-import io.smartspaces.scheduling.quartz.orientdb.internal.util.SerialUtils;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.JobDataCodecs;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.JobDataMigrator;
 
 /**
  * A converter between Quartz job descriptions and and OrientDB records.
  */
 public class JobConverter {
 
+  /**
+   * The fields of a job record which are not job data, for records which have
+   * the job data spread over their fields.
+   */
+  private static final Set<String> JOB_FIELDS =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList(Constants.KEY_NAME,
+          Constants.KEY_GROUP, Constants.JOB_CLASS, Constants.JOB_DESCRIPTION,
+          Constants.JOB_DURABILITY, Constants.JOB_REQUESTS_RECOVERY, "_id")));
+
   private ClassLoadHelper classLoadHelper;
+  private JobDataCodecs jobDataCodecs;
+  private JobDataMigrator jobDataMigrator;
   private String iClassName = "Job";
 
-  public JobConverter(ClassLoadHelper classLoadHelper) {
+  public JobConverter(ClassLoadHelper classLoadHelper, JobDataCodecs jobDataCodecs,
+      JobDataMigrator jobDataMigrator) {
     this.classLoadHelper = classLoadHelper;
+    this.jobDataCodecs = jobDataCodecs;
+    this.jobDataMigrator = jobDataMigrator;
   }
-  public JobConverter(ClassLoadHelper classLoadHelper, String collectionPrefix) {
-    this(classLoadHelper);
+
+  public JobConverter(ClassLoadHelper classLoadHelper, JobDataCodecs jobDataCodecs,
+      JobDataMigrator jobDataMigrator, String collectionPrefix) {
+    this(classLoadHelper, jobDataCodecs, jobDataMigrator);
     this.iClassName = new StringBuilder(collectionPrefix).append(this.iClassName).toString();
   }
 
-  public ODocument toDocument(JobDetail newJob, JobKey key) {
+  public ODocument toDocument(JobDetail newJob, JobKey key) throws JobPersistenceException {
     ODocument job = new ODocument(this.iClassName);
 
     job.field(Constants.KEY_NAME, key.getName());
@@ -58,7 +79,7 @@ public class JobConverter {
     job.field(Constants.JOB_CLASS, newJob.getJobClass().getName());
     job.field(Constants.JOB_DURABILITY, newJob.isDurable());
     job.field(Constants.JOB_REQUESTS_RECOVERY, newJob.requestsRecovery());
-    job.fromMap(newJob.getJobDataMap());
+    jobDataCodecs.encode(newJob.getJobDataMap(), job);
 
     return job;
   }
@@ -78,33 +99,20 @@ public class JobConverter {
       JobBuilder builder = createJobBuilder(doc, jobClass);
       withDurability(doc, builder);
       withRequestsRecovery(doc, builder);
-      JobDataMap jobData = createJobDataMap(doc);
-      return builder.usingJobData(jobData).build();
+      // Set after building, as the builder would copy the map and so decode
+      // it.
+      JobDetailImpl jobDetail = (JobDetailImpl) builder.build();
+      jobDetail.setJobDataMap(createJobDataMap(doc));
+      return jobDetail;
     } catch (ClassNotFoundException e) {
       throw new JobPersistenceException("Could not load job class " + jobClassName, e);
-    } catch (IOException e) {
-      throw new JobPersistenceException("Could not load job class " + jobClassName, e);
     }
   }
 
-  private JobDataMap createJobDataMap(ODocument doc) throws IOException {
-    JobDataMap jobData = new JobDataMap();
-
-    String jobDataString = doc.field(Constants.JOB_DATA);
-    if (jobDataString != null) {
-      jobData.putAll(SerialUtils.deserialize(jobData, jobDataString));
-    } else {
-      for (String key : doc.fieldNames()) {
-        if (!key.equals(Constants.KEY_NAME) && !key.equals(Constants.KEY_GROUP)
-            && !key.equals(Constants.JOB_CLASS) && !key.equals(Constants.JOB_DESCRIPTION)
-            && !key.equals(Constants.JOB_DURABILITY) && !key.equals(Constants.JOB_REQUESTS_RECOVERY)
-            && !key.equals("_id")) {
-          jobData.put(key, doc.field(key));
-        }
-      }
-    }
+  private JobDataMap createJobDataMap(ODocument doc) throws JobPersistenceException {
+    JobDataMap jobData = jobDataCodecs.decodeLazily(doc, JOB_FIELDS);
+    jobDataMigrator.migrateIfNeeded(doc, JOB_FIELDS);
 
-    jobData.clearDirtyFlag();
     return jobData;
   }
 
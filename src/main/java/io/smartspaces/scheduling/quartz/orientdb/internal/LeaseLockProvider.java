@@ -0,0 +1,699 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.quartz.JobPersistenceException;
+import org.quartz.utils.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants.LockType;
+import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardLockDao;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
+
+/**
+ * A lock provider which makes the locks of another provider hold across all
+ * nodes sharing the database.
+ *
+ * <p>
+ * The threads of this node first get the lock from the local provider. The
+ * first one to get it then takes a lease on the lock in the lock class of the
+ * database. A lease is a lock document which expires unless its holder renews
+ * it. The leases of a node are all renewed with one update on a fixed interval,
+ * so a node which dies only blocks the others until its leases expire.
+ *
+ * <p>
+ * When the lock is not contended, taking a lease is a single update and
+ * releasing it another. A lease which is held is waited for with a growing
+ * backoff, unless it has expired, in which case it is taken over.
+ *
+ * <p>
+ * Every lease carries a fencing token, which the database increments with
+ * every takeover, so it grows whatever the clocks of the nodes say. The lease
+ * records of named locks are kept when released so their tokens keep growing.
+ * Before a transaction guarded by leases commits, the connector has the
+ * provider check that the lease records still carry the tokens of the thread.
+ * A holder whose lease was taken over while it was stalled has its transaction
+ * rolled back instead of writing over the new holder.
+ *
+ * <p>
+ * Key locks take one lease per key, in a fixed order. The named lock excludes
+ * key locks across nodes too: a node holding a key lease backs off when it
+ * sees the lease on the named lock, and the holder of the named lease waits
+ * for the key leases to drain.
+ *
+ * <p>
+ * Lease expiry is compared to the clocks of the nodes, which must therefore be
+ * kept in sync well within the lease time.
+ */
+public class LeaseLockProvider implements LockProvider {
+
+  /**
+   * The default time in milliseconds a lease lasts without being renewed.
+   */
+  public static final long DEFAULT_LEASE_MILLIS = 30000;
+
+  /**
+   * The first backoff in milliseconds when a lease is contended.
+   */
+  private static final long INITIAL_BACKOFF_MILLIS = 5;
+
+  /**
+   * The longest backoff in milliseconds when a lease is contended.
+   */
+  private static final long MAX_BACKOFF_MILLIS = 250;
+
+  private static final Logger LOG = LoggerFactory.getLogger(LeaseLockProvider.class);
+
+  /**
+   * The provider for the locks between the threads of this node.
+   */
+  private final LockProvider localProvider;
+
+  /**
+   * The DAO for the lease documents.
+   */
+  private final StandardLockDao lockDao;
+
+  /**
+   * The clock to use.
+   */
+  private final Clock clock;
+
+  /**
+   * The time in milliseconds a lease lasts without being renewed.
+   */
+  private final long leaseMillis;
+
+  /**
+   * The maximum time in milliseconds to wait for a lease, by priority.
+   */
+  private final Map<LockPriority, Long> timeouts = new EnumMap<>(LockPriority.class);
+
+  /**
+   * The leases held by the current thread, by lease ID.
+   */
+  private final ThreadLocal<Map<String, Lease>> threadLeases =
+      ThreadLocal.withInitial(HashMap::new);
+
+  /**
+   * The leases held by all threads of this node.
+   */
+  private final Set<Lease> heldLeases = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The number of leases found to be lost to another node.
+   */
+  private final AtomicLong lostLeaseCount = new AtomicLong();
+
+  /**
+   * The future for the renewal of the leases, {@code null} if not started.
+   */
+  private ScheduledFuture<?> renewalFuture;
+
+  /**
+   * Construct a new provider.
+   *
+   * @param localProvider
+   *          the provider for the locks between the threads of this node
+   * @param lockDao
+   *          the DAO for the lease documents
+   * @param clock
+   *          the clock to use
+   * @param leaseMillis
+   *          the time in milliseconds a lease lasts without being renewed
+   * @param schedulerTimeoutMillis
+   *          the maximum time in milliseconds the scheduler thread waits for a
+   *          lease, {@code 0} for no limit
+   * @param adminTimeoutMillis
+   *          the maximum time in milliseconds all other requests wait for a
+   *          lease, {@code 0} for no limit
+   */
+  public LeaseLockProvider(LockProvider localProvider, StandardLockDao lockDao, Clock clock,
+      long leaseMillis, long schedulerTimeoutMillis, long adminTimeoutMillis) {
+    if (leaseMillis <= 0) {
+      throw new IllegalArgumentException("The lease time must be positive");
+    }
+    if (schedulerTimeoutMillis < 0 || adminTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Lock timeouts cannot be negative");
+    }
+
+    this.localProvider = localProvider;
+    this.lockDao = lockDao;
+    this.clock = clock;
+    this.leaseMillis = leaseMillis;
+    timeouts.put(LockPriority.SCHEDULER, schedulerTimeoutMillis);
+    timeouts.put(LockPriority.ADMIN, adminTimeoutMillis);
+  }
+
+  /**
+   * Start renewing the leases of this node.
+   *
+   * @param executorService
+   *          the executor to run the renewal on
+   */
+  public synchronized void startRenewal(ScheduledExecutorService executorService) {
+    if (renewalFuture == null) {
+      long interval = Math.max(1, leaseMillis / 3);
+      renewalFuture = executorService.scheduleWithFixedDelay(this::renewLeases, interval,
+          interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stop renewing leases and release all leases of this node.
+   */
+  public synchronized void shutdown() {
+    if (renewalFuture != null) {
+      renewalFuture.cancel(false);
+      renewalFuture = null;
+    }
+
+    try {
+      long released = lockDao.releaseAllLeases();
+      LOG.debug("Released {} leases on shutdown", released);
+    } catch (JobPersistenceException e) {
+      LOG.warn("Could not release the leases on shutdown, they will expire", e);
+    }
+    heldLeases.clear();
+  }
+
+  @Override
+  public boolean obtainLock(String lockName) throws LockException {
+    return obtainLock(lockName, LockPriority.ADMIN);
+  }
+
+  @Override
+  public boolean obtainLock(String lockName, LockPriority priority) throws LockException {
+    if (!localProvider.obtainLock(lockName, priority)) {
+      return false;
+    }
+
+    Map<String, Lease> leases = threadLeases.get();
+    Lease lease = leases.get(getLeaseId(LockType.named, lockName, lockName));
+    if (lease != null) {
+      lease.holds++;
+      return true;
+    }
+
+    try {
+      long deadline = getDeadline(priority);
+      lease = obtainLease(LockType.named, lockName, lockName, deadline);
+      try {
+        awaitKeyLeasesDrained(lockName, deadline);
+      } catch (LockException e) {
+        releaseLease(lease);
+        throw e;
+      }
+      leases.put(lease.id, lease);
+
+      return true;
+    } catch (LockException | RuntimeException e) {
+      localProvider.releaseLock(lockName);
+      throw e;
+    }
+  }
+
+  @Override
+  public void releaseLock(String lockName) throws LockException {
+    try {
+      Map<String, Lease> leases = threadLeases.get();
+      String leaseId = getLeaseId(LockType.named, lockName, lockName);
+      Lease lease = leases.get(leaseId);
+      if (lease != null && --lease.holds == 0) {
+        leases.remove(leaseId);
+        releaseLease(lease);
+      }
+    } finally {
+      localProvider.releaseLock(lockName);
+    }
+  }
+
+  @Override
+  public boolean obtainLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    if (!localProvider.obtainLock(lockName, keys)) {
+      return false;
+    }
+
+    Map<String, Lease> leases = threadLeases.get();
+    if (leases.containsKey(getLeaseId(LockType.named, lockName, lockName))) {
+      // The named lease covers all keys under it.
+      return true;
+    }
+
+    try {
+      long deadline = getDeadline(LockPriority.ADMIN);
+      long backoff = INITIAL_BACKOFF_MILLIS;
+      while (true) {
+        List<Lease> obtained = new ArrayList<>();
+        try {
+          for (String leaseName : getLeaseNames(keys)) {
+            Lease lease = leases.get(getLeaseId(LockType.key, lockName, leaseName));
+            if (lease != null) {
+              lease.holds++;
+            } else {
+              lease = obtainLease(LockType.key, lockName, leaseName, deadline);
+              leases.put(lease.id, lease);
+            }
+            obtained.add(lease);
+          }
+        } catch (LockException | RuntimeException e) {
+          releaseKeyLeases(leases, obtained);
+          throw e;
+        }
+
+        if (countLiveLeases(LockType.named, lockName) == 0) {
+          return true;
+        }
+
+        // Someone holds the whole named lock, let them have it.
+        releaseKeyLeases(leases, obtained);
+        backoff = backoff(lockName, deadline, backoff);
+      }
+    } catch (LockException | RuntimeException e) {
+      localProvider.releaseLock(lockName, keys);
+      throw e;
+    }
+  }
+
+  @Override
+  public void releaseLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    try {
+      Map<String, Lease> leases = threadLeases.get();
+      if (!leases.containsKey(getLeaseId(LockType.named, lockName, lockName))) {
+        List<Lease> held = new ArrayList<>();
+        for (String leaseName : getLeaseNames(keys)) {
+          Lease lease = leases.get(getLeaseId(LockType.key, lockName, leaseName));
+          if (lease != null) {
+            held.add(lease);
+          }
+        }
+        releaseKeyLeases(leases, held);
+      }
+    } finally {
+      localProvider.releaseLock(lockName, keys);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * The lease records must still carry the fencing tokens of the thread and
+   * must not expire within a third of the lease time, so the commit is done
+   * before anyone can take them over.
+   */
+  @Override
+  public void checkLocksHeld() throws LockException {
+    Map<String, Lease> leases = threadLeases.get();
+    if (leases.isEmpty()) {
+      return;
+    }
+
+    Map<ORID, Lease> byDocumentId = new HashMap<>();
+    for (Lease lease : leases.values()) {
+      byDocumentId.put(lease.documentId, lease);
+    }
+
+    Map<ORID, Long> tokens;
+    try {
+      tokens = lockDao.getHeldLeaseTokens(byDocumentId.keySet(),
+          clock.millis() + leaseMillis / 3);
+    } catch (JobPersistenceException e) {
+      throw new LockException("Could not check the leases of the current thread", e);
+    }
+
+    for (Lease lease : byDocumentId.values()) {
+      Long token = tokens.get(lease.documentId);
+      if (token == null || token != lease.token) {
+        // Counted as lost when the lease is released.
+        throw new LockException(
+            "Lease " + lease.id + " with token " + lease.token + " is no longer held");
+      }
+    }
+  }
+
+  /**
+   * Get the number of leases held by this node.
+   *
+   * @return the number of leases
+   */
+  public int getHeldLeaseCount() {
+    return heldLeases.size();
+  }
+
+  /**
+   * Get the number of leases which were found to be lost to another node.
+   *
+   * @return the number of lost leases
+   */
+  public long getLostLeaseCount() {
+    return lostLeaseCount.get();
+  }
+
+  /**
+   * Renew all leases of this node.
+   */
+  void renewLeases() {
+    if (heldLeases.isEmpty()) {
+      return;
+    }
+
+    try {
+      long now = clock.millis();
+      long renewed = lockDao.renewLeases(now, now + leaseMillis);
+      int held = heldLeases.size();
+      if (renewed < held) {
+        LOG.warn("Only {} of {} leases could be renewed, some may have been lost", renewed,
+            held);
+      }
+    } catch (JobPersistenceException | RuntimeException e) {
+      LOG.warn("Could not renew leases", e);
+    }
+  }
+
+  /**
+   * Obtain a lease, waiting for it if necessary.
+   *
+   * @param type
+   *          the type of the lease
+   * @param lockName
+   *          the name of the store lock
+   * @param leaseName
+   *          the name of the lease under the store lock
+   * @param deadline
+   *          the deadline in {@link System#nanoTime()} units, {@code 0} for no
+   *          limit
+   *
+   * @return the lease
+   *
+   * @throws LockException
+   *           the lease could not be obtained in time
+   */
+  private Lease obtainLease(LockType type, String lockName, String leaseName, long deadline)
+      throws LockException {
+    long backoff = INITIAL_BACKOFF_MILLIS;
+    while (true) {
+      try {
+        long now = clock.millis();
+        ODocument leaseDoc;
+        if (type == LockType.named) {
+          // Named lease records are kept, so usually there is one to take.
+          leaseDoc = lockDao.takeOverExpiredLease(type, lockName, leaseName, now,
+              now + leaseMillis);
+          if (leaseDoc == null) {
+            leaseDoc = lockDao.insertLease(type, lockName, leaseName, now + leaseMillis);
+          }
+        } else {
+          leaseDoc = lockDao.insertLease(type, lockName, leaseName, now + leaseMillis);
+          if (leaseDoc == null) {
+            leaseDoc = lockDao.takeOverExpiredLease(type, lockName, leaseName, now,
+                now + leaseMillis);
+          }
+        }
+        if (leaseDoc != null) {
+          Number token = leaseDoc.field(Constants.LOCK_TOKEN);
+          Lease lease = new Lease(type, getLeaseId(type, lockName, leaseName),
+              leaseDoc.getIdentity(), token.longValue());
+          heldLeases.add(lease);
+
+          return lease;
+        }
+      } catch (JobPersistenceException e) {
+        throw new LockException("Could not obtain lease " + lockName + "/" + leaseName, e);
+      }
+
+      backoff = backoff(lockName, deadline, backoff);
+    }
+  }
+
+  /**
+   * Release a lease held by the current thread.
+   *
+   * @param lease
+   *          the lease
+   *
+   * @throws LockException
+   *           the lease could not be released or had been lost
+   */
+  private void releaseLease(Lease lease) throws LockException {
+    heldLeases.remove(lease);
+    boolean released;
+    try {
+      released = lockDao.releaseLease(lease.type, lease.documentId, lease.token);
+    } catch (JobPersistenceException e) {
+      throw new LockException("Could not release lease " + lease.id, e);
+    }
+
+    if (!released) {
+      lostLeaseCount.incrementAndGet();
+      throw new LockException(
+          "Lease " + lease.id + " with token " + lease.token + " was lost before its release");
+    }
+  }
+
+  /**
+   * Release key leases of the current thread which are not held anymore.
+   *
+   * @param leases
+   *          the leases of the current thread
+   * @param keyLeases
+   *          the key leases to release
+   *
+   * @throws LockException
+   *           one of the leases could not be released
+   */
+  private void releaseKeyLeases(Map<String, Lease> leases, List<Lease> keyLeases)
+      throws LockException {
+    LockException failure = null;
+    for (Lease lease : keyLeases) {
+      if (--lease.holds == 0) {
+        leases.remove(lease.id);
+        try {
+          releaseLease(lease);
+        } catch (LockException e) {
+          failure = e;
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Wait until no other node holds a key lease under a named lock.
+   *
+   * @param lockName
+   *          the name of the lock
+   * @param deadline
+   *          the deadline in {@link System#nanoTime()} units, {@code 0} for no
+   *          limit
+   *
+   * @throws LockException
+   *           the key leases did not drain in time
+   */
+  private void awaitKeyLeasesDrained(String lockName, long deadline) throws LockException {
+    long backoff = INITIAL_BACKOFF_MILLIS;
+    while (countLiveLeases(LockType.key, lockName) > 0) {
+      backoff = backoff(lockName, deadline, backoff);
+    }
+  }
+
+  /**
+   * Count the unexpired leases of a type under a named lock.
+   *
+   * @param type
+   *          the type of the leases
+   * @param lockName
+   *          the name of the lock
+   *
+   * @return the number of leases
+   *
+   * @throws LockException
+   *           the leases could not be read
+   */
+  private long countLiveLeases(LockType type, String lockName) throws LockException {
+    try {
+      return lockDao.countLiveLeases(type, lockName, clock.millis());
+    } catch (JobPersistenceException e) {
+      throw new LockException("Could not read leases of " + lockName, e);
+    }
+  }
+
+  /**
+   * Sleep before trying a contended lease again.
+   *
+   * @param lockName
+   *          the name of the lock being waited for
+   * @param deadline
+   *          the deadline in {@link System#nanoTime()} units, {@code 0} for no
+   *          limit
+   * @param backoff
+   *          the time to sleep in milliseconds
+   *
+   * @return the time to sleep next time
+   *
+   * @throws LockException
+   *           the deadline has passed or the thread was interrupted
+   */
+  private long backoff(String lockName, long deadline, long backoff) throws LockException {
+    long sleepMillis = backoff;
+    if (deadline != 0) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        LOG.warn("Timed out waiting for the lease on lock {}", lockName);
+        throw new LockException("Timed out waiting for the lease on lock " + lockName);
+      }
+      sleepMillis = Math.min(sleepMillis, remaining);
+    }
+
+    try {
+      Thread.sleep(sleepMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockException("Interrupted while waiting for the lease on lock " + lockName, e);
+    }
+
+    return Math.min(backoff * 2, Math.min(MAX_BACKOFF_MILLIS, leaseMillis));
+  }
+
+  /**
+   * Get the deadline for obtaining a lease.
+   *
+   * @param priority
+   *          the priority of the request
+   *
+   * @return the deadline in {@link System#nanoTime()} units, {@code 0} for no
+   *         limit
+   */
+  private long getDeadline(LockPriority priority) {
+    long timeout = timeouts.get(priority);
+    if (timeout == 0) {
+      return 0;
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    return deadline != 0 ? deadline : 1;
+  }
+
+  /**
+   * Get the distinct lease names for a set of keys in locking order.
+   *
+   * <p>
+   * Keys whose names run together share a lease, which only costs some
+   * concurrency.
+   *
+   * @param keys
+   *          the keys
+   *
+   * @return the lease names
+   */
+  private static SortedSet<String> getLeaseNames(Collection<? extends Key<?>> keys) {
+    SortedSet<String> leaseNames = new TreeSet<>();
+    for (Key<?> key : keys) {
+      leaseNames.add(key.getGroup() + '.' + key.getName());
+    }
+
+    return leaseNames;
+  }
+
+  /**
+   * Get the ID of a lease within this node.
+   *
+   * @param type
+   *          the type of the lease
+   * @param lockName
+   *          the name of the store lock
+   * @param leaseName
+   *          the name of the lease under the store lock
+   *
+   * @return the ID
+   */
+  private static String getLeaseId(LockType type, String lockName, String leaseName) {
+    return type.name() + ':' + lockName + '/' + leaseName;
+  }
+
+  /**
+   * A lease held by a thread of this node.
+   */
+  private static class Lease {
+
+    /**
+     * The type of the lease.
+     */
+    private final LockType type;
+
+    /**
+     * The ID of the lease within this node.
+     */
+    private final String id;
+
+    /**
+     * The record ID of the lease document.
+     */
+    private final ORID documentId;
+
+    /**
+     * The fencing token of the lease.
+     */
+    private final long token;
+
+    /**
+     * The number of times the thread obtained the lease without releasing it.
+     */
+    private int holds = 1;
+
+    /**
+     * Construct a new lease.
+     *
+     * @param type
+     *          the type of the lease
+     * @param id
+     *          the ID of the lease within this node
+     * @param documentId
+     *          the record ID of the lease document
+     * @param token
+     *          the fencing token of the lease
+     */
+    Lease(LockType type, String id, ORID documentId, long token) {
+      this.type = type;
+      this.id = id;
+      this.documentId = documentId;
+      this.token = token;
+    }
+  }
+}
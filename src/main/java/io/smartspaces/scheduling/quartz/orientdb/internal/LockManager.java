@@ -18,6 +18,7 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal;
 
+import java.util.Collection;
 import java.util.Date;
 
 import org.quartz.JobDetail;
@@ -64,6 +65,25 @@ public class LockManager {
     }
   }
 
+  /**
+   * Release the locks of a batch of acquired triggers with a constant number of
+   * statements.
+   *
+   * @param triggerKeys
+   *          the triggers to unlock
+   *
+   * @throws JobPersistenceException
+   *           the locks could not be removed
+   */
+  public void releaseAcquiredTriggers(Collection<TriggerKey> triggerKeys)
+      throws JobPersistenceException {
+    try {
+      locksDao.unlockTriggers(triggerKeys);
+    } catch (Exception e) {
+      throw new JobPersistenceException(e.getLocalizedMessage(), e);
+    }
+  }
+
   /**
    * Unlock job that have existing, expired lock.
    *
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+/**
+ * The priority classes for obtaining locks.
+ */
+public enum LockPriority {
+
+  /**
+   * The scheduler thread acquiring, firing and completing triggers.
+   *
+   * <p>
+   * Waiters of this class are let in before any waiting admin operation.
+   */
+  SCHEDULER,
+
+  /**
+   * Administrative and bulk operations.
+   */
+  ADMIN
+}
@@ -16,6 +16,11 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal;
 
+import java.util.Collection;
+import java.util.Collections;
+
+import org.quartz.utils.Key;
+
 /**
  * A provider for locks for the various threads in the jobstore.
  * 
@@ -42,6 +47,27 @@ public interface LockProvider {
    */
   boolean obtainLock(String lockName) throws LockException;
 
+  /**
+   * Obtain the requested lock for the current thread with a given priority.
+   * 
+   * <p>
+   * Providers without priorities treat all requests the same.
+   * 
+   * @param lockName
+   *          the name of the lock
+   * @param priority
+   *          the priority of the request
+   * 
+   * @return {@code true} if the lock was successfully obtained
+   * 
+   * @throws LockException
+   *           something happened while obtaining the lock, including timing
+   *           out
+   */
+  default boolean obtainLock(String lockName, LockPriority priority) throws LockException {
+    return obtainLock(lockName);
+  }
+
   /**
    * Release the lock.
    * 
@@ -55,4 +81,100 @@ public interface LockProvider {
    *           something happened while releasing the lock
    */
   void releaseLock(String lockName) throws LockException;
+
+  /**
+   * Obtain the lock for a single key under a named lock for the current thread.
+   * 
+   * @param lockName
+   *          the name of the lock
+   * @param key
+   *          the key to lock
+   * 
+   * @return {@code true} if the lock was successfully obtained
+   * 
+   * @throws LockException
+   *           something happened while obtaining the lock
+   * 
+   * @see #obtainLock(String, Collection)
+   */
+  default boolean obtainLock(String lockName, Key<?> key) throws LockException {
+    return obtainLock(lockName, Collections.singleton(key));
+  }
+
+  /**
+   * Release the lock for a single key under a named lock.
+   * 
+   * @param lockName
+   *          the name of the lock
+   * @param key
+   *          the key to release
+   * 
+   * @throws LockException
+   *           something happened while releasing the lock
+   * 
+   * @see #releaseLock(String, Collection)
+   */
+  default void releaseLock(String lockName, Key<?> key) throws LockException {
+    releaseLock(lockName, Collections.singleton(key));
+  }
+
+  /**
+   * Obtain the locks for a set of keys under a named lock for the current
+   * thread.
+   * 
+   * <p>
+   * Holders of different keys under the same name can run at the same time.
+   * Nobody can hold a key while the named lock itself is held. The keys are
+   * always locked in the same order, so callers locking overlapping sets of
+   * keys cannot deadlock each other.
+   * 
+   * <p>
+   * Providers without key locks fall back to the named lock.
+   * 
+   * @param lockName
+   *          the name of the lock
+   * @param keys
+   *          the keys to lock
+   * 
+   * @return {@code true} if the locks were successfully obtained
+   * 
+   * @throws LockException
+   *           something happened while obtaining the locks
+   */
+  default boolean obtainLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    return obtainLock(lockName);
+  }
+
+  /**
+   * Release the locks for a set of keys under a named lock.
+   * 
+   * <p>
+   * The keys must be the same as the ones the locks were obtained with.
+   * 
+   * @param lockName
+   *          the name of the lock
+   * @param keys
+   *          the keys to release
+   * 
+   * @throws LockException
+   *           something happened while releasing the locks
+   */
+  default void releaseLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    releaseLock(lockName);
+  }
+
+  /**
+   * Check that the locks of the current thread are still held, before the
+   * writes they guard are committed.
+   * 
+   * <p>
+   * Providers whose locks cannot be lost have nothing to check.
+   * 
+   * @throws LockException
+   *           a lock of the current thread is no longer held
+   */
+  default void checkLocksHeld() throws LockException {
+  }
 }
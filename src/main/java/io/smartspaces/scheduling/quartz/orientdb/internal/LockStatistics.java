@@ -0,0 +1,339 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockStatisticsSnapshot.HeldLock;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.LatencyHistogram;
+
+/**
+ * Collects wait and hold times, queue lengths and current holders of locks.
+ *
+ * <p>
+ * The times by method only include the lock requests which were attributed to
+ * a method, which may be a sample of all requests.
+ */
+public class LockStatistics implements LockStatisticsMXBean {
+
+  /**
+   * The time waited for locks, by lock.
+   */
+  private final ConcurrentMap<String, LatencyHistogram> waitTimesByLock =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The time locks were held, by lock.
+   */
+  private final ConcurrentMap<String, LatencyHistogram> holdTimesByLock =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The time waited for locks, by calling method.
+   */
+  private final ConcurrentMap<String, LatencyHistogram> waitTimesByMethod =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The time locks were held, by calling method.
+   */
+  private final ConcurrentMap<String, LatencyHistogram> holdTimesByMethod =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The number of threads waiting, by lock.
+   */
+  private final ConcurrentMap<String, AtomicInteger> queueLengths = new ConcurrentHashMap<>();
+
+  /**
+   * The number of failed attempts to obtain a lock, by lock.
+   */
+  private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+  /**
+   * The locks currently held.
+   */
+  private final Set<Hold> holds = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Finds the method a lock is held for from the stack of its holder.
+   */
+  private volatile Function<StackTraceElement[], String> callerMethodFinder =
+      stack -> "unknown";
+
+  /**
+   * Set how the method a lock is held for is found from the stack of its
+   * holder, for holds which were not attributed when the lock was obtained.
+   *
+   * @param callerMethodFinder
+   *          finds the method from the stack
+   */
+  void setCallerMethodFinder(Function<StackTraceElement[], String> callerMethodFinder) {
+    this.callerMethodFinder = callerMethodFinder;
+  }
+
+  /**
+   * Note that a thread started waiting for a lock.
+   *
+   * @param lockName
+   *          the name of the lock
+   */
+  void startWaiting(String lockName) {
+    queueLengths.computeIfAbsent(lockName, name -> new AtomicInteger()).incrementAndGet();
+  }
+
+  /**
+   * Note that a thread stopped waiting for a lock, whether it got it or not.
+   *
+   * @param lockName
+   *          the name of the lock
+   * @param method
+   *          the method the lock was requested for, {@code null} if not
+   *          attributed
+   * @param waitNanos
+   *          how long the thread waited, in nanoseconds
+   * @param obtained
+   *          {@code true} if the lock was obtained
+   */
+  void stopWaiting(String lockName, String method, long waitNanos, boolean obtained) {
+    queueLengths.get(lockName).decrementAndGet();
+    getHistogram(waitTimesByLock, lockName).record(waitNanos);
+    if (method != null) {
+      getHistogram(waitTimesByMethod, method).record(waitNanos);
+    }
+    if (!obtained) {
+      failures.computeIfAbsent(lockName, name -> new AtomicLong()).incrementAndGet();
+    }
+  }
+
+  /**
+   * Note that the current thread obtained a lock.
+   *
+   * @param lockName
+   *          the name of the lock
+   * @param method
+   *          the method the lock was obtained for, {@code null} if not
+   *          attributed
+   *
+   * @return the hold, to be passed to {@link #endHold(Hold)}
+   */
+  Hold startHold(String lockName, String method) {
+    Hold hold = new Hold(lockName, method, Thread.currentThread(), System.nanoTime());
+    holds.add(hold);
+
+    return hold;
+  }
+
+  /**
+   * Note that a lock was released.
+   *
+   * @param hold
+   *          the hold returned when the lock was obtained
+   */
+  void endHold(Hold hold) {
+    holds.remove(hold);
+
+    long holdNanos = System.nanoTime() - hold.startNanos;
+    getHistogram(holdTimesByLock, hold.lockName).record(holdNanos);
+    if (hold.method != null) {
+      getHistogram(holdTimesByMethod, hold.method).record(holdNanos);
+    }
+  }
+
+  /**
+   * Get a copy of all statistics.
+   *
+   * @return the snapshot
+   */
+  public LockStatisticsSnapshot getSnapshot() {
+    return new LockStatisticsSnapshot(getWaitTimesByLock(), getHoldTimesByLock(),
+        getWaitTimesByMethod(), getHoldTimesByMethod(), getQueueLengths(), getFailures(),
+        getLongestHeldLock());
+  }
+
+  @Override
+  public Map<String, LatencyHistogram.Snapshot> getWaitTimesByLock() {
+    return snapshot(waitTimesByLock, LatencyHistogram::getSnapshot);
+  }
+
+  @Override
+  public Map<String, LatencyHistogram.Snapshot> getHoldTimesByLock() {
+    return snapshot(holdTimesByLock, LatencyHistogram::getSnapshot);
+  }
+
+  @Override
+  public Map<String, LatencyHistogram.Snapshot> getWaitTimesByMethod() {
+    return snapshot(waitTimesByMethod, LatencyHistogram::getSnapshot);
+  }
+
+  @Override
+  public Map<String, LatencyHistogram.Snapshot> getHoldTimesByMethod() {
+    return snapshot(holdTimesByMethod, LatencyHistogram::getSnapshot);
+  }
+
+  @Override
+  public Map<String, Integer> getQueueLengths() {
+    return snapshot(queueLengths, AtomicInteger::get);
+  }
+
+  @Override
+  public int getQueueLength() {
+    int total = 0;
+    for (AtomicInteger length : queueLengths.values()) {
+      total += length.get();
+    }
+
+    return total;
+  }
+
+  @Override
+  public Map<String, Long> getFailures() {
+    return snapshot(failures, AtomicLong::get);
+  }
+
+  @Override
+  public HeldLock getLongestHeldLock() {
+    Hold longest = null;
+    for (Hold hold : holds) {
+      if (longest == null || hold.startNanos - longest.startNanos < 0) {
+        longest = hold;
+      }
+    }
+    if (longest == null) {
+      return null;
+    }
+
+    StackTraceElement[] stack = longest.thread.getStackTrace();
+    String[] holderStack = new String[stack.length];
+    for (int i = 0; i < stack.length; i++) {
+      holderStack[i] = stack[i].toString();
+    }
+    String method =
+        longest.method != null ? longest.method : callerMethodFinder.apply(stack);
+
+    return new HeldLock(longest.lockName, method, longest.thread.getName(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - longest.startNanos), holderStack);
+  }
+
+  @Override
+  public void reset() {
+    waitTimesByLock.clear();
+    holdTimesByLock.clear();
+    waitTimesByMethod.clear();
+    holdTimesByMethod.clear();
+    failures.clear();
+  }
+
+  /**
+   * Get the histogram for a name, creating it if necessary.
+   *
+   * @param histograms
+   *          the histograms by name
+   * @param name
+   *          the name
+   *
+   * @return the histogram
+   */
+  private static LatencyHistogram getHistogram(ConcurrentMap<String, LatencyHistogram> histograms,
+      String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histogram = histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    return histogram;
+  }
+
+  /**
+   * Copy a map of live values into a sorted map of plain values.
+   *
+   * @param values
+   *          the live values
+   * @param copier
+   *          turns a live value into a plain value
+   *
+   * @return the copy
+   */
+  private static <L, V> Map<String, V> snapshot(Map<String, L> values, Function<L, V> copier) {
+    Map<String, V> result = new TreeMap<>();
+    for (Map.Entry<String, L> entry : values.entrySet()) {
+      result.put(entry.getKey(), copier.apply(entry.getValue()));
+    }
+
+    return result;
+  }
+
+  /**
+   * A lock held by a thread.
+   */
+  static class Hold {
+
+    /**
+     * The name of the lock.
+     */
+    private final String lockName;
+
+    /**
+     * The method the lock was obtained for, {@code null} if not attributed.
+     */
+    private final String method;
+
+    /**
+     * The thread holding the lock.
+     */
+    private final Thread thread;
+
+    /**
+     * When the lock was obtained, in {@link System#nanoTime()} units.
+     */
+    private final long startNanos;
+
+    /**
+     * Construct a new hold.
+     *
+     * @param lockName
+     *          the name of the lock
+     * @param method
+     *          the method the lock was obtained for
+     * @param thread
+     *          the thread holding the lock
+     * @param startNanos
+     *          when the lock was obtained
+     */
+    Hold(String lockName, String method, Thread thread, long startNanos) {
+      this.lockName = lockName;
+      this.method = method;
+      this.thread = thread;
+      this.startNanos = startNanos;
+    }
+
+    /**
+     * Get the name of the lock.
+     *
+     * @return the name of the lock
+     */
+    String getLockName() {
+      return lockName;
+    }
+  }
+}
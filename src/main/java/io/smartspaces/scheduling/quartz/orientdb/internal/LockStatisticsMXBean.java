@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import java.util.Map;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockStatisticsSnapshot.HeldLock;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.LatencyHistogram;
+
+/**
+ * The JMX view of the lock statistics of a job store.
+ */
+public interface LockStatisticsMXBean {
+
+  /**
+   * Get the time waited for locks, by lock.
+   *
+   * @return the histograms
+   */
+  Map<String, LatencyHistogram.Snapshot> getWaitTimesByLock();
+
+  /**
+   * Get the time locks were held, by lock.
+   *
+   * @return the histograms
+   */
+  Map<String, LatencyHistogram.Snapshot> getHoldTimesByLock();
+
+  /**
+   * Get the time waited for locks, by the job store method they were obtained
+   * for.
+   *
+   * <p>
+   * Only a sample of the lock requests is attributed to methods.
+   *
+   * @return the histograms
+   */
+  Map<String, LatencyHistogram.Snapshot> getWaitTimesByMethod();
+
+  /**
+   * Get the time locks were held, by the job store method they were obtained
+   * for.
+   *
+   * <p>
+   * Only a sample of the lock requests is attributed to methods.
+   *
+   * @return the histograms
+   */
+  Map<String, LatencyHistogram.Snapshot> getHoldTimesByMethod();
+
+  /**
+   * Get the number of threads waiting, by lock.
+   *
+   * @return the queue lengths
+   */
+  Map<String, Integer> getQueueLengths();
+
+  /**
+   * Get the total number of threads waiting for any lock.
+   *
+   * @return the number of waiting threads
+   */
+  int getQueueLength();
+
+  /**
+   * Get the number of failed attempts to obtain a lock, including timeouts, by
+   * lock.
+   *
+   * @return the number of failures
+   */
+  Map<String, Long> getFailures();
+
+  /**
+   * Get the lock held the longest right now.
+   *
+   * @return the lock with its holder's stack, {@code null} if none is held
+   */
+  HeldLock getLongestHeldLock();
+
+  /**
+   * Clear all histograms and failure counts.
+   */
+  void reset();
+}
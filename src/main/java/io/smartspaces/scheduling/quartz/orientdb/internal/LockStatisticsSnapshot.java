@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import java.util.Map;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.LatencyHistogram;
+
+/**
+ * An immutable copy of the lock statistics at one point in time.
+ *
+ * <p>
+ * Locks are named by the lock name, with {@code [key]} appended when only
+ * keys under the name were locked. Methods are named
+ * {@code SimpleClassName.method}.
+ */
+public class LockStatisticsSnapshot {
+
+  /**
+   * The time waited for locks, by lock.
+   */
+  private final Map<String, LatencyHistogram.Snapshot> waitTimesByLock;
+
+  /**
+   * The time locks were held, by lock.
+   */
+  private final Map<String, LatencyHistogram.Snapshot> holdTimesByLock;
+
+  /**
+   * The time waited for locks, by calling method.
+   */
+  private final Map<String, LatencyHistogram.Snapshot> waitTimesByMethod;
+
+  /**
+   * The time locks were held, by calling method.
+   */
+  private final Map<String, LatencyHistogram.Snapshot> holdTimesByMethod;
+
+  /**
+   * The number of threads waiting, by lock.
+   */
+  private final Map<String, Integer> queueLengths;
+
+  /**
+   * The number of failed attempts to obtain a lock, by lock.
+   */
+  private final Map<String, Long> failures;
+
+  /**
+   * The lock held the longest right now, {@code null} if none is held.
+   */
+  private final HeldLock longestHeldLock;
+
+  /**
+   * Construct a new snapshot.
+   *
+   * @param waitTimesByLock
+   *          the time waited for locks, by lock
+   * @param holdTimesByLock
+   *          the time locks were held, by lock
+   * @param waitTimesByMethod
+   *          the time waited for locks, by calling method
+   * @param holdTimesByMethod
+   *          the time locks were held, by calling method
+   * @param queueLengths
+   *          the number of threads waiting, by lock
+   * @param failures
+   *          the number of failed attempts to obtain a lock, by lock
+   * @param longestHeldLock
+   *          the lock held the longest right now, {@code null} if none is held
+   */
+  public LockStatisticsSnapshot(Map<String, LatencyHistogram.Snapshot> waitTimesByLock,
+      Map<String, LatencyHistogram.Snapshot> holdTimesByLock,
+      Map<String, LatencyHistogram.Snapshot> waitTimesByMethod,
+      Map<String, LatencyHistogram.Snapshot> holdTimesByMethod, Map<String, Integer> queueLengths,
+      Map<String, Long> failures, HeldLock longestHeldLock) {
+    this.waitTimesByLock = waitTimesByLock;
+    this.holdTimesByLock = holdTimesByLock;
+    this.waitTimesByMethod = waitTimesByMethod;
+    this.holdTimesByMethod = holdTimesByMethod;
+    this.queueLengths = queueLengths;
+    this.failures = failures;
+    this.longestHeldLock = longestHeldLock;
+  }
+
+  public Map<String, LatencyHistogram.Snapshot> getWaitTimesByLock() {
+    return waitTimesByLock;
+  }
+
+  public Map<String, LatencyHistogram.Snapshot> getHoldTimesByLock() {
+    return holdTimesByLock;
+  }
+
+  public Map<String, LatencyHistogram.Snapshot> getWaitTimesByMethod() {
+    return waitTimesByMethod;
+  }
+
+  public Map<String, LatencyHistogram.Snapshot> getHoldTimesByMethod() {
+    return holdTimesByMethod;
+  }
+
+  public Map<String, Integer> getQueueLengths() {
+    return queueLengths;
+  }
+
+  /**
+   * Get the total number of threads waiting for any lock.
+   *
+   * @return the number of waiting threads
+   */
+  public int getQueueLength() {
+    int total = 0;
+    for (int length : queueLengths.values()) {
+      total += length;
+    }
+
+    return total;
+  }
+
+  public Map<String, Long> getFailures() {
+    return failures;
+  }
+
+  public HeldLock getLongestHeldLock() {
+    return longestHeldLock;
+  }
+
+  /**
+   * A lock currently held by a thread.
+   */
+  public static class HeldLock {
+
+    /**
+     * The name of the lock.
+     */
+    private final String lockName;
+
+    /**
+     * The method the lock was obtained for.
+     */
+    private final String method;
+
+    /**
+     * The name of the holding thread.
+     */
+    private final String threadName;
+
+    /**
+     * How long the lock has been held, in milliseconds.
+     */
+    private final long heldMillis;
+
+    /**
+     * The stack of the holding thread when the snapshot was taken.
+     */
+    private final String[] holderStack;
+
+    /**
+     * Construct a new held lock.
+     *
+     * @param lockName
+     *          the name of the lock
+     * @param method
+     *          the method the lock was obtained for
+     * @param threadName
+     *          the name of the holding thread
+     * @param heldMillis
+     *          how long the lock has been held, in milliseconds
+     * @param holderStack
+     *          the stack of the holding thread
+     */
+    public HeldLock(String lockName, String method, String threadName, long heldMillis,
+        String[] holderStack) {
+      this.lockName = lockName;
+      this.method = method;
+      this.threadName = threadName;
+      this.heldMillis = heldMillis;
+      this.holderStack = holderStack;
+    }
+
+    public String getLockName() {
+      return lockName;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getThreadName() {
+      return threadName;
+    }
+
+    public long getHeldMillis() {
+      return heldMillis;
+    }
+
+    public String[] getHolderStack() {
+      return holderStack.clone();
+    }
+
+    @Override
+    public String toString() {
+      return lockName + " held by " + threadName + " for " + method + " since " + heldMillis
+          + " ms";
+    }
+  }
+}
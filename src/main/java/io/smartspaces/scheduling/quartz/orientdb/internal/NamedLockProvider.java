@@ -0,0 +1,710 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.quartz.utils.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory lock provider with an independent lock for every lock name.
+ *
+ * <p>
+ * Each name also has key locks. Holding a key lock takes the named lock in
+ * shared mode, so keys under the same name only exclude each other while
+ * obtaining the named lock itself waits for all of them. Key locks are either
+ * one per key, or striped over a fixed number of locks by the full key or by
+ * the key group. Several keys can be locked at once, their locks are always
+ * obtained in the same order.
+ *
+ * <p>
+ * Requests of {@link LockPriority#SCHEDULER} priority queue on the lock
+ * directly. All other requests, including key locks, only take the lock while
+ * no scheduler request is waiting, so the scheduler thread never queues behind
+ * admin and bulk operations that have not started yet. Every priority class
+ * has its own bound on the time spent waiting, after which a
+ * {@link LockException} is thrown instead of blocking forever.
+ */
+public class NamedLockProvider implements LockProvider {
+
+  /**
+   * The default number of stripes for key locks.
+   */
+  public static final int DEFAULT_STRIPES = 64;
+
+  /**
+   * The default maximum time to wait for a lock with scheduler priority, in
+   * milliseconds.
+   */
+  public static final long DEFAULT_SCHEDULER_TIMEOUT_MILLIS = 30000;
+
+  /**
+   * The default maximum time to wait for a lock with admin priority, in
+   * milliseconds.
+   */
+  public static final long DEFAULT_ADMIN_TIMEOUT_MILLIS = 120000;
+
+  /**
+   * The logger for this class.
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(NamedLockProvider.class);
+
+  /**
+   * The locks, indexed by lock name.
+   */
+  private final ConcurrentMap<String, NamedLock> locks = new ConcurrentHashMap<>();
+
+  /**
+   * {@code true} if the locks should be fair.
+   */
+  private final boolean fair;
+
+  /**
+   * The number of stripes for key locks, {@code 0} for one lock per key.
+   */
+  private final int stripes;
+
+  /**
+   * {@code true} if key locks are striped by the key group rather than the
+   * full key.
+   */
+  private final boolean stripeByGroup;
+
+  /**
+   * The maximum time to wait for a lock for each priority, in nanoseconds,
+   * {@code 0} for no limit.
+   */
+  private final Map<LockPriority, Long> timeouts = new EnumMap<>(LockPriority.class);
+
+  /**
+   * The number of timeouts for each priority.
+   */
+  private final Map<LockPriority, AtomicLong> timeoutCounts = new EnumMap<>(LockPriority.class);
+
+  /**
+   * Construct a provider with unfair locks, the default striping by key and
+   * the default timeouts.
+   */
+  public NamedLockProvider() {
+    this(false, DEFAULT_STRIPES, false);
+  }
+
+  /**
+   * Construct a provider with the default timeouts.
+   *
+   * @param fair
+   *          {@code true} if waiting threads should get locks in arrival order
+   * @param stripes
+   *          the number of stripes for key locks, {@code 0} for one lock per
+   *          key
+   * @param stripeByGroup
+   *          {@code true} if keys in the same group should share a stripe
+   */
+  public NamedLockProvider(boolean fair, int stripes, boolean stripeByGroup) {
+    this(fair, stripes, stripeByGroup, DEFAULT_SCHEDULER_TIMEOUT_MILLIS,
+        DEFAULT_ADMIN_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Construct a provider.
+   *
+   * @param fair
+   *          {@code true} if waiting threads should get locks in arrival order
+   * @param stripes
+   *          the number of stripes for key locks, {@code 0} for one lock per
+   *          key
+   * @param stripeByGroup
+   *          {@code true} if keys in the same group should share a stripe
+   * @param schedulerTimeoutMillis
+   *          the maximum time to wait for a lock with scheduler priority, in
+   *          milliseconds, {@code 0} for no limit
+   * @param adminTimeoutMillis
+   *          the maximum time to wait for a lock with admin priority, in
+   *          milliseconds, {@code 0} for no limit
+   */
+  public NamedLockProvider(boolean fair, int stripes, boolean stripeByGroup,
+      long schedulerTimeoutMillis, long adminTimeoutMillis) {
+    if (stripes < 0) {
+      throw new IllegalArgumentException("The number of lock stripes cannot be negative");
+    }
+    if (schedulerTimeoutMillis < 0 || adminTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Lock timeouts cannot be negative");
+    }
+
+    this.fair = fair;
+    this.stripes = stripes;
+    this.stripeByGroup = stripeByGroup;
+
+    timeouts.put(LockPriority.SCHEDULER, TimeUnit.MILLISECONDS.toNanos(schedulerTimeoutMillis));
+    timeouts.put(LockPriority.ADMIN, TimeUnit.MILLISECONDS.toNanos(adminTimeoutMillis));
+    for (LockPriority priority : LockPriority.values()) {
+      timeoutCounts.put(priority, new AtomicLong());
+    }
+  }
+
+  @Override
+  public boolean obtainLock(String lockName) throws LockException {
+    return obtainLock(lockName, LockPriority.ADMIN);
+  }
+
+  @Override
+  public boolean obtainLock(String lockName, LockPriority priority) throws LockException {
+    String threadName = Thread.currentThread().getName();
+
+    LOG.debug("Thread {} is waiting for lock {} with priority {}", threadName, lockName,
+        priority);
+    long deadline = getDeadline(priority);
+    NamedLock namedLock = getLock(lockName);
+    if (!namedLock.acquire(namedLock.lock.writeLock(), priority, deadline)) {
+      throw timedOut(lockName, null, priority);
+    }
+    LOG.debug("Thread {} has lock {}", threadName, lockName);
+
+    return true;
+  }
+
+  @Override
+  public void releaseLock(String lockName) throws LockException {
+    String threadName = Thread.currentThread().getName();
+
+    NamedLock namedLock = getLock(lockName);
+    ReentrantReadWriteLock.WriteLock lock = namedLock.lock.writeLock();
+    if (lock.isHeldByCurrentThread()) {
+      LOG.debug("Thread {} is returning lock {}", threadName, lockName);
+      namedLock.release(lock);
+      LOG.debug("Thread {} has returned lock {}", threadName, lockName);
+    } else {
+      LOG.warn("Lock {} being released by thread {} that doesn't have it", lockName, threadName);
+    }
+  }
+
+  @Override
+  public boolean obtainLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    String threadName = Thread.currentThread().getName();
+
+    LOG.debug("Thread {} is waiting for lock {} on {}", threadName, lockName, keys);
+    long deadline = getDeadline(LockPriority.ADMIN);
+    NamedLock namedLock = getLock(lockName);
+    if (!namedLock.acquire(namedLock.lock.readLock(), LockPriority.ADMIN, deadline)) {
+      throw timedOut(lockName, keys, LockPriority.ADMIN);
+    }
+    List<ReentrantLock> keyLocks = namedLock.obtainKeyLocks(keys);
+    int locked = 0;
+    try {
+      for (ReentrantLock keyLock : keyLocks) {
+        if (!tryLock(keyLock, deadline)) {
+          throw timedOut(lockName, keys, LockPriority.ADMIN);
+        }
+        locked++;
+      }
+    } catch (LockException | RuntimeException e) {
+      for (int i = locked - 1; i >= 0; i--) {
+        keyLocks.get(i).unlock();
+      }
+      namedLock.releaseKeyLocks(keys);
+      namedLock.release(namedLock.lock.readLock());
+      throw e;
+    }
+    LOG.debug("Thread {} has lock {} on {}", threadName, lockName, keys);
+
+    return true;
+  }
+
+  @Override
+  public void releaseLock(String lockName, Collection<? extends Key<?>> keys)
+      throws LockException {
+    String threadName = Thread.currentThread().getName();
+
+    NamedLock namedLock = getLock(lockName);
+    List<ReentrantLock> keyLocks = namedLock.getKeyLocks(keys);
+    if (isHeldByCurrentThread(keyLocks)) {
+      LOG.debug("Thread {} is returning lock {} on {}", threadName, lockName, keys);
+      for (int i = keyLocks.size() - 1; i >= 0; i--) {
+        keyLocks.get(i).unlock();
+      }
+      namedLock.releaseKeyLocks(keys);
+      namedLock.release(namedLock.lock.readLock());
+      LOG.debug("Thread {} has returned lock {} on {}", threadName, lockName, keys);
+    } else {
+      LOG.warn("Lock {} on {} being released by thread {} that doesn't have it", lockName, keys,
+          threadName);
+    }
+  }
+
+  /**
+   * Get the number of times obtaining a lock timed out.
+   *
+   * @param priority
+   *          the priority of the requests that timed out
+   *
+   * @return the number of timeouts since the provider was created
+   */
+  public long getTimeoutCount(LockPriority priority) {
+    return timeoutCounts.get(priority).get();
+  }
+
+  /**
+   * Are all the given key locks held by the current thread?
+   *
+   * @param keyLocks
+   *          the key locks, entries are {@code null} for unused locks
+   *
+   * @return {@code true} if the current thread holds all the locks
+   */
+  private boolean isHeldByCurrentThread(List<ReentrantLock> keyLocks) {
+    for (ReentrantLock keyLock : keyLocks) {
+      if (keyLock == null || !keyLock.isHeldByCurrentThread()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Get the deadline for obtaining a lock starting now.
+   *
+   * @param priority
+   *          the priority of the request
+   *
+   * @return the deadline in {@link System#nanoTime()} units, {@code 0} for no
+   *         deadline
+   */
+  private long getDeadline(LockPriority priority) {
+    long timeout = timeouts.get(priority);
+    if (timeout == 0) {
+      return 0;
+    }
+
+    long deadline = System.nanoTime() + timeout;
+    return deadline == 0 ? 1 : deadline;
+  }
+
+  /**
+   * Get the time left until a deadline.
+   *
+   * @param deadline
+   *          the deadline, {@code 0} for no deadline
+   *
+   * @return the nanoseconds left, {@link Long#MAX_VALUE} if there is no
+   *         deadline
+   */
+  private static long getRemaining(long deadline) {
+    return deadline == 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+  }
+
+  /**
+   * Lock a lock, waiting no longer than a deadline.
+   *
+   * @param lock
+   *          the lock
+   * @param deadline
+   *          the deadline, {@code 0} for no deadline
+   *
+   * @return {@code true} if the lock was obtained
+   *
+   * @throws LockException
+   *           the thread was interrupted while waiting
+   */
+  private static boolean tryLock(Lock lock, long deadline) throws LockException {
+    if (deadline == 0) {
+      lock.lock();
+      return true;
+    }
+
+    try {
+      return lock.tryLock(getRemaining(deadline), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockException("Interrupted while waiting for a lock", e);
+    }
+  }
+
+  /**
+   * Report a timeout.
+   *
+   * @param lockName
+   *          the name of the lock
+   * @param keys
+   *          the keys being locked, {@code null} for the named lock
+   * @param priority
+   *          the priority of the request
+   *
+   * @return the exception to throw
+   */
+  private LockException timedOut(String lockName, Collection<? extends Key<?>> keys,
+      LockPriority priority) {
+    timeoutCounts.get(priority).incrementAndGet();
+
+    long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(timeouts.get(priority));
+    String lock = keys == null ? lockName : lockName + " on " + keys;
+    LOG.warn("Thread {} timed out after {} ms waiting for lock {} with priority {}",
+        Thread.currentThread().getName(), timeoutMillis, lock, priority);
+
+    return new LockException(
+        "Timed out after " + timeoutMillis + " ms waiting for lock " + lock);
+  }
+
+  /**
+   * Get the lock for a name, creating it if necessary.
+   *
+   * @param lockName
+   *          the name of the lock
+   *
+   * @return the lock
+   */
+  private NamedLock getLock(String lockName) {
+    NamedLock lock = locks.get(lockName);
+    if (lock == null) {
+      lock = locks.computeIfAbsent(lockName, name -> new NamedLock());
+    }
+
+    return lock;
+  }
+
+  /**
+   * A lock for a single name and the locks for its keys.
+   */
+  private class NamedLock {
+
+    /**
+     * The lock for the name, held shared by all key lock holders.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(fair);
+
+    /**
+     * The number of threads waiting for the lock with scheduler priority.
+     */
+    private final AtomicInteger schedulerWaiters = new AtomicInteger();
+
+    /**
+     * The gate lower priority requests wait at.
+     */
+    private final ReentrantLock gate = new ReentrantLock();
+
+    /**
+     * Signalled when lower priority requests may be able to get the lock.
+     */
+    private final Condition admissible = gate.newCondition();
+
+    /**
+     * The number of threads waiting at the gate, only changed while holding
+     * the gate.
+     */
+    private volatile int gateWaiters;
+
+    /**
+     * The key lock stripes, {@code null} if there is one lock per key.
+     */
+    private final ReentrantLock[] keyStripes;
+
+    /**
+     * The key locks in use when there is one lock per key.
+     */
+    private final ConcurrentMap<String, KeyLock> keyLocks;
+
+    /**
+     * Construct a new named lock.
+     */
+    NamedLock() {
+      if (stripes > 0) {
+        keyStripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+          keyStripes[i] = new ReentrantLock(fair);
+        }
+        keyLocks = null;
+      } else {
+        keyStripes = null;
+        keyLocks = new ConcurrentHashMap<>();
+      }
+    }
+
+    /**
+     * Obtain one side of the lock for the name.
+     *
+     * @param side
+     *          the read or write side of the lock
+     * @param priority
+     *          the priority of the request
+     * @param deadline
+     *          the deadline, {@code 0} for no deadline
+     *
+     * @return {@code true} if the lock was obtained before the deadline
+     *
+     * @throws LockException
+     *           the thread was interrupted while waiting
+     */
+    boolean acquire(Lock side, LockPriority priority, long deadline) throws LockException {
+      if (priority == LockPriority.SCHEDULER) {
+        schedulerWaiters.incrementAndGet();
+        try {
+          return tryLock(side, deadline);
+        } finally {
+          if (schedulerWaiters.decrementAndGet() == 0) {
+            signalGate();
+          }
+        }
+      }
+
+      if ((schedulerWaiters.get() == 0 || isHeldByCurrentThread()) && side.tryLock()) {
+        return true;
+      }
+
+      gate.lock();
+      gateWaiters++;
+      try {
+        while (true) {
+          if (schedulerWaiters.get() == 0 && side.tryLock()) {
+            return true;
+          }
+
+          long remaining = getRemaining(deadline);
+          if (remaining <= 0) {
+            return false;
+          }
+          if (deadline == 0) {
+            admissible.await();
+          } else {
+            admissible.awaitNanos(remaining);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LockException("Interrupted while waiting for a lock", e);
+      } finally {
+        gateWaiters--;
+        gate.unlock();
+      }
+    }
+
+    /**
+     * Does the current thread already hold the lock for the name?
+     *
+     * <p>
+     * A holder coming back for the lock must not wait for scheduler requests,
+     * those are waiting for the holder.
+     *
+     * @return {@code true} if the current thread holds either side of the lock
+     */
+    private boolean isHeldByCurrentThread() {
+      return lock.isWriteLockedByCurrentThread() || lock.getReadHoldCount() > 0;
+    }
+
+    /**
+     * Release one side of the lock for the name.
+     *
+     * @param side
+     *          the read or write side of the lock
+     */
+    void release(Lock side) {
+      side.unlock();
+      signalGate();
+    }
+
+    /**
+     * Let the requests waiting at the gate try again.
+     */
+    private void signalGate() {
+      if (gateWaiters > 0) {
+        gate.lock();
+        try {
+          admissible.signalAll();
+        } finally {
+          gate.unlock();
+        }
+      }
+    }
+
+    /**
+     * Get the locks for a set of keys and register the current thread as a
+     * user.
+     *
+     * <p>
+     * Keys sharing a lock are merged and the locks are returned in the order
+     * they must be obtained in.
+     *
+     * @param keys
+     *          the keys
+     *
+     * @return the locks for the keys
+     */
+    List<ReentrantLock> obtainKeyLocks(Collection<? extends Key<?>> keys) {
+      List<ReentrantLock> result = new ArrayList<>();
+      if (keyStripes != null) {
+        for (int stripe : getStripes(keys)) {
+          result.add(keyStripes[stripe]);
+        }
+      } else {
+        for (String stripeKey : getStripeKeys(keys)) {
+          result.add(keyLocks.compute(stripeKey, (k, keyLock) -> {
+            if (keyLock == null) {
+              keyLock = new KeyLock(fair);
+            }
+            keyLock.users++;
+            return keyLock;
+          }));
+        }
+      }
+
+      return result;
+    }
+
+    /**
+     * Get the locks for a set of keys without registering a user.
+     *
+     * @param keys
+     *          the keys
+     *
+     * @return the locks for the keys in locking order, an entry is {@code null}
+     *         if nobody uses the lock
+     */
+    List<ReentrantLock> getKeyLocks(Collection<? extends Key<?>> keys) {
+      List<ReentrantLock> result = new ArrayList<>();
+      if (keyStripes != null) {
+        for (int stripe : getStripes(keys)) {
+          result.add(keyStripes[stripe]);
+        }
+      } else {
+        for (String stripeKey : getStripeKeys(keys)) {
+          result.add(keyLocks.get(stripeKey));
+        }
+      }
+
+      return result;
+    }
+
+    /**
+     * Deregister a user of the locks for a set of keys, discarding locks when
+     * unused.
+     *
+     * @param keys
+     *          the keys
+     */
+    void releaseKeyLocks(Collection<? extends Key<?>> keys) {
+      if (keyLocks != null) {
+        for (String stripeKey : getStripeKeys(keys)) {
+          keyLocks.computeIfPresent(stripeKey, (k, keyLock) -> {
+            keyLock.users--;
+            return keyLock.users == 0 ? null : keyLock;
+          });
+        }
+      }
+    }
+
+    /**
+     * Get the distinct stripes for a set of keys in locking order.
+     *
+     * @param keys
+     *          the keys
+     *
+     * @return the stripe indexes
+     */
+    private SortedSet<Integer> getStripes(Collection<? extends Key<?>> keys) {
+      SortedSet<Integer> result = new TreeSet<>();
+      for (Key<?> key : keys) {
+        result.add(getStripe(key));
+      }
+
+      return result;
+    }
+
+    /**
+     * Get the distinct stripe keys for a set of keys in locking order.
+     *
+     * @param keys
+     *          the keys
+     *
+     * @return the stripe keys
+     */
+    private SortedSet<String> getStripeKeys(Collection<? extends Key<?>> keys) {
+      SortedSet<String> result = new TreeSet<>();
+      for (Key<?> key : keys) {
+        result.add(getStripeKey(key));
+      }
+
+      return result;
+    }
+
+    /**
+     * Get the stripe for a key.
+     *
+     * @param key
+     *          the key
+     *
+     * @return the index of the stripe
+     */
+    private int getStripe(Key<?> key) {
+      int hash = getStripeKey(key).hashCode();
+      return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % keyStripes.length;
+    }
+
+    /**
+     * Get the part of the key that decides which lock is used.
+     *
+     * @param key
+     *          the key
+     *
+     * @return the key group or the full key
+     */
+    private String getStripeKey(Key<?> key) {
+      return stripeByGroup ? key.getGroup() : key.getGroup() + '.' + key.getName();
+    }
+  }
+
+  /**
+   * A lock for a single key, counting its users so it can be discarded.
+   */
+  private static class KeyLock extends ReentrantLock {
+
+    /**
+     * The serial version UUID for persistence.
+     */
+    private static final long serialVersionUID = 3524151268391958622L;
+
+    /**
+     * The number of threads holding or waiting for the lock, guarded by the
+     * map the lock is kept in.
+     */
+    private int users;
+
+    /**
+     * Construct a new key lock.
+     *
+     * @param fair
+     *          {@code true} if the lock should be fair
+     */
+    KeyLock(boolean fair) {
+      super(fair);
+    }
+  }
+}
@@ -31,12 +31,23 @@ import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardPausedTrig
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardSchedulerDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardTriggerDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.db.StandardOrientDbConnector;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.BinaryJobDataCodec;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.JobDataCodec;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.JobDataCodecs;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.JobDataMigrator;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.TypedJobDataCodec;
 import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.MisfireHandler;
 import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.StandardMisfireHandler;
 import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.TriggerConverter;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.CompressionStatistics;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.ExpiryCalculator;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.QueryHelper;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.quartz.SchedulerConfigException;
 import org.quartz.spi.ClassLoadHelper;
 import org.quartz.spi.SchedulerSignaler;
@@ -48,6 +59,12 @@ import org.quartz.spi.SchedulerSignaler;
 public class StandardOrientDbStoreAssembler {
 
   private StandardOrientDbConnector orientDbConnector;
+  private StatementRegistry statementRegistry;
+  private LockStatistics lockStatistics;
+  private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+  private LeaseLockProvider leaseLockProvider;
+  private StandardLockDao lockDao;
+  private LockManager lockManager;
   private JobCompleteHandler jobCompleteHandler;
   private TriggerStateManager triggerStateManager;
   private TriggerRunner triggerRunner;
@@ -67,6 +84,8 @@ public class StandardOrientDbStoreAssembler {
 
   private QueryHelper queryHelper = new QueryHelper();
   private TriggerConverter triggerConverter;
+  private JobDataCodecs jobDataCodecs;
+  private JobDataMigrator jobDataMigrator;
 
   private long dbRetryInterval;
 
@@ -81,33 +100,43 @@ public class StandardOrientDbStoreAssembler {
     this.clock = clock;
     this.dbRetryInterval = dbRetryInterval;
 
+    statementRegistry = new StatementRegistry(jobStore.getCollectionPrefix());
+    statementRegistry.reserveStatementCache();
+
+    lockDao = createLocksDao(jobStore);
+
     orientDbConnector = createOrientDbConnector(jobStore);
 
+    jobDataCodecs = createJobDataCodecs(jobStore, classLoadHelper);
+    jobDataMigrator = new JobDataMigrator(jobDataCodecs, orientDbConnector);
+
     jobDao = createJobDao(jobStore, classLoadHelper);
 
-    triggerConverter = new TriggerConverter(jobDao, classLoadHelper, jobStore.getCollectionPrefix());
+    triggerConverter = new TriggerConverter(jobDao, classLoadHelper, jobDataCodecs,
+        jobDataMigrator, jobStore.getCollectionPrefix());
 
     triggerDao = createTriggerDao(jobStore);
     calendarDao = createCalendarDao(jobStore);
     pausedJobGroupsDao = createPausedJobGroupsDao(jobStore);
     pausedTriggerGroupsDao = createPausedTriggerGroupsDao(jobStore);
     schedulerDao = createSchedulerDao(jobStore);
+    lockManager = createLockManager(jobStore);
 
     persister = createTriggerAndJobPersister();
 
     jobCompleteHandler = createJobCompleteHandler(signaler);
 
-    triggerStateManager = createTriggerStateManager();
-
     misfireHandler = createMisfireHandler(jobStore, signaler);
 
+    triggerStateManager = createTriggerStateManager(misfireHandler);
+
     RecoveryTriggerFactory recoveryTriggerFactory =
         new RecoveryTriggerFactory(jobStore.getInstanceId(), clock);
 
     triggerRecoverer =
         new TriggerRecoverer(persister, triggerDao, jobDao, recoveryTriggerFactory, misfireHandler);
 
-    triggerRunner = createTriggerRunner(misfireHandler);
+    triggerRunner = createTriggerRunner(jobStore, misfireHandler);
 
     checkinExecutor = createCheckinExecutor(jobStore);
   }
@@ -116,6 +145,50 @@ public class StandardOrientDbStoreAssembler {
     return orientDbConnector;
   }
 
+  /**
+   * Get the registry of prepared statements.
+   * 
+   * @return the statement registry
+   */
+  public StatementRegistry getStatementRegistry() {
+    return statementRegistry;
+  }
+
+  /**
+   * Get the lock statistics.
+   * 
+   * @return the lock statistics, {@code null} if locks are not instrumented
+   */
+  public LockStatistics getLockStatistics() {
+    return lockStatistics;
+  }
+
+  /**
+   * Get the statistics of the compression of stored payloads.
+   * 
+   * @return the compression statistics
+   */
+  public CompressionStatistics getCompressionStatistics() {
+    return compressionStatistics;
+  }
+
+  /**
+   * Get the provider of leases shared with the other nodes.
+   * 
+   * @return the lease provider, {@code null} if locks are local to this node
+   */
+  public LeaseLockProvider getLeaseLockProvider() {
+    return leaseLockProvider;
+  }
+
+  public StandardLockDao getLockDao() {
+    return lockDao;
+  }
+
+  public LockManager getLockManager() {
+    return lockManager;
+  }
+
   /**
    * Get the misfire handler.
    * 
@@ -181,6 +254,15 @@ public class StandardOrientDbStoreAssembler {
     return triggerDao;
   }
 
+  /**
+   * Get the migrator of job data in legacy formats.
+   * 
+   * @return the migrator
+   */
+  public JobDataMigrator getJobDataMigrator() {
+    return jobDataMigrator;
+  }
+
   private CheckinExecutor createCheckinExecutor(OrientDbJobStore jobStore) {
     return null;
     // return new CheckinExecutor(new CheckinTask(schedulerDao),
@@ -189,26 +271,78 @@ public class StandardOrientDbStoreAssembler {
   }
 
   private StandardCalendarDao createCalendarDao(OrientDbJobStore jobStore) {
-    return new StandardCalendarDao(this, jobStore.getCollectionPrefix());
+    return new StandardCalendarDao(this, jobStore.getCollectionPrefix(),
+        jobStore.getCompressionThreshold(), compressionStatistics);
   }
 
   private StandardJobDao createJobDao(OrientDbJobStore jobStore, ClassLoadHelper loadHelper) {
-    JobConverter jobConverter = new JobConverter(loadHelper, jobStore.getCollectionPrefix());
+    JobConverter jobConverter = new JobConverter(loadHelper, jobDataCodecs, jobDataMigrator,
+        jobStore.getCollectionPrefix());
     return new StandardJobDao(this, queryHelper, jobConverter, jobStore.getCollectionPrefix());
   }
 
+  /**
+   * Create the codecs for job data, the configured ones first.
+   * 
+   * @param jobStore
+   *          the job store
+   * @param loadHelper
+   *          the helper for loading the configured codec classes
+   * 
+   * @return the codecs
+   * 
+   * @throws SchedulerConfigException
+   *           a configured codec could not be created
+   */
+  private JobDataCodecs createJobDataCodecs(OrientDbJobStore jobStore,
+      ClassLoadHelper loadHelper) throws SchedulerConfigException {
+    List<JobDataCodec> codecs = new ArrayList<>();
+    String codecClassNames = jobStore.getJobDataCodecs();
+    if (codecClassNames != null) {
+      for (String codecClassName : codecClassNames.split(",")) {
+        codecClassName = codecClassName.trim();
+        if (codecClassName.isEmpty()) {
+          continue;
+        }
+
+        try {
+          codecs.add((JobDataCodec) loadHelper.loadClass(codecClassName).newInstance());
+        } catch (Exception e) {
+          throw new SchedulerConfigException("Could not create job data codec " + codecClassName,
+              e);
+        }
+      }
+    }
+    // Strings which would be compressed go to the binary codec.
+    int compressionThreshold = jobStore.getCompressionThreshold();
+    codecs.add(new TypedJobDataCodec(
+        compressionThreshold > 0 ? compressionThreshold : Integer.MAX_VALUE));
+    codecs.add(new BinaryJobDataCodec(compressionThreshold, compressionStatistics));
+
+    return new JobDataCodecs(codecs);
+  }
+
   private JobCompleteHandler createJobCompleteHandler(SchedulerSignaler signaler) {
     return new JobCompleteHandler(persister, signaler, jobDao, triggerDao);
   }
 
   private StandardLockDao createLocksDao(OrientDbJobStore jobStore) {
-    return new StandardLockDao(this, clock, jobStore.getInstanceId());
+    return new StandardLockDao(this, clock, jobStore.getInstanceId(),
+        jobStore.getCollectionPrefix());
+  }
+
+  private LockManager createLockManager(OrientDbJobStore jobStore) {
+    ExpiryCalculator expiryCalculator = new ExpiryCalculator(schedulerDao, clock,
+        jobStore.getJobTimeoutMillis(), jobStore.getTriggerTimeoutMillis());
+    return new LockManager(lockDao, expiryCalculator);
   }
 
   private MisfireHandler createMisfireHandler(OrientDbJobStore jobStore,
       SchedulerSignaler signaler) {
-    return new StandardMisfireHandler(persister, triggerDao, calendarDao, jobStore.getMisfireThreshold(),
-        dbRetryInterval, orientDbConnector, clock, signaler);
+    return new StandardMisfireHandler(persister, triggerDao, calendarDao, triggerConverter,
+        jobStore.getMisfireThreshold(), dbRetryInterval, jobStore.getMaxMisfiresToHandleAtATime(),
+        jobStore.getMisfireLockHoldBudgetMillis(), jobStore.getMisfireBulkRecoveryThreshold(),
+        jobStore.getMisfireBulkRecoveryThreads(), orientDbConnector, clock, signaler);
   }
 
   private StandardOrientDbConnector createOrientDbConnector(OrientDbJobStore jobStore)
@@ -217,6 +351,7 @@ public class StandardOrientDbStoreAssembler {
         .withCredentials(jobStore.getUsername(), jobStore.getPassword())
         .withDatabaseName(jobStore.getDbName())
         .withCollectionPrefix(jobStore.getCollectionPrefix())
+        .withLockProvider(createLockProvider(jobStore))
         /*
          * .withAuthDatabaseName(jobStore.authDbName)
          * .withMaxConnectionsPerHost(jobStore.
@@ -233,6 +368,25 @@ public class StandardOrientDbStoreAssembler {
         .build();
   }
 
+  private LockProvider createLockProvider(OrientDbJobStore jobStore) {
+    LockProvider lockProvider = new NamedLockProvider(jobStore.isLockFair(),
+        jobStore.getLockStripes(), jobStore.isLockStripeByGroup(),
+        jobStore.getLockSchedulerTimeoutMillis(), jobStore.getLockAdminTimeoutMillis());
+    if (jobStore.isLockDistributed()) {
+      leaseLockProvider = new LeaseLockProvider(lockProvider, lockDao, clock,
+          jobStore.getLockLeaseMillis(), jobStore.getLockSchedulerTimeoutMillis(),
+          jobStore.getLockAdminTimeoutMillis());
+      lockProvider = leaseLockProvider;
+    }
+    if (jobStore.isLockInstrumentation()) {
+      lockStatistics = new LockStatistics();
+      lockProvider =
+          new InstrumentedLockProvider(lockProvider, lockStatistics, OrientDbJobStore.class);
+    }
+
+    return lockProvider;
+  }
+
   private StandardPausedJobGroupsDao createPausedJobGroupsDao(OrientDbJobStore jobStore) {
     return new StandardPausedJobGroupsDao(this, queryHelper, jobStore.getCollectionPrefix());
   }
@@ -254,12 +408,14 @@ public class StandardOrientDbStoreAssembler {
     return new StandardTriggerDao(this, queryHelper, triggerConverter, jobStore.getCollectionPrefix());
   }
 
-  private TriggerRunner createTriggerRunner(MisfireHandler misfireHandler) {
+  private TriggerRunner createTriggerRunner(OrientDbJobStore jobStore,
+      MisfireHandler misfireHandler) {
     return new TriggerRunner(persister, triggerDao, jobDao, calendarDao, misfireHandler,
-        triggerConverter, triggerRecoverer, clock);
+        triggerConverter, triggerRecoverer, clock, jobStore.getInstanceId());
   }
 
-  private TriggerStateManager createTriggerStateManager() {
-    return new TriggerStateManager(triggerDao, jobDao, pausedJobGroupsDao, pausedTriggerGroupsDao);
+  private TriggerStateManager createTriggerStateManager(MisfireHandler misfireHandler) {
+    return new TriggerStateManager(triggerDao, jobDao, pausedJobGroupsDao, pausedTriggerGroupsDao,
+        misfireHandler);
   }
 }
@@ -32,18 +32,25 @@ import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardJobDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardTriggerDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.TriggerConverter;
 
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
 import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
 import org.quartz.JobPersistenceException;
 import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.Trigger;
 import org.quartz.TriggerKey;
 import org.quartz.spi.OperableTrigger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class TriggerAndJobPersister {
 
@@ -76,11 +83,24 @@ public class TriggerAndJobPersister {
     }
   }
 
-  public boolean removeJobs(List<JobKey> jobKeys) throws JobPersistenceException {
-    for (JobKey key : jobKeys) {
-      removeJob(key);
+  /**
+   * Remove jobs with all of their triggers.
+   * 
+   * @param jobKeys
+   *          the keys of the jobs
+   * 
+   * @return {@code true} if all of the jobs were found and removed
+   */
+  public boolean removeJobs(List<JobKey> jobKeys) {
+    Set<JobKey> keys = new HashSet<>(jobKeys);
+    Map<JobKey, ORID> jobIds = jobDao.getJobIds(keys);
+    if (!jobIds.isEmpty()) {
+      long triggersRemoved = triggerDao.removeByJobIds(jobIds.values());
+      long jobsRemoved = jobDao.removeByIds(jobIds.values());
+      LOG.debug("Removed {} jobs with {} triggers", jobsRemoved, triggersRemoved);
     }
-    return false;
+
+    return jobIds.size() == keys.size();
   }
 
   public boolean removeTrigger(TriggerKey triggerKey) {
@@ -93,12 +113,45 @@ public class TriggerAndJobPersister {
     return false;
   }
 
-  public boolean removeTriggers(List<TriggerKey> triggerKeys) throws JobPersistenceException {
-    // FIXME return boolean allFound = true when all removed
-    for (TriggerKey key : triggerKeys) {
-      removeTrigger(key);
+  /**
+   * Remove triggers, and the jobs which are left without triggers and are not
+   * durable.
+   * 
+   * @param triggerKeys
+   *          the keys of the triggers
+   * 
+   * @return {@code true} if all of the triggers were found and removed
+   */
+  public boolean removeTriggers(List<TriggerKey> triggerKeys) {
+    Set<TriggerKey> keys = new HashSet<>(triggerKeys);
+    Map<ORID, ORID> jobIdsByTriggerId = triggerDao.getJobIdsByTriggerId(keys);
+    if (jobIdsByTriggerId.isEmpty()) {
+      return keys.isEmpty();
     }
-    return false;
+
+    // A job is orphaned if all of its triggers are removed. The counts are
+    // taken before the removal so they don't depend on deletes in the
+    // transaction being visible to queries.
+    Map<ORID, Integer> removedCounts = new HashMap<>();
+    for (ORID jobId : jobIdsByTriggerId.values()) {
+      if (jobId != null) {
+        removedCounts.merge(jobId, 1, Integer::sum);
+      }
+    }
+    Map<ORID, Integer> triggerCounts = triggerDao.countByJobIds(removedCounts.keySet());
+    List<ORID> orphanedJobIds = new ArrayList<>();
+    for (Map.Entry<ORID, Integer> removedCount : removedCounts.entrySet()) {
+      if (removedCount.getValue().equals(triggerCounts.get(removedCount.getKey()))) {
+        orphanedJobIds.add(removedCount.getKey());
+      }
+    }
+
+    long triggersRemoved = triggerDao.removeByIds(jobIdsByTriggerId.keySet());
+    long jobsRemoved =
+        orphanedJobIds.isEmpty() ? 0 : jobDao.removeNonDurableByIds(orphanedJobIds);
+    LOG.debug("Removed {} triggers and {} orphaned jobs", triggersRemoved, jobsRemoved);
+
+    return jobIdsByTriggerId.size() == keys.size();
   }
 
   /**
@@ -144,8 +197,95 @@ public class TriggerAndJobPersister {
     storeTrigger(newTrigger, jobId, Constants.STATE_WAITING, false);
   }
 
+  /**
+   * Store jobs with their triggers.
+   * 
+   * <p>
+   * All keys are looked up first, so nothing is stored if something exists
+   * and may not be replaced. New jobs get temporary record IDs, the links of
+   * their triggers are fixed when the transaction commits.
+   * 
+   * @param triggersAndJobs
+   *          the jobs with their triggers
+   * @param replace
+   *          {@code true} if existing jobs and triggers are replaced
+   * 
+   * @throws ObjectAlreadyExistsException
+   *           a job or trigger exists and may not be replaced
+   * @throws JobPersistenceException
+   *           a job or trigger could not be stored
+   */
+  public void storeJobsAndTriggers(Map<JobDetail, Set<? extends Trigger>> triggersAndJobs,
+      boolean replace) throws ObjectAlreadyExistsException, JobPersistenceException {
+    Set<JobKey> jobKeys = new HashSet<>();
+    Set<TriggerKey> triggerKeys = new HashSet<>();
+    for (Map.Entry<JobDetail, Set<? extends Trigger>> entry : triggersAndJobs.entrySet()) {
+      jobKeys.add(entry.getKey().getKey());
+      for (Trigger trigger : entry.getValue()) {
+        triggerKeys.add(trigger.getKey());
+      }
+    }
+
+    Map<JobKey, ORID> existingJobIds = jobDao.getJobIds(jobKeys);
+    Map<TriggerKey, ORID> existingTriggerIds = triggerDao.getTriggerIds(triggerKeys);
+    if (!replace) {
+      for (Map.Entry<JobDetail, Set<? extends Trigger>> entry : triggersAndJobs.entrySet()) {
+        if (existingJobIds.containsKey(entry.getKey().getKey())) {
+          throw new ObjectAlreadyExistsException(entry.getKey());
+        }
+        for (Trigger trigger : entry.getValue()) {
+          if (existingTriggerIds.containsKey(trigger.getKey())) {
+            throw new ObjectAlreadyExistsException(trigger);
+          }
+        }
+      }
+    }
+
+    for (Map.Entry<JobDetail, Set<? extends Trigger>> entry : triggersAndJobs.entrySet()) {
+      ORID existingJobId = existingJobIds.get(entry.getKey().getKey());
+      ORID jobId = jobDao.storeJob(entry.getKey(), existingJobId);
+
+      // Only a job which was already stored can be running.
+      String state = Constants.STATE_WAITING;
+      if (existingJobId != null) {
+        state = checkBlockedState(jobId, state);
+      }
+
+      for (Trigger trigger : entry.getValue()) {
+        ODocument triggerDoc = triggerConverter.toDocument((OperableTrigger) trigger, jobId, state);
+        ORID existingTriggerId = existingTriggerIds.get(trigger.getKey());
+        if (existingTriggerId != null) {
+          triggerDao.update(triggerDao.getById(existingTriggerId), triggerDoc);
+        } else {
+          triggerDao.insert(triggerDoc, trigger);
+        }
+      }
+    }
+  }
+
+  /**
+   * Store a trigger for a job.
+   * 
+   * @param newTrigger
+   *          the trigger to store
+   * @param job
+   *          the job of the trigger, {@code null} to look it up
+   * @param replaceExisting
+   *          {@code true} if an existing trigger with the same key is replaced
+   * @param state
+   *          the state to store the trigger in
+   * @param forceState
+   *          {@code true} to store the state as given, {@code false} to block
+   *          the trigger if its job is running and disallows concurrent
+   *          execution
+   * 
+   * @throws ObjectAlreadyExistsException
+   *           the trigger exists and is not to be replaced
+   * @throws JobPersistenceException
+   *           the job does not exist or the trigger could not be stored
+   */
   public void storeTrigger(OperableTrigger newTrigger, JobDetail job, boolean replaceExisting,
-      String state, boolean forceState, boolean recovering)
+      String state, boolean forceState)
       throws ObjectAlreadyExistsException, JobPersistenceException {
     ODocument existingTriggerDoc = triggerDao.findTrigger(newTrigger.getKey());
 
@@ -161,7 +301,7 @@ public class TriggerAndJobPersister {
           "The job (" + newTrigger.getJobKey() + ") referenced by the trigger does not exist.");
     }
 
-    storeTrigger(newTrigger, job.getKey(), state, replaceExisting);
+    storeTrigger(newTrigger, job.getKey(), state, forceState, replaceExisting);
   }
 
   public void storeTrigger(OperableTrigger newTrigger, String state, boolean replaceExisting)
@@ -172,19 +312,68 @@ public class TriggerAndJobPersister {
           "Trigger must be associated with a job. Please specify a JobKey.");
     }
 
-    storeTrigger(newTrigger, jobKey, state, replaceExisting);
+    storeTrigger(newTrigger, jobKey, state, false, replaceExisting);
+  }
+
+  /**
+   * Store a trigger whose document has already been read, without looking up
+   * the trigger or its job again.
+   * 
+   * @param triggerDoc
+   *          the document the trigger was read from
+   * @param trigger
+   *          the trigger to store
+   * @param state
+   *          the state to set the trigger to
+   * 
+   * @throws JobPersistenceException
+   *           the trigger could not be converted
+   */
+  public void updateTrigger(ODocument triggerDoc, OperableTrigger trigger, String state)
+      throws JobPersistenceException {
+    OIdentifiable job = triggerDoc.field(Constants.TRIGGER_JOB_ID);
+    triggerDao.update(triggerDoc, triggerConverter.toDocument(trigger, job.getIdentity(), state));
   }
 
   private void storeTrigger(OperableTrigger newTrigger, JobKey jobKey, String state,
-      boolean replaceExisting) throws JobPersistenceException {
+      boolean forceState, boolean replaceExisting) throws JobPersistenceException {
     ODocument jobDoc = jobDao.getJob(jobKey);
     if (jobDoc != null) {
-      storeTrigger(newTrigger, jobDoc.getIdentity(), state, replaceExisting);
+      ORID jobId = jobDoc.getIdentity();
+      if (!forceState) {
+        state = checkBlockedState(jobId, state);
+      }
+      storeTrigger(newTrigger, jobId, state, replaceExisting);
     } else {
       throw new JobPersistenceException("Could not find job with key " + jobKey);
     }
   }
 
+  /**
+   * Get the state a trigger should be stored in, taking into account whether
+   * its job is running and does not allow concurrent execution.
+   * 
+   * <p>
+   * The triggers of such a job are blocked while it runs, so a trigger stored
+   * for the job then must be blocked too.
+   * 
+   * @param jobId
+   *          the ID of the job of the trigger
+   * @param state
+   *          the state the trigger would be stored in
+   * 
+   * @return the state to store the trigger in
+   */
+  private String checkBlockedState(ORID jobId, String state) {
+    String blockedState = TriggerStateTransitions.BLOCK.get(state);
+    if (blockedState != null
+        && triggerDao.hasTriggersInStates(jobId, TriggerStateTransitions.UNBLOCK.keySet())) {
+      return blockedState;
+    }
+
+    return state;
+  }
+
   private void copyOldJobDataMap(OperableTrigger newTrigger, OperableTrigger trigger) {
     trigger.getJobDataMap().putAll(newTrigger.getJobDataMap());
     // Copy across the job data map from the old trigger to the new one.
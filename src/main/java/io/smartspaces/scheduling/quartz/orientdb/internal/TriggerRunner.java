@@ -22,12 +22,15 @@ import io.smartspaces.scheduling.quartz.orientdb.internal.cluster.TriggerRecover
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardCalendarDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardJobDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardTriggerDao;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.LazyJobDataMap;
 import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.MisfireHandler;
 import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.TriggerConverter;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
 
+import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import org.quartz.Calendar;
+import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
 import org.quartz.JobPersistenceException;
@@ -73,9 +76,15 @@ public class TriggerRunner {
   private StandardCalendarDao calendarDao;
   private Clock clock;
 
+  /**
+   * The ID of the instance, recorded on the triggers it acquires or blocks.
+   */
+  private String instanceId;
+
   public TriggerRunner(TriggerAndJobPersister persister, StandardTriggerDao triggerDao,
       StandardJobDao jobDao, StandardCalendarDao calendarDao, MisfireHandler misfireHandler,
-      TriggerConverter triggerConverter, TriggerRecoverer recoverer, Clock clock) {
+      TriggerConverter triggerConverter, TriggerRecoverer recoverer, Clock clock,
+      String instanceId) {
     this.persister = persister;
     this.triggerDao = triggerDao;
     this.jobDao = jobDao;
@@ -84,10 +93,17 @@ public class TriggerRunner {
     this.triggerConverter = triggerConverter;
     this.recoverer = recoverer;
     this.clock = clock;
+    this.instanceId = instanceId;
   }
 
   public List<OperableTrigger> acquireNext(long noLaterThan, int maxCount, long timeWindow)
       throws JobPersistenceException {
+    // The scheduler is signalled once the recovery is done.
+    if (misfireHandler.isRecovering()) {
+      LOG.debug("Not acquiring triggers while misfired triggers are recovered");
+      return Collections.emptyList();
+    }
+
     Date noLaterThanDate = new Date(noLaterThan + timeWindow);
 
     LOG.debug("Finding up to {} triggers which have time less than {}", maxCount, noLaterThanDate);
@@ -144,14 +160,14 @@ public class TriggerRunner {
       // If can't run more than once, make sure only ends up in list once
       if (jobDetail.isConcurrentExectionDisallowed()) {
         // If shows up again, we don't want to add it into the list of triggers.
-        if (acquiredJobKeysForNoConcurrentExec.add(jobKey)) {
+        if (!acquiredJobKeysForNoConcurrentExec.add(jobKey)) {
           continue;
         }
       }
 
       if (prepareForFire(noLaterThanDate, trigger)) {
         LOG.debug("Prepared acquired trigger: {}", triggerKey);
-        triggerDao.setState(triggerKey, Constants.STATE_ACQUIRED);
+        triggerDao.acquire(triggerKey, instanceId);
         triggers.put(triggerKey, trigger);
       } else {
         LOG.debug("Unable to prepare acquired trigger, unlocking: {}", triggerKey);
@@ -224,7 +240,7 @@ public class TriggerRunner {
       throws JobPersistenceException {
     TriggerKey triggerKey = trigger.getKey();
     String triggerState = triggerDao.getState(triggerKey);
-    if (!triggerState.equals(Constants.STATE_ACQUIRED)) {
+    if (!Constants.STATE_ACQUIRED.equals(triggerState)) {
       return null;
     }
 
@@ -234,8 +250,13 @@ public class TriggerRunner {
       if (job == null) {
         return null;
       }
+
+      // The job must not be the first to decode its data, it could not fail
+      // the trigger and its triggers would stay blocked.
+      decodeJobData(job.getJobDataMap());
+      decodeJobData(trigger.getJobDataMap());
     } catch (JobPersistenceException e) {
-      LOG.error("Error retrieving job, setting trigger state to error", e);
+      LOG.error("Error retrieving job or its data, setting trigger state to error", e);
 
       triggerDao.setState(triggerKey, Constants.STATE_ERROR);
 
@@ -261,9 +282,16 @@ public class TriggerRunner {
 
     String state = Constants.STATE_WAITING;
     boolean force = true;
-
-    // TODO: Need code to block all other triggers who might run the job if it
-    // doesn't allow concurrent execution.
+    ORID blockedJobId = null;
+
+    if (job.isConcurrentExectionDisallowed()) {
+      // Block all other triggers of the job until it completes, the
+      // acquisition query only looks at waiting triggers so skips them.
+      state = Constants.STATE_BLOCKED;
+      force = false;
+      blockedJobId = jobDao.getJob(job.getKey()).getIdentity();
+      triggerDao.changeStateByJobId(blockedJobId, TriggerStateTransitions.BLOCK);
+    }
 
     if (trigger.getNextFireTime() == null) {
       state = Constants.STATE_COMPLETE;
@@ -271,7 +299,12 @@ public class TriggerRunner {
     }
 
     LOG.debug("Triggers fired has set trigger to {}", trigger);
-    persister.storeTrigger(trigger, job, true, state, force, false);
+    persister.storeTrigger(trigger, job, true, state, force);
+    if (blockedJobId != null) {
+      // Only this instance may unblock them should it stop before the job
+      // completes.
+      triggerDao.setInstanceIdByJobId(blockedJobId, instanceId);
+    }
 
     job.getJobDataMap().clearDirtyFlag();
 
@@ -279,6 +312,21 @@ public class TriggerRunner {
         trigger.getPreviousFireTime(), prevFireTime, trigger.getNextFireTime());
   }
 
+  /**
+   * Decode a job data map read lazily.
+   *
+   * @param jobDataMap
+   *          the job data map
+   *
+   * @throws JobPersistenceException
+   *           the job data could not be decoded
+   */
+  private void decodeJobData(JobDataMap jobDataMap) throws JobPersistenceException {
+    if (jobDataMap instanceof LazyJobDataMap) {
+      ((LazyJobDataMap) jobDataMap).decodeValues();
+    }
+  }
+
   private boolean isRecovering(OperableTrigger trigger) {
     return trigger.getKey().getGroup().equals(Scheduler.DEFAULT_RECOVERY_GROUP);
   }
@@ -34,6 +34,7 @@ import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardJobDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardPausedJobGroupsDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardPausedTriggerGroupsDao;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardTriggerDao;
+import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.MisfireHandler;
 
 public class TriggerStateManager {
 
@@ -41,13 +42,16 @@ public class TriggerStateManager {
   private final StandardJobDao jobDao;
   private final StandardPausedJobGroupsDao pausedJobGroupsDao;
   private final StandardPausedTriggerGroupsDao pausedTriggerGroupsDao;
+  private final MisfireHandler misfireHandler;
 
   public TriggerStateManager(StandardTriggerDao triggerDao, StandardJobDao jobDao,
-      StandardPausedJobGroupsDao pausedJobGroupsDao, StandardPausedTriggerGroupsDao pausedTriggerGroupsDao) {
+      StandardPausedJobGroupsDao pausedJobGroupsDao, StandardPausedTriggerGroupsDao pausedTriggerGroupsDao,
+      MisfireHandler misfireHandler) {
     this.triggerDao = triggerDao;
     this.jobDao = jobDao;
     this.pausedJobGroupsDao = pausedJobGroupsDao;
     this.pausedTriggerGroupsDao = pausedTriggerGroupsDao;
+    this.misfireHandler = misfireHandler;
   }
 
   public Set<String> getPausedTriggerGroups() {
@@ -59,11 +63,11 @@ public class TriggerStateManager {
   }
 
   public void pause(TriggerKey triggerKey) {
-    triggerDao.setState(triggerKey, Constants.STATE_PAUSED);
+    triggerDao.changeState(triggerKey, TriggerStateTransitions.PAUSE);
   }
 
   public Set<String> pause(GroupMatcher<TriggerKey> matcher) {
-    triggerDao.setStateInMatching(matcher, Constants.STATE_PAUSED);
+    triggerDao.changeStateInMatching(matcher, TriggerStateTransitions.PAUSE);
 
     Set<String> set = triggerDao.getTriggerGroupsThatMatch(matcher);
     pausedTriggerGroupsDao.pauseGroups(set);
@@ -72,53 +76,97 @@ public class TriggerStateManager {
   }
 
   public void pauseAll() {
-    triggerDao.setStateInAll(Constants.STATE_PAUSED);
+    triggerDao.changeStateInAll(TriggerStateTransitions.PAUSE);
     pausedTriggerGroupsDao.pauseGroups(triggerDao.getGroupNames());
   }
 
   public void pauseJob(JobKey jobKey) {
     ORID jobId = jobDao.getJob(jobKey).getIdentity();
-    triggerDao.setStateByJobId(jobId, Constants.STATE_PAUSED);
+    triggerDao.changeStateByJobId(jobId, TriggerStateTransitions.PAUSE);
     Set<String> groups = triggerDao.getGroupsByJobId(jobId);
     pausedTriggerGroupsDao.pauseGroups(groups);
   }
 
   public Collection<String> pauseJobs(GroupMatcher<JobKey> groupMatcher) {
     Set<String> groups = jobDao.groupsOfMatching(groupMatcher);
-    triggerDao.setStateInGroups(groups, Constants.STATE_PAUSED);
+    triggerDao.changeStateInGroups(groups, TriggerStateTransitions.PAUSE);
     pausedJobGroupsDao.pauseGroups(groups);
     return groups;
   }
 
-  public void resume(TriggerKey triggerKey) {
-    // TODO: port blocking behavior and misfired triggers handling from
-    // StdJDBCDelegate in Quartz
-    triggerDao.setState(triggerKey, Constants.STATE_WAITING);
+  /**
+   * Recover the triggers left acquired or blocked by a scheduler which stopped
+   * before their jobs completed.
+   * 
+   * @return the number of triggers recovered
+   */
+  public int recoverStates() {
+    return triggerDao.changeStateInAll(TriggerStateTransitions.RECOVER);
   }
 
-  public Collection<String> resumeTriggerGroup(GroupMatcher<TriggerKey> matcher) {
-    triggerDao.setStateInMatching(matcher, Constants.STATE_WAITING);
+  /**
+   * Recover the triggers an instance left acquired, and the triggers of the
+   * jobs it left blocked, when it stopped before their jobs completed.
+   * Triggers held by other instances are left alone.
+   *
+   * @param instanceId
+   *          the ID of the instance
+   *
+   * @return the number of triggers recovered
+   */
+  public int recoverStates(String instanceId) {
+    int count =
+        triggerDao.changeStateByInstanceId(instanceId, TriggerStateTransitions.RELEASE);
+    for (ORID jobId : triggerDao.getJobIdsByInstanceIdInStates(instanceId,
+        TriggerStateTransitions.UNBLOCK.keySet())) {
+      count += triggerDao.changeStateByJobId(jobId, TriggerStateTransitions.UNBLOCK);
+    }
+
+    return count;
+  }
+
+  public void resume(TriggerKey triggerKey) throws JobPersistenceException {
+    triggerDao.changeState(triggerKey, TriggerStateTransitions.RESUME);
+    misfireHandler.updateMisfiredTriggers(triggerDao.findMisfiredByKey(triggerKey,
+        Constants.STATE_WAITING, misfireHandler.getMisfireTime()));
+  }
+
+  public Collection<String> resumeTriggerGroup(GroupMatcher<TriggerKey> matcher)
+      throws JobPersistenceException {
+    triggerDao.changeStateInMatching(matcher, TriggerStateTransitions.RESUME);
+    misfireHandler.updateMisfiredTriggers(triggerDao.findMisfiredInMatching(matcher,
+        Constants.STATE_WAITING, misfireHandler.getMisfireTime(),
+        misfireHandler.getMaxMisfiresToHandleAtATime()));
 
     Set<String> triggerGroupsThatMatch = triggerDao.getTriggerGroupsThatMatch(matcher);
     pausedTriggerGroupsDao.unpauseGroups(triggerGroupsThatMatch);
     return triggerGroupsThatMatch;
   }
 
-  public void resumeJob(JobKey jobKey) {
+  public void resumeJob(JobKey jobKey) throws JobPersistenceException {
     ORID jobId = jobDao.getJob(jobKey).getIdentity();
-    // TODO: port blocking behavior and misfired triggers handling from
-    // StdJDBCDelegate in Quartz
-    triggerDao.setStateByJobId(jobId, Constants.STATE_WAITING);
+    triggerDao.changeStateByJobId(jobId, TriggerStateTransitions.RESUME);
+    misfireHandler.updateMisfiredTriggers(triggerDao.findMisfiredByJobId(jobId,
+        Constants.STATE_WAITING, misfireHandler.getMisfireTime(),
+        misfireHandler.getMaxMisfiresToHandleAtATime()));
   }
 
-  public void resumeAll() {
-    triggerDao.setStateInAll(Constants.STATE_WAITING);
+  public void resumeAll() throws JobPersistenceException {
+    triggerDao.changeStateInAll(TriggerStateTransitions.RESUME);
+    // Only one batch of misfires is handled while the lock is held, the misfire
+    // scan run after the resume handles the rest.
+    misfireHandler.updateMisfiredTriggers(triggerDao.findMisfiredInAll(Constants.STATE_WAITING,
+        misfireHandler.getMisfireTime(), misfireHandler.getMaxMisfiresToHandleAtATime()));
     pausedTriggerGroupsDao.removeAll();
   }
 
-  public Set<String> resumeJobs(GroupMatcher<JobKey> groupMatcher) {
+  public Set<String> resumeJobs(GroupMatcher<JobKey> groupMatcher)
+      throws JobPersistenceException {
     Set<String> groups = jobDao.groupsOfMatching(groupMatcher);
-    triggerDao.setStateInGroups(groups, Constants.STATE_WAITING);
+    triggerDao.changeStateInGroups(groups, TriggerStateTransitions.RESUME);
+    misfireHandler.updateMisfiredTriggers(triggerDao.findMisfiredInGroups(groups,
+        Constants.STATE_WAITING, misfireHandler.getMisfireTime(),
+        misfireHandler.getMaxMisfiresToHandleAtATime()));
     pausedJobGroupsDao.unpauseGroups(groups);
     
     return groups;
@@ -126,7 +174,9 @@ public class TriggerStateManager {
 
   public void releaseAcquiredTrigger(OperableTrigger trigger) throws JobPersistenceException {
     try {
-      triggerDao.setState(trigger.getKey(), Constants.STATE_WAITING);
+      // Only an acquired trigger goes back to waiting, it may have been paused
+      // or blocked since it was acquired.
+      triggerDao.changeState(trigger.getKey(), TriggerStateTransitions.RELEASE);
     } catch (Exception e) {
       throw new JobPersistenceException(e.getLocalizedMessage(), e);
     }
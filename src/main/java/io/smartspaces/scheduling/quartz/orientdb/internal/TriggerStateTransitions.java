@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state changes made to triggers, as maps from the state a trigger must be
+ * in to the state it is moved to.
+ *
+ * <p>
+ * Triggers in a state which is not a key of a map are left alone. No target
+ * state is also a source state, so the changes of a map can be applied one
+ * after the other.
+ */
+public final class TriggerStateTransitions {
+
+  /**
+   * Pausing triggers.
+   */
+  public static final Map<String, String> PAUSE =
+      transitions(Constants.STATE_WAITING, Constants.STATE_PAUSED, Constants.STATE_ACQUIRED,
+          Constants.STATE_PAUSED, Constants.STATE_BLOCKED, Constants.STATE_PAUSED_BLOCKED);
+
+  /**
+   * Resuming paused triggers.
+   */
+  public static final Map<String, String> RESUME = transitions(Constants.STATE_PAUSED,
+      Constants.STATE_WAITING, Constants.STATE_PAUSED_BLOCKED, Constants.STATE_BLOCKED);
+
+  /**
+   * Blocking the triggers of a job which does not allow concurrent execution
+   * while it runs.
+   */
+  public static final Map<String, String> BLOCK =
+      transitions(Constants.STATE_WAITING, Constants.STATE_BLOCKED, Constants.STATE_ACQUIRED,
+          Constants.STATE_BLOCKED, Constants.STATE_PAUSED, Constants.STATE_PAUSED_BLOCKED);
+
+  /**
+   * Unblocking the triggers of a job once it has completed.
+   */
+  public static final Map<String, String> UNBLOCK = transitions(Constants.STATE_BLOCKED,
+      Constants.STATE_WAITING, Constants.STATE_PAUSED_BLOCKED, Constants.STATE_PAUSED);
+
+  /**
+   * Releasing an acquired trigger which was not fired.
+   */
+  public static final Map<String, String> RELEASE =
+      transitions(Constants.STATE_ACQUIRED, Constants.STATE_WAITING);
+
+  /**
+   * Recovering triggers a scheduler left acquired or blocked when it stopped,
+   * as none of their jobs can still be running.
+   */
+  public static final Map<String, String> RECOVER =
+      transitions(Constants.STATE_ACQUIRED, Constants.STATE_WAITING, Constants.STATE_BLOCKED,
+          Constants.STATE_WAITING, Constants.STATE_PAUSED_BLOCKED, Constants.STATE_PAUSED);
+
+  private TriggerStateTransitions() {
+  }
+
+  /**
+   * Build a map of transitions.
+   *
+   * @param fromAndTo
+   *          pairs of the state to change from and the state to change to
+   *
+   * @return the unmodifiable map of transitions
+   */
+  private static Map<String, String> transitions(String... fromAndTo) {
+    Map<String, String> transitions = new LinkedHashMap<>();
+    for (int i = 0; i < fromAndTo.length; i += 2) {
+      transitions.put(fromAndTo[i], fromAndTo[i + 1]);
+    }
+
+    return Collections.unmodifiableMap(transitions);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import org.quartz.impl.calendar.AnnualCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Converts annual calendars, the excluded days are stored as a sorted list of
+ * {@code month * 100 + day}, with January as month 1.
+ */
+public class AnnualCalendarConverter extends CalendarConverter<AnnualCalendar> {
+
+  /**
+   * A leap year, so that February 29 can be excluded.
+   */
+  private static final int LEAP_YEAR = 2000;
+
+  public AnnualCalendarConverter() {
+    super("annual", AnnualCalendar.class);
+  }
+
+  @Override
+  protected AnnualCalendar newCalendar(ODocument doc) {
+    return new AnnualCalendar();
+  }
+
+  @Override
+  protected void writeFields(AnnualCalendar calendar, ODocument doc) {
+    List<Integer> excluded = new ArrayList<>();
+    for (Calendar day : calendar.getDaysExcluded()) {
+      excluded.add((day.get(Calendar.MONTH) + 1) * 100 + day.get(Calendar.DAY_OF_MONTH));
+    }
+    Collections.sort(excluded);
+    doc.field(Constants.CALENDAR_EXCLUDED, excluded);
+  }
+
+  @Override
+  protected void readFields(AnnualCalendar calendar, ODocument doc) {
+    List<Number> excluded = doc.field(Constants.CALENDAR_EXCLUDED);
+    if (excluded != null) {
+      for (Number monthAndDay : excluded) {
+        Calendar day = Calendar.getInstance();
+        day.clear();
+        day.set(LEAP_YEAR, monthAndDay.intValue() / 100 - 1, monthAndDay.intValue() % 100);
+        calendar.setDayExcluded(day, true);
+      }
+    }
+  }
+}
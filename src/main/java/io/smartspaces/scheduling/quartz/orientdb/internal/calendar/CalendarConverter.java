@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.quartz.Calendar;
+import org.quartz.JobPersistenceException;
+import org.quartz.impl.calendar.BaseCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Converts the built-in Quartz calendars to and from document fields.
+ *
+ * <p>
+ * Only the exact calendar classes are converted, so subclasses and custom
+ * calendars, or calendars based on them, are left to serialization.
+ *
+ * @param <T>
+ *          the type of calendar converted
+ */
+public abstract class CalendarConverter<T extends BaseCalendar> {
+
+  private static final List<CalendarConverter<?>> converters = Arrays.asList(
+      new HolidayCalendarConverter(), new CronCalendarConverter(), new DailyCalendarConverter(),
+      new WeeklyCalendarConverter(), new MonthlyCalendarConverter(),
+      new AnnualCalendarConverter());
+
+  /**
+   * The fields written for calendars, other than the name.
+   */
+  private static final List<String> CALENDAR_FIELDS = Arrays.asList(Constants.CALENDAR_TYPE,
+      Constants.CALENDAR_DESCRIPTION, Constants.CALENDAR_TIME_ZONE,
+      Constants.CALENDAR_BASE_CALENDAR, Constants.CALENDAR_EXCLUDED,
+      Constants.CALENDAR_CRON_EXPRESSION, Constants.CALENDAR_RANGE_START,
+      Constants.CALENDAR_RANGE_END, Constants.CALENDAR_INVERT_TIME_RANGE);
+
+  /**
+   * The type name stored for calendars of this converter.
+   */
+  private final String type;
+
+  /**
+   * The class of calendars of this converter.
+   */
+  private final Class<T> calendarClass;
+
+  /**
+   * Construct a new converter.
+   *
+   * @param type
+   *          the type name stored for the calendars
+   * @param calendarClass
+   *          the class of the calendars
+   */
+  protected CalendarConverter(String type, Class<T> calendarClass) {
+    this.type = type;
+    this.calendarClass = calendarClass;
+  }
+
+  /**
+   * Can a calendar and all of its base calendars be stored as fields?
+   *
+   * @param calendar
+   *          the calendar
+   *
+   * @return {@code true} if the calendar can be stored as fields
+   */
+  public static boolean canConvert(Calendar calendar) {
+    for (Calendar current = calendar; current != null; current = current.getBaseCalendar()) {
+      CalendarConverter<?> converter = getConverterFor(current);
+      if (converter == null || !converter.accepts(current)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Write a calendar into the fields of a document.
+   *
+   * <p>
+   * The calendar must be convertible, see {@link #canConvert(Calendar)}.
+   *
+   * @param calendar
+   *          the calendar
+   * @param doc
+   *          the document to write into
+   */
+  public static void toDocument(Calendar calendar, ODocument doc) {
+    getConverterFor(calendar).write(calendar, doc);
+  }
+
+  /**
+   * Read a calendar from the fields of a document.
+   *
+   * @param doc
+   *          the document
+   *
+   * @return the calendar, or {@code null} if the document holds no calendar
+   *         fields
+   *
+   * @throws JobPersistenceException
+   *           the fields could not be read
+   */
+  public static Calendar toCalendar(ODocument doc) throws JobPersistenceException {
+    String type = doc.field(Constants.CALENDAR_TYPE);
+    if (type == null) {
+      return null;
+    }
+
+    for (CalendarConverter<?> converter : converters) {
+      if (converter.type.equals(type)) {
+        return converter.read(doc);
+      }
+    }
+
+    throw new JobPersistenceException("Unknown calendar type " + type);
+  }
+
+  /**
+   * Remove all calendar fields from a document.
+   *
+   * @param doc
+   *          the document
+   */
+  public static void clear(ODocument doc) {
+    for (String field : CALENDAR_FIELDS) {
+      doc.removeField(field);
+    }
+  }
+
+  /**
+   * Get the converter for a calendar.
+   *
+   * @param calendar
+   *          the calendar
+   *
+   * @return the converter, or {@code null} if there is none
+   */
+  private static CalendarConverter<?> getConverterFor(Calendar calendar) {
+    for (CalendarConverter<?> converter : converters) {
+      if (converter.calendarClass == calendar.getClass()) {
+        return converter;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Can this converter read back a calendar of its class exactly?
+   *
+   * @param calendar
+   *          the calendar
+   *
+   * @return {@code true} if the calendar can be stored as fields
+   */
+  private boolean accepts(Calendar calendar) {
+    return canConvertFields(calendarClass.cast(calendar));
+  }
+
+  /**
+   * Write a calendar and its base calendars into a document.
+   *
+   * @param calendar
+   *          the calendar
+   * @param doc
+   *          the document to write into
+   */
+  private void write(Calendar calendar, ODocument doc) {
+    T typedCalendar = calendarClass.cast(calendar);
+
+    doc.field(Constants.CALENDAR_TYPE, type);
+    doc.field(Constants.CALENDAR_DESCRIPTION, typedCalendar.getDescription());
+    TimeZone timeZone = typedCalendar.getTimeZone();
+    doc.field(Constants.CALENDAR_TIME_ZONE, timeZone != null ? timeZone.getID() : null);
+
+    Calendar baseCalendar = typedCalendar.getBaseCalendar();
+    if (baseCalendar != null) {
+      ODocument baseDoc = new ODocument();
+      toDocument(baseCalendar, baseDoc);
+      doc.field(Constants.CALENDAR_BASE_CALENDAR, baseDoc);
+    } else {
+      doc.field(Constants.CALENDAR_BASE_CALENDAR, (Object) null);
+    }
+
+    writeFields(typedCalendar, doc);
+  }
+
+  /**
+   * Read a calendar and its base calendars from a document.
+   *
+   * @param doc
+   *          the document
+   *
+   * @return the calendar
+   *
+   * @throws JobPersistenceException
+   *           the fields could not be read
+   */
+  private T read(ODocument doc) throws JobPersistenceException {
+    T calendar = newCalendar(doc);
+
+    // The time zone comes first, excluded days are normalized in it.
+    String timeZone = doc.field(Constants.CALENDAR_TIME_ZONE);
+    if (timeZone != null) {
+      calendar.setTimeZone(TimeZone.getTimeZone(timeZone));
+    }
+    calendar.setDescription(doc.field(Constants.CALENDAR_DESCRIPTION));
+
+    ODocument baseDoc = doc.field(Constants.CALENDAR_BASE_CALENDAR);
+    if (baseDoc != null) {
+      calendar.setBaseCalendar(toCalendar(baseDoc));
+    }
+
+    readFields(calendar, doc);
+
+    return calendar;
+  }
+
+  /**
+   * Can the fields specific to the type of calendar be read back exactly?
+   *
+   * <p>
+   * Calendars which cannot are left to serialization.
+   *
+   * @param calendar
+   *          the calendar
+   *
+   * @return {@code true} if the fields can be stored, the default
+   */
+  protected boolean canConvertFields(T calendar) {
+    return true;
+  }
+
+  /**
+   * Create an empty calendar for a document.
+   *
+   * @param doc
+   *          the document
+   *
+   * @return the calendar
+   *
+   * @throws JobPersistenceException
+   *           the calendar could not be created
+   */
+  protected abstract T newCalendar(ODocument doc) throws JobPersistenceException;
+
+  /**
+   * Write the fields specific to the type of calendar.
+   *
+   * @param calendar
+   *          the calendar
+   * @param doc
+   *          the document to write into
+   */
+  protected abstract void writeFields(T calendar, ODocument doc);
+
+  /**
+   * Read the fields specific to the type of calendar.
+   *
+   * @param calendar
+   *          the calendar created by {@link #newCalendar(ODocument)}
+   * @param doc
+   *          the document
+   */
+  protected abstract void readFields(T calendar, ODocument doc);
+}
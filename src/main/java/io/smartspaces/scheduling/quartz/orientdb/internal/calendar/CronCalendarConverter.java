@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import java.text.ParseException;
+import java.util.TimeZone;
+
+import org.quartz.JobPersistenceException;
+import org.quartz.impl.calendar.CronCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Converts cron calendars, the expression is stored as its text.
+ */
+public class CronCalendarConverter extends CalendarConverter<CronCalendar> {
+
+  public CronCalendarConverter() {
+    super("cron", CronCalendar.class);
+  }
+
+  @Override
+  protected CronCalendar newCalendar(ODocument doc) throws JobPersistenceException {
+    String expression = doc.field(Constants.CALENDAR_CRON_EXPRESSION);
+    String timeZone = doc.field(Constants.CALENDAR_TIME_ZONE);
+    try {
+      return new CronCalendar(null, expression,
+          timeZone != null ? TimeZone.getTimeZone(timeZone) : null);
+    } catch (ParseException e) {
+      throw new JobPersistenceException("Could not parse cron calendar expression " + expression,
+          e);
+    }
+  }
+
+  @Override
+  protected void writeFields(CronCalendar calendar, ODocument doc) {
+    doc.field(Constants.CALENDAR_CRON_EXPRESSION,
+        calendar.getCronExpression().getCronExpression());
+  }
+
+  @Override
+  protected void readFields(CronCalendar calendar, ODocument doc) {
+    // The expression is read when the calendar is created.
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.quartz.impl.calendar.DailyCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Converts daily calendars, the time range is stored as milliseconds after
+ * midnight.
+ */
+public class DailyCalendarConverter extends CalendarConverter<DailyCalendar> {
+
+  /**
+   * The time of the day the range is read for. There are no daylight saving
+   * changes in the first days of January, so the range is not shifted.
+   */
+  private static final long REFERENCE_TIME = 946728000000L;
+
+  public DailyCalendarConverter() {
+    super("daily", DailyCalendar.class);
+  }
+
+  @Override
+  protected DailyCalendar newCalendar(ODocument doc) {
+    int start = doc.field(Constants.CALENDAR_RANGE_START);
+    int end = doc.field(Constants.CALENDAR_RANGE_END);
+
+    return new DailyCalendar(getHour(start), getMinute(start), getSecond(start),
+        getMillisecond(start), getHour(end), getMinute(end), getSecond(end), getMillisecond(end));
+  }
+
+  @Override
+  protected void writeFields(DailyCalendar calendar, ODocument doc) {
+    doc.field(Constants.CALENDAR_RANGE_START,
+        getMillisOfDay(calendar, calendar.getTimeRangeStartingTimeInMillis(REFERENCE_TIME)));
+    doc.field(Constants.CALENDAR_RANGE_END,
+        getMillisOfDay(calendar, calendar.getTimeRangeEndingTimeInMillis(REFERENCE_TIME)));
+    doc.field(Constants.CALENDAR_INVERT_TIME_RANGE, calendar.getInvertTimeRange());
+  }
+
+  @Override
+  protected void readFields(DailyCalendar calendar, ODocument doc) {
+    Boolean invertTimeRange = doc.field(Constants.CALENDAR_INVERT_TIME_RANGE);
+    calendar.setInvertTimeRange(Boolean.TRUE.equals(invertTimeRange));
+  }
+
+  /**
+   * Get the milliseconds after midnight of a time in the calendar's time zone.
+   *
+   * @param calendar
+   *          the calendar
+   * @param time
+   *          the time
+   *
+   * @return the milliseconds after midnight
+   */
+  private int getMillisOfDay(DailyCalendar calendar, long time) {
+    TimeZone timeZone = calendar.getTimeZone();
+    Calendar javaCalendar =
+        Calendar.getInstance(timeZone != null ? timeZone : TimeZone.getDefault());
+    javaCalendar.setTimeInMillis(time);
+
+    return ((javaCalendar.get(Calendar.HOUR_OF_DAY) * 60 + javaCalendar.get(Calendar.MINUTE)) * 60
+        + javaCalendar.get(Calendar.SECOND)) * 1000 + javaCalendar.get(Calendar.MILLISECOND);
+  }
+
+  private static int getHour(int millisOfDay) {
+    return millisOfDay / 3600000;
+  }
+
+  private static int getMinute(int millisOfDay) {
+    return millisOfDay / 60000 % 60;
+  }
+
+  private static int getSecond(int millisOfDay) {
+    return millisOfDay / 1000 % 60;
+  }
+
+  private static int getMillisecond(int millisOfDay) {
+    return millisOfDay % 1000;
+  }
+}
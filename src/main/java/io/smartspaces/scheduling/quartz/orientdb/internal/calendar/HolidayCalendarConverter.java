@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.quartz.impl.calendar.HolidayCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Converts holiday calendars, the excluded days are stored as a sorted list of
+ * the times their days start.
+ *
+ * <p>
+ * Days are normalized again in the time zone of the calendar read back, so a
+ * calendar whose days were added before its time zone was changed is left to
+ * serialization.
+ */
+public class HolidayCalendarConverter extends CalendarConverter<HolidayCalendar> {
+
+  public HolidayCalendarConverter() {
+    super("holiday", HolidayCalendar.class);
+  }
+
+  @Override
+  protected boolean canConvertFields(HolidayCalendar calendar) {
+    TimeZone timeZone = calendar.getTimeZone();
+    java.util.Calendar day =
+        java.util.Calendar.getInstance(timeZone != null ? timeZone : TimeZone.getDefault());
+    for (Date date : calendar.getExcludedDates()) {
+      day.setTime(date);
+      day.set(java.util.Calendar.HOUR_OF_DAY, 0);
+      day.set(java.util.Calendar.MINUTE, 0);
+      day.set(java.util.Calendar.SECOND, 0);
+      day.set(java.util.Calendar.MILLISECOND, 0);
+      if (day.getTimeInMillis() != date.getTime()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  protected HolidayCalendar newCalendar(ODocument doc) {
+    return new HolidayCalendar();
+  }
+
+  @Override
+  protected void writeFields(HolidayCalendar calendar, ODocument doc) {
+    List<Long> excluded = new ArrayList<>();
+    for (Date date : calendar.getExcludedDates()) {
+      excluded.add(date.getTime());
+    }
+    doc.field(Constants.CALENDAR_EXCLUDED, excluded);
+  }
+
+  @Override
+  protected void readFields(HolidayCalendar calendar, ODocument doc) {
+    List<Number> excluded = doc.field(Constants.CALENDAR_EXCLUDED);
+    if (excluded != null) {
+      for (Number time : excluded) {
+        calendar.addExcludedDate(new Date(time.longValue()));
+      }
+    }
+  }
+}
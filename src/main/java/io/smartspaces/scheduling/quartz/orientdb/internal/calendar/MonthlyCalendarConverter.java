@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.quartz.impl.calendar.MonthlyCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Converts monthly calendars, the excluded days are stored as a sorted list of
+ * days of the month.
+ */
+public class MonthlyCalendarConverter extends CalendarConverter<MonthlyCalendar> {
+
+  /**
+   * The number of days in the longest month.
+   */
+  private static final int MAX_DAYS_IN_MONTH = 31;
+
+  public MonthlyCalendarConverter() {
+    super("monthly", MonthlyCalendar.class);
+  }
+
+  @Override
+  protected MonthlyCalendar newCalendar(ODocument doc) {
+    return new MonthlyCalendar();
+  }
+
+  @Override
+  protected void writeFields(MonthlyCalendar calendar, ODocument doc) {
+    List<Integer> excluded = new ArrayList<>();
+    for (int day = 1; day <= MAX_DAYS_IN_MONTH; day++) {
+      if (calendar.isDayExcluded(day)) {
+        excluded.add(day);
+      }
+    }
+    doc.field(Constants.CALENDAR_EXCLUDED, excluded);
+  }
+
+  @Override
+  protected void readFields(MonthlyCalendar calendar, ODocument doc) {
+    boolean[] days = new boolean[MAX_DAYS_IN_MONTH];
+    List<Number> excluded = doc.field(Constants.CALENDAR_EXCLUDED);
+    if (excluded != null) {
+      for (Number day : excluded) {
+        days[day.intValue() - 1] = true;
+      }
+    }
+    calendar.setDaysExcluded(days);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.quartz.impl.calendar.WeeklyCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Converts weekly calendars, the excluded days are stored as a sorted list of
+ * {@link Calendar} days of the week.
+ */
+public class WeeklyCalendarConverter extends CalendarConverter<WeeklyCalendar> {
+
+  public WeeklyCalendarConverter() {
+    super("weekly", WeeklyCalendar.class);
+  }
+
+  @Override
+  protected WeeklyCalendar newCalendar(ODocument doc) {
+    return new WeeklyCalendar();
+  }
+
+  @Override
+  protected void writeFields(WeeklyCalendar calendar, ODocument doc) {
+    List<Integer> excluded = new ArrayList<>();
+    for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++) {
+      if (calendar.isDayExcluded(day)) {
+        excluded.add(day);
+      }
+    }
+    doc.field(Constants.CALENDAR_EXCLUDED, excluded);
+  }
+
+  @Override
+  protected void readFields(WeeklyCalendar calendar, ODocument doc) {
+    // A new weekly calendar excludes the weekend.
+    boolean[] days = new boolean[Calendar.SATURDAY + 1];
+    List<Number> excluded = doc.field(Constants.CALENDAR_EXCLUDED);
+    if (excluded != null) {
+      for (Number day : excluded) {
+        days[day.intValue()] = true;
+      }
+    }
+    calendar.setDaysExcluded(days);
+  }
+}
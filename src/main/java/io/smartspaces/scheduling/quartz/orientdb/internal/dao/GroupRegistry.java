@@ -0,0 +1,291 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
+
+/**
+ * An in-memory registry of the groups of a class of keyed records, with the
+ * number of records in each group.
+ *
+ * <p>
+ * The registry is loaded from the database once, then the DAO of the class
+ * reports every record it adds or removes. The changes of a transaction are
+ * applied when it commits, so the group names are available without reading
+ * the records.
+ *
+ * <p>
+ * The registry only sees the changes made through this store, so it is not
+ * loaded when other schedulers share the database. The DAO then queries the
+ * database for the group names.
+ */
+public class GroupRegistry {
+
+  /**
+   * The changes to the registry made in a transaction.
+   */
+  private static class PendingChanges {
+
+    /**
+     * {@code true} if all records were removed before the changes.
+     */
+    private boolean cleared;
+
+    /**
+     * The change in the number of records of each group.
+     */
+    private final Map<String, Long> changes = new HashMap<>();
+  }
+
+  private final StandardOrientDbStoreAssembler storeAssembler;
+
+  /**
+   * The statement counting the records of each group.
+   */
+  private final StatementId groupCountsId;
+
+  /**
+   * The number of records in each group with records, {@code null} if the
+   * registry is not loaded.
+   */
+  private Map<String, Long> counts;
+
+  /**
+   * The changes made by the transaction of the current thread, {@code null} if
+   * there are none.
+   */
+  private final ThreadLocal<PendingChanges> pendingChanges = new ThreadLocal<>();
+
+  /**
+   * Construct a new registry.
+   *
+   * @param storeAssembler
+   *          the assembler for the store
+   * @param groupCountsId
+   *          the statement counting the records of each group
+   */
+  public GroupRegistry(StandardOrientDbStoreAssembler storeAssembler,
+      StatementId groupCountsId) {
+    this.storeAssembler = storeAssembler;
+    this.groupCountsId = groupCountsId;
+  }
+
+  /**
+   * Load the registry from the database.
+   *
+   * <p>
+   * No records may be added or removed while the registry loads.
+   */
+  public void load() {
+    Map<String, Long> loadedCounts = new TreeMap<>();
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    try (OResultSet result =
+        storeAssembler.getStatementRegistry().execute(database, groupCountsId)) {
+      while (result.hasNext()) {
+        OResult row = result.next();
+        Number count = row.getProperty("count");
+        loadedCounts.put(row.getProperty(Constants.KEY_GROUP), count.longValue());
+      }
+    }
+
+    synchronized (this) {
+      counts = loadedCounts;
+    }
+  }
+
+  /**
+   * Is the registry loaded?
+   *
+   * @return {@code true} if the registry is loaded and kept up to date
+   */
+  public synchronized boolean isLoaded() {
+    return counts != null;
+  }
+
+  /**
+   * Get the names of all groups with records, including the changes of the
+   * transaction of the current thread.
+   *
+   * @return the group names, in order
+   */
+  public List<String> getGroupNames() {
+    Map<String, Long> currentCounts;
+    synchronized (this) {
+      currentCounts = new TreeMap<>(counts);
+    }
+
+    PendingChanges pending = pendingChanges.get();
+    if (pending != null) {
+      apply(currentCounts, pending);
+    }
+
+    return new ArrayList<>(currentCounts.keySet());
+  }
+
+  /**
+   * A record has been added.
+   *
+   * @param group
+   *          the group of the record
+   */
+  public void added(String group) {
+    change(group, 1);
+  }
+
+  /**
+   * A record has been removed.
+   *
+   * @param group
+   *          the group of the record
+   */
+  public void removed(String group) {
+    change(group, -1);
+  }
+
+  /**
+   * Records have been removed.
+   *
+   * @param removedCounts
+   *          the number of records removed from each group
+   */
+  public void removed(Map<String, Long> removedCounts) {
+    for (Map.Entry<String, Long> removedCount : removedCounts.entrySet()) {
+      change(removedCount.getKey(), -removedCount.getValue());
+    }
+  }
+
+  /**
+   * All records have been removed.
+   */
+  public void cleared() {
+    record(null, 0, true);
+  }
+
+  /**
+   * Change the number of records in a group.
+   *
+   * @param group
+   *          the group
+   * @param delta
+   *          the change in the number of records
+   */
+  private void change(String group, long delta) {
+    record(group, delta, false);
+  }
+
+  /**
+   * Record a change in the changes of the current thread.
+   *
+   * @param group
+   *          the group whose number of records changed, ignored when clearing
+   * @param delta
+   *          the change in the number of records
+   * @param clear
+   *          {@code true} if all records were removed
+   */
+  private void record(String group, long delta, boolean clear) {
+    if (!isLoaded()) {
+      return;
+    }
+
+    PendingChanges pending = pendingChanges.get();
+    boolean started = pending == null;
+    if (started) {
+      pending = new PendingChanges();
+      pendingChanges.set(pending);
+    }
+
+    if (clear) {
+      pending.cleared = true;
+      pending.changes.clear();
+    } else {
+      pending.changes.merge(group, delta, Long::sum);
+    }
+
+    // Registered after the change, as a listener without a transaction is
+    // called at once.
+    if (started) {
+      listenForCompletion(pending);
+    }
+  }
+
+  /**
+   * Apply the changes of the current thread once its transaction commits, or
+   * immediately if it has no transaction.
+   *
+   * @param pending
+   *          the changes, which are recorded until then
+   */
+  private void listenForCompletion(final PendingChanges pending) {
+    storeAssembler.getOrientDbConnector()
+        .afterCompletion(new OrientDbConnector.TransactionCompletionListener() {
+          @Override
+          public void afterCompletion(boolean committed) {
+            pendingChanges.remove();
+            if (committed) {
+              commit(pending);
+            }
+          }
+        });
+  }
+
+  /**
+   * Apply committed changes to the registry.
+   *
+   * @param pending
+   *          the changes
+   */
+  private synchronized void commit(PendingChanges pending) {
+    if (counts != null) {
+      apply(counts, pending);
+    }
+  }
+
+  /**
+   * Apply changes to group counts.
+   *
+   * @param groupCounts
+   *          the counts to change
+   * @param pending
+   *          the changes
+   */
+  private static void apply(Map<String, Long> groupCounts, PendingChanges pending) {
+    if (pending.cleared) {
+      groupCounts.clear();
+    }
+    for (Map.Entry<String, Long> change : pending.changes.entrySet()) {
+      long count = groupCounts.getOrDefault(change.getKey(), 0L) + change.getValue();
+      if (count > 0) {
+        groupCounts.put(change.getKey(), count);
+      } else {
+        groupCounts.remove(change.getKey());
+      }
+    }
+  }
+}
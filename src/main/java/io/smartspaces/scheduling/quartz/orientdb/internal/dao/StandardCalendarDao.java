@@ -19,18 +19,19 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.dao;
 
-import java.util.List;
-
 import org.quartz.Calendar;
 import org.quartz.JobPersistenceException;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.orientechnologies.orient.core.record.impl.ORecordBytes;
-import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.calendar.CalendarConverter;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.ClassTruncator;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.CompressionStatistics;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.SerialUtils;
 
 public class StandardCalendarDao {
@@ -39,12 +40,27 @@ public class StandardCalendarDao {
   private final StandardOrientDbStoreAssembler storeAssembler;
   private String iClassName = "Calendar";
 
-  public StandardCalendarDao(StandardOrientDbStoreAssembler storeAssembler) {
+  /**
+   * The smallest serialized calendar compressed, no compression if not
+   * positive.
+   */
+  private final int compressionThreshold;
+
+  /**
+   * The statistics to record the stored sizes in.
+   */
+  private final CompressionStatistics compressionStatistics;
+
+  public StandardCalendarDao(StandardOrientDbStoreAssembler storeAssembler,
+      int compressionThreshold, CompressionStatistics compressionStatistics) {
     this.storeAssembler = storeAssembler;
+    this.compressionThreshold = compressionThreshold;
+    this.compressionStatistics = compressionStatistics;
   }
 
-  public StandardCalendarDao(StandardOrientDbStoreAssembler storeAssembler, String collectionPrefix) {
-    this(storeAssembler);
+  public StandardCalendarDao(StandardOrientDbStoreAssembler storeAssembler, String collectionPrefix,
+      int compressionThreshold, CompressionStatistics compressionStatistics) {
+    this(storeAssembler, compressionThreshold, compressionStatistics);
     this.iClassName = new StringBuilder(collectionPrefix).append(this.iClassName).toString();
   }
 
@@ -54,9 +70,30 @@ public class StandardCalendarDao {
   
   public void removeAll() {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    for (ODocument calendar : database.browseClass(this.iClassName)) {
-      calendar.delete();
+    storeAssembler.getStatementRegistry().executeCommand(database,
+        StatementId.CALENDAR_DELETE_ALL);
+  }
+
+  /**
+   * Remove all calendars from the database at once, along with the records
+   * holding serialized calendars.
+   * 
+   * <p>
+   * This must run on a connection without a transaction.
+   * 
+   * @return {@code true} if the class was truncated
+   * 
+   * @throws JobPersistenceException
+   *           an index could not be created again
+   */
+  public boolean truncate() throws JobPersistenceException {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    for (ODocument calendarDoc : storeAssembler.getStatementRegistry()
+        .executeForDocuments(database, StatementId.CALENDAR_SERIALIZED_ALL)) {
+      ORecordBytes serializedCalendar = calendarDoc.field(Constants.CALENDAR_SERIALIZED_OBJECT);
+      serializedCalendar.delete();
     }
+    return ClassTruncator.truncate(database, this.iClassName);
   }
 
   public int getCount() {
@@ -65,10 +102,11 @@ public class StandardCalendarDao {
   }
 
   public boolean remove(String calName) {
-    List<ODocument> result = getCalendarsByName(calName);
+    ODocument calendarDoc = getCalendarByName(calName);
 
-    if (!result.isEmpty()) {
-      result.get(0).delete();
+    if (calendarDoc != null) {
+      deleteSerializedCalendar(calendarDoc);
+      calendarDoc.delete();
       return true;
     }
     return false;
@@ -76,39 +114,100 @@ public class StandardCalendarDao {
 
   public Calendar getCalendar(String calName) throws JobPersistenceException {
     if (calName != null) {
-      List<ODocument> result = getCalendarsByName(calName);
-      if (!result.isEmpty()) {
-        ORecordBytes serializedCalendar = result.get(0).field(Constants.CALENDAR_SERIALIZED_OBJECT);
-        return SerialUtils.deserialize(serializedCalendar.toStream(), Calendar.class);
+      ODocument calendarDoc = getCalendarByName(calName);
+      if (calendarDoc != null) {
+        return toCalendar(calendarDoc);
       }
     }
     return null;
   }
 
-  public void store(String name, Calendar calendar) throws JobPersistenceException {
+  public boolean exists(String calName) {
+    return getCalendarByName(calName) != null;
+  }
+
+  /**
+   * Go through all calendars, reading them from the database as they are
+   * needed.
+   *
+   * @return the calendar documents
+   */
+  public Iterable<ODocument> browse() {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return database.browseClass(this.iClassName);
+  }
 
-    ORecordBytes serializedCalendar = new ORecordBytes(SerialUtils.serialize(calendar));
-    List<ODocument> result = getCalendarsByName(name);
-    ODocument doc;
-    if (!result.isEmpty()) {
-      doc = result.get(0);
-    } else {
+  /**
+   * Get the calendar stored in a calendar document.
+   *
+   * @param calendarDoc
+   *          the calendar document
+   *
+   * @return the calendar
+   *
+   * @throws JobPersistenceException
+   *           the serialized calendar could not be read
+   */
+  public Calendar toCalendar(ODocument calendarDoc) throws JobPersistenceException {
+    Calendar calendar = CalendarConverter.toCalendar(calendarDoc);
+    if (calendar != null) {
+      return calendar;
+    }
+
+    ORecordBytes serializedCalendar = calendarDoc.field(Constants.CALENDAR_SERIALIZED_OBJECT);
+    return SerialUtils.deserialize(serializedCalendar.toStream(), Calendar.class);
+  }
+
+  /**
+   * Store a calendar. The built-in calendars are stored as fields, any other
+   * calendar is serialized, and compressed if it is large.
+   *
+   * @param name
+   *          the name of the calendar
+   * @param calendar
+   *          the calendar
+   *
+   * @throws JobPersistenceException
+   *           the calendar could not be serialized
+   */
+  public void store(String name, Calendar calendar) throws JobPersistenceException {
+    ODocument doc = getCalendarByName(name);
+    if (doc == null) {
       doc = new ODocument(this.iClassName);
+    } else {
+      deleteSerializedCalendar(doc);
+      CalendarConverter.clear(doc);
+    }
+
+    doc.field(Constants.CALENDAR_NAME, name);
+    if (CalendarConverter.canConvert(calendar)) {
+      CalendarConverter.toDocument(calendar, doc);
+    } else {
+      byte[] serialized = SerialUtils.compress(SerialUtils.serialize(calendar),
+          compressionThreshold, compressionStatistics);
+      doc.field(Constants.CALENDAR_SERIALIZED_OBJECT, new ORecordBytes(serialized));
     }
-    doc = doc.field(Constants.CALENDAR_NAME, name).field(Constants.CALENDAR_SERIALIZED_OBJECT, serializedCalendar);
     doc.save();
   }
-  
 
-  private List<ODocument> getCalendarsByName(String name) {
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+  /**
+   * Delete the record holding the serialized calendar of a calendar document,
+   * if it has one.
+   *
+   * @param calendarDoc
+   *          the calendar document
+   */
+  private void deleteSerializedCalendar(ODocument calendarDoc) {
+    ORecordBytes serializedCalendar = calendarDoc.field(Constants.CALENDAR_SERIALIZED_OBJECT);
+    if (serializedCalendar != null) {
+      serializedCalendar.delete();
+      calendarDoc.removeField(Constants.CALENDAR_SERIALIZED_OBJECT);
+    }
+  }
 
-    // TODO(keith): class and field names should come from external constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select from ").append(this.iClassName).append(" where name=?").toString());
-    List<ODocument> result = database.command(query).execute(name);
-    return result;
+  private ODocument getCalendarByName(String name) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return storeAssembler.getStatementRegistry().executeForFirstDocument(database,
+        StatementId.CALENDAR_BY_NAME, name);
   }
 }
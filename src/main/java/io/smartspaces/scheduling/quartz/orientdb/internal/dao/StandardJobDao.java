@@ -19,27 +19,32 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
 import org.quartz.JobPersistenceException;
-import org.quartz.ObjectAlreadyExistsException;
 import org.quartz.impl.matchers.GroupMatcher;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.impl.ODocument;
-import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.JobConverter;
 import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.ClassTruncator;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Keys;
-import io.smartspaces.scheduling.quartz.orientdb.internal.util.ODocumentHelper;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.QueryHelper;
 
 /**
@@ -47,16 +52,27 @@ import io.smartspaces.scheduling.quartz.orientdb.internal.util.QueryHelper;
  */
 public class StandardJobDao {
 
+  /**
+   * The number of keys or record IDs passed to one statement.
+   */
+  private static final int KEY_QUERY_BATCH_SIZE = 1000;
+
   private final StandardOrientDbStoreAssembler storeAssembler;
   private final QueryHelper queryHelper;
   private final JobConverter jobConverter;
   private String iClassName = "Job";
 
+  /**
+   * The registry of the job groups.
+   */
+  private final GroupRegistry groupRegistry;
+
   public StandardJobDao(StandardOrientDbStoreAssembler storeAssembler, QueryHelper queryHelper,
       JobConverter jobConverter) {
     this.storeAssembler = storeAssembler;
     this.queryHelper = queryHelper;
     this.jobConverter = jobConverter;
+    this.groupRegistry = new GroupRegistry(storeAssembler, StatementId.JOB_GROUP_COUNTS);
   }
 
   public StandardJobDao(StandardOrientDbStoreAssembler storeAssembler, QueryHelper queryHelper,
@@ -69,16 +85,85 @@ public class StandardJobDao {
     // Nothing to do
   }
 
+  /**
+   * Load the registry of the job groups, which then serves the group names.
+   * 
+   * <p>
+   * No jobs may be stored or removed while the registry loads, and only this
+   * store may change the jobs afterwards.
+   */
+  public void loadGroupRegistry() {
+    groupRegistry.load();
+  }
+
   public void removeAll() {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    storeAssembler.getStatementRegistry().executeCommand(database, StatementId.JOB_DELETE_ALL);
+    groupRegistry.cleared();
+  }
 
-    for (ODocument job : database.browseClass(this.iClassName)) {
-      job.delete();
+  /**
+   * Remove all jobs from the database at once.
+   * 
+   * <p>
+   * This must run on a connection without a transaction.
+   * 
+   * @return {@code true} if the class was truncated
+   * 
+   * @throws JobPersistenceException
+   *           an index could not be created again
+   */
+  public boolean truncate() throws JobPersistenceException {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    if (!ClassTruncator.truncate(database, this.iClassName)) {
+      return false;
     }
+    groupRegistry.cleared();
+
+    return true;
   }
 
   public boolean exists(JobKey jobKey) {
-    return !getJobsByKey(jobKey).isEmpty();
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return storeAssembler.getStatementRegistry().executeForCount(database,
+        StatementId.JOB_ID_BY_KEY, jobKey.getGroup(), jobKey.getName()) != 0;
+  }
+
+  /**
+   * Get the record IDs of those of a set of jobs which exist.
+   *
+   * @param jobKeys
+   *          the keys of the jobs
+   *
+   * @return the record IDs of the existing jobs by their keys
+   */
+  public Map<JobKey, ORID> getJobIds(Collection<JobKey> jobKeys) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    Map<JobKey, ORID> jobIds = new HashMap<>();
+    List<JobKey> keys = new ArrayList<>(jobKeys);
+    for (int start = 0; start < keys.size(); start += KEY_QUERY_BATCH_SIZE) {
+      Set<JobKey> batch =
+          new HashSet<>(keys.subList(start, Math.min(keys.size(), start + KEY_QUERY_BATCH_SIZE)));
+      Set<String> groups = new HashSet<>();
+      Set<String> names = new HashSet<>();
+      for (JobKey key : batch) {
+        groups.add(key.getGroup());
+        names.add(key.getName());
+      }
+
+      try (OResultSet result = storeAssembler.getStatementRegistry().execute(database,
+          StatementId.JOB_IDS_BY_KEYS, groups, names)) {
+        while (result.hasNext()) {
+          OResult row = result.next();
+          JobKey key = Keys.toJobKey(row);
+          if (batch.contains(key)) {
+            jobIds.put(key, row.getProperty("rid"));
+          }
+        }
+      }
+    }
+
+    return jobIds;
   }
 
   public ODocument getById(ORID id) {
@@ -86,27 +171,44 @@ public class StandardJobDao {
     return database.getRecord(id);
   }
 
-  public ODocument getJob(JobKey jobKey) {
-    List<ODocument> result = getJobsByKey(jobKey);
+  /**
+   * Go through all jobs, reading them from the database as they are needed.
+   *
+   * @return the job documents
+   */
+  public Iterable<ODocument> browse() {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return database.browseClass(this.iClassName);
+  }
 
-    if (result.isEmpty()) {
-      return null;
-    } else {
-      return result.get(0);
+  /**
+   * Store the fields of a job document, such as one copied from another
+   * database.
+   *
+   * @param fields
+   *          the fields of the job
+   * @param existingJobId
+   *          the record ID of the stored job to replace, {@code null} if the
+   *          job is new
+   *
+   * @return the record ID of the job, which is temporary for a new job until
+   *         the transaction commits
+   */
+  public ORID storeDocument(ODocument fields, ORID existingJobId) {
+    ODocument jobDoc =
+        existingJobId != null ? getById(existingJobId) : new ODocument(this.iClassName);
+    jobDoc.merge(fields, true, false);
+    jobDoc.save();
+    if (existingJobId == null) {
+      groupRegistry.added(jobDoc.field(Constants.KEY_GROUP));
     }
+    return jobDoc.getIdentity();
   }
 
-  private List<ODocument> getJobsByKey(JobKey jobKey) {
-    // TODO(keith): class and field names should come from external constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-            new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-                    .append(this.iClassName)
-                    .append(" where keyGroup=? and keyName=?").toString());
+  public ODocument getJob(JobKey jobKey) {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result = database.command(query).execute(jobKey.getGroup(), jobKey.getName());
-
-    return result;
+    return storeAssembler.getStatementRegistry().executeForFirstDocument(database,
+        StatementId.JOB_BY_KEY, jobKey.getGroup(), jobKey.getName());
   }
 
   public int getCount() {
@@ -115,49 +217,95 @@ public class StandardJobDao {
   }
 
   public List<String> getGroupNames() {
-    // TODO(keith): class and field names should come from external constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select DISTINCT(keyGroup) from ").append(this.iClassName).toString());
+    if (groupRegistry.isLoaded()) {
+      return groupRegistry.getGroupNames();
+    }
 
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> dbResult = database.command(query).execute();
-    return dbResult.stream().map(res -> res.field("DISTINCT").toString()).collect(Collectors.toList());
+    List<String> groups = new ArrayList<>();
+    try (OResultSet result =
+        storeAssembler.getStatementRegistry().execute(database, StatementId.JOB_GROUP_NAMES)) {
+      while (result.hasNext()) {
+        groups.add(result.next().getProperty(Constants.KEY_GROUP));
+      }
+    }
+
+    return groups;
   }
 
+  /**
+   * Get the keys of all jobs whose group matches a group matcher.
+   *
+   * <p>
+   * The keys are read from the key index, no job records are loaded.
+   *
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the job keys
+   */
   public Set<JobKey> getJobKeys(GroupMatcher<JobKey> matcher) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    StatementRegistry registry = storeAssembler.getStatementRegistry();
     Set<JobKey> keys = new HashSet<>();
-    for (ODocument doc : findMatching(matcher)) {
-      keys.add(Keys.toJobKey(doc));
+    for (String group : findMatchingGroups(database, matcher)) {
+      for (String name : queryHelper.namesInKeyIndex(database, registry,
+          StatementId.JOB_KEY_INDEX_IN_GROUP, group)) {
+        keys.add(new JobKey(name, group));
+      }
     }
 
     return keys;
   }
 
+  /**
+   * Get all job groups which match a group matcher.
+   *
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the groups
+   */
   public Set<String> groupsOfMatching(GroupMatcher<JobKey> matcher) {
-    String groupMatcherClause = queryHelper.matchingKeysConditionFor(matcher);
-    OSQLSynchQuery<ODocument> query =
-            new OSQLSynchQuery<ODocument>(new StringBuilder("select DISTINCT(keyGroup) from ")
-                    .append(this.iClassName)
-                    .append(" where ").append(groupMatcherClause)
-                    .toString());
-
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-
-    List<String> groups = database.query(query);
-
-    return new HashSet<String>(groups);
-
+    return new HashSet<>(findMatchingGroups(database, matcher));
   }
 
   public void remove(ODocument job) {
     job.delete();
+    groupRegistry.removed(job.<String>field(Constants.KEY_GROUP));
+  }
+
+  /**
+   * Remove jobs.
+   *
+   * @param jobIds
+   *          the record IDs of the jobs
+   *
+   * @return the number of jobs removed
+   */
+  public long removeByIds(Collection<ORID> jobIds) {
+    return removeInBatches(StatementId.JOB_DELETE_BY_IDS, jobIds);
+  }
+
+  /**
+   * Remove those of a set of jobs which are not durable.
+   *
+   * @param jobIds
+   *          the record IDs of the jobs
+   *
+   * @return the number of jobs removed
+   */
+  public long removeNonDurableByIds(Collection<ORID> jobIds) {
+    return removeInBatches(StatementId.JOB_DELETE_NON_DURABLE_BY_IDS, jobIds);
   }
 
   public boolean requestsRecovery(JobKey jobKey) {
-    // TODO check if it's the same as getJobDataMap?
-    ODocument jobDoc = getJob(jobKey);
-    return ODocumentHelper.getBooleanField(jobDoc, Constants.JOB_REQUESTS_RECOVERY, false);
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    Boolean requestsRecovery = storeAssembler.getStatementRegistry().executeForFirstProperty(
+        database, StatementId.JOB_REQUESTS_RECOVERY_BY_KEY, Constants.JOB_REQUESTS_RECOVERY,
+        jobKey.getGroup(), jobKey.getName());
+    return requestsRecovery != null && requestsRecovery;
   }
 
   public JobDetail retrieveJob(JobKey jobKey) throws JobPersistenceException {
@@ -170,7 +318,7 @@ public class StandardJobDao {
   }
 
   public ORID storeJob(JobDetail newJob, boolean replaceExisting)
-      throws ObjectAlreadyExistsException {
+      throws JobPersistenceException {
     JobKey key = newJob.getKey();
 
     ODocument newJobDoc = jobConverter.toDocument(newJob, key);
@@ -179,12 +327,13 @@ public class StandardJobDao {
 
     ORID jobId = null;
     if (oldJobDoc != null && replaceExisting) {
-      oldJobDoc.merge(newJobDoc, true, true);
+      oldJobDoc.merge(newJobDoc, true, false);
       oldJobDoc.save();
       jobId = oldJobDoc.getIdentity();
     } else if (oldJobDoc == null) {
       // try {
       newJobDoc.save();
+      groupRegistry.added(key.getGroup());
       jobId = newJobDoc.getIdentity();
       // } catch (Exception e) {
       // Fine, find it and get its id.
@@ -198,18 +347,71 @@ public class StandardJobDao {
     return jobId;
   }
 
-  private List<ODocument> findMatching(GroupMatcher<JobKey> matcher) {
-    String groupMatcherClause = queryHelper.matchingKeysConditionFor(matcher);
-    OSQLSynchQuery<ODocument> query =
-            new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-                    .append(this.iClassName)
-                    .append(" where ")
-                    .append(groupMatcherClause).toString());
+  /**
+   * Store a job whose existing record, if any, is already known.
+   *
+   * @param newJob
+   *          the job to store
+   * @param existingJobId
+   *          the record ID of the stored job to replace, {@code null} if the
+   *          job is new
+   *
+   * @return the record ID of the job, which is temporary for a new job until
+   *         the transaction commits
+   *
+   * @throws JobPersistenceException
+   *           the job could not be converted
+   */
+  public ORID storeJob(JobDetail newJob, ORID existingJobId) throws JobPersistenceException {
+    ODocument newJobDoc = jobConverter.toDocument(newJob, newJob.getKey());
+    if (existingJobId != null) {
+      ODocument oldJobDoc = getById(existingJobId);
+      oldJobDoc.merge(newJobDoc, true, false);
+      oldJobDoc.save();
+      return oldJobDoc.getIdentity();
+    }
 
+    newJobDoc.save();
+    groupRegistry.added(newJob.getKey().getGroup());
+    return newJobDoc.getIdentity();
+  }
+
+  /**
+   * Remove jobs with a delete statement returning the deleted jobs.
+   *
+   * @param id
+   *          the ID of the statement, whose only parameter is the record IDs
+   * @param jobIds
+   *          the record IDs of the jobs
+   *
+   * @return the number of jobs removed
+   */
+  private long removeInBatches(StatementId id, Collection<ORID> jobIds) {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    Map<String, Long> removedCounts = storeAssembler.getStatementRegistry()
+        .executeDeleteInBatches(database, id, jobIds, KEY_QUERY_BATCH_SIZE);
+    groupRegistry.removed(removedCounts);
 
-    List<ODocument> documents = database.query(query);
+    long removed = 0;
+    for (long count : removedCounts.values()) {
+      removed += count;
+    }
+    return removed;
+  }
 
-    return documents;
+  /**
+   * Find the job groups which match a group matcher in the key index.
+   *
+   * @param database
+   *          the database to query
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the matching groups
+   */
+  private List<String> findMatchingGroups(ODatabaseDocumentTx database,
+      GroupMatcher<JobKey> matcher) {
+    return queryHelper.matchingGroupsInKeyIndex(database, storeAssembler.getStatementRegistry(),
+        StatementId.JOB_KEY_INDEX_FIRST_FROM, StatementId.JOB_KEY_INDEX_FIRST_AFTER, matcher);
   }
 }
@@ -20,9 +20,16 @@ package io.smartspaces.scheduling.quartz.orientdb.internal.dao;
 
 import static io.smartspaces.scheduling.quartz.orientdb.internal.util.Keys.toTriggerKey;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 import org.quartz.JobDetail;
 import org.quartz.JobKey;
@@ -34,27 +41,54 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.exception.OConcurrentModificationException;
+import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.impl.ODocument;
-import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import com.orientechnologies.orient.core.storage.ORecordDuplicatedException;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants.LockType;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector.TransactionMethod;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
 
 public class StandardLockDao {
 
   private static final Logger log = LoggerFactory.getLogger(StandardLockDao.class);
 
+  /**
+   * The number of times a conflicting statement on own leases is tried.
+   */
+  private static final int MAX_LEASE_ATTEMPTS = 5;
+
   private final StandardOrientDbStoreAssembler storeAssembler;
   private Clock clock;
   private final String instanceId;
 
+  /**
+   * The holder written to the leases of this instance, unique to this start
+   * of the instance so that a restarted or misconfigured node never renews or
+   * releases the leases of another.
+   */
+  private final String leaseOwner;
+
+  private String iClassName = "QuartzLock";
+
   public StandardLockDao(StandardOrientDbStoreAssembler storeAssembler, Clock clock,
       String instanceId) {
     this.storeAssembler = storeAssembler;
     this.clock = clock;
     this.instanceId = instanceId;
+    this.leaseOwner = instanceId + ':' + UUID.randomUUID();
+  }
+
+  public StandardLockDao(StandardOrientDbStoreAssembler storeAssembler, Clock clock,
+      String instanceId, String collectionPrefix) {
+    this(storeAssembler, clock, instanceId);
+    this.iClassName = new StringBuilder(collectionPrefix).append(this.iClassName).toString();
   }
 
   /**
@@ -132,14 +166,8 @@ public class StandardLockDao {
   }
 
   private List<ODocument> getInstanceLocksByLockType(LockType lockType) {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>("select from QuartzLock where instanceId=? and type=?");
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result = database.command(query).execute(instanceId, lockType.name());
-    return result;
+    return executeForDocuments(StatementId.LOCK_BY_INSTANCE_AND_TYPE, instanceId,
+        lockType.name());
   }
 
   public void lockJob(JobDetail job) {
@@ -161,7 +189,7 @@ public class StandardLockDao {
    * <p>
    * Update is performed using "Update document if current" pattern to update
    * iff document in DB hasn't changed - haven't been relocked by other
-   * scheduler.
+   * scheduler. The check and the update are a single statement.
    * </p>
    *
    * @param key
@@ -169,25 +197,17 @@ public class StandardLockDao {
    * @param lockTime
    *          expected current lockTime
    * 
-   * @return {@code false} when not found or caught an exception
+   * @return {@code false} when not found, relocked by someone else first or
+   *         caught an exception
    */
   public boolean relock(TriggerKey key, Date lockTime) {
     log.debug("Relocking lock {} to {}", key, lockTime);
     try {
-      // TODO(keith): class and field names should come from external
-      // constants
-      // Also create query ahead of time when DAO starts.
-      OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(
-          "select from QuartzLock where instanceId=? and type=? and keyGroup=? and keyName=? and time=?");
-      ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-      List<ODocument> result = database.command(query).execute(instanceId, LockType.trigger.name(),
-          key.getGroup(), key.getName(), lockTime);
-
-      if (!result.isEmpty()) {
-        ODocument lockDoc = result.get(0);
-        log.debug("Relocked lock {} to {}", lockDoc, lockTime);
-        lockDoc.field(Constants.LOCK_TIME, clock.now());
-        lockDoc.save();
+      long relocked = executeCommand(StatementId.LOCK_RELOCK, instanceId, clock.now(),
+          LockType.trigger.name(), key.getGroup(), key.getName(), lockTime);
+      if (relocked == 0) {
+        log.debug("Lock {} was not relocked, it changed since {}", key, lockTime);
+        return false;
       }
     } catch (Exception e) {
       log.error("Relock failed because: " + e.getMessage(), e);
@@ -212,19 +232,8 @@ public class StandardLockDao {
   public boolean updateOwnLock(TriggerKey key) throws JobPersistenceException {
     log.debug("Updating own lock for trigger {}", key);
     try {
-      // TODO(keith): class and field names should come from external
-      // constants
-      // Also create query ahead of time when DAO starts.
-      OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(
-          "select from QuartzLock where instanceId=? and keyGroup=? and keyName=?");
-      ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-      List<ODocument> result =
-          database.command(query).execute(instanceId, key.getGroup(), key.getName());
-
-      for (ODocument lockDoc : result) {
-        lockDoc.field(Constants.LOCK_TIME, clock.now());
-        lockDoc.save();
-      }
+      executeCommand(StatementId.LOCK_REFRESH_BY_KEY, clock.now(), instanceId, key.getGroup(),
+          key.getName());
     } catch (Exception e) {
       log.error("Lock refresh failed because: " + e.getMessage(), e);
       throw new JobPersistenceException("Lock refresh for scheduler: " + instanceId, e);
@@ -234,6 +243,28 @@ public class StandardLockDao {
     return true;
   }
 
+  /**
+   * Reset the lock time on all own locks of a type with a single update.
+   * 
+   * @param lockType
+   *          the type of the locks
+   * 
+   * @return the number of locks refreshed
+   *
+   * @throws JobPersistenceException
+   *           in case of errors from OrientDB
+   */
+  public long updateOwnLocks(LockType lockType) throws JobPersistenceException {
+    log.debug("Updating own {} locks", lockType);
+    try {
+      return executeCommand(StatementId.LOCK_REFRESH_BY_TYPE, clock.now(), instanceId,
+          lockType.name());
+    } catch (Exception e) {
+      log.error("Lock refresh failed because: " + e.getMessage(), e);
+      throw new JobPersistenceException("Lock refresh for scheduler: " + instanceId, e);
+    }
+  }
+
   /**
    * Unlock the trigger if it still belongs to the current scheduler.
    *
@@ -242,21 +273,37 @@ public class StandardLockDao {
    */
   public void unlockTrigger(OperableTrigger trigger) {
     log.debug("Removing lock for trigger {}", trigger.getKey());
-    List<ODocument> lockDocs = getLockDocuments(LockType.trigger, trigger.getKey());
-    for (ODocument lockDoc : lockDocs) {
-      log.debug("Deleting lock {}.", lockDoc);
-      lockDoc.delete();
-    }
+    deleteLock(LockType.trigger, trigger.getKey());
     log.debug("Trigger lock {}.{} removed.", trigger.getKey(), instanceId);
   }
 
+  /**
+   * Unlock all given triggers which still belong to the current scheduler.
+   * 
+   * @param triggerKeys
+   *          the triggers to unlock
+   * 
+   * @return the number of locks removed
+   */
+  public long unlockTriggers(Collection<TriggerKey> triggerKeys) {
+    return deleteLocks(LockType.trigger, triggerKeys);
+  }
+
   public void unlockJob(JobDetail job) {
     log.debug("Removing lock for job {}", job.getKey());
+    deleteLock(LockType.job, job.getKey());
+  }
 
-    List<ODocument> jobLockDocs = getLockDocuments(LockType.job, job.getKey());
-    for (ODocument jobLockDoc : jobLockDocs) {
-      jobLockDoc.delete();
-    }
+  /**
+   * Unlock all given jobs which still belong to the current scheduler.
+   * 
+   * @param jobKeys
+   *          the jobs to unlock
+   * 
+   * @return the number of locks removed
+   */
+  public long unlockJobs(Collection<JobKey> jobKeys) {
+    return deleteLocks(LockType.job, jobKeys);
   }
 
   public void remove(ODocument lockDoc) {
@@ -267,17 +314,288 @@ public class StandardLockDao {
    * Remove all locks associated with the given instance ID.
    */
   public void removeAllInstanceLocks() {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>("select from QuartzLock where instanceId=?");
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result = database.command(query).execute(instanceId);
-
-    for (ODocument lock : result) {
-      lock.delete();
+    long removed = executeCommand(StatementId.LOCK_DELETE_BY_INSTANCE, instanceId);
+    log.debug("Removed {} locks of instance {}", removed, instanceId);
+  }
+
+  /**
+   * Delete the lock of this instance for a key.
+   * 
+   * @param lockType
+   *          the lock type
+   * @param key
+   *          the lock key
+   */
+  private void deleteLock(LockType lockType, Key<?> key) {
+    executeCommand(StatementId.LOCK_DELETE_BY_TYPE_AND_KEY, instanceId, lockType.name(),
+        key.getGroup(), key.getName());
+  }
+
+  /**
+   * Delete the locks of this instance for a set of keys.
+   * 
+   * <p>
+   * The candidates are found with one query on the groups and names, which
+   * may match more pairs than asked for. Only the exact pairs are then deleted
+   * with one statement.
+   * 
+   * @param lockType
+   *          the lock type
+   * @param keys
+   *          the lock keys
+   * 
+   * @return the number of locks removed
+   */
+  private long deleteLocks(LockType lockType, Collection<? extends Key<?>> keys) {
+    if (keys.isEmpty()) {
+      return 0;
     }
+
+    Set<String> groups = new HashSet<>();
+    Set<String> names = new HashSet<>();
+    for (Key<?> key : keys) {
+      groups.add(key.getGroup());
+      names.add(key.getName());
+    }
+
+    Set<Key<?>> wanted = new HashSet<>(keys);
+    List<ORID> lockIds = new ArrayList<>();
+    try (OResultSet result = storeAssembler.getStatementRegistry().execute(getConnection(),
+        StatementId.LOCK_IDS_BY_TYPE_AND_KEYS, instanceId, lockType.name(), groups, names)) {
+      while (result.hasNext()) {
+        OResult row = result.next();
+        if (wanted.contains(toKey(lockType, row.getProperty(Constants.KEY_GROUP),
+            row.getProperty(Constants.KEY_NAME)))) {
+          lockIds.add(row.getProperty("rid"));
+        }
+      }
+    }
+    if (lockIds.isEmpty()) {
+      return 0;
+    }
+
+    long removed = executeCommand(StatementId.LOCK_DELETE_BY_IDS, lockIds);
+    log.debug("Removed {} {} locks of instance {}", removed, lockType, instanceId);
+    return removed;
+  }
+
+  /**
+   * Make the key of a lock.
+   * 
+   * @param lockType
+   *          the lock type
+   * @param group
+   *          the key group
+   * @param name
+   *          the key name
+   * 
+   * @return the key of the type matching the lock type
+   */
+  private static Key<?> toKey(LockType lockType, String group, String name) {
+    return lockType == LockType.job ? new JobKey(name, group) : new TriggerKey(name, group);
+  }
+
+  /**
+   * Insert a lease, if there is no lease record for the lock yet.
+   * 
+   * <p>
+   * The new lease starts with fencing token {@code 1}. The insert is committed
+   * at once, outside of the transaction of the current thread.
+   * 
+   * @param type
+   *          the type of the lease, either {@link LockType#named} or
+   *          {@link LockType#key}
+   * @param lockName
+   *          the name of the store lock
+   * @param leaseName
+   *          the name of the lease under the store lock
+   * @param leaseExpires
+   *          when the lease expires, in epoch milliseconds
+   * 
+   * @return the new lease, {@code null} if there already is a lease record
+   * 
+   * @throws JobPersistenceException
+   *           the lease could not be written
+   */
+  public ODocument insertLease(LockType type, String lockName, String leaseName,
+      long leaseExpires) throws JobPersistenceException {
+    return doInSeparateConnection(() -> {
+      ODocument leaseDoc = new ODocument(iClassName);
+      leaseDoc.field(Constants.LOCK_TYPE, type.name());
+      leaseDoc.field(Constants.KEY_GROUP, lockName);
+      leaseDoc.field(Constants.KEY_NAME, leaseName);
+      leaseDoc.field(Constants.LOCK_INSTANCE_ID, leaseOwner);
+      leaseDoc.field(Constants.LOCK_TIME, clock.now());
+      leaseDoc.field(Constants.LOCK_LEASE_EXPIRES, leaseExpires);
+      leaseDoc.field(Constants.LOCK_TOKEN, 1L);
+      try {
+        return leaseDoc.save();
+      } catch (ORecordDuplicatedException e) {
+        log.trace("Lease {}/{} is already taken", lockName, leaseName);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Take over a lease which was released or whose holder let it expire.
+   * 
+   * <p>
+   * The fencing token stored with the lease is incremented. The update is committed at
+   * once, outside of the transaction of the current thread.
+   * 
+   * @param type
+   *          the type of the lease
+   * @param lockName
+   *          the name of the store lock
+   * @param leaseName
+   *          the name of the lease under the store lock
+   * @param now
+   *          the current time, in epoch milliseconds
+   * @param leaseExpires
+   *          when the lease expires, in epoch milliseconds
+   * 
+   * @return the lease, {@code null} if there is no lease record, it is still
+   *         held or someone else took it over first
+   * 
+   * @throws JobPersistenceException
+   *           the lease could not be written
+   */
+  public ODocument takeOverExpiredLease(LockType type, String lockName, String leaseName,
+      long now, long leaseExpires) throws JobPersistenceException {
+    return doInSeparateConnection(() -> {
+      try {
+        ODocument leaseDoc = storeAssembler.getStatementRegistry().executeForFirstDocument(
+            getConnection(), StatementId.LOCK_LEASE_TAKE_OVER, leaseOwner, new Date(now),
+            leaseExpires, type.name(), lockName, leaseName, now);
+        if (leaseDoc != null) {
+          log.trace("Took over lease {}/{}", lockName, leaseName);
+        }
+        return leaseDoc;
+      } catch (OConcurrentModificationException e) {
+        log.trace("Lost the race for expired lease {}/{}", lockName, leaseName);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Renew all unexpired leases of this instance with a single update.
+   * 
+   * @param now
+   *          the current time, in epoch milliseconds
+   * @param leaseExpires
+   *          when the leases expire, in epoch milliseconds
+   * 
+   * @return the number of leases renewed
+   * 
+   * @throws JobPersistenceException
+   *           the leases could not be written
+   */
+  public long renewLeases(long now, long leaseExpires) throws JobPersistenceException {
+    return doInSeparateConnection(
+        () -> executeLeaseCommand(StatementId.LOCK_LEASE_RENEW, leaseExpires, leaseOwner, now));
+  }
+
+  /**
+   * Release a lease of this instance.
+   * 
+   * <p>
+   * Named leases keep their record, expired at once, so that the next holder
+   * continues from the stored fencing token. Key leases are deleted, as there
+   * is one per job or trigger key.
+   * 
+   * @param type
+   *          the type of the lease
+   * @param leaseId
+   *          the record ID of the lease
+   * @param token
+   *          the fencing token the lease was obtained with
+   * 
+   * @return {@code true} if the lease was released, {@code false} if it was
+   *         lost to someone else
+   * 
+   * @throws JobPersistenceException
+   *           the lease could not be written
+   */
+  public boolean releaseLease(LockType type, ORID leaseId, long token)
+      throws JobPersistenceException {
+    StatementId statement = type == LockType.named ? StatementId.LOCK_LEASE_EXPIRE
+        : StatementId.LOCK_LEASE_RELEASE;
+    return doInSeparateConnection(
+        () -> executeLeaseCommand(statement, leaseId, leaseOwner, token) > 0);
+  }
+
+  /**
+   * Release all leases of this instance.
+   * 
+   * @return the number of leases released
+   * 
+   * @throws JobPersistenceException
+   *           the leases could not be written
+   */
+  public long releaseAllLeases() throws JobPersistenceException {
+    return doInSeparateConnection(() -> executeLeaseCommand(
+        StatementId.LOCK_LEASE_EXPIRE_BY_INSTANCE, leaseOwner, LockType.named.name())
+        + executeLeaseCommand(StatementId.LOCK_LEASE_RELEASE_BY_INSTANCE, leaseOwner,
+            LockType.key.name()));
+  }
+
+  /**
+   * Get the fencing tokens of the leases of this instance which are still
+   * held.
+   * 
+   * @param leaseIds
+   *          the record IDs of the leases
+   * @param validUntil
+   *          the leases must not expire before this time, in epoch
+   *          milliseconds
+   * 
+   * @return the fencing tokens of the leases still held, by record ID
+   * 
+   * @throws JobPersistenceException
+   *           the leases could not be read
+   */
+  public Map<ORID, Long> getHeldLeaseTokens(Collection<ORID> leaseIds, long validUntil)
+      throws JobPersistenceException {
+    return doInSeparateConnection(() -> {
+      Map<ORID, Long> tokens = new HashMap<>();
+      try (OResultSet results = storeAssembler.getStatementRegistry().execute(getConnection(),
+          StatementId.LOCK_LEASE_HELD, leaseIds, leaseOwner, validUntil)) {
+        while (results.hasNext()) {
+          OResult row = results.next();
+          Number token = row.getProperty(Constants.LOCK_TOKEN);
+          tokens.put(row.getProperty("rid"), token.longValue());
+        }
+      }
+      return tokens;
+    });
+  }
+
+  /**
+   * Count the unexpired leases of a type under a store lock, whoever holds
+   * them.
+   * 
+   * @param type
+   *          the type of the leases
+   * @param lockName
+   *          the name of the store lock
+   * @param now
+   *          the current time, in epoch milliseconds
+   * 
+   * @return the number of leases
+   * 
+   * @throws JobPersistenceException
+   *           the leases could not be read
+   */
+  public long countLiveLeases(LockType type, String lockName, long now)
+      throws JobPersistenceException {
+    return doInSeparateConnection(() -> {
+      Number count = storeAssembler.getStatementRegistry().executeForFirstProperty(
+          getConnection(), StatementId.LOCK_LEASE_LIVE_COUNT, "count", lockName, type.name(),
+          now);
+      return count != null ? count.longValue() : 0;
+    });
   }
 
   /**
@@ -291,16 +609,8 @@ public class StandardLockDao {
    * @return the list of all lock documents matching the search criteria
    */
   private List<ODocument> getLockDocuments(LockType lockType, Key<?> key) {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(
-        "select from QuartzLock where instanceId=? and type=? and keyGroup=? and keyName=?");
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result =
-        database.command(query).execute(instanceId, lockType.name(), key.getGroup(), key.getName());
-
-    return result;
+    return executeForDocuments(StatementId.LOCK_BY_TYPE_AND_KEY, instanceId, lockType.name(),
+        key.getGroup(), key.getName());
   }
 
   public ODocument createJobLockDocument(JobKey jobKey, String instanceId, Date lockTime) {
@@ -313,7 +623,7 @@ public class StandardLockDao {
   }
 
   private ODocument createLockDocument(LockType type, String instanceId, Key<?> key, Date lockTime) {
-    ODocument lockDoc = new ODocument("QuartzLock");
+    ODocument lockDoc = new ODocument(this.iClassName);
     lockDoc.field(Constants.LOCK_TYPE, type.name());
     lockDoc.field(Constants.KEY_GROUP, key.getGroup());
     lockDoc.field(Constants.KEY_NAME, key.getName());
@@ -324,4 +634,86 @@ public class StandardLockDao {
     return lockDoc;
   }
 
+  /**
+   * Execute a registered statement and get the resulting documents.
+   * 
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the parameters for the statement
+   * 
+   * @return the resulting documents
+   */
+  private List<ODocument> executeForDocuments(StatementId id, Object... args) {
+    return storeAssembler.getStatementRegistry().executeForDocuments(getConnection(), id, args);
+  }
+
+  /**
+   * Execute a modifying statement.
+   * 
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the parameters for the statement
+   * 
+   * @return the number of records modified
+   */
+  private long executeCommand(StatementId id, Object... args) {
+    return storeAssembler.getStatementRegistry().executeCommand(getConnection(), id, args);
+  }
+
+  /**
+   * Execute a modifying statement on leases of this instance.
+   * 
+   * <p>
+   * Renewals and releases of the same lease can run at the same time, which
+   * makes the later one fail on the version of the lease document. The
+   * statement is then run again.
+   * 
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the parameters for the statement
+   * 
+   * @return the number of records modified
+   */
+  private long executeLeaseCommand(StatementId id, Object... args) {
+    for (int attempt = 1;; attempt++) {
+      try {
+        return storeAssembler.getStatementRegistry().executeCommand(getConnection(), id, args);
+      } catch (OConcurrentModificationException e) {
+        if (attempt == MAX_LEASE_ATTEMPTS) {
+          throw e;
+        }
+        log.trace("Lease statement {} conflicted, retrying", id);
+      }
+    }
+  }
+
+  /**
+   * Get the database connection of the current thread.
+   * 
+   * @return the connection
+   */
+  private ODatabaseDocumentTx getConnection() {
+    return storeAssembler.getOrientDbConnector().getConnection();
+  }
+
+  /**
+   * Do a method on a connection of its own, so lease changes are seen by other
+   * nodes without waiting for the transaction of the current thread.
+   * 
+   * @param method
+   *          the method to run
+   * 
+   * @return the result of the method
+   * 
+   * @throws JobPersistenceException
+   *           something bad happened
+   */
+  private <T> T doInSeparateConnection(TransactionMethod<T> method)
+      throws JobPersistenceException {
+    return storeAssembler.getOrientDbConnector().doInSeparateConnection(method);
+  }
+
 }
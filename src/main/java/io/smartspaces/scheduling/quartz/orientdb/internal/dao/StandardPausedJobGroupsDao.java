@@ -19,16 +19,21 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.dao;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
+import org.quartz.JobPersistenceException;
+
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.record.impl.ODocument;
-import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.ClassTruncator;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.QueryHelper;
 
 public class StandardPausedJobGroupsDao {
@@ -52,16 +57,16 @@ public class StandardPausedJobGroupsDao {
   }
 
   public List<String> getPausedGroups() {
-    // TODO(keith): class and field names should come from external constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-            new OSQLSynchQuery<ODocument>(new StringBuilder("select DISTINCT(keyGroup) from ")
-                    .append(this.queryHelper).toString());
-
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<String> result = database.command(query).execute();
+    List<String> groups = new ArrayList<>();
+    try (OResultSet result = storeAssembler.getStatementRegistry().execute(database,
+        StatementId.PAUSED_JOB_GROUP_NAMES)) {
+      while (result.hasNext()) {
+        groups.add(result.next().getProperty(Constants.KEY_GROUP));
+      }
+    }
 
-    return result;
+    return groups;
   }
 
   public void pauseGroups(Set<String> groups) {
@@ -76,25 +81,29 @@ public class StandardPausedJobGroupsDao {
 
   public void removeAll() {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    for (ODocument pausedJobGroup : database.browseClass(this.iClassName)) {
-      pausedJobGroup.delete();
-    }
+    storeAssembler.getStatementRegistry().executeCommand(database,
+        StatementId.PAUSED_JOB_GROUPS_DELETE_ALL);
   }
 
-  public void unpauseGroups(Collection<String> groups) {
-    // TODO(keith): class and field names should come from external constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-            .append(this.iClassName)
-            .append(" where ")
-            .append(queryHelper.inGroups(groups))
-            .toString());
-
+  /**
+   * Remove all paused job groups from the database at once.
+   * 
+   * <p>
+   * This must run on a connection without a transaction.
+   * 
+   * @return {@code true} if the class was truncated
+   * 
+   * @throws JobPersistenceException
+   *           an index could not be created again
+   */
+  public boolean truncate() throws JobPersistenceException {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result = database.command(query).execute();
+    return ClassTruncator.truncate(database, this.iClassName);
+  }
 
-    for (ODocument pausedJobGroup : result) {
-      pausedJobGroup.delete();
-    }
+  public void unpauseGroups(Collection<String> groups) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    storeAssembler.getStatementRegistry().executeCommand(database,
+        StatementId.PAUSED_JOB_GROUPS_DELETE_IN, groups);
   }
 }
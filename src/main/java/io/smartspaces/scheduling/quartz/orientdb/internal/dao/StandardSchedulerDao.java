@@ -27,10 +27,10 @@ import org.slf4j.LoggerFactory;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.record.impl.ODocument;
-import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
 import io.smartspaces.scheduling.quartz.orientdb.internal.cluster.Scheduler;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
 
@@ -111,13 +111,9 @@ public class StandardSchedulerDao {
    * @return scheduler instances ordered by last check-in time
    */
   public List<Scheduler> getAllByCheckinTime() {
-    OSQLSynchQuery<ODocument> query =
-            new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-                    .append(this.iClassName)
-                    .append(" order by lastCheckinTime asc")
-                    .toString());
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result = database.command(query).execute(schedulerName, instanceId);
+    List<ODocument> result = storeAssembler.getStatementRegistry().executeForDocuments(database,
+        StatementId.SCHEDULER_ALL_BY_CHECKIN);
 
     List<Scheduler> schedulers = new LinkedList<Scheduler>();
     for (ODocument schedulerDoc : result) {
@@ -157,29 +153,16 @@ public class StandardSchedulerDao {
 
   private List<ODocument> createSchedulerFilter(String schedulerName, String instanceId,
       long lastCheckinTime) {
-    // TODO(keith): class and field names should come from external constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-            .append(this.iClassName)
-            .append(" where schedulerName=? and instanceId=? and lastCheckinTime=?")
-            .toString());
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result =
-        database.command(query).execute(schedulerName, instanceId, lastCheckinTime);
-
-    return result;
+    return storeAssembler.getStatementRegistry().executeForDocuments(database,
+        StatementId.SCHEDULER_BY_INSTANCE_AND_CHECKIN, schedulerName, instanceId,
+        lastCheckinTime);
   }
 
   private List<ODocument> createSchedulerFilter(String schedulerName, String instanceId) {
-    // TODO(keith): class and field names should come from external constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-            .append(this.iClassName)
-            .append(" where schedulerName=? and instanceId=?").toString());
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result = database.command(query).execute(schedulerName, instanceId);
-
-    return result;
+    return storeAssembler.getStatementRegistry().executeForDocuments(database,
+        StatementId.SCHEDULER_BY_INSTANCE, schedulerName, instanceId);
   }
 
   /**
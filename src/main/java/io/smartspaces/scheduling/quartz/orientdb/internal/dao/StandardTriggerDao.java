@@ -19,13 +19,18 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.quartz.JobKey;
 import org.quartz.JobPersistenceException;
 import org.quartz.ObjectAlreadyExistsException;
 import org.quartz.Trigger;
@@ -36,12 +41,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
 import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.impl.ODocument;
-import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.ClassTruncator;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
 import io.smartspaces.scheduling.quartz.orientdb.internal.trigger.TriggerConverter;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Keys;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.QueryHelper;
@@ -53,6 +63,11 @@ public class StandardTriggerDao {
 
   private static final Logger LOG = LoggerFactory.getLogger(StandardTriggerDao.class);
 
+  /**
+   * The number of keys or record IDs passed to one statement.
+   */
+  private static final int KEY_QUERY_BATCH_SIZE = 1000;
+
   private final StandardOrientDbStoreAssembler storeAssembler;
 
   private QueryHelper queryHelper;
@@ -61,11 +76,17 @@ public class StandardTriggerDao {
 
   private String iClassName = "Trigger";
 
+  /**
+   * The registry of the trigger groups.
+   */
+  private final GroupRegistry groupRegistry;
+
   public StandardTriggerDao(StandardOrientDbStoreAssembler storeAssembler, QueryHelper queryHelper,
       TriggerConverter triggerConverter) {
     this.storeAssembler = storeAssembler;
     this.queryHelper = queryHelper;
     this.triggerConverter = triggerConverter;
+    this.groupRegistry = new GroupRegistry(storeAssembler, StatementId.TRIGGER_GROUP_COUNTS);
   }
 
   public StandardTriggerDao(StandardOrientDbStoreAssembler storeAssembler, QueryHelper queryHelper,
@@ -74,14 +95,46 @@ public class StandardTriggerDao {
     this.iClassName = new StringBuilder(collectionPrefix).append(this.iClassName).toString();
   }
 
+  /**
+   * Load the registry of the trigger groups, which then serves the group
+   * names.
+   * 
+   * <p>
+   * No triggers may be stored or removed while the registry loads, and only
+   * this store may change the triggers afterwards.
+   */
+  public void loadGroupRegistry() {
+    groupRegistry.load();
+  }
+
   /**
    * Remove all triggers from the database.
    */
   public void removeAll() {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    for (ODocument trigger : database.browseClass(this.iClassName)) {
-      trigger.delete();
+    storeAssembler.getStatementRegistry().executeCommand(database, StatementId.TRIGGER_DELETE_ALL);
+    groupRegistry.cleared();
+  }
+
+  /**
+   * Remove all triggers from the database at once.
+   * 
+   * <p>
+   * This must run on a connection without a transaction.
+   * 
+   * @return {@code true} if the class was truncated
+   * 
+   * @throws JobPersistenceException
+   *           an index could not be created again
+   */
+  public boolean truncate() throws JobPersistenceException {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    if (!ClassTruncator.truncate(database, this.iClassName)) {
+      return false;
     }
+    groupRegistry.cleared();
+
+    return true;
   }
 
   /**
@@ -93,19 +146,9 @@ public class StandardTriggerDao {
    * @return {@code true} if the trigger exists
    */
   public boolean exists(TriggerKey triggerKey) {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-            new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-                    .append(this.iClassName)
-                    .append(" where keyGroup=? and keyName=?")
-                    .toString());
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result =
-        database.command(query).execute(triggerKey.getGroup(), triggerKey.getName());
-
-    return !result.isEmpty();
+    return storeAssembler.getStatementRegistry().executeForCount(database,
+        StatementId.TRIGGER_ID_BY_KEY, triggerKey.getGroup(), triggerKey.getName()) != 0;
   }
 
   /**
@@ -127,16 +170,8 @@ public class StandardTriggerDao {
           noLaterThanDate, noEarlierThanDate);
     }
 
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(
-            new StringBuilder("select from ")
-                    .append(this.iClassName)
-                    .append(" where state = ? and nextFireTime <= ? and (misfireInstruction = -1 or (misfireInstruction <> -1 and nextFireTime >= ?)) order by nextFireTime asc, priority desc").toString());
-    List<ODocument> result =
-        database.command(query).execute(state, noLaterThanDate, noEarlierThanDate);
+    List<ODocument> result = executeForDocuments(StatementId.TRIGGER_ELIGIBLE_TO_RUN, state,
+        noLaterThanDate.getTime(), noEarlierThanDate.getTime());
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("Found {} triggers which are eligible to be run.", result.size());
@@ -156,20 +191,50 @@ public class StandardTriggerDao {
   }
 
   public List<String> getGroupNames() {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select DISTINCT(keyGroup) from ").append(this.iClassName).toString());
+    if (groupRegistry.isLoaded()) {
+      return groupRegistry.getGroupNames();
+    }
 
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> dbResult = database.command(query).execute();
-    return dbResult.stream().map(res -> res.field("DISTINCT").toString()).collect(Collectors.toList());
+    return executeForDocuments(StatementId.TRIGGER_GROUP_NAMES).stream()
+        .map(res -> res.field(Constants.KEY_GROUP).toString()).collect(Collectors.toList());
   }
 
+  /**
+   * Get the state of a trigger.
+   * 
+   * @param triggerKey
+   *          the trigger key
+   * 
+   * @return the state of the trigger, or {@code null} if no such trigger
+   */
   public String getState(TriggerKey triggerKey) {
-    ODocument doc = findTrigger(triggerKey);
-    return (String) doc.field(Constants.TRIGGER_STATE);
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return storeAssembler.getStatementRegistry().executeForFirstProperty(database,
+        StatementId.TRIGGER_STATE_BY_KEY, Constants.TRIGGER_STATE, triggerKey.getGroup(),
+        triggerKey.getName());
+  }
+
+  /**
+   * Get the key of the job a trigger fires.
+   * 
+   * @param triggerKey
+   *          the trigger key
+   * 
+   * @return the key of the job, or {@code null} if no such trigger
+   */
+  public JobKey getJobKey(TriggerKey triggerKey) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    try (OResultSet result = storeAssembler.getStatementRegistry().execute(database,
+        StatementId.TRIGGER_JOB_KEY_BY_KEY, triggerKey.getGroup(), triggerKey.getName())) {
+      if (result.hasNext()) {
+        OResult jobKey = result.next();
+        if (jobKey.getProperty(Constants.KEY_NAME) != null) {
+          return Keys.toJobKey(jobKey);
+        }
+      }
+    }
+
+    return null;
   }
 
   /**
@@ -213,64 +278,190 @@ public class StandardTriggerDao {
     return triggers;
   }
 
+  /**
+   * Get the keys of all triggers whose group matches a group matcher.
+   *
+   * <p>
+   * The keys are read from the key index, no trigger records are loaded.
+   *
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the trigger keys
+   */
   public Set<TriggerKey> getTriggerKeys(GroupMatcher<TriggerKey> matcher) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    StatementRegistry registry = storeAssembler.getStatementRegistry();
     Set<TriggerKey> keys = new HashSet<>();
-    for (ODocument doc : findMatchingDocuments(matcher)) {
-      keys.add(Keys.toTriggerKey(doc));
+    for (String group : findMatchingGroups(database, matcher)) {
+      for (String name : queryHelper.namesInKeyIndex(database, registry,
+          StatementId.TRIGGER_KEY_INDEX_IN_GROUP, group)) {
+        keys.add(new TriggerKey(name, group));
+      }
     }
 
     return keys;
   }
 
   public Set<String> getTriggerGroupsThatMatch(GroupMatcher<TriggerKey> matcher) {
-    Set<String> keys = new HashSet<>();
-    for (ODocument doc : findMatchingDocuments(matcher)) {
-      keys.add((String) doc.field(Constants.KEY_GROUP));
-    }
-
-    return keys;
+    return groupsOfMatching(matcher);
   }
 
   public boolean hasLastTrigger(ODocument job) {
-    OSQLSynchQuery<ODocument> query =
-            new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-                    .append(this.iClassName).append(" where jobId=? limit 2")
-                    .toString());
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> referencedTriggerDocs = database.command(query).execute(job.getIdentity());
-
-    return referencedTriggerDocs.size() == 1;
+    return storeAssembler.getStatementRegistry().executeForCount(database,
+        StatementId.TRIGGER_FIRST_TWO_BY_JOB_ID, job.getIdentity()) == 1;
   }
 
+  /**
+   * Get the documents of misfired triggers, earliest first.
+   * 
+   * <p>
+   * Only the documents asked for are read, plus one to tell whether more
+   * remain.
+   * 
+   * @param state
+   *          the state misfired triggers are in
+   * @param misfireTime
+   *          the time before which a trigger has misfired
+   * @param maxMisfiresToHandleAtATime
+   *          the maximum number of documents to get, {@code -1} for all
+   * @param misfiredTriggers
+   *          the list to add the documents to
+   * 
+   * @return {@code true} if there are more misfired triggers than were added
+   */
   public boolean hasMisfiredTriggersInState(String state, long misfireTime,
-      int maxMisfiresToHandleAtATime, List<TriggerKey> misfiredTriggers) {
-    // TODO(keith): class and field names should come from external
-    // constants. -1 comes from
-    // Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY
-    // Also create query ahead of time when DAO starts.
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(
-            new StringBuilder("select from ")
-                    .append(this.iClassName)
-                    .append(" where state = ? and nextFireTime < ? and misfireInstruction <> -1 order by nextFireTime asc, priority desc")
-                    .toString());
-    List<ODocument> result = database.command(query).execute(state, new Date(misfireTime));
-
+      int maxMisfiresToHandleAtATime, List<ODocument> misfiredTriggers) {
+    int limit = maxMisfiresToHandleAtATime < 0 ? -1 : maxMisfiresToHandleAtATime + 1;
     boolean hasReachedLimit = false;
     int count = 0;
-    for (ODocument triggerDoc : result) {
-      if (count == maxMisfiresToHandleAtATime) {
-        hasReachedLimit = true;
-        break;
-      } else {
-        misfiredTriggers.add(Keys.toTriggerKey(triggerDoc));
-        count++;
+    try (OResultSet result =
+        execute(StatementId.TRIGGER_MISFIRED_IN_STATE, state, misfireTime, limit)) {
+      while (result.hasNext()) {
+        if (count == maxMisfiresToHandleAtATime) {
+          hasReachedLimit = true;
+          break;
+        } else {
+          misfiredTriggers.add((ODocument) result.next().toElement());
+          count++;
+        }
       }
     }
 
     return hasReachedLimit;
   }
 
+  /**
+   * Get the misfired triggers in a state with a given key.
+   * 
+   * @param triggerKey
+   *          the trigger key
+   * @param state
+   *          the state
+   * @param misfireTime
+   *          triggers which should have fired before this time have misfired
+   * 
+   * @return the misfired trigger documents
+   */
+  public List<ODocument> findMisfiredByKey(TriggerKey triggerKey, String state,
+      long misfireTime) {
+    return executeForDocuments(StatementId.TRIGGER_MISFIRED_BY_KEY, triggerKey.getGroup(),
+        triggerKey.getName(), state, misfireTime, 1);
+  }
+
+  /**
+   * Get the misfired triggers in a state of a job, earliest first.
+   * 
+   * @param jobId
+   *          the ID of the job
+   * @param state
+   *          the state
+   * @param misfireTime
+   *          triggers which should have fired before this time have misfired
+   * @param limit
+   *          the maximum number of documents to get
+   * 
+   * @return the misfired trigger documents
+   */
+  public List<ODocument> findMisfiredByJobId(ORID jobId, String state, long misfireTime,
+      int limit) {
+    return executeForDocuments(StatementId.TRIGGER_MISFIRED_BY_JOB_ID, jobId, state, misfireTime,
+        limit);
+  }
+
+  /**
+   * Get the misfired triggers in a state in some groups, earliest first.
+   * 
+   * @param groups
+   *          the trigger groups
+   * @param state
+   *          the state
+   * @param misfireTime
+   *          triggers which should have fired before this time have misfired
+   * @param limit
+   *          the maximum number of documents to get
+   * 
+   * @return the misfired trigger documents
+   */
+  public List<ODocument> findMisfiredInGroups(Set<String> groups, String state, long misfireTime,
+      int limit) {
+    return executeForDocuments(StatementId.TRIGGER_MISFIRED_IN_GROUPS, groups, state, misfireTime,
+        limit);
+  }
+
+  /**
+   * Get the misfired triggers in a state whose group matches a group matcher,
+   * earliest first.
+   * 
+   * @param matcher
+   *          the group matcher
+   * @param state
+   *          the state
+   * @param misfireTime
+   *          triggers which should have fired before this time have misfired
+   * @param limit
+   *          the maximum number of documents to get
+   * 
+   * @return the misfired trigger documents
+   */
+  public List<ODocument> findMisfiredInMatching(GroupMatcher<TriggerKey> matcher, String state,
+      long misfireTime, int limit) {
+    List<ODocument> triggers = new ArrayList<>();
+    List<Object> parameters = new ArrayList<>(queryHelper.matchingKeysParametersFor(matcher));
+    parameters.add(state);
+    parameters.add(misfireTime);
+    parameters.add(limit);
+
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    try (OResultSet result = database.query("select from " + this.iClassName + " where ("
+        + queryHelper.matchingKeysConditionFor(matcher) + ")"
+        + " and state = ? and nextFireTime < ? and misfireInstruction <> -1"
+        + " order by nextFireTime asc, priority desc limit ?", parameters.toArray())) {
+      while (result.hasNext()) {
+        triggers.add((ODocument) result.next().toElement());
+      }
+    }
+
+    return triggers;
+  }
+
+  /**
+   * Get the misfired triggers in a state, earliest first.
+   * 
+   * @param state
+   *          the state
+   * @param misfireTime
+   *          triggers which should have fired before this time have misfired
+   * @param limit
+   *          the maximum number of documents to get
+   * 
+   * @return the misfired trigger documents
+   */
+  public List<ODocument> findMisfiredInAll(String state, long misfireTime, int limit) {
+    return executeForDocuments(StatementId.TRIGGER_MISFIRED_IN_STATE, state, misfireTime, limit);
+  }
+
   public void insert(ODocument triggerDoc, Trigger offendingTrigger)
       throws ObjectAlreadyExistsException {
     try {
@@ -278,21 +469,94 @@ public class StandardTriggerDao {
     } catch (Exception key) {
       throw new ObjectAlreadyExistsException(offendingTrigger);
     }
+    groupRegistry.added(triggerDoc.field(Constants.KEY_GROUP));
+  }
+
+  /**
+   * Get the earliest next fire time of the triggers which could still misfire.
+   * 
+   * @param state
+   *          the state of the triggers
+   * @param noEarlierThan
+   *          the earliest next fire time of interest
+   * 
+   * @return the next fire time, {@code null} if there are no such triggers
+   */
+  public Long getEarliestNextFireTime(String state, long noEarlierThan) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return storeAssembler.getStatementRegistry().executeForFirstProperty(database,
+        StatementId.TRIGGER_EARLIEST_NEXT_FIRE_TIME, Constants.TRIGGER_NEXT_FIRE_TIME, state,
+        noEarlierThan);
+  }
+
+  /**
+   * Count the misfired triggers.
+   * 
+   * @param state
+   *          the state misfired triggers are in
+   * @param misfireTime
+   *          the time before which a trigger has misfired
+   * 
+   * @return the number of misfired triggers
+   */
+  public long countMisfiredTriggersInState(String state, long misfireTime) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    Number count = storeAssembler.getStatementRegistry().executeForFirstProperty(database,
+        StatementId.TRIGGER_MISFIRED_COUNT_IN_STATE, "count", state, misfireTime);
+
+    return count != null ? count.longValue() : 0;
+  }
+
+  /**
+   * Update a trigger document which has already been read.
+   * 
+   * @param triggerDoc
+   *          the document to update
+   * @param triggerUpdate
+   *          the new values for the document
+   */
+  public void update(ODocument triggerDoc, ODocument triggerUpdate) {
+    triggerDoc.merge(triggerUpdate, true, false).save();
   }
 
   public void remove(TriggerKey triggerKey) {
     for (ODocument triggerDoc : getTriggerDocsByKey(triggerKey)) {
-      triggerDoc.delete();
+      remove(triggerDoc);
     }
   }
 
   public void remove(ODocument triggerDoc) {
     triggerDoc.delete();
+    groupRegistry.removed(triggerDoc.<String>field(Constants.KEY_GROUP));
+  }
+
+  /**
+   * Remove triggers.
+   *
+   * @param triggerIds
+   *          the record IDs of the triggers
+   *
+   * @return the number of triggers removed
+   */
+  public long removeByIds(Collection<ORID> triggerIds) {
+    return removeInBatches(StatementId.TRIGGER_DELETE_BY_IDS, triggerIds);
+  }
+
+  /**
+   * Remove all triggers of jobs.
+   *
+   * @param jobIds
+   *          the record IDs of the jobs
+   *
+   * @return the number of triggers removed
+   */
+  public long removeByJobIds(Collection<ORID> jobIds) {
+    return removeInBatches(StatementId.TRIGGER_DELETE_BY_JOB_IDS, jobIds);
   }
 
   public void removeByJobId(ORID jobId) {
     for (ODocument trigger : findByJobId(jobId)) {
-      trigger.delete();
+      remove(trigger);
     }
   }
 
@@ -303,7 +567,7 @@ public class StandardTriggerDao {
     }
     int count = 0;
     for (ODocument trigger : getTriggerDocsByKey(triggerKey)) {
-      trigger.merge(triggerUpdate, true, true).save();
+      trigger.merge(triggerUpdate, true, false).save();
       count++;
     }
 
@@ -321,59 +585,276 @@ public class StandardTriggerDao {
    * @return the number of records updated
    */
   public int setState(TriggerKey triggerKey, String state) {
+    int count = executeCommand(StatementId.TRIGGER_SET_STATE_BY_KEY, state, triggerKey.getGroup(),
+        triggerKey.getName(), state);
+    LOG.debug("Changed trigger {} state {}", triggerKey, state);
+
+    return count;
+  }
+
+  /**
+   * Mark a trigger as acquired by an instance.
+   * 
+   * @param triggerKey
+   *          the trigger key
+   * @param instanceId
+   *          the ID of the instance acquiring the trigger
+   * 
+   * @return the number of records updated
+   */
+  public int acquire(TriggerKey triggerKey, String instanceId) {
+    int count = executeCommand(StatementId.TRIGGER_ACQUIRE_BY_KEY, Constants.STATE_ACQUIRED,
+        instanceId, triggerKey.getGroup(), triggerKey.getName(), Constants.STATE_ACQUIRED);
+    LOG.debug("Trigger {} acquired by {}", triggerKey, instanceId);
+
+    return count;
+  }
+
+  /**
+   * Record the instance holding all triggers of a job.
+   * 
+   * @param jobId
+   *          the ID of the job
+   * @param instanceId
+   *          the ID of the instance
+   * 
+   * @return the number of records updated
+   */
+  public int setInstanceIdByJobId(ORID jobId, String instanceId) {
+    return executeCommand(StatementId.TRIGGER_SET_INSTANCE_ID_BY_JOB_ID, instanceId, jobId);
+  }
+
+  /**
+   * Change the state of a trigger, but only from the states given.
+   * 
+   * @param triggerKey
+   *          the trigger key
+   * @param transitions
+   *          the new state for each state the trigger may be in
+   * 
+   * @return the number of records updated
+   */
+  public int changeState(TriggerKey triggerKey, Map<String, String> transitions) {
     int count = 0;
-    for (ODocument triggerDoc : getTriggerDocsByKey(triggerKey)) {
-      triggerDoc.field(Constants.TRIGGER_STATE, state).save();
-      LOG.debug("Changed trigger {} state {}", triggerKey, triggerDoc);
+    for (Map.Entry<String, String> transition : transitions.entrySet()) {
+      count += executeCommand(StatementId.TRIGGER_CHANGE_STATE_BY_KEY, transition.getValue(),
+          triggerKey.getGroup(), triggerKey.getName(), transition.getKey());
     }
 
     return count;
   }
 
-  public void setStateInAll(String state) {
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(new StringBuilder("select from ").append(this.iClassName).toString());
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> triggers = database.command(query).execute();
+  /**
+   * Change the state of all triggers of a job, but only from the states given.
+   * 
+   * @param jobId
+   *          the ID of the job
+   * @param transitions
+   *          the new state for each state a trigger may be in
+   * 
+   * @return the number of records updated
+   */
+  public int changeStateByJobId(ORID jobId, Map<String, String> transitions) {
+    int count = 0;
+    for (Map.Entry<String, String> transition : transitions.entrySet()) {
+      count += executeCommand(StatementId.TRIGGER_CHANGE_STATE_BY_JOB_ID, transition.getValue(),
+          jobId, transition.getKey());
+    }
 
-    setStates(triggers, state);
+    return count;
   }
 
-  public void setStateByJobId(ORID jobId, String state) {
-    setStates(findByJobId(jobId), state);
+  /**
+   * Change the state of all triggers, but only from the states given.
+   * 
+   * @param transitions
+   *          the new state for each state a trigger may be in
+   * 
+   * @return the number of records updated
+   */
+  public int changeStateInAll(Map<String, String> transitions) {
+    int count = 0;
+    for (Map.Entry<String, String> transition : transitions.entrySet()) {
+      count += executeCommand(StatementId.TRIGGER_CHANGE_STATE_ALL, transition.getValue(),
+          transition.getKey());
+    }
+
+    return count;
   }
 
-  public void setStateInGroups(Set<String> groups, String state) {
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select from ")
-                .append(this.iClassName)
-                .append(" where ")
-                .append(queryHelper.inGroups(groups))
-                .toString());
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> triggers = database.command(query).execute();
+  /**
+   * Change the state of all triggers held by an instance, but only from the
+   * states given.
+   * 
+   * @param instanceId
+   *          the ID of the instance
+   * @param transitions
+   *          the new state for each state a trigger may be in
+   * 
+   * @return the number of records updated
+   */
+  public int changeStateByInstanceId(String instanceId, Map<String, String> transitions) {
+    int count = 0;
+    for (Map.Entry<String, String> transition : transitions.entrySet()) {
+      count += executeCommand(StatementId.TRIGGER_CHANGE_STATE_BY_INSTANCE_ID,
+          transition.getValue(), instanceId, transition.getKey());
+    }
 
-    setStates(triggers, state);
+    return count;
   }
 
-  public void setStateInMatching(GroupMatcher<TriggerKey> matcher, String state) {
-    setStates(findMatchingDocuments(matcher), state);
+  /**
+   * Change the state of all triggers in some groups, but only from the states
+   * given.
+   * 
+   * @param groups
+   *          the trigger groups
+   * @param transitions
+   *          the new state for each state a trigger may be in
+   * 
+   * @return the number of records updated
+   */
+  public int changeStateInGroups(Set<String> groups, Map<String, String> transitions) {
+    int count = 0;
+    for (Map.Entry<String, String> transition : transitions.entrySet()) {
+      count += executeCommand(StatementId.TRIGGER_CHANGE_STATE_IN_GROUPS, transition.getValue(),
+          groups, transition.getKey());
+    }
+
+    return count;
   }
 
-  public Set<String> groupsOfMatching(GroupMatcher<TriggerKey> matcher) {
-    String groupMatcherClause = queryHelper.matchingKeysConditionFor(matcher);
-    OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<ODocument>(
-            new StringBuilder("select DISTINCT(keyGroup) from ")
-                    .append(this.iClassName)
-                    .append(" where ")
-                    .append(groupMatcherClause)
-                    .toString());
+  /**
+   * Change the state of all triggers whose group matches a group matcher, but
+   * only from the states given.
+   * 
+   * @param matcher
+   *          the group matcher
+   * @param transitions
+   *          the new state for each state a trigger may be in
+   * 
+   * @return the number of records updated
+   */
+  public int changeStateInMatching(GroupMatcher<TriggerKey> matcher,
+      Map<String, String> transitions) {
+    int count = 0;
+    for (Map.Entry<String, String> transition : transitions.entrySet()) {
+      count += updateMatching(matcher, Constants.TRIGGER_STATE + " = ?", transition.getValue(),
+          transition.getKey());
+    }
 
+    return count;
+  }
+
+  /**
+   * Does a job have any triggers in one of the given states?
+   * 
+   * @param jobId
+   *          the ID of the job
+   * @param states
+   *          the states
+   * 
+   * @return {@code true} if at least one trigger of the job is in one of the
+   *         states
+   */
+  public boolean hasTriggersInStates(ORID jobId, Collection<String> states) {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    Number count = storeAssembler.getStatementRegistry().executeForFirstProperty(database,
+        StatementId.TRIGGER_COUNT_BY_JOB_ID_IN_STATES, "count", jobId, states);
+
+    return count != null && count.longValue() > 0;
+  }
+
+  /**
+   * Get the jobs with triggers held by an instance in one of the given states.
+   * 
+   * @param instanceId
+   *          the ID of the instance
+   * @param states
+   *          the states
+   * 
+   * @return the record IDs of the jobs
+   */
+  public Set<ORID> getJobIdsByInstanceIdInStates(String instanceId, Collection<String> states) {
+    Set<ORID> jobIds = new HashSet<>();
+    try (OResultSet result = execute(StatementId.TRIGGER_JOB_IDS_BY_INSTANCE_ID_IN_STATES,
+        instanceId, states)) {
+      while (result.hasNext()) {
+        OIdentifiable jobId = result.next().getProperty(Constants.TRIGGER_JOB_ID);
+        if (jobId != null) {
+          jobIds.add(jobId.getIdentity());
+        }
+      }
+    }
 
-    List<String> groups = database.query(query);
+    return jobIds;
+  }
 
-    return new HashSet<String>(groups);
+  /**
+   * Set the state of all triggers.
+   * 
+   * @param state
+   *          the new state
+   * 
+   * @return the number of records updated
+   */
+  public int setStateInAll(String state) {
+    return executeCommand(StatementId.TRIGGER_SET_STATE_ALL, state, state);
+  }
 
+  /**
+   * Set the state of all triggers of a job.
+   * 
+   * @param jobId
+   *          the ID of the job
+   * @param state
+   *          the new state
+   * 
+   * @return the number of records updated
+   */
+  public int setStateByJobId(ORID jobId, String state) {
+    return executeCommand(StatementId.TRIGGER_SET_STATE_BY_JOB_ID, state, jobId, state);
+  }
+
+  /**
+   * Set the state of all triggers in some groups.
+   * 
+   * @param groups
+   *          the trigger groups
+   * @param state
+   *          the new state
+   * 
+   * @return the number of records updated
+   */
+  public int setStateInGroups(Set<String> groups, String state) {
+    return executeCommand(StatementId.TRIGGER_SET_STATE_IN_GROUPS, state, groups, state);
+  }
+
+  /**
+   * Set the state of all triggers whose group matches a group matcher.
+   * 
+   * @param matcher
+   *          the group matcher
+   * @param state
+   *          the new state
+   * 
+   * @return the number of records updated
+   */
+  public int setStateInMatching(GroupMatcher<TriggerKey> matcher, String state) {
+    return updateMatching(matcher, Constants.TRIGGER_STATE + " <> ?", state, state);
+  }
+
+  /**
+   * Get all trigger groups which match a group matcher.
+   *
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the groups
+   */
+  public Set<String> groupsOfMatching(GroupMatcher<TriggerKey> matcher) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return new HashSet<>(findMatchingGroups(database, matcher));
   }
 
   /**
@@ -385,30 +866,12 @@ public class StandardTriggerDao {
    * @return the set of group names
    */
   public Set<String> getGroupsByJobId(ORID jobId) {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select DISTINCT(keyGroup) from ")
-                .append(this.iClassName)
-                .append(" where jobId=?")
-                .toString());
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<String> result = database.command(query).execute(jobId);
-
-    return new HashSet<String>(result);
+    return executeForDocuments(StatementId.TRIGGER_GROUP_NAMES_BY_JOB_ID, jobId).stream()
+        .map(res -> res.field(Constants.KEY_GROUP).toString()).collect(Collectors.toSet());
   }
 
   private List<ODocument> findByJobId(ORID jobId) {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select from ").append(this.iClassName).append(" where jobId=?").toString());
-    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result = database.command(query).execute(jobId);
-
-    return result;
+    return executeForDocuments(StatementId.TRIGGER_BY_JOB_ID, jobId);
   }
 
   /**
@@ -420,51 +883,280 @@ public class StandardTriggerDao {
    * @return the trigger for the key, or {@code null} if no such trigger
    */
   public ODocument findTrigger(TriggerKey triggerKey) {
-    List<ODocument> triggers = getTriggerDocsByKey(triggerKey);
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return storeAssembler.getStatementRegistry().executeForFirstDocument(database,
+        StatementId.TRIGGER_BY_KEY, triggerKey.getGroup(), triggerKey.getName());
+  }
 
-    if (!triggers.isEmpty()) {
-      return triggers.get(0);
-    } else {
-      return null;
+  /**
+   * Get the record IDs of those of a set of triggers which exist.
+   *
+   * @param triggerKeys
+   *          the keys of the triggers
+   *
+   * @return the record IDs of the existing triggers by their keys
+   */
+  public Map<TriggerKey, ORID> getTriggerIds(Collection<TriggerKey> triggerKeys) {
+    Map<TriggerKey, ORID> triggerIds = new HashMap<>();
+    for (OResult row : findIdsByKeys(triggerKeys)) {
+      triggerIds.put(Keys.toTriggerKey(row), row.getProperty("rid"));
     }
+
+    return triggerIds;
   }
 
   /**
-   * Set the state for all supplied triggers.
-   * 
-   * @param triggers
-   *          the triggers
-   * @param state
-   *          the new state
+   * Get the jobs of those of a set of triggers which exist.
+   *
+   * @param triggerKeys
+   *          the keys of the triggers
+   *
+   * @return the record IDs of the jobs, {@code null} for a trigger without a
+   *         job, by the record IDs of the existing triggers
    */
-  private void setStates(List<ODocument> triggers, String state) {
-    for (ODocument trigger : triggers) {
-      trigger.field(Constants.TRIGGER_STATE, state).save();
+  public Map<ORID, ORID> getJobIdsByTriggerId(Collection<TriggerKey> triggerKeys) {
+    Map<ORID, ORID> jobIds = new HashMap<>();
+    for (OResult row : findIdsByKeys(triggerKeys)) {
+      OIdentifiable jobId = row.getProperty(Constants.TRIGGER_JOB_ID);
+      jobIds.put(row.getProperty("rid"), jobId != null ? jobId.getIdentity() : null);
     }
+
+    return jobIds;
   }
 
-  private List<ODocument> getTriggerDocsByKey(TriggerKey triggerKey) {
-    // TODO(keith): class and field names should come from external
-    // constants
-    // Also create query ahead of time when DAO starts.
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select from ").append(this.iClassName).append(" where keyGroup=? and keyName=?").toString());
+  /**
+   * Count the triggers of jobs.
+   *
+   * @param jobIds
+   *          the record IDs of the jobs
+   *
+   * @return the number of triggers by the record IDs of the jobs, jobs
+   *         without triggers are left out
+   */
+  public Map<ORID, Integer> countByJobIds(Collection<ORID> jobIds) {
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
-    List<ODocument> result =
-        database.command(query).execute(triggerKey.getGroup(), triggerKey.getName());
+    Map<ORID, Integer> counts = new HashMap<>();
+    List<ORID> ids = new ArrayList<>(jobIds);
+    for (int start = 0; start < ids.size(); start += KEY_QUERY_BATCH_SIZE) {
+      try (OResultSet result = storeAssembler.getStatementRegistry().execute(database,
+          StatementId.TRIGGER_COUNT_BY_JOB_IDS,
+          ids.subList(start, Math.min(ids.size(), start + KEY_QUERY_BATCH_SIZE)))) {
+        while (result.hasNext()) {
+          OResult row = result.next();
+          OIdentifiable jobId = row.getProperty(Constants.TRIGGER_JOB_ID);
+          counts.put(jobId.getIdentity(), ((Number) row.getProperty("count")).intValue());
+        }
+      }
+    }
 
-    return result;
+    return counts;
+  }
+
+  /**
+   * Query for the record IDs, keys and jobs of those of a set of triggers
+   * which exist.
+   *
+   * @param triggerKeys
+   *          the keys of the triggers
+   *
+   * @return the rows for the existing triggers
+   */
+  private List<OResult> findIdsByKeys(Collection<TriggerKey> triggerKeys) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    List<OResult> rows = new ArrayList<>();
+    List<TriggerKey> keys = new ArrayList<>(triggerKeys);
+    for (int start = 0; start < keys.size(); start += KEY_QUERY_BATCH_SIZE) {
+      Set<TriggerKey> batch =
+          new HashSet<>(keys.subList(start, Math.min(keys.size(), start + KEY_QUERY_BATCH_SIZE)));
+      Set<String> groups = new HashSet<>();
+      Set<String> names = new HashSet<>();
+      for (TriggerKey key : batch) {
+        groups.add(key.getGroup());
+        names.add(key.getName());
+      }
+
+      try (OResultSet result = storeAssembler.getStatementRegistry().execute(database,
+          StatementId.TRIGGER_IDS_BY_KEYS, groups, names)) {
+        while (result.hasNext()) {
+          OResult row = result.next();
+          if (batch.contains(Keys.toTriggerKey(row))) {
+            rows.add(row);
+          }
+        }
+      }
+    }
+
+    return rows;
+  }
+
+  /**
+   * Get a trigger by its record ID.
+   *
+   * @param id
+   *          the record ID
+   *
+   * @return the trigger, or {@code null} if no such trigger
+   */
+  public ODocument getById(ORID id) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return database.getRecord(id);
+  }
+
+  /**
+   * Go through all triggers, reading them from the database as they are
+   * needed.
+   *
+   * @return the trigger documents
+   */
+  public Iterable<ODocument> browse() {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return database.browseClass(this.iClassName);
+  }
+
+  /**
+   * Store the fields of a trigger document, such as one copied from another
+   * database.
+   *
+   * @param fields
+   *          the fields of the trigger, including the record ID of its job
+   * @param existingTriggerId
+   *          the record ID of the stored trigger to replace, {@code null} if
+   *          the trigger is new
+   */
+  public void storeDocument(ODocument fields, ORID existingTriggerId) {
+    ODocument triggerDoc =
+        existingTriggerId != null ? getById(existingTriggerId) : new ODocument(this.iClassName);
+    triggerDoc.merge(fields, true, false);
+    triggerDoc.save();
+    if (existingTriggerId == null) {
+      groupRegistry.added(triggerDoc.field(Constants.KEY_GROUP));
+    }
   }
 
-  private List<ODocument> findMatchingDocuments(GroupMatcher<TriggerKey> matcher) {
-    String groupMatcherClause = queryHelper.matchingKeysConditionFor(matcher);
-    OSQLSynchQuery<ODocument> query =
-        new OSQLSynchQuery<ODocument>(new StringBuilder("select from ").append(this.iClassName).append(" where ").append(groupMatcherClause).toString());
+  /**
+   * Remove triggers with a delete statement returning the deleted triggers.
+   *
+   * @param id
+   *          the ID of the statement, whose only parameter is the record IDs
+   * @param ids
+   *          the record IDs of the triggers or their jobs
+   *
+   * @return the number of triggers removed
+   */
+  private long removeInBatches(StatementId id, Collection<ORID> ids) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    Map<String, Long> removedCounts = storeAssembler.getStatementRegistry()
+        .executeDeleteInBatches(database, id, ids, KEY_QUERY_BATCH_SIZE);
+    groupRegistry.removed(removedCounts);
+
+    long removed = 0;
+    for (long count : removedCounts.values()) {
+      removed += count;
+    }
+    return removed;
+  }
+
+  private List<ODocument> getTriggerDocsByKey(TriggerKey triggerKey) {
+    return executeForDocuments(StatementId.TRIGGER_BY_KEY, triggerKey.getGroup(),
+        triggerKey.getName());
+  }
+
+  /**
+   * Find the trigger groups which match a group matcher in the key index.
+   * 
+   * @param database
+   *          the database to query
+   * @param matcher
+   *          the group matcher
+   * 
+   * @return the matching groups
+   */
+  private List<String> findMatchingGroups(ODatabaseDocumentTx database,
+      GroupMatcher<TriggerKey> matcher) {
+    return queryHelper.matchingGroupsInKeyIndex(database, storeAssembler.getStatementRegistry(),
+        StatementId.TRIGGER_KEY_INDEX_FIRST_FROM, StatementId.TRIGGER_KEY_INDEX_FIRST_AFTER,
+        matcher);
+  }
+
+  /**
+   * Set the state of all triggers whose group matches a group matcher, in a
+   * single update run by the database.
+   * 
+   * @param matcher
+   *          the group matcher
+   * @param stateCondition
+   *          the condition on the current state, with one parameter
+   * @param state
+   *          the new state
+   * @param conditionState
+   *          the parameter of the state condition
+   * 
+   * @return the number of records updated
+   */
+  private int updateMatching(GroupMatcher<TriggerKey> matcher, String stateCondition,
+      String state, String conditionState) {
+    List<Object> parameters = new ArrayList<>();
+    parameters.add(state);
+    parameters.addAll(queryHelper.matchingKeysParametersFor(matcher));
+    parameters.add(conditionState);
 
     ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    try (OResultSet result = database.command("update " + this.iClassName + " set "
+        + Constants.TRIGGER_STATE + " = ? where (" + queryHelper.matchingKeysConditionFor(matcher)
+        + ") and " + stateCondition, parameters.toArray())) {
+      if (result.hasNext()) {
+        Number count = result.next().getProperty("count");
+        if (count != null) {
+          return count.intValue();
+        }
+      }
+
+      return 0;
+    }
+  }
+
+  /**
+   * Execute a registered statement.
+   * 
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the parameters for the statement
+   * 
+   * @return the results, the caller must close them
+   */
+  private OResultSet execute(StatementId id, Object... args) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return storeAssembler.getStatementRegistry().execute(database, id, args);
+  }
 
-    List<ODocument> documents = database.query(query);
+  /**
+   * Execute a registered modifying statement.
+   * 
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the parameters for the statement
+   * 
+   * @return the number of records changed
+   */
+  private int executeCommand(StatementId id, Object... args) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return (int) storeAssembler.getStatementRegistry().executeCommand(database, id, args);
+  }
 
-    return documents;
+  /**
+   * Execute a registered statement and get the resulting documents.
+   * 
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the parameters for the statement
+   * 
+   * @return the resulting documents
+   */
+  private List<ODocument> executeForDocuments(StatementId id, Object... args) {
+    ODatabaseDocumentTx database = storeAssembler.getOrientDbConnector().getConnection();
+    return storeAssembler.getStatementRegistry().executeForDocuments(database, id, args);
   }
 }
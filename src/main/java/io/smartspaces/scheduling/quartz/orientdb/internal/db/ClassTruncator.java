@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.quartz.JobPersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.index.OIndex;
+import com.orientechnologies.orient.core.index.OIndexManager;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+
+/**
+ * Empties classes with {@code TRUNCATE CLASS}, which removes all records at
+ * once outside of any transaction.
+ *
+ * <p>
+ * OrientDB 3.0 does not properly clear cell B-tree indexes when a class is
+ * truncated, and later writes then find the index tree corrupted. So the
+ * indexes of the class are dropped before the truncation and created again,
+ * empty, afterwards. Other nodes using the class meanwhile would miss the
+ * indexes, so only a store which is alone on the database may truncate.
+ */
+public final class ClassTruncator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClassTruncator.class);
+
+  private ClassTruncator() {
+  }
+
+  /**
+   * Remove all records of a class.
+   *
+   * <p>
+   * This must run on a connection without a transaction. Each class is
+   * truncated on its own, so truncating several classes is not atomic.
+   *
+   * @param database
+   *          the database connection
+   * @param className
+   *          the name of the class
+   *
+   * @return {@code true} if the class was truncated, {@code false} if the
+   *         truncation failed and the records are still there
+   *
+   * @throws JobPersistenceException
+   *           an index of the class could not be created again, the schema
+   *           check at the next start of the scheduler builds it
+   */
+  public static boolean truncate(ODatabaseDocumentTx database, String className)
+      throws JobPersistenceException {
+    OClass oClass = database.getMetadata().getSchema().getClass(className);
+    OIndexManager indexManager = database.getMetadata().getIndexManager();
+
+    List<IndexDescription> indexes = new ArrayList<>();
+    for (OIndex<?> index : oClass.getClassIndexes()) {
+      indexes.add(new IndexDescription(index));
+    }
+
+    List<IndexDescription> dropped = new ArrayList<>();
+    boolean truncated = false;
+    try {
+      for (IndexDescription index : indexes) {
+        indexManager.dropIndex(index.name);
+        dropped.add(index);
+      }
+      database.command("truncate class " + className).close();
+      truncated = true;
+    } catch (RuntimeException e) {
+      LOG.warn("Could not truncate class {}", className, e);
+    }
+
+    List<String> missing = new ArrayList<>();
+    for (IndexDescription index : dropped) {
+      try {
+        oClass.createIndex(index.name, index.type, null, null, index.algorithm, index.fields);
+      } catch (RuntimeException e) {
+        LOG.error("Could not create index {} again", index.name, e);
+        missing.add(index.name);
+      }
+    }
+    if (!missing.isEmpty()) {
+      throw new JobPersistenceException(
+          "Could not create indexes " + missing + " of class " + className + " again");
+    }
+
+    return truncated;
+  }
+
+  /**
+   * What is needed to create an index again.
+   */
+  private static class IndexDescription {
+
+    /**
+     * The name of the index.
+     */
+    private final String name;
+
+    /**
+     * The type of the index.
+     */
+    private final String type;
+
+    /**
+     * The algorithm of the index.
+     */
+    private final String algorithm;
+
+    /**
+     * The indexed fields.
+     */
+    private final String[] fields;
+
+    /**
+     * Construct a new description.
+     *
+     * @param index
+     *          the index described
+     */
+    IndexDescription(OIndex<?> index) {
+      name = index.getName();
+      type = index.getType();
+      algorithm = index.getAlgorithm();
+      fields = index.getDefinition().getFields().toArray(new String[0]);
+    }
+  }
+}
@@ -16,8 +16,13 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.db;
 
+import java.util.Collection;
+
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import org.quartz.JobPersistenceException;
+import org.quartz.utils.Key;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockPriority;
 
 /**
  * The connector to the OrientDB database.
@@ -68,8 +73,96 @@ public interface OrientDbConnector {
   <T> T doInTransaction(String lockRequired, TransactionMethod<T> method)
       throws JobPersistenceException;
 
+  /**
+   * Do a method in a transaction, obtaining the lock with a given priority.
+   * 
+   * @param lockRequired
+   *          the name of the lock required
+   * @param priority
+   *          the priority for obtaining the lock
+   * @param method
+   *          the method to run in the transaction
+   * 
+   * @return the result of the method
+   * 
+   * @throws JobPersistenceException
+   *           something bad happened, including timing out on the lock
+   */
+  <T> T doInTransaction(String lockRequired, LockPriority priority, TransactionMethod<T> method)
+      throws JobPersistenceException;
+
+  /**
+   * Do a method in a transaction holding the locks for a set of keys.
+   * 
+   * <p>
+   * Transactions locking different keys under the same lock name can run at
+   * the same time, but none of them can run while the named lock itself is
+   * held.
+   * 
+   * @param lockRequired
+   *          the name of the lock the keys are under
+   * @param keys
+   *          the keys to lock
+   * @param method
+   *          the method to run in the transaction
+   * 
+   * @return the result of the method
+   * 
+   * @throws JobPersistenceException
+   *           something bad happened
+   */
+  <T> T doInTransaction(String lockRequired, Collection<? extends Key<?>> keys,
+      TransactionMethod<T> method) throws JobPersistenceException;
+
+  /**
+   * Do a method on a connection of its own, outside of any transaction of the
+   * current thread.
+   * 
+   * <p>
+   * Every write of the method is committed immediately. While the method runs,
+   * {@link #getConnection()} returns the separate connection.
+   * 
+   * @param method
+   *          the method to run
+   * 
+   * @return the result of the method
+   * 
+   * @throws JobPersistenceException
+   *           something bad happened
+   */
+  <T> T doInSeparateConnection(TransactionMethod<T> method) throws JobPersistenceException;
+
+  /**
+   * Call a listener once the transaction on the connection of the current
+   * thread completes.
+   * 
+   * <p>
+   * Listeners are called after the commit or rollback, before the lock of the
+   * transaction is released. If the connection has no transaction, its writes
+   * are already committed and the listener is called immediately.
+   * 
+   * @param listener
+   *          the listener
+   */
+  void afterCompletion(TransactionCompletionListener listener);
+
   public interface TransactionMethod<T> {
     T doInTransaction() throws JobPersistenceException;
   }
 
+  /**
+   * A listener for the completion of a transaction.
+   */
+  public interface TransactionCompletionListener {
+
+    /**
+     * The transaction has completed.
+     * 
+     * @param committed
+     *          {@code true} if the transaction committed, {@code false} if it
+     *          was rolled back
+     */
+    void afterCompletion(boolean committed);
+  }
+
 }
\ No newline at end of file
@@ -16,9 +16,459 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.db;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.index.OIndexManager;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
 /**
+ * Creates and migrates the database schema for a collection prefix.
+ *
+ * <p>
+ * The schema version is kept in a single document of the
+ * {@code <prefix>SchemaVersion} class. When the stored version is current,
+ * startup costs one read. Otherwise the migrations from the stored version up
+ * to {@link #SCHEMA_VERSION} are run in order. Each migration is idempotent so
+ * that databases created before the version document existed, or nodes
+ * racing each other at startup, end up with the same schema. An index missing
+ * from a current schema, as left by a failed truncation, is built again.
+ *
  * @author Keith M. Hughes
  */
 public class StandardDatabaseCreator {
 
+  /**
+   * The current version of the schema.
+   */
+  public static final int SCHEMA_VERSION = 8;
+
+  private static final Logger LOG = LoggerFactory.getLogger(StandardDatabaseCreator.class);
+
+  /**
+   * The names of all indexes of the schema, without the collection prefix.
+   */
+  private static final String[] INDEX_NAMES = { Constants.JOB_KEY_INDEX,
+      Constants.TRIGGER_KEY_INDEX, "LOCKS.type_group_name", "SCHEDULERS.name_instance",
+      "CALENDARS.NAME", "LOCKS.instance_type_group_name", "TRIGGERS.jobId_state",
+      "TRIGGERS.state_nextFireTime" };
+
+  /**
+   * The prefix for all class names.
+   */
+  private final String collectionPrefix;
+
+  /**
+   * Construct a new creator.
+   *
+   * @param collectionPrefix
+   *          the prefix for all class names
+   */
+  public StandardDatabaseCreator(String collectionPrefix) {
+    this.collectionPrefix = collectionPrefix;
+  }
+
+  /**
+   * Make sure the schema is at the current version.
+   *
+   * @param db
+   *          the database to check
+   */
+  public void ensureSchema(ODatabaseDocumentTx db) {
+    int version = readVersion(db);
+    if (version == SCHEMA_VERSION) {
+      String missingIndex = findMissingIndex(db);
+      if (missingIndex == null) {
+        LOG.debug("Schema for prefix '{}' is at version {}", collectionPrefix, version);
+        return;
+      }
+
+      LOG.warn("Index {} is missing, building the missing indexes", missingIndex);
+      migrate(db.getMetadata().getSchema(), 0);
+      return;
+    }
+    if (version > SCHEMA_VERSION) {
+      LOG.warn("Schema for prefix '{}' is at version {}, newer than the supported version {}",
+          collectionPrefix, version, SCHEMA_VERSION);
+      return;
+    }
+
+    LOG.info("Migrating schema for prefix '{}' from version {} to {}", collectionPrefix, version,
+        SCHEMA_VERSION);
+    migrate(db.getMetadata().getSchema(), version);
+    writeVersion(db, SCHEMA_VERSION);
+  }
+
+  /**
+   * Run the migrations from a version up to the current version.
+   *
+   * @param schema
+   *          the schema to migrate
+   * @param version
+   *          the version to migrate from
+   */
+  private void migrate(OSchema schema, int version) {
+    if (version < 1) {
+      migrateToVersion1(schema);
+    }
+    if (version < 2) {
+      migrateToVersion2(schema);
+    }
+    if (version < 3) {
+      migrateToVersion3(schema);
+    }
+    if (version < 4) {
+      migrateToVersion4(schema);
+    }
+    if (version < 5) {
+      migrateToVersion5(schema);
+    }
+    if (version < 6) {
+      migrateToVersion6(schema);
+    }
+    if (version < 7) {
+      migrateToVersion7(schema);
+    }
+    if (version < 8) {
+      migrateToVersion8(schema);
+    }
+  }
+
+  /**
+   * Find an index of the schema which does not exist.
+   *
+   * @param db
+   *          the database to check
+   *
+   * @return the name of the missing index, {@code null} if all exist
+   */
+  private String findMissingIndex(ODatabaseDocumentTx db) {
+    OIndexManager indexManager = db.getMetadata().getIndexManager();
+    for (String indexName : INDEX_NAMES) {
+      String fullName = getClassName(indexName);
+      if (!indexManager.existsIndex(fullName)) {
+        return fullName;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Read the schema version.
+   *
+   * @param db
+   *          the database to read from
+   *
+   * @return the schema version, {@code 0} if there is none
+   */
+  private int readVersion(ODatabaseDocumentTx db) {
+    if (!db.getMetadata().getSchema().existsClass(getVersionClassName())) {
+      return 0;
+    }
+
+    try (OResultSet result =
+        db.query("select " + Constants.SCHEMA_VERSION + " from " + getVersionClassName())) {
+      if (result.hasNext()) {
+        Integer version = result.next().getProperty(Constants.SCHEMA_VERSION);
+        if (version != null) {
+          return version;
+        }
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Write the schema version.
+   *
+   * @param db
+   *          the database to write to
+   * @param version
+   *          the new version
+   */
+  private void writeVersion(ODatabaseDocumentTx db, int version) {
+    OSchema schema = db.getMetadata().getSchema();
+    if (!schema.existsClass(getVersionClassName())) {
+      schema.createClass(getVersionClassName()).createProperty(Constants.SCHEMA_VERSION,
+          OType.INTEGER);
+    }
+
+    ODocument versionDoc = null;
+    for (ODocument doc : db.browseClass(getVersionClassName())) {
+      versionDoc = doc;
+      break;
+    }
+    if (versionDoc == null) {
+      versionDoc = new ODocument(getVersionClassName());
+    }
+
+    versionDoc.field(Constants.SCHEMA_VERSION, version).save();
+  }
+
+  /**
+   * Create all classes, properties and indexes of the original schema.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion1(OSchema schema) {
+    OClass jobClass = schema.getClass(getClassName("Job"));
+    if (jobClass == null) {
+      jobClass = schema.createClass(getClassName("Job"));
+      jobClass.createProperty(Constants.KEY_NAME, OType.STRING).setNotNull(true);
+      jobClass.createProperty(Constants.KEY_GROUP, OType.STRING).setNotNull(true);
+      jobClass.createProperty(Constants.JOB_DESCRIPTION, OType.STRING);
+      jobClass.createProperty(Constants.JOB_CLASS, OType.STRING);
+      jobClass.createProperty(Constants.JOB_DATA, OType.STRING);
+      jobClass.createProperty(Constants.JOB_DURABILITY, OType.BOOLEAN);
+      jobClass.createProperty(Constants.JOB_REQUESTS_RECOVERY, OType.BOOLEAN);
+    }
+    createIndexIfMissing(jobClass, getClassName(Constants.JOB_KEY_INDEX),
+        OClass.INDEX_TYPE.UNIQUE, Constants.KEY_GROUP, Constants.KEY_NAME);
+
+    OClass triggerClass = schema.getClass(getClassName("Trigger"));
+    if (triggerClass == null) {
+      triggerClass = schema.createClass(getClassName("Trigger"));
+      triggerClass.createProperty(Constants.TRIGGER_CLASS, OType.STRING);
+      triggerClass.createProperty(Constants.KEY_NAME, OType.STRING).setNotNull(true);
+      triggerClass.createProperty(Constants.KEY_GROUP, OType.STRING).setNotNull(true);
+      triggerClass.createProperty(Constants.TRIGGER_CALENDAR_NAME, OType.STRING);
+      triggerClass.createProperty(Constants.TRIGGER_DESCRIPTION, OType.STRING);
+      triggerClass.createProperty(Constants.TRIGGER_FIRE_INSTANCE_ID, OType.STRING);
+      triggerClass.createProperty(Constants.TRIGGER_MISFIRE_INSTRUCTION, OType.INTEGER);
+      triggerClass.createProperty(Constants.TRIGGER_NEXT_FIRE_TIME, OType.LONG);
+      triggerClass.createProperty(Constants.TRIGGER_PREVIOUS_FIRE_TIME, OType.LONG);
+      triggerClass.createProperty(Constants.TRIGGER_PRIORITY, OType.INTEGER);
+      triggerClass.createProperty(Constants.TRIGGER_START_TIME, OType.LONG);
+      triggerClass.createProperty(Constants.TRIGGER_END_TIME, OType.LONG);
+      triggerClass.createProperty(Constants.TRIGGER_STATE, OType.STRING);
+      triggerClass.createProperty(Constants.TRIGGER_FINAL_FIRE_TIME, OType.LONG);
+      triggerClass.createProperty(Constants.TRIGGER_JOB_ID, OType.LINK, jobClass);
+      triggerClass.createProperty(Constants.TRIGGER_CRON_EXPRESSION, OType.STRING);
+      triggerClass.createProperty(Constants.TRIGGER_TIMEZONE, OType.STRING);
+    }
+    createIndexIfMissing(triggerClass, getClassName(Constants.TRIGGER_KEY_INDEX),
+        OClass.INDEX_TYPE.UNIQUE, Constants.KEY_GROUP, Constants.KEY_NAME);
+
+    OClass lockClass = schema.getClass(getClassName("QuartzLock"));
+    if (lockClass == null) {
+      lockClass = schema.createClass(getClassName("QuartzLock"));
+      lockClass.createProperty(Constants.LOCK_TYPE, OType.STRING).setNotNull(true);
+      lockClass.createProperty(Constants.KEY_GROUP, OType.STRING).setNotNull(true);
+      lockClass.createProperty(Constants.KEY_NAME, OType.STRING).setNotNull(true);
+      lockClass.createProperty(Constants.LOCK_INSTANCE_ID, OType.STRING).setNotNull(true);
+      lockClass.createProperty(Constants.LOCK_TIME, OType.DATE).setNotNull(true);
+    }
+    createIndexIfMissing(lockClass, getClassName("LOCKS.type_group_name"),
+        OClass.INDEX_TYPE.UNIQUE, Constants.KEY_GROUP, Constants.KEY_NAME, Constants.LOCK_TYPE);
+
+    OClass schedulerClass = schema.getClass(getClassName("Scheduler"));
+    if (schedulerClass == null) {
+      schedulerClass = schema.createClass(getClassName("Scheduler"));
+      schedulerClass.createProperty(Constants.SCHEDULER_NAME_FIELD, OType.STRING)
+          .setNotNull(true);
+      schedulerClass.createProperty(Constants.SCHEDULER_INSTANCE_ID_FIELD, OType.STRING)
+          .setNotNull(true);
+      schedulerClass.createProperty(Constants.SCHEDULER_LAST_CHECKIN_TIME_FIELD, OType.LONG);
+      schedulerClass.createProperty(Constants.SCHEDULER_CHECKIN_INTERVAL_FIELD, OType.LONG);
+    }
+    createIndexIfMissing(schedulerClass, getClassName("SCHEDULERS.name_instance"),
+        OClass.INDEX_TYPE.UNIQUE, Constants.SCHEDULER_NAME_FIELD,
+        Constants.SCHEDULER_INSTANCE_ID_FIELD);
+
+    OClass calendarClass = schema.getClass(getClassName("Calendar"));
+    if (calendarClass == null) {
+      calendarClass = schema.createClass(getClassName("Calendar"));
+      calendarClass.createProperty(Constants.CALENDAR_NAME, OType.STRING);
+      calendarClass.createProperty(Constants.CALENDAR_SERIALIZED_OBJECT, OType.LINK);
+    }
+    createIndexIfMissing(calendarClass, getClassName("CALENDARS.NAME"), OClass.INDEX_TYPE.UNIQUE,
+        Constants.CALENDAR_NAME);
+
+    if (!schema.existsClass(getClassName("PausedJobGroup"))) {
+      schema.createClass(getClassName("PausedJobGroup")).createProperty(Constants.KEY_GROUP,
+          OType.STRING);
+    }
+    if (!schema.existsClass(getClassName("PausedTriggerGroup"))) {
+      schema.createClass(getClassName("PausedTriggerGroup")).createProperty(Constants.KEY_GROUP,
+          OType.STRING);
+    }
+  }
+
+  /**
+   * Add the lease fields to the lock class.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion2(OSchema schema) {
+    OClass lockClass = schema.getClass(getClassName("QuartzLock"));
+    if (!lockClass.existsProperty(Constants.LOCK_LEASE_EXPIRES)) {
+      lockClass.createProperty(Constants.LOCK_LEASE_EXPIRES, OType.LONG);
+    }
+    if (!lockClass.existsProperty(Constants.LOCK_TOKEN)) {
+      lockClass.createProperty(Constants.LOCK_TOKEN, OType.LONG);
+    }
+  }
+
+  /**
+   * Index the locks by instance, so the locks of one instance are found
+   * without scanning the lock class.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion3(OSchema schema) {
+    OClass lockClass = schema.getClass(getClassName("QuartzLock"));
+    createIndexIfMissing(lockClass, getClassName("LOCKS.instance_type_group_name"),
+        OClass.INDEX_TYPE.NOTUNIQUE, Constants.LOCK_INSTANCE_ID, Constants.LOCK_TYPE,
+        Constants.KEY_GROUP, Constants.KEY_NAME);
+  }
+
+  /**
+   * Index the triggers by job and state, so the triggers of a job are blocked
+   * and unblocked without scanning the trigger class.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion4(OSchema schema) {
+    OClass triggerClass = schema.getClass(getClassName("Trigger"));
+    createIndexIfMissing(triggerClass, getClassName("TRIGGERS.jobId_state"),
+        OClass.INDEX_TYPE.NOTUNIQUE, Constants.TRIGGER_JOB_ID, Constants.TRIGGER_STATE);
+  }
+
+  /**
+   * Index the triggers by state and next fire time, so triggers due to fire or
+   * misfired are found without scanning the trigger class.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion5(OSchema schema) {
+    OClass triggerClass = schema.getClass(getClassName("Trigger"));
+    createIndexIfMissing(triggerClass, getClassName("TRIGGERS.state_nextFireTime"),
+        OClass.INDEX_TYPE.NOTUNIQUE, Constants.TRIGGER_STATE, Constants.TRIGGER_NEXT_FIRE_TIME);
+  }
+
+  /**
+   * Add the fields for job data stored by codecs to the job and trigger
+   * classes. Records keeping the older formats are rewritten when read.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion6(OSchema schema) {
+    for (String className : new String[] { "Job", "Trigger" }) {
+      OClass oClass = schema.getClass(getClassName(className));
+      if (!oClass.existsProperty(Constants.JOB_DATA_FORMAT)) {
+        oClass.createProperty(Constants.JOB_DATA_FORMAT, OType.INTEGER);
+      }
+      if (!oClass.existsProperty(Constants.JOB_DATA_TYPED)) {
+        oClass.createProperty(Constants.JOB_DATA_TYPED, OType.EMBEDDEDMAP);
+      }
+      if (!oClass.existsProperty(Constants.JOB_DATA_BINARY)) {
+        oClass.createProperty(Constants.JOB_DATA_BINARY, OType.BINARY);
+      }
+    }
+  }
+
+  /**
+   * Add the fields for calendars stored as documents to the calendar class.
+   * Serialized calendars stay readable.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion7(OSchema schema) {
+    OClass calendarClass = schema.getClass(getClassName("Calendar"));
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_TYPE, OType.STRING);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_DESCRIPTION, OType.STRING);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_TIME_ZONE, OType.STRING);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_BASE_CALENDAR, OType.EMBEDDED);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_EXCLUDED, OType.EMBEDDEDLIST);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_CRON_EXPRESSION, OType.STRING);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_RANGE_START, OType.INTEGER);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_RANGE_END, OType.INTEGER);
+    createPropertyIfMissing(calendarClass, Constants.CALENDAR_INVERT_TIME_RANGE, OType.BOOLEAN);
+  }
+
+  /**
+   * Add the field naming the instance holding a trigger acquired or blocked to
+   * the trigger class. Triggers held before the migration are only recovered
+   * by nodes which recover all triggers.
+   *
+   * @param schema
+   *          the schema to migrate
+   */
+  private void migrateToVersion8(OSchema schema) {
+    createPropertyIfMissing(schema.getClass(getClassName("Trigger")),
+        Constants.TRIGGER_INSTANCE_ID, OType.STRING);
+  }
+
+  /**
+   * Create a property on a class if it does not exist yet.
+   *
+   * @param oClass
+   *          the class to add the property to
+   * @param name
+   *          the name of the property
+   * @param type
+   *          the type of the property
+   */
+  private void createPropertyIfMissing(OClass oClass, String name, OType type) {
+    if (!oClass.existsProperty(name)) {
+      oClass.createProperty(name, type);
+    }
+  }
+
+  /**
+   * Create an index on a class if it does not exist yet.
+   *
+   * @param oClass
+   *          the class to index
+   * @param indexName
+   *          the name of the index
+   * @param type
+   *          the type of the index
+   * @param fields
+   *          the indexed fields
+   */
+  private void createIndexIfMissing(OClass oClass, String indexName, OClass.INDEX_TYPE type,
+      String... fields) {
+    if (oClass.getClassIndex(indexName) == null) {
+      LOG.info("Building index {}", indexName);
+      oClass.createIndex(indexName, type, fields);
+    }
+  }
+
+  /**
+   * Get the full name of a class.
+   *
+   * @param name
+   *          the unprefixed name
+   *
+   * @return the name with the collection prefix
+   */
+  private String getClassName(String name) {
+    return new StringBuilder(collectionPrefix).append(name).toString();
+  }
+
+  /**
+   * Get the name of the class holding the schema version.
+   *
+   * @return the class name
+   */
+  private String getVersionClassName() {
+    return getClassName("SchemaVersion");
+  }
 }
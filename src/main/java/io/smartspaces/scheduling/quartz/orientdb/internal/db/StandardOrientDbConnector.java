@@ -20,19 +20,24 @@
 package io.smartspaces.scheduling.quartz.orientdb.internal.db;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.orientechnologies.orient.client.remote.OServerAdmin;
+import com.orientechnologies.orient.core.db.ODatabaseDocumentInternal;
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
 import com.orientechnologies.orient.core.db.OPartitionedDatabasePool;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
-import com.orientechnologies.orient.core.metadata.schema.OClass;
-import com.orientechnologies.orient.core.metadata.schema.OSchema;
-import com.orientechnologies.orient.core.metadata.schema.OType;
-import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.LockException;
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockPriority;
 import io.smartspaces.scheduling.quartz.orientdb.internal.LockProvider;
-import io.smartspaces.scheduling.quartz.orientdb.internal.SimpleLockProvider;
+import io.smartspaces.scheduling.quartz.orientdb.internal.NamedLockProvider;
 import org.quartz.JobPersistenceException;
 import org.quartz.SchedulerConfigException;
+import org.quartz.utils.Key;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +58,11 @@ public class StandardOrientDbConnector implements OrientDbConnector {
    */
   private OPartitionedDatabasePool pool;
 
+  /**
+   * The pool of connections used outside of the transactions of a thread.
+   */
+  private OPartitionedDatabasePool separatePool;
+
   /**
    * The thread local that will provide the database connection.
    */
@@ -64,7 +74,30 @@ public class StandardOrientDbConnector implements OrientDbConnector {
         }
       };
 
-  private LockProvider lockProvider = new SimpleLockProvider();
+  /**
+   * The separate connection of the current thread, {@code null} if none is in
+   * use.
+   */
+  private final ThreadLocal<ODatabaseDocumentTx> separateConnection = new ThreadLocal<>();
+
+  /**
+   * The listeners for the completion of the transactions of the current
+   * thread, indexed by connection.
+   */
+  private final ThreadLocal<Map<ODatabaseDocumentTx, List<TransactionCompletionListener>>>
+      completionListeners =
+          new ThreadLocal<Map<ODatabaseDocumentTx, List<TransactionCompletionListener>>>() {
+            @Override
+            protected Map<ODatabaseDocumentTx, List<TransactionCompletionListener>>
+                initialValue() {
+              return new IdentityHashMap<>();
+            }
+          };
+
+  /**
+   * The provider for the locks protecting transactions.
+   */
+  private LockProvider lockProvider = new NamedLockProvider();
 
   /**
    * Construct a new connector.
@@ -78,6 +111,7 @@ public class StandardOrientDbConnector implements OrientDbConnector {
 
   @Override
   public void shutdown() {
+    separatePool.close();
     pool.close();
   }
 
@@ -90,9 +124,10 @@ public class StandardOrientDbConnector implements OrientDbConnector {
     return pool.acquire();
   }
 
-   @Override
+  @Override
   public ODatabaseDocumentTx getConnection() {
-    return documentProvider.get();
+    ODatabaseDocumentTx separate = separateConnection.get();
+    return separate != null ? separate : documentProvider.get();
   }
 
    @Override
@@ -104,34 +139,119 @@ public class StandardOrientDbConnector implements OrientDbConnector {
   @Override
   public <T> T doInTransaction(String lockRequired, TransactionMethod<T> method)
       throws JobPersistenceException {
+    return doInTransaction(lockRequired, LockPriority.ADMIN, null, method);
+  }
+
+  @Override
+  public <T> T doInTransaction(String lockRequired, LockPriority priority,
+      TransactionMethod<T> method) throws JobPersistenceException {
+    return doInTransaction(lockRequired, priority, null, method);
+  }
+
+  @Override
+  public <T> T doInTransaction(String lockRequired, Collection<? extends Key<?>> keys,
+      TransactionMethod<T> method) throws JobPersistenceException {
+    return doInTransaction(lockRequired, LockPriority.ADMIN, keys, method);
+  }
+
+  @Override
+  public <T> T doInSeparateConnection(TransactionMethod<T> method)
+      throws JobPersistenceException {
+    ODatabaseDocumentInternal outer = ODatabaseRecordThreadLocal.instance().getIfDefined();
+    ODatabaseDocumentTx db = separatePool.acquire();
+    separateConnection.set(db);
+    try {
+      return method.doInTransaction();
+    } catch (JobPersistenceException e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new JobPersistenceException("Separate connection method failed", e);
+    } finally {
+      separateConnection.remove();
+      db.close();
+      if (outer != null && !outer.isClosed()) {
+        outer.activateOnCurrentThread();
+      } else {
+        ODatabaseRecordThreadLocal.instance().remove();
+      }
+    }
+  }
+
+  @Override
+  public void afterCompletion(TransactionCompletionListener listener) {
+    ODatabaseDocumentTx db = getConnection();
+    if (!db.getTransaction().isActive()) {
+      listener.afterCompletion(true);
+      return;
+    }
+
+    List<TransactionCompletionListener> listeners = completionListeners.get().get(db);
+    if (listeners == null) {
+      listeners = new ArrayList<>();
+      completionListeners.get().put(db, listeners);
+    }
+    listeners.add(listener);
+  }
+
+  /**
+   * Do a method in a transaction.
+   * 
+   * @param lockRequired
+   *          the name of the lock required, {@code null} if none
+   * @param priority
+   *          the priority for obtaining the named lock
+   * @param keys
+   *          the keys to lock under the named lock, {@code null} for the named
+   *          lock itself
+   * @param method
+   *          the method to run in the transaction
+   * 
+   * @return the result of the method
+   * 
+   * @throws JobPersistenceException
+   *           something bad happened
+   */
+  private <T> T doInTransaction(String lockRequired, LockPriority priority,
+      Collection<? extends Key<?>> keys, TransactionMethod<T> method)
+      throws JobPersistenceException {
     ODatabaseDocumentTx db = getConnection();
     boolean lockOwner = false;
     try {
       if (lockRequired != null) {
-        lockOwner = lockProvider.obtainLock(lockRequired);
+        if (keys == null) {
+          lockOwner = lockProvider.obtainLock(lockRequired, priority);
+        } else {
+          lockOwner = lockProvider.obtainLock(lockRequired, keys);
+        }
       }
       db.begin();
       //db.getTransaction().setIsolationLevel(OTransaction.ISOLATION_LEVEL.REPEATABLE_READ);
       T result = method.doInTransaction();
 
+      if (lockOwner) {
+        lockProvider.checkLocksHeld();
+      }
       db.commit();
+      completeTransaction(db, true);
 
       return result;
     } catch (JobPersistenceException e) {
       db.rollback();
+      completeTransaction(db, false);
 
       LOG.error("transaction failed due to JobPersistenceException", e);
 
       throw e;
     } catch (Throwable e) {
       db.rollback();
+      completeTransaction(db, false);
 
       LOG.error("transaction failed due to Throwable", e);
 
       throw new JobPersistenceException("Transaction failed", e);
     } finally {
       try {
-        releaseLock(lockRequired, lockOwner);
+        releaseLock(lockRequired, keys, lockOwner);
       } finally {
         documentProvider.remove();
         db.close();
@@ -139,10 +259,38 @@ public class StandardOrientDbConnector implements OrientDbConnector {
     }
   }
 
-  private void releaseLock(String lockName, boolean amLockOwner) {
+  /**
+   * Call the completion listeners of a transaction.
+   * 
+   * @param db
+   *          the connection of the transaction
+   * @param committed
+   *          {@code true} if the transaction committed
+   */
+  private void completeTransaction(ODatabaseDocumentTx db, boolean committed) {
+    List<TransactionCompletionListener> listeners = completionListeners.get().remove(db);
+    if (listeners == null) {
+      return;
+    }
+
+    for (TransactionCompletionListener listener : listeners) {
+      try {
+        listener.afterCompletion(committed);
+      } catch (Throwable e) {
+        LOG.error("Transaction completion listener failed", e);
+      }
+    }
+  }
+
+  private void releaseLock(String lockName, Collection<? extends Key<?>> keys,
+      boolean amLockOwner) {
     if (amLockOwner) {
       try {
-        lockProvider.releaseLock(lockName);
+        if (keys == null) {
+          lockProvider.releaseLock(lockName);
+        } else {
+          lockProvider.releaseLock(lockName, keys);
+        }
       } catch (LockException le) {
         LOG.error("Error returning lock", le);
       }
@@ -181,6 +329,11 @@ public class StandardOrientDbConnector implements OrientDbConnector {
       return this;
     }
 
+    public OrientDbConnectorBuilder withLockProvider(LockProvider lockProvider) {
+      connector.lockProvider = lockProvider;
+      return this;
+    }
+
     private void connect() throws SchedulerConfigException {
       if (connector.pool == null) {
         initializeOrientDb();
@@ -198,6 +351,7 @@ public class StandardOrientDbConnector implements OrientDbConnector {
         throw new SchedulerConfigException(
             "Could not connect to MongoDB! Please check that quartz-mongodb configuration is correct.");
       }
+      connector.separatePool = new OPartitionedDatabasePool(orientdbUri, username, password);
       setWriteConcern();
     }
 
@@ -272,109 +426,34 @@ public class StandardOrientDbConnector implements OrientDbConnector {
     }
 
     /**
-     * Create the database if necessary.
-     * 
-     * @param storeAssembler
-     *          the store assembler that is assembling the database
+     * Create the database if necessary and bring its schema up to date.
      */
     public void checkDataBaseExists() throws IOException {
-      OServerAdmin oServerAdmin = new OServerAdmin(orientdbUri).connect(username, password);
-      if (!oServerAdmin.existsDatabase()) {
-        oServerAdmin.createDatabase("graph", "plocal");
-        oServerAdmin.close();
-      }
-      ODatabaseDocumentTx db = new ODatabaseDocumentTx(orientdbUri).open(username, password);
-      createSchema(db);
-    }
-
-    private void createSchema(ODatabaseDocumentTx db) {
-      OSchema schema = db.getMetadata().getSchema();
-      String jobCollectionName = new StringBuilder(collectionPrefix).append("Job").toString();
-      String triggerCollectionName = new StringBuilder(collectionPrefix).append("Trigger").toString();
-      if (!schema.existsClass(jobCollectionName) && !schema.existsClass(triggerCollectionName)) {
-        OClass jobClass = schema.createClass(jobCollectionName);
-        jobClass.createProperty(Constants.KEY_NAME, OType.STRING).setNotNull(true);
-        jobClass.createProperty(Constants.KEY_GROUP, OType.STRING).setNotNull(true);
-        jobClass.createProperty(Constants.JOB_DESCRIPTION, OType.STRING);
-        jobClass.createProperty(Constants.JOB_CLASS, OType.STRING);
-        jobClass.createProperty(Constants.JOB_DATA, OType.STRING);
-        jobClass.createProperty(Constants.JOB_DURABILITY, OType.BOOLEAN);
-        jobClass.createProperty(Constants.JOB_REQUESTS_RECOVERY, OType.BOOLEAN);
-
-        String jobIndex = new StringBuilder(collectionPrefix).append("JOBS.key_NAME.key_group").toString();
-        jobClass.createIndex(jobIndex, OClass.INDEX_TYPE.UNIQUE,
-                Constants.KEY_GROUP, Constants.KEY_NAME);
-
-        OClass triggerClass = schema.createClass(triggerCollectionName);
-        triggerClass.createProperty(Constants.TRIGGER_CLASS, OType.STRING);
-        triggerClass.createProperty(Constants.KEY_NAME, OType.STRING).setNotNull(true);
-        triggerClass.createProperty(Constants.KEY_GROUP, OType.STRING).setNotNull(true);
-        triggerClass.createProperty(Constants.TRIGGER_CALENDAR_NAME, OType.STRING);
-        triggerClass.createProperty(Constants.TRIGGER_DESCRIPTION, OType.STRING);
-        triggerClass.createProperty(Constants.TRIGGER_FIRE_INSTANCE_ID, OType.STRING);
-        triggerClass.createProperty(Constants.TRIGGER_MISFIRE_INSTRUCTION, OType.INTEGER);
-        triggerClass.createProperty(Constants.TRIGGER_NEXT_FIRE_TIME, OType.LONG);
-        triggerClass.createProperty(Constants.TRIGGER_PREVIOUS_FIRE_TIME, OType.LONG);
-        triggerClass.createProperty(Constants.TRIGGER_PRIORITY, OType.INTEGER);
-        triggerClass.createProperty(Constants.TRIGGER_START_TIME, OType.LONG);
-        triggerClass.createProperty(Constants.TRIGGER_END_TIME, OType.LONG);
-        triggerClass.createProperty(Constants.TRIGGER_STATE, OType.STRING);
-        triggerClass.createProperty(Constants.TRIGGER_FINAL_FIRE_TIME, OType.LONG);
-        triggerClass.createProperty(Constants.TRIGGER_JOB_ID, OType.LINK, jobClass);
-        triggerClass.createProperty(Constants.TRIGGER_CRON_EXPRESSION, OType.STRING);
-        triggerClass.createProperty(Constants.TRIGGER_TIMEZONE, OType.STRING);
-
-        String triggerIndex = new StringBuilder(collectionPrefix).append("TRIGGERS.key_NAME.key_group").toString();
-        triggerClass.createIndex(triggerIndex, OClass.INDEX_TYPE.UNIQUE,
-                Constants.KEY_GROUP, Constants.KEY_NAME);
-      }
-      String quartzLockCollectionName = new StringBuilder(collectionPrefix).append("QuartzLock").toString();
-      if (!schema.existsClass(quartzLockCollectionName)) {
-        OClass lockClass = schema.createClass(quartzLockCollectionName);
-        lockClass.createProperty(Constants.LOCK_TYPE, OType.STRING).setNotNull(true);
-        lockClass.createProperty(Constants.KEY_GROUP, OType.STRING).setNotNull(true);
-        lockClass.createProperty(Constants.KEY_NAME, OType.STRING).setNotNull(true);
-        lockClass.createProperty(Constants.LOCK_INSTANCE_ID, OType.STRING).setNotNull(true);
-        lockClass.createProperty(Constants.LOCK_TIME, OType.DATE).setNotNull(true);
-
-        String quartzLockIndex = new StringBuilder(collectionPrefix).append("LOCKS.type_group_name").toString();
-        lockClass.createIndex(quartzLockIndex, OClass.INDEX_TYPE.UNIQUE,
-                Constants.KEY_GROUP, Constants.KEY_NAME, Constants.LOCK_TYPE);
-      }
-      String schedulerCollectionName = new StringBuilder(collectionPrefix).append("Scheduler").toString();
-      if (!schema.existsClass(schedulerCollectionName)) {
-        OClass schedulerClass = schema.createClass(schedulerCollectionName);
-        schedulerClass.createProperty(Constants.SCHEDULER_NAME_FIELD, OType.STRING)
-                      .setNotNull(true);
-        schedulerClass.createProperty(Constants.SCHEDULER_INSTANCE_ID_FIELD, OType.STRING)
-                      .setNotNull(true);
-        schedulerClass.createProperty(Constants.SCHEDULER_LAST_CHECKIN_TIME_FIELD, OType.LONG);
-        schedulerClass.createProperty(Constants.SCHEDULER_CHECKIN_INTERVAL_FIELD, OType.LONG);
-
-        String schedulersIndex = new StringBuilder(collectionPrefix).append("SCHEDULERS.name_instance").toString();
-        schedulerClass.createIndex(schedulersIndex, OClass.INDEX_TYPE.UNIQUE,
-                Constants.SCHEDULER_NAME_FIELD, Constants.SCHEDULER_INSTANCE_ID_FIELD);
+      if (orientdbUri.startsWith("remote:")) {
+        OServerAdmin oServerAdmin = new OServerAdmin(orientdbUri).connect(username, password);
+        try {
+          if (!oServerAdmin.existsDatabase()) {
+            oServerAdmin.createDatabase("graph", "plocal");
+          }
+        } finally {
+          oServerAdmin.close();
+        }
+      } else {
+        ODatabaseDocumentTx db = new ODatabaseDocumentTx(orientdbUri);
+        try {
+          if (!db.exists()) {
+            db.create();
+          }
+        } finally {
+          db.close();
+        }
       }
 
-      String calendarCollectionName = new StringBuilder(collectionPrefix).append("Calendar").toString();
-      if (!schema.existsClass(calendarCollectionName)) {
-        OClass calendarClass = schema.createClass(calendarCollectionName);
-        calendarClass.createProperty(Constants.CALENDAR_NAME, OType.STRING);
-        calendarClass.createProperty(Constants.CALENDAR_SERIALIZED_OBJECT, OType.LINK);
-
-        String calendarIndex = new StringBuilder(collectionPrefix).append("CALENDARS.NAME").toString();
-        calendarClass.createIndex(calendarIndex, OClass.INDEX_TYPE.UNIQUE,
-                Constants.CALENDAR_NAME);
-      }
-      String pausedJobGroupCollectionName = new StringBuilder(collectionPrefix).append("PausedJobGroup").toString();
-      if (!schema.existsClass(pausedJobGroupCollectionName)) {
-        OClass pausedJobGroupClass = schema.createClass(pausedJobGroupCollectionName);
-        pausedJobGroupClass.createProperty(Constants.KEY_GROUP, OType.STRING);
-      }
-      String pausedTriggerGroupCollectionName = new StringBuilder(collectionPrefix).append("PausedTriggerGroup").toString();
-      if (!schema.existsClass(pausedTriggerGroupCollectionName)) {
-        OClass pausedTriggerGroupClass = schema.createClass(pausedTriggerGroupCollectionName);
-        pausedTriggerGroupClass.createProperty(Constants.KEY_GROUP, OType.STRING);
+      ODatabaseDocumentTx db = new ODatabaseDocumentTx(orientdbUri).open(username, password);
+      try {
+        new StandardDatabaseCreator(collectionPrefix).ensureSchema(db);
+      } finally {
+        db.close();
       }
     }
 
@@ -0,0 +1,640 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.quartz.SchedulerConfigException;
+
+import com.orientechnologies.orient.core.config.OGlobalConfiguration;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
+import com.orientechnologies.orient.core.sql.parser.OStatement;
+import com.orientechnologies.orient.core.sql.parser.OrientSql;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * The registry of all fixed SQL statements used by the DAOs.
+ *
+ * <p>
+ * The statements are built once for a collection prefix when the store is
+ * assembled, and parsed then only to check them. DAOs execute them by ID with
+ * bound parameters, so no SQL is assembled on the hot path. The parsed forms
+ * are not kept: the fixed texts are found in the statement cache of the
+ * database, which also keeps a parsed statement from being shared between
+ * threads.
+ *
+ * <p>
+ * The statement cache holds {@code statement.cacheSize} statements, 100 by
+ * default, fewer than the statements of one prefix. Each prefix makes room for
+ * its statements with {@link #reserveStatementCache()} before the database is
+ * opened. The cache of a storage is sized when the storage is first opened in
+ * the JVM, and for remote databases on the server, so in those cases
+ * {@code statement.cacheSize} must be raised where the storage is opened.
+ */
+public class StatementRegistry {
+
+  /**
+   * The IDs of the registered statements.
+   */
+  public enum StatementId {
+    JOB_BY_KEY,
+    JOB_ID_BY_KEY,
+    JOB_IDS_BY_KEYS,
+    JOB_REQUESTS_RECOVERY_BY_KEY,
+    JOB_GROUP_NAMES,
+    JOB_GROUP_COUNTS,
+    JOB_KEY_INDEX_FIRST_FROM,
+    JOB_KEY_INDEX_FIRST_AFTER,
+    JOB_KEY_INDEX_IN_GROUP,
+    JOB_DELETE_ALL,
+    JOB_DELETE_BY_IDS,
+    JOB_DELETE_NON_DURABLE_BY_IDS,
+
+    TRIGGER_BY_KEY,
+    TRIGGER_ID_BY_KEY,
+    TRIGGER_IDS_BY_KEYS,
+    TRIGGER_STATE_BY_KEY,
+    TRIGGER_JOB_KEY_BY_KEY,
+    TRIGGER_BY_JOB_ID,
+    TRIGGER_FIRST_TWO_BY_JOB_ID,
+    TRIGGER_COUNT_BY_JOB_ID_IN_STATES,
+    TRIGGER_COUNT_BY_JOB_IDS,
+    TRIGGER_CHANGE_STATE_BY_KEY,
+    TRIGGER_CHANGE_STATE_BY_JOB_ID,
+    TRIGGER_CHANGE_STATE_IN_GROUPS,
+    TRIGGER_CHANGE_STATE_ALL,
+    TRIGGER_CHANGE_STATE_BY_INSTANCE_ID,
+    TRIGGER_SET_STATE_BY_KEY,
+    TRIGGER_SET_STATE_BY_JOB_ID,
+    TRIGGER_SET_STATE_IN_GROUPS,
+    TRIGGER_SET_STATE_ALL,
+    TRIGGER_ACQUIRE_BY_KEY,
+    TRIGGER_SET_INSTANCE_ID_BY_JOB_ID,
+    TRIGGER_JOB_IDS_BY_INSTANCE_ID_IN_STATES,
+    TRIGGER_GROUP_NAMES,
+    TRIGGER_GROUP_COUNTS,
+    TRIGGER_GROUP_NAMES_BY_JOB_ID,
+    TRIGGER_KEY_INDEX_FIRST_FROM,
+    TRIGGER_KEY_INDEX_FIRST_AFTER,
+    TRIGGER_KEY_INDEX_IN_GROUP,
+    TRIGGER_ELIGIBLE_TO_RUN,
+    TRIGGER_MISFIRED_IN_STATE,
+    TRIGGER_MISFIRED_COUNT_IN_STATE,
+    TRIGGER_MISFIRED_BY_KEY,
+    TRIGGER_MISFIRED_BY_JOB_ID,
+    TRIGGER_MISFIRED_IN_GROUPS,
+    TRIGGER_EARLIEST_NEXT_FIRE_TIME,
+    TRIGGER_DELETE_ALL,
+    TRIGGER_DELETE_BY_IDS,
+    TRIGGER_DELETE_BY_JOB_IDS,
+
+    CALENDAR_BY_NAME,
+    CALENDAR_DELETE_ALL,
+    CALENDAR_SERIALIZED_ALL,
+
+    SCHEDULER_BY_INSTANCE,
+    SCHEDULER_BY_INSTANCE_AND_CHECKIN,
+    SCHEDULER_ALL_BY_CHECKIN,
+
+    LOCK_BY_INSTANCE_AND_TYPE,
+    LOCK_BY_TYPE_AND_KEY,
+    LOCK_IDS_BY_TYPE_AND_KEYS,
+    LOCK_RELOCK,
+    LOCK_REFRESH_BY_KEY,
+    LOCK_REFRESH_BY_TYPE,
+    LOCK_DELETE_BY_TYPE_AND_KEY,
+    LOCK_DELETE_BY_IDS,
+    LOCK_DELETE_BY_INSTANCE,
+    LOCK_LEASE_TAKE_OVER,
+    LOCK_LEASE_RENEW,
+    LOCK_LEASE_RELEASE,
+    LOCK_LEASE_EXPIRE,
+    LOCK_LEASE_RELEASE_BY_INSTANCE,
+    LOCK_LEASE_EXPIRE_BY_INSTANCE,
+    LOCK_LEASE_HELD,
+    LOCK_LEASE_LIVE_COUNT,
+
+    PAUSED_JOB_GROUP_NAMES,
+    PAUSED_JOB_GROUPS_DELETE_IN,
+    PAUSED_JOB_GROUPS_DELETE_ALL,
+
+    PAUSED_TRIGGER_GROUP_NAMES,
+    PAUSED_TRIGGER_GROUPS_DELETE_IN,
+    PAUSED_TRIGGER_GROUPS_DELETE_ALL
+  }
+
+  /**
+   * The SQL text for each statement.
+   */
+  private final Map<StatementId, String> sqlTexts = new EnumMap<>(StatementId.class);
+
+  /**
+   * The statements which only read, and so are run as queries.
+   */
+  private final Set<StatementId> queries = EnumSet.noneOf(StatementId.class);
+
+  /**
+   * The number of statements built from group matchers, on top of the
+   * registered ones, the statement cache should have room for.
+   */
+  private static final int DYNAMIC_STATEMENT_COUNT = 32;
+
+  /**
+   * The collection prefixes which have made room in the statement cache.
+   */
+  private static final Set<String> RESERVED_PREFIXES = new HashSet<>();
+
+  /**
+   * The collection prefix of the statements.
+   */
+  private final String collectionPrefix;
+
+  /**
+   * Construct a registry for the classes with the given collection prefix.
+   *
+   * @param collectionPrefix
+   *          the prefix for all class names
+   *
+   * @throws SchedulerConfigException
+   *           one of the statements could not be parsed
+   */
+  public StatementRegistry(String collectionPrefix) throws SchedulerConfigException {
+    this.collectionPrefix = collectionPrefix;
+
+    String job = collectionPrefix + "Job";
+    String trigger = collectionPrefix + "Trigger";
+    String calendar = collectionPrefix + "Calendar";
+    String scheduler = collectionPrefix + "Scheduler";
+    String lock = collectionPrefix + "QuartzLock";
+    String pausedJobGroup = collectionPrefix + "PausedJobGroup";
+    String pausedTriggerGroup = collectionPrefix + "PausedTriggerGroup";
+
+    String byKey = " where " + Constants.KEY_GROUP + " = ? and " + Constants.KEY_NAME + " = ?";
+    String groupNames = "select distinct " + Constants.KEY_GROUP + " from ";
+    String groupCounts = "select " + Constants.KEY_GROUP + ", count(*) as count from %s group by "
+        + Constants.KEY_GROUP;
+    String inGroups = " where " + Constants.KEY_GROUP + " in ?";
+    String keys = "select " + Constants.KEY_GROUP + ", " + Constants.KEY_NAME + " from ";
+    // Read the keys from the key indexes without loading any records. The
+    // parameters are partial keys holding just a group, which compare before
+    // all keys of the group in >= and after them in >.
+    String keyIndexFirstFrom = "select key from index:%s where key >= ? limit 1";
+    String keyIndexFirstAfter = "select key from index:%s where key > ? limit 1";
+    String keyIndexInGroup = "select key from index:%s where key between ? and ?";
+    String jobKeyIndex = collectionPrefix + Constants.JOB_KEY_INDEX;
+    String triggerKeyIndex = collectionPrefix + Constants.TRIGGER_KEY_INDEX;
+    // Matches the cross product of the groups and names, callers filter. Takes
+    // extra columns and the class.
+    String idsByKeys = "select @rid as rid, " + Constants.KEY_GROUP + ", " + Constants.KEY_NAME
+        + "%s from %s where " + Constants.KEY_GROUP + " in ? and " + Constants.KEY_NAME + " in ?";
+
+    register(StatementId.JOB_BY_KEY, "select from " + job + byKey);
+    register(StatementId.JOB_ID_BY_KEY, "select @rid from " + job + byKey + " limit 1");
+    register(StatementId.JOB_IDS_BY_KEYS, String.format(idsByKeys, "", job));
+    register(StatementId.JOB_REQUESTS_RECOVERY_BY_KEY,
+        "select " + Constants.JOB_REQUESTS_RECOVERY + " from " + job + byKey + " limit 1");
+    register(StatementId.JOB_GROUP_NAMES, groupNames + job);
+    register(StatementId.JOB_GROUP_COUNTS, String.format(groupCounts, job));
+    register(StatementId.JOB_KEY_INDEX_FIRST_FROM,
+        String.format(keyIndexFirstFrom, jobKeyIndex));
+    register(StatementId.JOB_KEY_INDEX_FIRST_AFTER,
+        String.format(keyIndexFirstAfter, jobKeyIndex));
+    register(StatementId.JOB_KEY_INDEX_IN_GROUP, String.format(keyIndexInGroup, jobKeyIndex));
+    register(StatementId.JOB_DELETE_ALL, "delete from " + job);
+    // Deleting from a list of record IDs reads only those records, a condition
+    // on @rid would scan the class. The deleted records are returned for the
+    // group registry.
+    register(StatementId.JOB_DELETE_BY_IDS, "delete from ? return before");
+    register(StatementId.JOB_DELETE_NON_DURABLE_BY_IDS, "delete from ? return before where ("
+        + Constants.JOB_DURABILITY + " is null or " + Constants.JOB_DURABILITY + " <> true)");
+
+    register(StatementId.TRIGGER_BY_KEY, "select from " + trigger + byKey);
+    register(StatementId.TRIGGER_ID_BY_KEY, "select @rid from " + trigger + byKey + " limit 1");
+    register(StatementId.TRIGGER_IDS_BY_KEYS,
+        String.format(idsByKeys, ", " + Constants.TRIGGER_JOB_ID, trigger));
+    register(StatementId.TRIGGER_STATE_BY_KEY,
+        "select " + Constants.TRIGGER_STATE + " from " + trigger + byKey + " limit 1");
+    register(StatementId.TRIGGER_JOB_KEY_BY_KEY,
+        "select " + Constants.TRIGGER_JOB_ID + "." + Constants.KEY_GROUP + " as "
+            + Constants.KEY_GROUP + ", " + Constants.TRIGGER_JOB_ID + "." + Constants.KEY_NAME
+            + " as " + Constants.KEY_NAME + " from " + trigger + byKey + " limit 1");
+    register(StatementId.TRIGGER_BY_JOB_ID,
+        "select from " + trigger + " where " + Constants.TRIGGER_JOB_ID + " = ?");
+    register(StatementId.TRIGGER_FIRST_TWO_BY_JOB_ID,
+        "select @rid from " + trigger + " where " + Constants.TRIGGER_JOB_ID + " = ? limit 2");
+    register(StatementId.TRIGGER_COUNT_BY_JOB_ID_IN_STATES,
+        "select count(*) as count from " + trigger + " where " + Constants.TRIGGER_JOB_ID
+            + " = ? and " + Constants.TRIGGER_STATE + " in ?");
+    register(StatementId.TRIGGER_COUNT_BY_JOB_IDS,
+        "select " + Constants.TRIGGER_JOB_ID + ", count(*) as count from " + trigger + " where "
+            + Constants.TRIGGER_JOB_ID + " in ? group by " + Constants.TRIGGER_JOB_ID);
+    register(StatementId.TRIGGER_CHANGE_STATE_BY_KEY,
+        "update " + trigger + " set " + Constants.TRIGGER_STATE + " = ?" + byKey + " and "
+            + Constants.TRIGGER_STATE + " = ?");
+    register(StatementId.TRIGGER_CHANGE_STATE_BY_JOB_ID,
+        "update " + trigger + " set " + Constants.TRIGGER_STATE + " = ? where "
+            + Constants.TRIGGER_JOB_ID + " = ? and " + Constants.TRIGGER_STATE + " = ?");
+    register(StatementId.TRIGGER_CHANGE_STATE_IN_GROUPS, "update " + trigger + " set "
+        + Constants.TRIGGER_STATE + " = ?" + inGroups + " and " + Constants.TRIGGER_STATE + " = ?");
+    register(StatementId.TRIGGER_CHANGE_STATE_ALL, "update " + trigger + " set "
+        + Constants.TRIGGER_STATE + " = ? where " + Constants.TRIGGER_STATE + " = ?");
+    register(StatementId.TRIGGER_CHANGE_STATE_BY_INSTANCE_ID,
+        "update " + trigger + " set " + Constants.TRIGGER_STATE + " = ? where "
+            + Constants.TRIGGER_INSTANCE_ID + " = ? and " + Constants.TRIGGER_STATE + " = ?");
+    // Triggers already in the state are not written again.
+    String setState = "update " + trigger + " set " + Constants.TRIGGER_STATE + " = ?";
+    String notInState = Constants.TRIGGER_STATE + " <> ?";
+    register(StatementId.TRIGGER_SET_STATE_BY_KEY, setState + byKey + " and " + notInState);
+    register(StatementId.TRIGGER_SET_STATE_BY_JOB_ID, setState + " where "
+        + Constants.TRIGGER_JOB_ID + " = ? and " + notInState);
+    register(StatementId.TRIGGER_SET_STATE_IN_GROUPS, setState + inGroups + " and " + notInState);
+    register(StatementId.TRIGGER_SET_STATE_ALL, setState + " where " + notInState);
+    register(StatementId.TRIGGER_ACQUIRE_BY_KEY, setState + ", " + Constants.TRIGGER_INSTANCE_ID
+        + " = ?" + byKey + " and " + notInState);
+    register(StatementId.TRIGGER_SET_INSTANCE_ID_BY_JOB_ID, "update " + trigger + " set "
+        + Constants.TRIGGER_INSTANCE_ID + " = ? where " + Constants.TRIGGER_JOB_ID + " = ?");
+    register(StatementId.TRIGGER_JOB_IDS_BY_INSTANCE_ID_IN_STATES,
+        "select distinct " + Constants.TRIGGER_JOB_ID + " from " + trigger + " where "
+            + Constants.TRIGGER_INSTANCE_ID + " = ? and " + Constants.TRIGGER_STATE + " in ?");
+    register(StatementId.TRIGGER_GROUP_NAMES, groupNames + trigger);
+    register(StatementId.TRIGGER_GROUP_COUNTS, String.format(groupCounts, trigger));
+    register(StatementId.TRIGGER_GROUP_NAMES_BY_JOB_ID,
+        groupNames + trigger + " where " + Constants.TRIGGER_JOB_ID + " = ?");
+    register(StatementId.TRIGGER_KEY_INDEX_FIRST_FROM,
+        String.format(keyIndexFirstFrom, triggerKeyIndex));
+    register(StatementId.TRIGGER_KEY_INDEX_FIRST_AFTER,
+        String.format(keyIndexFirstAfter, triggerKeyIndex));
+    register(StatementId.TRIGGER_KEY_INDEX_IN_GROUP,
+        String.format(keyIndexInGroup, triggerKeyIndex));
+    // -1 is Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY
+    register(StatementId.TRIGGER_ELIGIBLE_TO_RUN,
+        "select from " + trigger + " where state = ? and nextFireTime <= ?"
+            + " and (misfireInstruction = -1 or nextFireTime >= ?)"
+            + " order by nextFireTime asc, priority desc");
+    register(StatementId.TRIGGER_MISFIRED_IN_STATE,
+        "select from " + trigger + " where state = ? and nextFireTime < ?"
+            + " and misfireInstruction <> -1 order by nextFireTime asc, priority desc limit ?");
+    register(StatementId.TRIGGER_MISFIRED_COUNT_IN_STATE,
+        "select count(*) as count from " + trigger + " where state = ? and nextFireTime < ?"
+            + " and misfireInstruction <> -1");
+    String misfired = " and state = ? and nextFireTime < ? and misfireInstruction <> -1"
+        + " order by nextFireTime asc, priority desc limit ?";
+    register(StatementId.TRIGGER_MISFIRED_BY_KEY, "select from " + trigger + byKey + misfired);
+    register(StatementId.TRIGGER_MISFIRED_BY_JOB_ID, "select from " + trigger + " where "
+        + Constants.TRIGGER_JOB_ID + " = ?" + misfired);
+    register(StatementId.TRIGGER_MISFIRED_IN_GROUPS, "select from " + trigger + inGroups + misfired);
+    register(StatementId.TRIGGER_EARLIEST_NEXT_FIRE_TIME,
+        "select nextFireTime from " + trigger + " where state = ? and nextFireTime >= ?"
+            + " and misfireInstruction <> -1 order by nextFireTime asc limit 1");
+    register(StatementId.TRIGGER_DELETE_ALL, "delete from " + trigger);
+    register(StatementId.TRIGGER_DELETE_BY_IDS, "delete from ? return before");
+    register(StatementId.TRIGGER_DELETE_BY_JOB_IDS, "delete from " + trigger
+        + " return before where " + Constants.TRIGGER_JOB_ID + " in ?");
+
+    register(StatementId.CALENDAR_BY_NAME,
+        "select from " + calendar + " where " + Constants.CALENDAR_NAME + " = ?");
+    register(StatementId.CALENDAR_DELETE_ALL, "delete from " + calendar);
+    register(StatementId.CALENDAR_SERIALIZED_ALL,
+        "select from " + calendar + " where " + Constants.CALENDAR_SERIALIZED_OBJECT
+            + " is not null");
+
+    register(StatementId.SCHEDULER_BY_INSTANCE,
+        "select from " + scheduler + " where schedulerName = ? and instanceId = ?");
+    register(StatementId.SCHEDULER_BY_INSTANCE_AND_CHECKIN, "select from " + scheduler
+        + " where schedulerName = ? and instanceId = ? and lastCheckinTime = ?");
+    register(StatementId.SCHEDULER_ALL_BY_CHECKIN,
+        "select from " + scheduler + " order by lastCheckinTime asc");
+
+    register(StatementId.LOCK_BY_INSTANCE_AND_TYPE,
+        "select from " + lock + " where instanceId = ? and type = ?");
+    register(StatementId.LOCK_BY_TYPE_AND_KEY, "select from " + lock
+        + " where instanceId = ? and type = ? and keyGroup = ? and keyName = ?");
+    register(StatementId.LOCK_IDS_BY_TYPE_AND_KEYS, "select @rid as rid, keyGroup, keyName from "
+        + lock + " where instanceId = ? and type = ? and keyGroup in ? and keyName in ?");
+    register(StatementId.LOCK_RELOCK, "update " + lock + " set instanceId = ?, time = ?"
+        + " where type = ? and keyGroup = ? and keyName = ? and time = ?");
+    register(StatementId.LOCK_REFRESH_BY_KEY, "update " + lock
+        + " set time = ? where instanceId = ? and keyGroup = ? and keyName = ?");
+    register(StatementId.LOCK_REFRESH_BY_TYPE,
+        "update " + lock + " set time = ? where instanceId = ? and type = ?");
+    register(StatementId.LOCK_DELETE_BY_TYPE_AND_KEY, "delete from " + lock
+        + " where instanceId = ? and type = ? and keyGroup = ? and keyName = ?");
+    register(StatementId.LOCK_DELETE_BY_IDS, "delete from " + lock + " where @rid in ?");
+    register(StatementId.LOCK_DELETE_BY_INSTANCE,
+        "delete from " + lock + " where instanceId = ?");
+    register(StatementId.LOCK_LEASE_TAKE_OVER, "update " + lock
+        + " set instanceId = ?, time = ?, leaseExpires = ?, token = token + 1 return after"
+        + " where type = ? and keyGroup = ? and keyName = ? and leaseExpires < ?");
+    register(StatementId.LOCK_LEASE_RENEW,
+        "update " + lock + " set leaseExpires = ? where instanceId = ? and leaseExpires > ?");
+    register(StatementId.LOCK_LEASE_RELEASE,
+        "delete from " + lock + " where @rid = ? and instanceId = ? and token = ?");
+    register(StatementId.LOCK_LEASE_EXPIRE, "update " + lock
+        + " set leaseExpires = 0 where @rid = ? and instanceId = ? and token = ?");
+    register(StatementId.LOCK_LEASE_RELEASE_BY_INSTANCE,
+        "delete from " + lock + " where instanceId = ? and type = ?");
+    register(StatementId.LOCK_LEASE_EXPIRE_BY_INSTANCE, "update " + lock
+        + " set leaseExpires = 0 where instanceId = ? and type = ? and leaseExpires > 0");
+    register(StatementId.LOCK_LEASE_HELD, "select @rid as rid, token from " + lock
+        + " where @rid in ? and instanceId = ? and leaseExpires > ?");
+    register(StatementId.LOCK_LEASE_LIVE_COUNT, "select count(*) as count from " + lock
+        + " where keyGroup = ? and type = ? and leaseExpires > ?");
+
+    register(StatementId.PAUSED_JOB_GROUP_NAMES, groupNames + pausedJobGroup);
+    register(StatementId.PAUSED_JOB_GROUPS_DELETE_IN, "delete from " + pausedJobGroup + inGroups);
+    register(StatementId.PAUSED_JOB_GROUPS_DELETE_ALL, "delete from " + pausedJobGroup);
+
+    register(StatementId.PAUSED_TRIGGER_GROUP_NAMES, groupNames + pausedTriggerGroup);
+    register(StatementId.PAUSED_TRIGGER_GROUPS_DELETE_IN,
+        "delete from " + pausedTriggerGroup + inGroups);
+    register(StatementId.PAUSED_TRIGGER_GROUPS_DELETE_ALL, "delete from " + pausedTriggerGroup);
+  }
+
+  /**
+   * Make room for the statements of the prefix in the statement cache of
+   * databases opened from now on.
+   *
+   * <p>
+   * The room is added to the configured size once per prefix, so the
+   * statements of the application and of each prefix do not push each other
+   * out of the cache, and re-parsed on every use.
+   */
+  public void reserveStatementCache() {
+    synchronized (RESERVED_PREFIXES) {
+      if (!RESERVED_PREFIXES.add(collectionPrefix)) {
+        return;
+      }
+
+      int size = OGlobalConfiguration.STATEMENT_CACHE_SIZE.getValueAsInteger()
+          + sqlTexts.size() + DYNAMIC_STATEMENT_COUNT;
+      OGlobalConfiguration.STATEMENT_CACHE_SIZE.setValue(size);
+    }
+  }
+
+  /**
+   * Get the SQL text for a statement.
+   *
+   * @param id
+   *          the ID of the statement
+   *
+   * @return the SQL text
+   */
+  public String getSql(StatementId id) {
+    return sqlTexts.get(id);
+  }
+
+  /**
+   * Execute a statement.
+   *
+   * <p>
+   * The result set must be closed by the caller.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the positional parameters for the statement
+   *
+   * @return the results of the statement
+   */
+  public OResultSet execute(ODatabaseDocumentTx database, StatementId id, Object... args) {
+    if (queries.contains(id)) {
+      return database.query(sqlTexts.get(id), args);
+    }
+
+    return database.command(sqlTexts.get(id), args);
+  }
+
+  /**
+   * Execute a statement and get all resulting documents.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the positional parameters for the statement
+   *
+   * @return the documents for all results
+   */
+  public List<ODocument> executeForDocuments(ODatabaseDocumentTx database, StatementId id,
+      Object... args) {
+    List<ODocument> documents = new ArrayList<>();
+    try (OResultSet result = execute(database, id, args)) {
+      while (result.hasNext()) {
+        documents.add((ODocument) result.next().toElement());
+      }
+    }
+
+    return documents;
+  }
+
+  /**
+   * Execute a statement and get the first resulting document.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the positional parameters for the statement
+   *
+   * @return the first document, or {@code null} if there were no results
+   */
+  public ODocument executeForFirstDocument(ODatabaseDocumentTx database, StatementId id,
+      Object... args) {
+    try (OResultSet result = execute(database, id, args)) {
+      if (result.hasNext()) {
+        return (ODocument) result.next().toElement();
+      } else {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Execute a statement and get a single property of the first result.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param property
+   *          the name of the property
+   * @param args
+   *          the positional parameters for the statement
+   *
+   * @return the property value, or {@code null} if there were no results
+   */
+  public <T> T executeForFirstProperty(ODatabaseDocumentTx database, StatementId id,
+      String property, Object... args) {
+    try (OResultSet result = execute(database, id, args)) {
+      if (result.hasNext()) {
+        return result.next().getProperty(property);
+      } else {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Execute a statement and count the results without loading them.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the positional parameters for the statement
+   *
+   * @return the number of results
+   */
+  public int executeForCount(ODatabaseDocumentTx database, StatementId id, Object... args) {
+    int count = 0;
+    try (OResultSet result = execute(database, id, args)) {
+      while (result.hasNext()) {
+        result.next();
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Execute a modifying statement, such as a delete or an update.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param args
+   *          the positional parameters for the statement
+   *
+   * @return the number of records modified
+   */
+  public long executeCommand(ODatabaseDocumentTx database, StatementId id, Object... args) {
+    try (OResultSet result = execute(database, id, args)) {
+      if (result.hasNext()) {
+        Number count = result.next().getProperty("count");
+        if (count != null) {
+          return count.longValue();
+        }
+      }
+
+      return 0;
+    }
+  }
+
+  /**
+   * Execute a command whose only parameter is a collection, for a limited
+   * number of values at a time.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param values
+   *          the values for the parameter
+   * @param batchSize
+   *          the largest number of values passed in one execution
+   *
+   * @return the total count of all executions
+   */
+  public long executeCommandInBatches(ODatabaseDocumentTx database, StatementId id,
+      Collection<?> values, int batchSize) {
+    List<?> remaining = new ArrayList<>(values);
+    long count = 0;
+    for (int start = 0; start < remaining.size(); start += batchSize) {
+      count += executeCommand(database, id,
+          remaining.subList(start, Math.min(remaining.size(), start + batchSize)));
+    }
+
+    return count;
+  }
+
+  /**
+   * Execute a delete command returning the deleted records, whose only
+   * parameter is a collection, for a limited number of values at a time.
+   *
+   * @param database
+   *          the database to execute the statement against
+   * @param id
+   *          the ID of the statement
+   * @param values
+   *          the values for the parameter
+   * @param batchSize
+   *          the largest number of values passed in one execution
+   *
+   * @return the number of deleted records in each group
+   */
+  public Map<String, Long> executeDeleteInBatches(ODatabaseDocumentTx database, StatementId id,
+      Collection<?> values, int batchSize) {
+    List<?> remaining = new ArrayList<>(values);
+    Map<String, Long> counts = new HashMap<>();
+    for (int start = 0; start < remaining.size(); start += batchSize) {
+      try (OResultSet result = execute(database, id,
+          remaining.subList(start, Math.min(remaining.size(), start + batchSize)))) {
+        while (result.hasNext()) {
+          String group = result.next().getProperty(Constants.KEY_GROUP);
+          counts.merge(group, 1L, Long::sum);
+        }
+      }
+    }
+
+    return counts;
+  }
+
+  /**
+   * Register a statement, parsing it to check it.
+   *
+   * @param id
+   *          the ID of the statement
+   * @param sql
+   *          the SQL text of the statement
+   *
+   * @throws SchedulerConfigException
+   *           the statement could not be parsed
+   */
+  private void register(StatementId id, String sql) throws SchedulerConfigException {
+    try {
+      OStatement statement =
+          new OrientSql(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8))).parse();
+      statement.setOriginalStatement(sql);
+      statement.validate();
+
+      sqlTexts.put(id, sql);
+      if (statement.isIdempotent()) {
+        queries.add(id);
+      }
+    } catch (Exception e) {
+      throw new SchedulerConfigException("Could not parse statement " + id + ": " + sql, e);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.jobdata;
+
+import java.util.Map;
+
+import org.quartz.JobPersistenceException;
+
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.CompressionStatistics;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.SerialUtils;
+
+/**
+ * Stores any serializable value, Java serialized into a binary field.
+ *
+ * <p>
+ * All values go into one stream, so the serialization header is paid once per
+ * record, and there is no Base64 encoding. Large streams are compressed.
+ */
+public class BinaryJobDataCodec implements JobDataCodec {
+
+  /**
+   * The smallest stream compressed, no compression if not positive.
+   */
+  private final int compressionThreshold;
+
+  /**
+   * The statistics to record the stored sizes in.
+   */
+  private final CompressionStatistics compressionStatistics;
+
+  /**
+   * Construct a new codec.
+   *
+   * @param compressionThreshold
+   *          the smallest stream compressed, no compression if not positive
+   * @param compressionStatistics
+   *          the statistics to record the stored sizes in
+   */
+  public BinaryJobDataCodec(int compressionThreshold,
+      CompressionStatistics compressionStatistics) {
+    this.compressionThreshold = compressionThreshold;
+    this.compressionStatistics = compressionStatistics;
+  }
+
+  @Override
+  public String getField() {
+    return Constants.JOB_DATA_BINARY;
+  }
+
+  @Override
+  public boolean canEncode(Object value) {
+    return true;
+  }
+
+  @Override
+  public void encode(Map<String, Object> values, ODocument doc) throws JobPersistenceException {
+    byte[] serialized = SerialUtils.compress(SerialUtils.serializeMap(values),
+        compressionThreshold, compressionStatistics);
+    doc.field(Constants.JOB_DATA_BINARY, serialized, OType.BINARY);
+  }
+
+  @Override
+  public void decode(Object stored, Map<String, Object> values) throws JobPersistenceException {
+    values.putAll(SerialUtils.deserializeMap((byte[]) stored));
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.jobdata;
+
+import java.util.Map;
+
+import org.quartz.JobPersistenceException;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * A codec storing some of the values of a job data map in a field of a job or
+ * trigger record.
+ *
+ * <p>
+ * Codecs are asked in order whether they can store a value, and each value is
+ * stored by the first codec which can.
+ */
+public interface JobDataCodec {
+
+  /**
+   * Get the record field the codec stores values in.
+   *
+   * @return the field name
+   */
+  String getField();
+
+  /**
+   * Can the codec store a value?
+   *
+   * @param value
+   *          the value, can be {@code null}
+   *
+   * @return {@code true} if the codec can store the value
+   */
+  boolean canEncode(Object value);
+
+  /**
+   * Store values in a record.
+   *
+   * @param values
+   *          the values, all accepted by {@link #canEncode(Object)}, not empty
+   * @param doc
+   *          the record to store the values in
+   *
+   * @throws JobPersistenceException
+   *           the values could not be stored
+   */
+  void encode(Map<String, Object> values, ODocument doc) throws JobPersistenceException;
+
+  /**
+   * Read the values stored in a record.
+   *
+   * <p>
+   * Decoding may happen after the transaction the record was read in has
+   * ended, so only the value of the field is passed.
+   *
+   * @param stored
+   *          the value of the field of the codec, not {@code null}
+   * @param values
+   *          the map to add the values to
+   *
+   * @throws JobPersistenceException
+   *           the values could not be read
+   */
+  void decode(Object stored, Map<String, Object> values) throws JobPersistenceException;
+}
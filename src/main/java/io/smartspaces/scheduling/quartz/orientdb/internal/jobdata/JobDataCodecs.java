@@ -0,0 +1,401 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.jobdata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.quartz.JobDataMap;
+import org.quartz.JobPersistenceException;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.SerialUtils;
+
+/**
+ * Stores job data maps in job and trigger records through a list of codecs.
+ *
+ * <p>
+ * Records written before the codecs existed are still read. They hold the
+ * whole map Java serialized and Base64 encoded in {@link Constants#JOB_DATA},
+ * or, for jobs, the values spread over the fields of the record. Such records
+ * are rewritten by {@link #migrate(ODocument, Set)}.
+ */
+public class JobDataCodecs {
+
+  /**
+   * The format written to {@link Constants#JOB_DATA_FORMAT}.
+   */
+  public static final int FORMAT = 1;
+
+  /**
+   * The codecs, in the order they are asked to store a value.
+   */
+  private final List<JobDataCodec> codecs;
+
+  /**
+   * The fields of records written by the codecs.
+   */
+  private final Set<String> codecFields = new HashSet<>();
+
+  /**
+   * Construct the codecs.
+   *
+   * @param codecs
+   *          the codecs, in the order they are asked to store a value, the
+   *          last should accept any value
+   */
+  public JobDataCodecs(List<JobDataCodec> codecs) {
+    this.codecs = new ArrayList<>(codecs);
+
+    codecFields.add(Constants.JOB_DATA);
+    codecFields.add(Constants.JOB_DATA_FORMAT);
+    for (JobDataCodec codec : codecs) {
+      codecFields.add(codec.getField());
+    }
+  }
+
+  /**
+   * Store a job data map in a record.
+   *
+   * <p>
+   * Every codec field is written, empty ones as {@code null}, so that merging
+   * the record into an older one replaces all of the older data.
+   *
+   * @param jobDataMap
+   *          the job data
+   * @param doc
+   *          the record
+   *
+   * @throws JobPersistenceException
+   *           a value could not be stored
+   */
+  public void encode(JobDataMap jobDataMap, ODocument doc) throws JobPersistenceException {
+    if (jobDataMap instanceof LazyJobDataMap) {
+      Map<String, Object> storedValues = ((LazyJobDataMap) jobDataMap).getStoredValues();
+      if (storedValues != null) {
+        writeStoredValues(storedValues, doc);
+        return;
+      }
+    }
+
+    Map<JobDataCodec, Map<String, Object>> valuesByCodec = new LinkedHashMap<>();
+    for (JobDataCodec codec : codecs) {
+      valuesByCodec.put(codec, new HashMap<>());
+    }
+
+    for (Map.Entry<String, Object> entry : jobDataMap.getWrappedMap().entrySet()) {
+      getCodecValues(valuesByCodec, entry.getKey(), entry.getValue()).put(entry.getKey(), entry.getValue());
+    }
+
+    for (Map.Entry<JobDataCodec, Map<String, Object>> codecValues : valuesByCodec.entrySet()) {
+      JobDataCodec codec = codecValues.getKey();
+      if (codecValues.getValue().isEmpty()) {
+        doc.field(codec.getField(), (Object) null);
+      } else {
+        codec.encode(codecValues.getValue(), doc);
+      }
+    }
+
+    doc.field(Constants.JOB_DATA_FORMAT, FORMAT);
+    doc.field(Constants.JOB_DATA, (Object) null);
+  }
+
+  /**
+   * Read the job data map of a record.
+   *
+   * @param doc
+   *          the record
+   * @param recordFields
+   *          the fields of the record which are not job data, {@code null} if
+   *          the record never had its values spread over its fields
+   *
+   * @return the job data, not dirty
+   *
+   * @throws JobPersistenceException
+   *           the job data could not be read
+   */
+  public JobDataMap decode(ODocument doc, Set<String> recordFields)
+      throws JobPersistenceException {
+    Map<String, Object> values;
+    if (doc.field(Constants.JOB_DATA_FORMAT) != null) {
+      values = decodeStoredValues(readStoredValues(doc));
+    } else {
+      values = new HashMap<>();
+      decodeLegacy(doc, recordFields, values);
+    }
+
+    JobDataMap jobDataMap = new JobDataMap(values);
+    jobDataMap.clearDirtyFlag();
+
+    return jobDataMap;
+  }
+
+  /**
+   * Read the job data map of a record, decoding the values only when the map
+   * is first used.
+   *
+   * @param doc
+   *          the record
+   * @param recordFields
+   *          the fields of the record which are not job data, {@code null} if
+   *          the record never had its values spread over its fields
+   *
+   * @return the job data, not dirty
+   *
+   * @throws JobPersistenceException
+   *           the job data could not be read
+   */
+  public JobDataMap decodeLazily(ODocument doc, Set<String> recordFields)
+      throws JobPersistenceException {
+    if (doc.field(Constants.JOB_DATA_FORMAT) == null) {
+      Object serialized = doc.field(Constants.JOB_DATA);
+      if (serialized instanceof String) {
+        return new LazyJobDataMap(() -> decodeSerialized((String) serialized), null);
+      }
+
+      // Spread values were decoded by the database already.
+      return decode(doc, recordFields);
+    }
+
+    Map<String, Object> storedValues = readStoredValues(doc);
+    if (storedValues.isEmpty()) {
+      return new JobDataMap();
+    }
+
+    return new LazyJobDataMap(() -> decodeStoredValues(storedValues), storedValues);
+  }
+
+  /**
+   * Does a record hold its job data in a legacy format?
+   *
+   * @param doc
+   *          the record
+   * @param recordFields
+   *          the fields of the record which are not job data, {@code null} if
+   *          the record never had its values spread over its fields
+   *
+   * @return {@code true} if the record should be migrated
+   */
+  public boolean needsMigration(ODocument doc, Set<String> recordFields) {
+    if (doc.field(Constants.JOB_DATA_FORMAT) != null) {
+      return false;
+    }
+
+    return doc.field(Constants.JOB_DATA) != null || !getSpreadFields(doc, recordFields).isEmpty();
+  }
+
+  /**
+   * Rewrite the job data of a record held in a legacy format with the codecs.
+   * The record is not saved.
+   *
+   * @param doc
+   *          the record
+   * @param recordFields
+   *          the fields of the record which are not job data, {@code null} if
+   *          the record never had its values spread over its fields
+   *
+   * @throws JobPersistenceException
+   *           the job data could not be read or written
+   */
+  public void migrate(ODocument doc, Set<String> recordFields) throws JobPersistenceException {
+    JobDataMap jobDataMap = decode(doc, recordFields);
+    for (String field : getSpreadFields(doc, recordFields)) {
+      doc.removeField(field);
+    }
+
+    encode(jobDataMap, doc);
+  }
+
+  /**
+   * Get the values of the codec storing a value.
+   *
+   * @param valuesByCodec
+   *          the values stored by each codec
+   * @param key
+   *          the key of the value
+   * @param value
+   *          the value
+   *
+   * @return the values of the first codec which can store the value
+   *
+   * @throws JobPersistenceException
+   *           no codec can store the value
+   */
+  private Map<String, Object> getCodecValues(Map<JobDataCodec, Map<String, Object>> valuesByCodec,
+      String key, Object value) throws JobPersistenceException {
+    for (Map.Entry<JobDataCodec, Map<String, Object>> codecValues : valuesByCodec.entrySet()) {
+      if (codecValues.getKey().canEncode(value)) {
+        return codecValues.getValue();
+      }
+    }
+
+    throw new JobPersistenceException("No codec can store the value of job data key " + key);
+  }
+
+  /**
+   * Write the stored values of a map which was never decoded back as they
+   * are.
+   *
+   * @param storedValues
+   *          the stored values by codec field
+   * @param doc
+   *          the record
+   */
+  private void writeStoredValues(Map<String, Object> storedValues, ODocument doc) {
+    for (JobDataCodec codec : codecs) {
+      doc.field(codec.getField(), storedValues.get(codec.getField()));
+    }
+
+    doc.field(Constants.JOB_DATA_FORMAT, FORMAT);
+    doc.field(Constants.JOB_DATA, (Object) null);
+  }
+
+  /**
+   * Read the stored values of the codecs from a record.
+   *
+   * <p>
+   * Embedded maps are copied, so the values do not depend on the record once
+   * its transaction has ended.
+   *
+   * @param doc
+   *          the record
+   *
+   * @return the stored values by codec field, fields without a value are left
+   *         out
+   */
+  private Map<String, Object> readStoredValues(ODocument doc) {
+    Map<String, Object> storedValues = new HashMap<>();
+    for (JobDataCodec codec : codecs) {
+      Object stored = doc.field(codec.getField());
+      if (stored instanceof Map) {
+        stored = new HashMap<>((Map<?, ?>) stored);
+      }
+      if (stored != null) {
+        storedValues.put(codec.getField(), stored);
+      }
+    }
+
+    return storedValues;
+  }
+
+  /**
+   * Decode the stored values of the codecs.
+   *
+   * @param storedValues
+   *          the stored values by codec field
+   *
+   * @return the job data values
+   *
+   * @throws JobPersistenceException
+   *           the values could not be decoded
+   */
+  private Map<String, Object> decodeStoredValues(Map<String, Object> storedValues)
+      throws JobPersistenceException {
+    Map<String, Object> values = new HashMap<>();
+    for (JobDataCodec codec : codecs) {
+      Object stored = storedValues.get(codec.getField());
+      if (stored != null) {
+        codec.decode(stored, values);
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   * Decode job data Java serialized and Base64 encoded before the codecs
+   * existed.
+   *
+   * @param serialized
+   *          the serialized data
+   *
+   * @return the job data values
+   *
+   * @throws JobPersistenceException
+   *           the data could not be deserialized
+   */
+  private Map<String, Object> decodeSerialized(String serialized)
+      throws JobPersistenceException {
+    try {
+      return new HashMap<>(SerialUtils.deserialize(new JobDataMap(), serialized));
+    } catch (IOException e) {
+      throw new JobPersistenceException("Could not deserialize job data", e);
+    }
+  }
+
+  /**
+   * Read job data written before the codecs existed.
+   *
+   * @param doc
+   *          the record
+   * @param recordFields
+   *          the fields of the record which are not job data, {@code null} if
+   *          the record never had its values spread over its fields
+   * @param values
+   *          the map to add the values to
+   *
+   * @throws JobPersistenceException
+   *           the job data could not be read
+   */
+  private void decodeLegacy(ODocument doc, Set<String> recordFields, Map<String, Object> values)
+      throws JobPersistenceException {
+    // A spread value could have landed in the serialized data field, so only
+    // a string there is taken as serialized data.
+    Object serialized = doc.field(Constants.JOB_DATA);
+    if (serialized instanceof String) {
+      values.putAll(decodeSerialized((String) serialized));
+    } else {
+      for (String field : getSpreadFields(doc, recordFields)) {
+        values.put(field, doc.field(field));
+      }
+    }
+  }
+
+  /**
+   * Get the fields of a record holding spread job data values.
+   *
+   * @param doc
+   *          the record
+   * @param recordFields
+   *          the fields of the record which are not job data, {@code null} if
+   *          the record never had its values spread over its fields
+   *
+   * @return the fields
+   */
+  private List<String> getSpreadFields(ODocument doc, Set<String> recordFields) {
+    List<String> fields = new ArrayList<>();
+    if (recordFields != null) {
+      for (String field : doc.fieldNames()) {
+        if (!recordFields.contains(field) && !codecFields.contains(field)) {
+          fields.add(field);
+        }
+      }
+      Object serialized = doc.field(Constants.JOB_DATA);
+      if (serialized != null && !(serialized instanceof String)) {
+        fields.add(Constants.JOB_DATA);
+      }
+    }
+
+    return fields;
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.jobdata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.quartz.JobPersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockProvider;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector.TransactionMethod;
+
+/**
+ * Rewrites records holding job data in a legacy format once they have been
+ * read.
+ *
+ * <p>
+ * Records are not rewritten by the transaction reading them, which may not
+ * hold the trigger lock. They are queued and rewritten a batch at a time in
+ * transactions of their own under the trigger lock. A record which cannot be
+ * rewritten is left alone, and queued again the next time it is read.
+ */
+public class JobDataMigrator {
+
+  /**
+   * The most records waiting to be rewritten.
+   */
+  private static final int MAX_PENDING = 10000;
+
+  /**
+   * The number of records rewritten in one transaction.
+   */
+  private static final int BATCH_SIZE = 100;
+
+  /**
+   * The time in milliseconds requests are gathered before records are
+   * rewritten.
+   */
+  private static final long DELAY_MILLIS = 1000;
+
+  /**
+   * The logger for this class.
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(JobDataMigrator.class);
+
+  /**
+   * The codecs to rewrite the records with.
+   */
+  private final JobDataCodecs codecs;
+
+  /**
+   * The database connector.
+   */
+  private final OrientDbConnector orientDbConnector;
+
+  /**
+   * The records waiting to be rewritten.
+   */
+  private final Queue<Migration> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * The IDs of the records waiting to be rewritten.
+   */
+  private final Set<ORID> pendingIds = ConcurrentHashMap.newKeySet();
+
+  /**
+   * {@code true} if rewriting is scheduled.
+   */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  /**
+   * The executor records are rewritten on, {@code null} if not started.
+   */
+  private volatile ScheduledExecutorService executorService;
+
+  /**
+   * Construct a new migrator.
+   *
+   * @param codecs
+   *          the codecs to rewrite the records with
+   * @param orientDbConnector
+   *          the database connector
+   */
+  public JobDataMigrator(JobDataCodecs codecs, OrientDbConnector orientDbConnector) {
+    this.codecs = codecs;
+    this.orientDbConnector = orientDbConnector;
+  }
+
+  /**
+   * Start rewriting records. Records read before are rewritten too.
+   *
+   * @param executorService
+   *          the executor to rewrite records on
+   */
+  public void start(ScheduledExecutorService executorService) {
+    this.executorService = executorService;
+    scheduleMigration();
+  }
+
+  /**
+   * Stop rewriting records.
+   */
+  public void stop() {
+    executorService = null;
+  }
+
+  /**
+   * Queue a record for rewriting if it holds job data in a legacy format.
+   *
+   * @param doc
+   *          the record just read
+   * @param recordFields
+   *          the fields of the record which are not job data, {@code null} if
+   *          the record never had its values spread over its fields
+   */
+  public void migrateIfNeeded(ODocument doc, Set<String> recordFields) {
+    ORID id = doc.getIdentity();
+    if (!id.isPersistent() || !codecs.needsMigration(doc, recordFields)
+        || pendingIds.size() >= MAX_PENDING) {
+      return;
+    }
+
+    if (pendingIds.add(id.copy())) {
+      pending.add(new Migration(id.copy(), recordFields));
+      scheduleMigration();
+    }
+  }
+
+  /**
+   * Schedule rewriting of the waiting records, unless already scheduled.
+   */
+  private void scheduleMigration() {
+    ScheduledExecutorService executor = executorService;
+    if (executor != null && !pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+      executor.schedule(this::migratePending, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Rewrite the waiting records.
+   */
+  private void migratePending() {
+    try {
+      while (executorService != null && !pending.isEmpty()) {
+        List<Migration> batch = new ArrayList<>(BATCH_SIZE);
+        Migration migration;
+        while (batch.size() < BATCH_SIZE && (migration = pending.poll()) != null) {
+          pendingIds.remove(migration.id);
+          batch.add(migration);
+        }
+
+        migrate(batch);
+      }
+    } finally {
+      scheduled.set(false);
+      scheduleMigration();
+    }
+  }
+
+  /**
+   * Rewrite a batch of records in one transaction.
+   *
+   * @param batch
+   *          the records
+   */
+  private void migrate(List<Migration> batch) {
+    try {
+      int migrated = orientDbConnector.doInTransaction(LockProvider.LOCK_TRIGGER,
+          new TransactionMethod<Integer>() {
+            @Override
+            public Integer doInTransaction() throws JobPersistenceException {
+              int count = 0;
+              for (Migration migration : batch) {
+                ODocument doc = orientDbConnector.getConnection().getRecord(migration.id);
+                if (doc == null || !codecs.needsMigration(doc, migration.recordFields)) {
+                  continue;
+                }
+
+                try {
+                  codecs.migrate(doc, migration.recordFields);
+                  doc.save();
+                  count++;
+                } catch (JobPersistenceException e) {
+                  LOG.warn("Could not migrate the job data of record {}", migration.id, e);
+                }
+              }
+
+              return count;
+            }
+          });
+      LOG.debug("Migrated the job data of {} records", migrated);
+    } catch (JobPersistenceException e) {
+      LOG.warn("Could not migrate the job data of {} records", batch.size(), e);
+    }
+  }
+
+  /**
+   * A record waiting to be rewritten.
+   */
+  private static class Migration {
+
+    /**
+     * The ID of the record.
+     */
+    private final ORID id;
+
+    /**
+     * The fields of the record which are not job data, {@code null} if the
+     * record never had its values spread over its fields.
+     */
+    private final Set<String> recordFields;
+
+    /**
+     * Construct a new migration.
+     *
+     * @param id
+     *          the ID of the record
+     * @param recordFields
+     *          the fields of the record which are not job data
+     */
+    Migration(ORID id, Set<String> recordFields) {
+      this.id = id;
+      this.recordFields = recordFields;
+    }
+  }
+}
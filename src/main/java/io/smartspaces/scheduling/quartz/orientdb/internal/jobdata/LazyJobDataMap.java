@@ -0,0 +1,525 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.jobdata;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.quartz.JobDataMap;
+import org.quartz.JobPersistenceException;
+
+/**
+ * A job data map which decodes its stored values the first time it is used.
+ *
+ * <p>
+ * Triggers and jobs read while looking for triggers to fire are mostly never
+ * fired, so their job data is only decoded if something looks at it. A map
+ * which was never used can be written back from its stored values without
+ * decoding them, see {@link #getStoredValues()}. Maps handed to a running job
+ * are decoded with {@link #decodeValues()} first, as a map which cannot be
+ * decoded fails its method calls with an {@link IllegalStateException}.
+ *
+ * <p>
+ * Every method of the Quartz map classes which touches the values is
+ * overridden, as those classes call each other through {@code super}. The
+ * dirty flag is left as it was by decoding.
+ */
+public class LazyJobDataMap extends JobDataMap {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The decoder of the stored values, {@code null} once decoded.
+   */
+  private transient volatile Decoder decoder;
+
+  /**
+   * The stored values by codec field, {@code null} once decoded.
+   */
+  private transient volatile Map<String, Object> storedValues;
+
+  /**
+   * Construct a new map.
+   *
+   * @param decoder
+   *          the decoder of the stored values
+   * @param storedValues
+   *          the stored values by codec field, {@code null} if they cannot be
+   *          written back as they are
+   */
+  LazyJobDataMap(Decoder decoder, Map<String, Object> storedValues) {
+    this.decoder = decoder;
+    this.storedValues = storedValues;
+  }
+
+  /**
+   * Has the map been decoded?
+   *
+   * @return {@code true} if the values have been decoded
+   */
+  public boolean isDecoded() {
+    return decoder == null;
+  }
+
+  /**
+   * Get the stored values of a map which has not been decoded.
+   *
+   * @return the stored values by codec field, {@code null} if the map has been
+   *         decoded or the values cannot be written back as they are
+   */
+  Map<String, Object> getStoredValues() {
+    return storedValues;
+  }
+
+  /**
+   * Decode the stored values, if not done yet.
+   *
+   * @throws JobPersistenceException
+   *           the values could not be decoded
+   */
+  public void decodeValues() throws JobPersistenceException {
+    if (decoder == null) {
+      return;
+    }
+
+    synchronized (this) {
+      Decoder pending = decoder;
+      if (pending == null) {
+        return;
+      }
+
+      Map<String, Object> values = pending.decode();
+
+      boolean dirty = isDirty();
+      super.putAll(values);
+      if (!dirty) {
+        clearDirtyFlag();
+      }
+
+      storedValues = null;
+      decoder = null;
+    }
+  }
+
+  /**
+   * Decode the stored values, if not done yet.
+   *
+   * @throws IllegalStateException
+   *           the values could not be decoded
+   */
+  private void decode() {
+    try {
+      decodeValues();
+    } catch (JobPersistenceException e) {
+      throw new IllegalStateException("Could not decode job data", e);
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    decode();
+    out.defaultWriteObject();
+  }
+
+  @Override
+  public Map<String, Object> getWrappedMap() {
+    decode();
+    return super.getWrappedMap();
+  }
+
+  @Override
+  public void clear() {
+    decode();
+    super.clear();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    decode();
+    return super.containsKey(key);
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    decode();
+    return super.containsValue(value);
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    decode();
+    return super.entrySet();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    decode();
+    return super.equals(obj);
+  }
+
+  @Override
+  public int hashCode() {
+    decode();
+    return super.hashCode();
+  }
+
+  @Override
+  public Object get(Object key) {
+    decode();
+    return super.get(key);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    decode();
+    return super.isEmpty();
+  }
+
+  @Override
+  public Set<String> keySet() {
+    decode();
+    return super.keySet();
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    decode();
+    return super.put(key, value);
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends Object> map) {
+    decode();
+    super.putAll(map);
+  }
+
+  @Override
+  public Object remove(Object key) {
+    decode();
+    return super.remove(key);
+  }
+
+  @Override
+  public int size() {
+    decode();
+    return super.size();
+  }
+
+  @Override
+  public Collection<Object> values() {
+    decode();
+    return super.values();
+  }
+
+  @Override
+  public Object clone() {
+    decode();
+    return super.clone();
+  }
+
+  @Override
+  public String[] getKeys() {
+    decode();
+    return super.getKeys();
+  }
+
+  @Override
+  public boolean containsTransientData() {
+    decode();
+    return super.containsTransientData();
+  }
+
+  @Override
+  public void removeTransientData() {
+    decode();
+    super.removeTransientData();
+  }
+
+  @Override
+  public void put(String key, int value) {
+    decode();
+    super.put(key, value);
+  }
+
+  @Override
+  public void put(String key, long value) {
+    decode();
+    super.put(key, value);
+  }
+
+  @Override
+  public void put(String key, float value) {
+    decode();
+    super.put(key, value);
+  }
+
+  @Override
+  public void put(String key, double value) {
+    decode();
+    super.put(key, value);
+  }
+
+  @Override
+  public void put(String key, boolean value) {
+    decode();
+    super.put(key, value);
+  }
+
+  @Override
+  public void put(String key, char value) {
+    decode();
+    super.put(key, value);
+  }
+
+  @Override
+  public void put(String key, String value) {
+    decode();
+    super.put(key, value);
+  }
+
+  @Override
+  public int getInt(String key) {
+    decode();
+    return super.getInt(key);
+  }
+
+  @Override
+  public long getLong(String key) {
+    decode();
+    return super.getLong(key);
+  }
+
+  @Override
+  public float getFloat(String key) {
+    decode();
+    return super.getFloat(key);
+  }
+
+  @Override
+  public double getDouble(String key) {
+    decode();
+    return super.getDouble(key);
+  }
+
+  @Override
+  public boolean getBoolean(String key) {
+    decode();
+    return super.getBoolean(key);
+  }
+
+  @Override
+  public char getChar(String key) {
+    decode();
+    return super.getChar(key);
+  }
+
+  @Override
+  public String getString(String key) {
+    decode();
+    return super.getString(key);
+  }
+
+  @Override
+  public void putAsString(String key, boolean value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, Boolean value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, char value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, Character value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, double value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, Double value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, float value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, Float value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, int value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, Integer value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, long value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public void putAsString(String key, Long value) {
+    decode();
+    super.putAsString(key, value);
+  }
+
+  @Override
+  public int getIntFromString(String key) {
+    decode();
+    return super.getIntFromString(key);
+  }
+
+  @Override
+  public int getIntValue(String key) {
+    decode();
+    return super.getIntValue(key);
+  }
+
+  @Override
+  public Integer getIntegerFromString(String key) {
+    decode();
+    return super.getIntegerFromString(key);
+  }
+
+  @Override
+  public boolean getBooleanValueFromString(String key) {
+    decode();
+    return super.getBooleanValueFromString(key);
+  }
+
+  @Override
+  public boolean getBooleanValue(String key) {
+    decode();
+    return super.getBooleanValue(key);
+  }
+
+  @Override
+  public Boolean getBooleanFromString(String key) {
+    decode();
+    return super.getBooleanFromString(key);
+  }
+
+  @Override
+  public char getCharFromString(String key) {
+    decode();
+    return super.getCharFromString(key);
+  }
+
+  @Override
+  public Character getCharacterFromString(String key) {
+    decode();
+    return super.getCharacterFromString(key);
+  }
+
+  @Override
+  public double getDoubleValueFromString(String key) {
+    decode();
+    return super.getDoubleValueFromString(key);
+  }
+
+  @Override
+  public double getDoubleValue(String key) {
+    decode();
+    return super.getDoubleValue(key);
+  }
+
+  @Override
+  public Double getDoubleFromString(String key) {
+    decode();
+    return super.getDoubleFromString(key);
+  }
+
+  @Override
+  public float getFloatValueFromString(String key) {
+    decode();
+    return super.getFloatValueFromString(key);
+  }
+
+  @Override
+  public float getFloatValue(String key) {
+    decode();
+    return super.getFloatValue(key);
+  }
+
+  @Override
+  public Float getFloatFromString(String key) {
+    decode();
+    return super.getFloatFromString(key);
+  }
+
+  @Override
+  public long getLongValueFromString(String key) {
+    decode();
+    return super.getLongValueFromString(key);
+  }
+
+  @Override
+  public long getLongValue(String key) {
+    decode();
+    return super.getLongValue(key);
+  }
+
+  @Override
+  public Long getLongFromString(String key) {
+    decode();
+    return super.getLongFromString(key);
+  }
+
+  /**
+   * Decodes the stored values of a map.
+   */
+  interface Decoder {
+
+    /**
+     * Decode the stored values.
+     *
+     * @return the values
+     *
+     * @throws JobPersistenceException
+     *           the values could not be decoded
+     */
+    Map<String, Object> decode() throws JobPersistenceException;
+  }
+}
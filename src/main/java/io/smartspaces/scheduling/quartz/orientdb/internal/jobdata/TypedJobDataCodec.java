@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.jobdata;
+
+import java.util.Map;
+
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Stores strings, boxed primitives and nulls as an embedded map, which the database
+ * keeps with their types and without any serialization header.
+ *
+ * <p>
+ * Characters, shorts and bytes are left to other codecs, as they would be read
+ * back as other types, as are strings too long to be kept uncompressed.
+ */
+public class TypedJobDataCodec implements JobDataCodec {
+
+  /**
+   * The length of the longest string stored.
+   */
+  private final int maxStringLength;
+
+  /**
+   * Construct a new codec storing strings of any length.
+   */
+  public TypedJobDataCodec() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Construct a new codec.
+   *
+   * @param maxStringLength
+   *          the length of the longest string stored
+   */
+  public TypedJobDataCodec(int maxStringLength) {
+    this.maxStringLength = maxStringLength;
+  }
+
+  @Override
+  public String getField() {
+    return Constants.JOB_DATA_TYPED;
+  }
+
+  @Override
+  public boolean canEncode(Object value) {
+    if (value instanceof String) {
+      return ((String) value).length() <= maxStringLength;
+    }
+
+    return value == null || value instanceof Integer
+        || value instanceof Long || value instanceof Boolean || value instanceof Double
+        || value instanceof Float;
+  }
+
+  @Override
+  public void encode(Map<String, Object> values, ODocument doc) {
+    doc.field(Constants.JOB_DATA_TYPED, values, OType.EMBEDDEDMAP);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void decode(Object stored, Map<String, Object> values) {
+    values.putAll((Map<String, Object>) stored);
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.transfer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.quartz.Calendar;
+import org.quartz.JobPersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.calendar.CalendarConverter;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector.TransactionMethod;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.Keys;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.SerialUtils;
+
+/**
+ * Writes the whole schedule of a job store in the {@link ScheduleFormat}.
+ *
+ * <p>
+ * Jobs and triggers are copied as they are stored, so the job classes are not
+ * needed and job data keeps its stored form. Triggers refer to their jobs by
+ * key. Calendars are read with the calendar converters and written in the
+ * form the converters store, or serialized if no converter knows them.
+ */
+public class ScheduleExporter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ScheduleExporter.class);
+
+  /**
+   * The assembler for the job store.
+   */
+  private final StandardOrientDbStoreAssembler assembler;
+
+  /**
+   * Construct an exporter.
+   *
+   * @param assembler
+   *          the assembler for the job store
+   */
+  public ScheduleExporter(StandardOrientDbStoreAssembler assembler) {
+    this.assembler = assembler;
+  }
+
+  /**
+   * Write the schedule.
+   *
+   * <p>
+   * The records are read as they are written, on a connection of their own and
+   * without locks, so the export can be of any size. Changes made during the
+   * export may be missing from it, the schedulers should be in standby for an
+   * exact copy.
+   *
+   * @param writer
+   *          the writer for the export, which is flushed but not closed
+   *
+   * @return the number of records written
+   *
+   * @throws JobPersistenceException
+   *           the schedule could not be read or written
+   */
+  public long export(final Writer writer) throws JobPersistenceException {
+    return assembler.getOrientDbConnector().doInSeparateConnection(new TransactionMethod<Long>() {
+      @Override
+      public Long doInTransaction() throws JobPersistenceException {
+        try {
+          BufferedWriter out = new BufferedWriter(writer);
+          writeLine(out, ScheduleFormat.HEADER);
+          long records = writeCalendars(out) + writeJobs(out) + writeTriggers(out)
+              + writePausedGroups(out);
+          out.flush();
+
+          LOG.info("Exported {} schedule records", records);
+          return records;
+        } catch (IOException e) {
+          throw new JobPersistenceException("Could not write the schedule", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Write all calendars.
+   *
+   * @param out
+   *          where to write the records
+   *
+   * @return the number of records written
+   *
+   * @throws IOException
+   *           the records could not be written
+   * @throws JobPersistenceException
+   *           a calendar could not be read
+   */
+  private long writeCalendars(BufferedWriter out) throws IOException, JobPersistenceException {
+    long records = 0;
+    for (ODocument calendarDoc : assembler.getCalendarDao().browse()) {
+      Calendar calendar = assembler.getCalendarDao().toCalendar(calendarDoc);
+
+      String name = calendarDoc.field(Constants.CALENDAR_NAME);
+      ODocument record = new ODocument();
+      record.field(Constants.CALENDAR_NAME, name);
+      if (CalendarConverter.canConvert(calendar)) {
+        CalendarConverter.toDocument(calendar, record);
+        embedBaseCalendars(record);
+      } else {
+        record.field(Constants.CALENDAR_SERIALIZED_OBJECT, SerialUtils.serialize(calendar),
+            OType.BINARY);
+      }
+
+      writeLine(out, ScheduleFormat.toLine(ScheduleFormat.KIND_CALENDAR, record));
+      records++;
+    }
+
+    return records;
+  }
+
+  /**
+   * Mark the base calendars of a calendar record as embedded. A document
+   * without a class in a field without a type is otherwise serialized as a
+   * link.
+   *
+   * @param record
+   *          the calendar record
+   */
+  private void embedBaseCalendars(ODocument record) {
+    ODocument baseDoc = record.field(Constants.CALENDAR_BASE_CALENDAR);
+    if (baseDoc != null) {
+      embedBaseCalendars(baseDoc);
+      record.field(Constants.CALENDAR_BASE_CALENDAR, baseDoc, OType.EMBEDDED);
+    }
+  }
+
+  /**
+   * Write all jobs.
+   *
+   * @param out
+   *          where to write the records
+   *
+   * @return the number of records written
+   *
+   * @throws IOException
+   *           the records could not be written
+   */
+  private long writeJobs(BufferedWriter out) throws IOException {
+    long records = 0;
+    for (ODocument jobDoc : assembler.getJobDao().browse()) {
+      writeLine(out,
+          ScheduleFormat.toLine(ScheduleFormat.KIND_JOB, ScheduleFormat.copyFields(jobDoc, null)));
+      records++;
+    }
+
+    return records;
+  }
+
+  /**
+   * Write all triggers, with the keys of their jobs in place of the links.
+   *
+   * @param out
+   *          where to write the records
+   *
+   * @return the number of records written
+   *
+   * @throws IOException
+   *           the records could not be written
+   */
+  private long writeTriggers(BufferedWriter out) throws IOException {
+    long records = 0;
+    for (ODocument triggerDoc : assembler.getTriggerDao().browse()) {
+      ODocument jobDoc = triggerDoc.field(Constants.TRIGGER_JOB_ID);
+      if (jobDoc == null) {
+        LOG.warn("Not exporting trigger {}, its job does not exist",
+            Keys.toTriggerKey(triggerDoc));
+        continue;
+      }
+
+      ODocument record = ScheduleFormat.copyFields(triggerDoc, Constants.TRIGGER_JOB_ID);
+      String jobName = jobDoc.field(Constants.KEY_NAME);
+      String jobGroup = jobDoc.field(Constants.KEY_GROUP);
+      record.field(ScheduleFormat.TRIGGER_JOB_NAME, jobName);
+      record.field(ScheduleFormat.TRIGGER_JOB_GROUP, jobGroup);
+
+      writeLine(out, ScheduleFormat.toLine(ScheduleFormat.KIND_TRIGGER, record));
+      records++;
+    }
+
+    return records;
+  }
+
+  /**
+   * Write all paused job and trigger groups.
+   *
+   * @param out
+   *          where to write the records
+   *
+   * @return the number of records written
+   *
+   * @throws IOException
+   *           the records could not be written
+   */
+  private long writePausedGroups(BufferedWriter out) throws IOException {
+    long records = 0;
+    for (String group : assembler.getPausedJobGroupsDao().getPausedGroups()) {
+      writeLine(out, ScheduleFormat.toLine(ScheduleFormat.KIND_PAUSED_JOB_GROUP,
+          new ODocument().field(Constants.KEY_GROUP, group)));
+      records++;
+    }
+    for (String group : assembler.getPausedTriggerGroupsDao().getPausedGroups()) {
+      writeLine(out, ScheduleFormat.toLine(ScheduleFormat.KIND_PAUSED_TRIGGER_GROUP,
+          new ODocument().field(Constants.KEY_GROUP, group)));
+      records++;
+    }
+
+    return records;
+  }
+
+  /**
+   * Write a line.
+   *
+   * @param out
+   *          where to write the line
+   * @param line
+   *          the line, without a line separator
+   *
+   * @throws IOException
+   *           the line could not be written
+   */
+  private void writeLine(BufferedWriter out, String line) throws IOException {
+    out.write(line);
+    out.write('\n');
+  }
+}
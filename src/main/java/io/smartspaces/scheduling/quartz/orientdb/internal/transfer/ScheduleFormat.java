@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.transfer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.quartz.JobPersistenceException;
+
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * The line format of exported schedules.
+ *
+ * <p>
+ * The first line is {@link #HEADER}. Every other line holds one record, as its
+ * kind, a space and the fields of the record in the JSON format of OrientDB,
+ * under the field names the job store uses. The JSON carries the types of the
+ * fields, so records come back exactly as they were stored, and does not
+ * depend on the record serializer of the database the export came from. JSON
+ * keeps no types for the values of maps, so embedded maps are written as
+ * embedded documents and listed in a field of their own.
+ *
+ * <p>
+ * Records are written in the order calendars, jobs, triggers, paused job
+ * groups and paused trigger groups, so that everything a record refers to is
+ * imported before it.
+ */
+public final class ScheduleFormat {
+
+  /**
+   * The first line of an export, with the version of the format.
+   */
+  public static final String HEADER = "quartz-orientdb-schedule 2";
+
+  /**
+   * The JSON format options, which keep the field types and mark embedded
+   * documents, and leave out the other record attributes.
+   */
+  private static final String JSON_FORMAT = "type,keepTypes,alwaysFetchEmbedded";
+
+  /**
+   * The field of a record with the names of its fields which are embedded maps
+   * written as embedded documents.
+   */
+  private static final String MAP_FIELDS = "mapFields";
+
+  /**
+   * The kind of calendar records.
+   */
+  public static final String KIND_CALENDAR = "calendar";
+
+  /**
+   * The kind of job records.
+   */
+  public static final String KIND_JOB = "job";
+
+  /**
+   * The kind of trigger records.
+   */
+  public static final String KIND_TRIGGER = "trigger";
+
+  /**
+   * The kind of paused job group records.
+   */
+  public static final String KIND_PAUSED_JOB_GROUP = "pausedJobGroup";
+
+  /**
+   * The kind of paused trigger group records.
+   */
+  public static final String KIND_PAUSED_TRIGGER_GROUP = "pausedTriggerGroup";
+
+  /**
+   * The field of a trigger record with the name of its job, which replaces the
+   * link to the job.
+   */
+  public static final String TRIGGER_JOB_NAME = "jobName";
+
+  /**
+   * The field of a trigger record with the group of its job, which replaces
+   * the link to the job.
+   */
+  public static final String TRIGGER_JOB_GROUP = "jobGroup";
+
+  private ScheduleFormat() {
+  }
+
+  /**
+   * Format a record as a line.
+   *
+   * @param kind
+   *          the kind of the record
+   * @param record
+   *          the record, which should have no class
+   *
+   * @return the line, without a line separator
+   */
+  public static String toLine(String kind, ODocument record) {
+    ODocument written = record;
+    List<String> mapFields = new ArrayList<>();
+    for (String field : record.fieldNames()) {
+      if (record.fieldType(field) == OType.EMBEDDEDMAP) {
+        if (mapFields.isEmpty()) {
+          written = record.copy();
+        }
+        mapFields.add(field);
+
+        Map<String, Object> map = record.field(field);
+        ODocument mapDoc = new ODocument();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+          mapDoc.field(entry.getKey(), entry.getValue());
+        }
+        written.field(field, mapDoc, OType.EMBEDDED);
+      }
+    }
+    if (!mapFields.isEmpty()) {
+      written.field(MAP_FIELDS, mapFields, OType.EMBEDDEDLIST);
+    }
+
+    return kind + ' ' + written.toJSON(JSON_FORMAT);
+  }
+
+  /**
+   * Get the kind of the record in a line.
+   *
+   * @param line
+   *          the line
+   *
+   * @return the kind
+   *
+   * @throws JobPersistenceException
+   *           the line is not a record
+   */
+  public static String getKind(String line) throws JobPersistenceException {
+    int separator = line.indexOf(' ');
+    if (separator <= 0) {
+      throw new JobPersistenceException("Not a schedule record: " + abbreviate(line));
+    }
+
+    return line.substring(0, separator);
+  }
+
+  /**
+   * Get the record in a line.
+   *
+   * @param line
+   *          the line
+   *
+   * @return the record, without a class
+   *
+   * @throws JobPersistenceException
+   *           the line is not a record
+   */
+  public static ODocument getRecord(String line) throws JobPersistenceException {
+    String kind = getKind(line);
+    try {
+      ODocument record = new ODocument().fromJSON(line.substring(kind.length() + 1));
+
+      List<String> mapFields = record.field(MAP_FIELDS);
+      if (mapFields != null) {
+        record.removeField(MAP_FIELDS);
+        for (String field : mapFields) {
+          ODocument mapDoc = record.field(field);
+          Map<String, Object> map = new HashMap<>();
+          for (String key : mapDoc.fieldNames()) {
+            Object value = mapDoc.field(key);
+            map.put(key, value);
+          }
+          record.field(field, map, OType.EMBEDDEDMAP);
+        }
+      }
+
+      return record;
+    } catch (RuntimeException e) {
+      throw new JobPersistenceException("Could not read schedule record: " + abbreviate(line), e);
+    }
+  }
+
+  /**
+   * Copy the fields of a stored document into a record without a class.
+   *
+   * @param doc
+   *          the stored document
+   * @param excludedField
+   *          a field which is not copied, can be {@code null}
+   *
+   * @return the record
+   */
+  public static ODocument copyFields(ODocument doc, String excludedField) {
+    ODocument record = new ODocument();
+    for (String field : doc.fieldNames()) {
+      if (field.equals(excludedField)) {
+        continue;
+      }
+
+      Object value = doc.field(field);
+      OType type = doc.fieldType(field);
+      if (type != null) {
+        record.field(field, value, type);
+      } else {
+        record.field(field, value);
+      }
+    }
+
+    return record;
+  }
+
+  /**
+   * Shorten a line for an error message.
+   *
+   * @param line
+   *          the line
+   *
+   * @return the start of the line
+   */
+  private static String abbreviate(String line) {
+    return line.length() <= 40 ? line : line.substring(0, 40) + "...";
+  }
+}
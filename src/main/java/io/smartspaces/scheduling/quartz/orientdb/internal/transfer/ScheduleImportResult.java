@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.transfer;
+
+/**
+ * The outcome of importing a schedule.
+ */
+public class ScheduleImportResult {
+
+  /**
+   * The number of lines of the export which are imported, including those
+   * skipped when resuming.
+   */
+  private final long linesImported;
+
+  /**
+   * The number of records stored.
+   */
+  private final long recordsStored;
+
+  /**
+   * The number of records left alone because they already existed.
+   */
+  private final long recordsSkipped;
+
+  /**
+   * Construct a result.
+   *
+   * @param linesImported
+   *          the number of lines of the export which are imported
+   * @param recordsStored
+   *          the number of records stored
+   * @param recordsSkipped
+   *          the number of records left alone because they already existed
+   */
+  public ScheduleImportResult(long linesImported, long recordsStored, long recordsSkipped) {
+    this.linesImported = linesImported;
+    this.recordsStored = recordsStored;
+    this.recordsSkipped = recordsSkipped;
+  }
+
+  /**
+   * Get the number of lines of the export which are imported, including the
+   * header and those skipped when resuming.
+   *
+   * @return the number of lines
+   */
+  public long getLinesImported() {
+    return linesImported;
+  }
+
+  /**
+   * Get the number of records stored.
+   *
+   * @return the number of records
+   */
+  public long getRecordsStored() {
+    return recordsStored;
+  }
+
+  /**
+   * Get the number of records left alone because they already existed.
+   *
+   * @return the number of records
+   */
+  public long getRecordsSkipped() {
+    return recordsSkipped;
+  }
+
+  @Override
+  public String toString() {
+    return "ScheduleImportResult [linesImported=" + linesImported + ", recordsStored="
+        + recordsStored + ", recordsSkipped=" + recordsSkipped + "]";
+  }
+}
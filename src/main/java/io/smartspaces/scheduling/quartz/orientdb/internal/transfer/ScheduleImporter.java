@@ -0,0 +1,664 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.transfer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.quartz.Calendar;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.TriggerKey;
+import org.quartz.utils.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockProvider;
+import io.smartspaces.scheduling.quartz.orientdb.internal.StandardOrientDbStoreAssembler;
+import io.smartspaces.scheduling.quartz.orientdb.internal.TriggerStateTransitions;
+import io.smartspaces.scheduling.quartz.orientdb.internal.calendar.CalendarConverter;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector.TransactionMethod;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.Keys;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.SerialUtils;
+
+/**
+ * Reads a schedule written by the {@link ScheduleExporter} into a job store.
+ *
+ * <p>
+ * The export is read a batch of lines at a time and every batch is committed
+ * in its own transaction, so memory use does not grow with the size of the
+ * export. Batches of jobs and triggers only hold the locks of their keys, so
+ * several of them can be imported at the same time, and the scheduler can keep
+ * working on other jobs and triggers. All records of one kind are imported
+ * before the next kind is started.
+ *
+ * <p>
+ * Records which already exist are either replaced or left alone, so an import
+ * which stopped can be run again. It can also be resumed from the line it
+ * reported, which skips the lines before it without reading the records.
+ */
+public class ScheduleImporter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ScheduleImporter.class);
+
+  /**
+   * The assembler for the job store.
+   */
+  private final StandardOrientDbStoreAssembler assembler;
+
+  /**
+   * The maximum number of records imported in one transaction.
+   */
+  private final int batchSize;
+
+  /**
+   * The number of batches imported at the same time.
+   */
+  private final int threads;
+
+  /**
+   * Construct an importer.
+   *
+   * @param assembler
+   *          the assembler for the job store
+   * @param batchSize
+   *          the maximum number of records imported in one transaction
+   * @param threads
+   *          the number of batches imported at the same time
+   */
+  public ScheduleImporter(StandardOrientDbStoreAssembler assembler, int batchSize, int threads) {
+    this.assembler = assembler;
+    this.batchSize = Math.max(1, batchSize);
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Import a schedule.
+   *
+   * @param reader
+   *          the reader for the export, which is not closed
+   * @param resumeFromLine
+   *          the number of lines of the export already imported, as reported
+   *          by an import which stopped, {@code 0} to import all of it
+   * @param replaceExisting
+   *          {@code true} if calendars, jobs and triggers which exist should
+   *          be replaced, {@code false} if they should be left alone
+   *
+   * @return the result of the import
+   *
+   * @throws JobPersistenceException
+   *           the import stopped, the message gives the number of lines which
+   *           were imported
+   */
+  public ScheduleImportResult importSchedule(BufferedReader reader, long resumeFromLine,
+      boolean replaceExisting) throws JobPersistenceException {
+    ImportRun run = new ImportRun(replaceExisting, Math.max(1, resumeFromLine), threads);
+    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    try {
+      readBatches(reader, resumeFromLine, run, executor);
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+
+      // Imported triggers may be due or may have misfired already.
+      if (run.earliestNextFireTime != Long.MAX_VALUE) {
+        assembler.getMisfireHandler().schedulingChanged(run.earliestNextFireTime);
+      }
+    }
+
+    if (run.failure != null) {
+      throw new JobPersistenceException(String.format(
+          "Schedule import stopped, the first %d lines are imported", run.linesImported),
+          run.failure);
+    }
+
+    ScheduleImportResult result =
+        new ScheduleImportResult(run.linesRead, run.recordsStored, run.recordsSkipped);
+    LOG.info("Imported schedule: {}", result);
+    return result;
+  }
+
+  /**
+   * Read the export in batches and import them, until the end or a failure.
+   *
+   * @param reader
+   *          the reader for the export
+   * @param resumeFromLine
+   *          the number of lines of the export already imported
+   * @param run
+   *          the state of the import
+   * @param executor
+   *          the executor importing batches, {@code null} to import them in
+   *          this thread
+   */
+  private void readBatches(BufferedReader reader, long resumeFromLine, ImportRun run,
+      ExecutorService executor) {
+    try {
+      String header = reader.readLine();
+      if (!ScheduleFormat.HEADER.equals(header)) {
+        throw new JobPersistenceException("Not a schedule export, the header is " + header);
+      }
+
+      long lineNumber = 1;
+      String kind = null;
+      long firstLine = 0;
+      List<String> lines = new ArrayList<>();
+      String line;
+      while (!run.hasFailed() && (line = reader.readLine()) != null) {
+        lineNumber++;
+        if (lineNumber <= resumeFromLine) {
+          continue;
+        }
+
+        String lineKind = ScheduleFormat.getKind(line);
+        if (!lineKind.equals(kind) || lines.size() >= batchSize) {
+          submit(run, kind, firstLine, lines, executor);
+          if (!lineKind.equals(kind)) {
+            // Records can refer to records of the kinds before them.
+            awaitBatches(run);
+          }
+
+          kind = lineKind;
+          firstLine = lineNumber;
+          lines = new ArrayList<>();
+        }
+        lines.add(line);
+      }
+      if (!run.hasFailed()) {
+        submit(run, kind, firstLine, lines, executor);
+        run.linesRead = lineNumber;
+      }
+    } catch (IOException e) {
+      run.fail(new JobPersistenceException("Could not read the schedule", e));
+    } catch (JobPersistenceException e) {
+      run.fail(e);
+    }
+
+    awaitBatches(run);
+  }
+
+  /**
+   * Import a batch of lines, in another thread if there is an executor.
+   *
+   * @param run
+   *          the state of the import
+   * @param kind
+   *          the kind of records in the lines
+   * @param firstLine
+   *          the line number of the first line
+   * @param lines
+   *          the lines, nothing is done if empty
+   * @param executor
+   *          the executor importing batches, {@code null} to import them in
+   *          this thread
+   */
+  private void submit(final ImportRun run, final String kind, final long firstLine,
+      final List<String> lines, ExecutorService executor) {
+    if (lines.isEmpty()) {
+      return;
+    }
+
+    if (executor == null) {
+      importBatch(run, kind, firstLine, lines);
+      return;
+    }
+
+    run.batchPermits.acquireUninterruptibly();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          importBatch(run, kind, firstLine, lines);
+        } finally {
+          run.batchPermits.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait until all batches submitted are imported.
+   *
+   * @param run
+   *          the state of the import
+   */
+  private void awaitBatches(ImportRun run) {
+    run.batchPermits.acquireUninterruptibly(threads);
+    run.batchPermits.release(threads);
+  }
+
+  /**
+   * Import a batch of lines in a transaction of its own.
+   *
+   * @param run
+   *          the state of the import
+   * @param kind
+   *          the kind of records in the lines
+   * @param firstLine
+   *          the line number of the first line
+   * @param lines
+   *          the lines
+   */
+  private void importBatch(ImportRun run, String kind, long firstLine, List<String> lines) {
+    long lastLine = firstLine + lines.size() - 1;
+    try {
+      List<ODocument> records = new ArrayList<>(lines.size());
+      for (String line : lines) {
+        records.add(ScheduleFormat.getRecord(line));
+      }
+
+      int stored;
+      switch (kind) {
+        case ScheduleFormat.KIND_CALENDAR:
+          stored = importCalendars(records, run.replaceExisting);
+          break;
+        case ScheduleFormat.KIND_JOB:
+          stored = importJobs(records, run.replaceExisting);
+          break;
+        case ScheduleFormat.KIND_TRIGGER:
+          run.triggersImported(getEarliestNextFireTime(records));
+          stored = importTriggers(records, run.replaceExisting);
+          break;
+        case ScheduleFormat.KIND_PAUSED_JOB_GROUP:
+        case ScheduleFormat.KIND_PAUSED_TRIGGER_GROUP:
+          stored = importPausedGroups(kind, records);
+          break;
+        default:
+          throw new JobPersistenceException("Unknown kind of schedule record: " + kind);
+      }
+
+      LOG.debug("Imported lines {} to {} of the schedule", firstLine, lastLine);
+      run.batchImported(firstLine, lastLine, stored, records.size() - stored);
+    } catch (JobPersistenceException | RuntimeException e) {
+      LOG.error("Could not import lines {} to {} of the schedule", firstLine, lastLine, e);
+      run.fail(e);
+    }
+  }
+
+  /**
+   * Import a batch of calendars.
+   *
+   * <p>
+   * Calendars are stored through the calendar DAO, which decides how they are
+   * stored in this job store.
+   *
+   * @param records
+   *          the calendar records
+   * @param replaceExisting
+   *          {@code true} if calendars which exist should be replaced
+   *
+   * @return the number of calendars stored
+   *
+   * @throws JobPersistenceException
+   *           the calendars could not be stored
+   */
+  private int importCalendars(final List<ODocument> records, final boolean replaceExisting)
+      throws JobPersistenceException {
+    final Map<String, Calendar> calendars = new LinkedHashMap<>();
+    for (ODocument record : records) {
+      Calendar calendar = CalendarConverter.toCalendar(record);
+      if (calendar == null) {
+        byte[] serialized = record.field(Constants.CALENDAR_SERIALIZED_OBJECT);
+        calendar = SerialUtils.deserialize(serialized, Calendar.class);
+      }
+      calendars.put((String) record.field(Constants.CALENDAR_NAME), calendar);
+    }
+
+    return assembler.getOrientDbConnector()
+        .doInTransactionWithoutLock(new TransactionMethod<Integer>() {
+          @Override
+          public Integer doInTransaction() throws JobPersistenceException {
+            int stored = 0;
+            for (Map.Entry<String, Calendar> entry : calendars.entrySet()) {
+              if (replaceExisting || !assembler.getCalendarDao().exists(entry.getKey())) {
+                assembler.getCalendarDao().store(entry.getKey(), entry.getValue());
+                stored++;
+              }
+            }
+
+            return stored;
+          }
+        });
+  }
+
+  /**
+   * Import a batch of jobs, holding the locks of their keys.
+   *
+   * @param records
+   *          the job records
+   * @param replaceExisting
+   *          {@code true} if jobs which exist should be replaced
+   *
+   * @return the number of jobs stored
+   *
+   * @throws JobPersistenceException
+   *           the jobs could not be stored
+   */
+  private int importJobs(List<ODocument> records, final boolean replaceExisting)
+      throws JobPersistenceException {
+    final Map<JobKey, ODocument> jobs = new LinkedHashMap<>();
+    for (ODocument record : records) {
+      jobs.put(Keys.toJobKey(record), record);
+    }
+
+    return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
+        jobs.keySet(), new TransactionMethod<Integer>() {
+          @Override
+          public Integer doInTransaction() throws JobPersistenceException {
+            Map<JobKey, ORID> existingJobIds = assembler.getJobDao().getJobIds(jobs.keySet());
+            int stored = 0;
+            for (Map.Entry<JobKey, ODocument> entry : jobs.entrySet()) {
+              ORID existingJobId = existingJobIds.get(entry.getKey());
+              if (existingJobId == null || replaceExisting) {
+                assembler.getJobDao().storeDocument(entry.getValue(), existingJobId);
+                stored++;
+              }
+            }
+
+            return stored;
+          }
+        });
+  }
+
+  /**
+   * Import a batch of triggers, holding the locks of their keys and of the
+   * keys of their jobs.
+   *
+   * @param records
+   *          the trigger records
+   * @param replaceExisting
+   *          {@code true} if triggers which exist should be replaced
+   *
+   * @return the number of triggers stored
+   *
+   * @throws JobPersistenceException
+   *           the triggers could not be stored, or the job of a trigger does
+   *           not exist
+   */
+  private int importTriggers(List<ODocument> records, final boolean replaceExisting)
+      throws JobPersistenceException {
+    final Map<TriggerKey, ODocument> triggers = new LinkedHashMap<>();
+    final Map<TriggerKey, JobKey> jobKeys = new HashMap<>();
+    for (ODocument record : records) {
+      TriggerKey triggerKey = Keys.toTriggerKey(record);
+      JobKey jobKey = new JobKey((String) record.removeField(ScheduleFormat.TRIGGER_JOB_NAME),
+          (String) record.removeField(ScheduleFormat.TRIGGER_JOB_GROUP));
+      record.field(Constants.TRIGGER_STATE,
+          getImportedState((String) record.field(Constants.TRIGGER_STATE)));
+
+      triggers.put(triggerKey, record);
+      jobKeys.put(triggerKey, jobKey);
+    }
+
+    Set<Key<?>> keys = new HashSet<>();
+    keys.addAll(triggers.keySet());
+    keys.addAll(jobKeys.values());
+
+    return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER, keys,
+        new TransactionMethod<Integer>() {
+          @Override
+          public Integer doInTransaction() throws JobPersistenceException {
+            Map<JobKey, ORID> jobIds =
+                assembler.getJobDao().getJobIds(new HashSet<>(jobKeys.values()));
+            Map<TriggerKey, ORID> existingTriggerIds =
+                assembler.getTriggerDao().getTriggerIds(triggers.keySet());
+            int stored = 0;
+            for (Map.Entry<TriggerKey, ODocument> entry : triggers.entrySet()) {
+              ORID existingTriggerId = existingTriggerIds.get(entry.getKey());
+              if (existingTriggerId != null && !replaceExisting) {
+                continue;
+              }
+
+              JobKey jobKey = jobKeys.get(entry.getKey());
+              ORID jobId = jobIds.get(jobKey);
+              if (jobId == null) {
+                throw new JobPersistenceException(
+                    "The job " + jobKey + " of trigger " + entry.getKey() + " does not exist");
+              }
+
+              ODocument record = entry.getValue();
+              record.field(Constants.TRIGGER_JOB_ID, jobId);
+              assembler.getTriggerDao().storeDocument(record, existingTriggerId);
+              stored++;
+            }
+
+            return stored;
+          }
+        });
+  }
+
+  /**
+   * Import a batch of paused job or trigger groups. Groups which are already
+   * paused are left alone.
+   *
+   * @param kind
+   *          the kind of the records
+   * @param records
+   *          the paused group records
+   *
+   * @return the number of groups paused
+   *
+   * @throws JobPersistenceException
+   *           the groups could not be paused
+   */
+  private int importPausedGroups(final String kind, List<ODocument> records)
+      throws JobPersistenceException {
+    final Set<String> groups = new LinkedHashSet<>();
+    for (ODocument record : records) {
+      groups.add((String) record.field(Constants.KEY_GROUP));
+    }
+
+    return assembler.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER,
+        new TransactionMethod<Integer>() {
+          @Override
+          public Integer doInTransaction() throws JobPersistenceException {
+            Set<String> newGroups = new LinkedHashSet<>(groups);
+            if (ScheduleFormat.KIND_PAUSED_JOB_GROUP.equals(kind)) {
+              newGroups.removeAll(assembler.getPausedJobGroupsDao().getPausedGroups());
+              assembler.getPausedJobGroupsDao().pauseGroups(newGroups);
+            } else {
+              newGroups.removeAll(assembler.getPausedTriggerGroupsDao().getPausedGroups());
+              assembler.getPausedTriggerGroupsDao().pauseGroups(newGroups);
+            }
+
+            return newGroups.size();
+          }
+        });
+  }
+
+  /**
+   * Get the state an imported trigger is stored in.
+   *
+   * <p>
+   * Triggers acquired or blocked by a job running in the exporting store are
+   * not acquired or blocked in this one.
+   *
+   * @param state
+   *          the state of the trigger in the export
+   *
+   * @return the state to store
+   */
+  private static String getImportedState(String state) {
+    if (TriggerStateTransitions.RELEASE.containsKey(state)) {
+      return TriggerStateTransitions.RELEASE.get(state);
+    }
+    if (TriggerStateTransitions.UNBLOCK.containsKey(state)) {
+      return TriggerStateTransitions.UNBLOCK.get(state);
+    }
+
+    return state;
+  }
+
+  /**
+   * Get the earliest next fire time of a batch of trigger records.
+   *
+   * @param records
+   *          the trigger records
+   *
+   * @return the earliest next fire time, {@link Long#MAX_VALUE} if none
+   */
+  private static long getEarliestNextFireTime(List<ODocument> records) {
+    long earliestNextFireTime = Long.MAX_VALUE;
+    for (ODocument record : records) {
+      Long nextFireTime = record.field(Constants.TRIGGER_NEXT_FIRE_TIME);
+      if (nextFireTime != null) {
+        earliestNextFireTime = Math.min(earliestNextFireTime, nextFireTime);
+      }
+    }
+
+    return earliestNextFireTime;
+  }
+
+  /**
+   * The state of one import.
+   */
+  private static class ImportRun {
+
+    /**
+     * {@code true} if records which exist should be replaced.
+     */
+    private final boolean replaceExisting;
+
+    /**
+     * The permits for importing batches, one for each batch being imported at
+     * the same time.
+     */
+    private final Semaphore batchPermits;
+
+    /**
+     * The number of lines from the start of the export which are all imported.
+     */
+    private long linesImported;
+
+    /**
+     * The number of lines in the export, once all of them were read.
+     */
+    private long linesRead;
+
+    /**
+     * The last line of batches imported while a batch before them is not, by
+     * their first line.
+     */
+    private final Map<Long, Long> laterBatches = new HashMap<>();
+
+    /**
+     * The number of records stored.
+     */
+    private long recordsStored;
+
+    /**
+     * The number of records left alone because they already existed.
+     */
+    private long recordsSkipped;
+
+    /**
+     * The earliest next fire time of the triggers imported,
+     * {@link Long#MAX_VALUE} if none.
+     */
+    private long earliestNextFireTime = Long.MAX_VALUE;
+
+    /**
+     * The first failure, {@code null} if none.
+     */
+    private Exception failure;
+
+    /**
+     * Construct the state of an import.
+     *
+     * @param replaceExisting
+     *          {@code true} if records which exist should be replaced
+     * @param linesImported
+     *          the number of lines of the export already imported
+     * @param threads
+     *          the number of batches imported at the same time
+     */
+    ImportRun(boolean replaceExisting, long linesImported, int threads) {
+      this.replaceExisting = replaceExisting;
+      this.linesImported = linesImported;
+      this.batchPermits = new Semaphore(threads);
+    }
+
+    /**
+     * A batch of lines was imported.
+     *
+     * @param firstLine
+     *          the number of the first line of the batch
+     * @param lastLine
+     *          the number of the last line of the batch
+     * @param stored
+     *          the number of records stored
+     * @param skipped
+     *          the number of records left alone
+     */
+    synchronized void batchImported(long firstLine, long lastLine, int stored, int skipped) {
+      recordsStored += stored;
+      recordsSkipped += skipped;
+
+      laterBatches.put(firstLine, lastLine);
+      Long batchLastLine;
+      while ((batchLastLine = laterBatches.remove(linesImported + 1)) != null) {
+        linesImported = batchLastLine;
+      }
+    }
+
+    /**
+     * Triggers are being imported.
+     *
+     * @param nextFireTime
+     *          the earliest next fire time of the triggers
+     */
+    synchronized void triggersImported(long nextFireTime) {
+      earliestNextFireTime = Math.min(earliestNextFireTime, nextFireTime);
+    }
+
+    /**
+     * The import failed, only the first failure is kept.
+     *
+     * @param e
+     *          the failure
+     */
+    synchronized void fail(Exception e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+
+    /**
+     * Has the import failed?
+     *
+     * @return {@code true} if the import failed
+     */
+    synchronized boolean hasFailed() {
+      return failure != null;
+    }
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.trigger;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.LockProvider;
+import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardCalendarDao;
+import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardTriggerDao;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector.TransactionMethod;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.quartz.Calendar;
+import org.quartz.JobPersistenceException;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.SchedulerSignaler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Recovers a large backlog of misfired triggers, such as after an outage.
+ *
+ * <p>
+ * Misfired triggers are read a page at a time without holding the trigger
+ * lock. Their new fire times are computed in parallel on a fork-join pool,
+ * and the results are written in large batches under the lock. A trigger
+ * which was changed after it was read is left for the regular misfire scan.
+ */
+public class BulkMisfireRecovery {
+
+  /**
+   * The number of misfired triggers read at a time.
+   */
+  private static final int PAGE_SIZE = 5000;
+
+  /**
+   * The number of triggers written in one transaction.
+   */
+  private static final int WRITE_BATCH_SIZE = 500;
+
+  /**
+   * The logger for this class.
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(BulkMisfireRecovery.class);
+
+  /**
+   * The DAO for triggers.
+   */
+  private final StandardTriggerDao triggerDao;
+
+  /**
+   * The DAO for calendars.
+   */
+  private final StandardCalendarDao calendarDao;
+
+  /**
+   * The converter for trigger documents.
+   */
+  private final TriggerConverter triggerConverter;
+
+  /**
+   * The database connector.
+   */
+  private final OrientDbConnector orientDbConnector;
+
+  /**
+   * The signaler for the scheduler.
+   */
+  private final SchedulerSignaler schedulerSignaler;
+
+  /**
+   * The statistics to report progress in.
+   */
+  private final MisfireStatistics statistics;
+
+  /**
+   * The number of threads computing new fire times.
+   */
+  private final int parallelism;
+
+  /**
+   * Construct a new recovery.
+   *
+   * @param triggerDao
+   *          the DAO for triggers
+   * @param calendarDao
+   *          the DAO for calendars
+   * @param triggerConverter
+   *          the converter for trigger documents
+   * @param orientDbConnector
+   *          the database connector
+   * @param schedulerSignaler
+   *          the signaler for the scheduler
+   * @param statistics
+   *          the statistics to report progress in
+   * @param parallelism
+   *          the number of threads computing new fire times
+   */
+  public BulkMisfireRecovery(StandardTriggerDao triggerDao, StandardCalendarDao calendarDao,
+      TriggerConverter triggerConverter, OrientDbConnector orientDbConnector,
+      SchedulerSignaler schedulerSignaler, MisfireStatistics statistics, int parallelism) {
+    this.triggerDao = triggerDao;
+    this.calendarDao = calendarDao;
+    this.triggerConverter = triggerConverter;
+    this.orientDbConnector = orientDbConnector;
+    this.schedulerSignaler = schedulerSignaler;
+    this.statistics = statistics;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Recover all misfired triggers.
+   *
+   * @param backlog
+   *          the estimated number of misfired triggers
+   * @param misfireTime
+   *          supplies the time before which a trigger has misfired
+   * @param stopped
+   *          supplies {@code true} if recovery should stop early
+   *
+   * @return the earliest new fire time of a recovered trigger,
+   *         {@link Long#MAX_VALUE} if none
+   *
+   * @throws JobPersistenceException
+   *           the triggers could not be read or written
+   */
+  public long recover(long backlog, LongSupplier misfireTime, BooleanSupplier stopped)
+      throws JobPersistenceException {
+    LOG.info("Starting bulk recovery of about {} misfired triggers", backlog);
+    statistics.startBulkRecovery(backlog);
+
+    Map<String, Calendar> calendars = new HashMap<>();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    long earliestNewTime = Long.MAX_VALUE;
+    try {
+      boolean hasMore = true;
+      while (hasMore && !stopped.getAsBoolean()) {
+        List<MisfiredTrigger> page = new ArrayList<>();
+        hasMore = readPage(misfireTime.getAsLong(), page, calendars);
+        if (page.isEmpty()) {
+          break;
+        }
+
+        computeNewFireTimes(pool, page, calendars);
+
+        int written = 0;
+        for (int start = 0; start < page.size(); start += WRITE_BATCH_SIZE) {
+          List<MisfiredTrigger> batch =
+              page.subList(start, Math.min(page.size(), start + WRITE_BATCH_SIZE));
+          written += writeBatch(batch);
+          for (MisfiredTrigger misfired : batch) {
+            if (misfired.written) {
+              earliestNewTime = Math.min(earliestNewTime, misfired.getNextFireTime());
+            }
+          }
+          statistics.recordBulkRecoveryProgress(batch.size());
+        }
+
+        // Triggers changed since they were read stay misfired, and would be
+        // read again and again.
+        if (written == 0) {
+          LOG.info("Bulk recovery made no progress, leaving the rest to the misfire scan");
+          break;
+        }
+      }
+    } finally {
+      pool.shutdown();
+      statistics.endBulkRecovery();
+    }
+
+    LOG.info("Finished bulk recovery of misfired triggers");
+
+    return earliestNewTime;
+  }
+
+  /**
+   * Read a page of misfired triggers.
+   *
+   * @param misfireTime
+   *          the time before which a trigger has misfired
+   * @param page
+   *          the list to add the triggers to
+   * @param calendars
+   *          the calendars by name, missing calendars of the page are added
+   *
+   * @return {@code true} if there are more misfired triggers
+   *
+   * @throws JobPersistenceException
+   *           the triggers could not be read
+   */
+  private boolean readPage(long misfireTime, List<MisfiredTrigger> page,
+      Map<String, Calendar> calendars) throws JobPersistenceException {
+    return orientDbConnector.doInTransactionWithoutLock(new TransactionMethod<Boolean>() {
+      @Override
+      public Boolean doInTransaction() throws JobPersistenceException {
+        List<ODocument> triggerDocs = new ArrayList<>(PAGE_SIZE);
+        boolean hasMore = triggerDao.hasMisfiredTriggersInState(Constants.STATE_WAITING,
+            misfireTime, PAGE_SIZE, triggerDocs);
+
+        for (ODocument triggerDoc : triggerDocs) {
+          OperableTrigger trigger = triggerConverter.toTrigger(triggerDoc);
+          if (trigger == null) {
+            continue;
+          }
+
+          String calendarName = trigger.getCalendarName();
+          if (calendarName != null && !calendars.containsKey(calendarName)) {
+            calendars.put(calendarName, calendarDao.getCalendar(calendarName));
+          }
+
+          OIdentifiable job = triggerDoc.field(Constants.TRIGGER_JOB_ID);
+          page.add(new MisfiredTrigger(triggerDoc.getIdentity(), triggerDoc.getVersion(),
+              job.getIdentity(), trigger));
+        }
+
+        return hasMore;
+      }
+    });
+  }
+
+  /**
+   * Compute the new fire times of a page of triggers in parallel.
+   *
+   * <p>
+   * The triggers are copied as they misfired first, for the listeners, which
+   * are told of the misfires once the new fire times are written.
+   *
+   * @param pool
+   *          the pool to compute on
+   * @param page
+   *          the triggers
+   * @param calendars
+   *          the calendars by name
+   *
+   * @throws JobPersistenceException
+   *           a new fire time could not be computed
+   */
+  private void computeNewFireTimes(ForkJoinPool pool, List<MisfiredTrigger> page,
+      Map<String, Calendar> calendars) throws JobPersistenceException {
+    for (MisfiredTrigger misfired : page) {
+      misfired.misfiredTrigger = (OperableTrigger) misfired.trigger.clone();
+    }
+
+    try {
+      pool.submit(() -> page.parallelStream().forEach(misfired -> misfired.trigger
+          .updateAfterMisfire(calendars.get(misfired.trigger.getCalendarName())))).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JobPersistenceException("Interrupted while computing misfired fire times", e);
+    } catch (ExecutionException e) {
+      throw new JobPersistenceException("Could not compute misfired fire times", e.getCause());
+    }
+  }
+
+  /**
+   * Write a batch of recovered triggers in one transaction.
+   *
+   * <p>
+   * Listeners are told only of the triggers written, one after the other, as
+   * they may not expect to be called concurrently. Triggers changed since they
+   * were read are left to the misfire scan, which tells the listeners itself.
+   *
+   * @param batch
+   *          the triggers
+   *
+   * @return the number of triggers written
+   *
+   * @throws JobPersistenceException
+   *           the triggers could not be written
+   */
+  private int writeBatch(List<MisfiredTrigger> batch) throws JobPersistenceException {
+    int written = orientDbConnector.doInTransaction(LockProvider.LOCK_TRIGGER,
+        new TransactionMethod<Integer>() {
+          @Override
+          public Integer doInTransaction() throws JobPersistenceException {
+            int count = 0;
+            for (MisfiredTrigger misfired : batch) {
+              ODocument triggerDoc = triggerDao.getById(misfired.id);
+              if (triggerDoc == null || triggerDoc.getVersion() != misfired.version) {
+                misfired.written = false;
+                continue;
+              }
+
+              String state = misfired.trigger.getNextFireTime() != null
+                  ? Constants.STATE_WAITING : Constants.STATE_COMPLETE;
+              triggerDao.update(triggerDoc,
+                  triggerConverter.toDocument(misfired.trigger, misfired.jobId, state));
+              misfired.written = true;
+              count++;
+            }
+
+            return count;
+          }
+        });
+
+    for (MisfiredTrigger misfired : batch) {
+      if (!misfired.written) {
+        continue;
+      }
+
+      schedulerSignaler.notifyTriggerListenersMisfired(misfired.misfiredTrigger);
+      if (misfired.trigger.getNextFireTime() == null) {
+        schedulerSignaler.notifySchedulerListenersFinalized(misfired.trigger);
+      }
+    }
+
+    return written;
+  }
+
+  /**
+   * A misfired trigger and the version of the record it was read from.
+   */
+  private static class MisfiredTrigger {
+
+    /**
+     * The ID of the trigger record.
+     */
+    private final ORID id;
+
+    /**
+     * The version of the record when read.
+     */
+    private final int version;
+
+    /**
+     * The ID of the job of the trigger.
+     */
+    private final ORID jobId;
+
+    /**
+     * The trigger.
+     */
+    private final OperableTrigger trigger;
+
+    /**
+     * A copy of the trigger as it misfired, for the listeners.
+     */
+    private OperableTrigger misfiredTrigger;
+
+    /**
+     * {@code true} if the recovered trigger was written.
+     */
+    private boolean written;
+
+    /**
+     * Construct a new misfired trigger.
+     *
+     * @param id
+     *          the ID of the trigger record
+     * @param version
+     *          the version of the record when read
+     * @param jobId
+     *          the ID of the job of the trigger
+     * @param trigger
+     *          the trigger
+     */
+    MisfiredTrigger(ORID id, int version, ORID jobId, OperableTrigger trigger) {
+      this.id = id;
+      this.version = version;
+      this.jobId = jobId;
+      this.trigger = trigger;
+    }
+
+    /**
+     * Get the new next fire time.
+     *
+     * @return the time, {@link Long#MAX_VALUE} if the trigger is complete
+     */
+    long getNextFireTime() {
+      return trigger.getNextFireTime() != null ? trigger.getNextFireTime().getTime()
+          : Long.MAX_VALUE;
+    }
+  }
+}
@@ -15,10 +15,14 @@
  */
 package io.smartspaces.scheduling.quartz.orientdb.internal.trigger;
 
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
 import org.quartz.JobPersistenceException;
-import org.quartz.TriggerKey;
 import org.quartz.spi.OperableTrigger;
 
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
 /**
  * The handler for misfires.
  * 
@@ -47,18 +51,72 @@ public interface MisfireHandler {
   long getMisfireTime();
 
   /**
-   * Scan for misfires.
+   * Start scanning for misfires.
    * 
    * <p>
-   * This is a long running method and should be running inside its own thread.
+   * Scans are run on the executor when the earliest waiting trigger could
+   * have misfired, or sooner when told of scheduling changes.
+   * 
+   * @param executorService
+   *          the executor to run scans on
+   */
+  void startScanForMisfires(ScheduledExecutorService executorService);
+
+  /**
+   * Note that triggers were stored or may have become waiting, so misfires may
+   * have to be looked for sooner.
+   * 
+   * @param earliestFireTime
+   *          the earliest next fire time of the changed triggers, {@code 0} to
+   *          scan right away
    */
-  void scanForMisfires();
+  void schedulingChanged(long earliestFireTime);
 
   /**
    * Shutdown the misfire scan.
    */
   void shutdownScanForMisfires();
 
-  boolean updateMisfiredTrigger(TriggerKey triggerKey, String newStateIfNotComplete,
-      boolean forceState) throws JobPersistenceException;
+  /**
+   * Get the statistics of the misfire handling.
+   * 
+   * @return the statistics
+   */
+  MisfireStatistics getStatistics();
+
+  /**
+   * Is a bulk recovery of misfired triggers running?
+   * 
+   * <p>
+   * Triggers are not acquired while it runs, as most of them have not been
+   * given their new fire times yet.
+   * 
+   * @return {@code true} if a bulk recovery is running
+   */
+  boolean isRecovering();
+
+  /**
+   * Get the largest number of misfired triggers handled while holding the
+   * trigger lock.
+   * 
+   * @return the number of triggers
+   */
+  int getMaxMisfiresToHandleAtATime();
+
+  /**
+   * Apply the misfire instructions of waiting triggers which have misfired, as
+   * when they are resumed.
+   * 
+   * <p>
+   * This runs inside a transaction.
+   * 
+   * @param triggerDocs
+   *          the documents of the misfired triggers
+   * 
+   * @return the earliest new next fire time, {@link Long#MAX_VALUE} if none
+   * 
+   * @throws JobPersistenceException
+   *           the triggers could not be updated
+   */
+  long updateMisfiredTriggers(List<ODocument> triggerDocs) throws JobPersistenceException;
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.trigger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the backlog, batch sizes and drain rate of misfire handling.
+ *
+ * <p>
+ * Values are written by the misfire thread only and read from anywhere.
+ */
+public class MisfireStatistics implements MisfireStatisticsMXBean {
+
+  /**
+   * The weight of a new sample in the smoothed drain rate.
+   */
+  private static final double RATE_SMOOTHING = 0.3;
+
+  /**
+   * The estimated number of misfired triggers waiting to be handled.
+   */
+  private volatile long backlog;
+
+  /**
+   * The smoothed number of triggers handled per second while draining.
+   */
+  private volatile double drainRate;
+
+  /**
+   * The number of triggers handled in the next batch.
+   */
+  private volatile int batchSize;
+
+  /**
+   * The time the lock was held for the last batch, in nanoseconds.
+   */
+  private volatile long lastBatchNanos;
+
+  /**
+   * The total number of triggers handled.
+   */
+  private final AtomicLong handledCount = new AtomicLong();
+
+  /**
+   * When the last batch ended, in {@link System#nanoTime()} units, {@code 0}
+   * if the backlog was drained by it.
+   */
+  private long lastBatchEndNanos;
+
+  /**
+   * {@code true} while a bulk recovery runs.
+   */
+  private volatile boolean bulkRecovering;
+
+  /**
+   * The estimated number of triggers of the bulk recovery.
+   */
+  private volatile long bulkRecoveryTotal;
+
+  /**
+   * The number of triggers handled by the bulk recovery.
+   */
+  private final AtomicLong bulkRecoveryDone = new AtomicLong();
+
+  /**
+   * When the bulk recovery started, in {@link System#nanoTime()} units.
+   */
+  private volatile long bulkRecoveryStartNanos;
+
+  /**
+   * Note the outcome of a batch.
+   *
+   * @param handled
+   *          the number of triggers handled
+   * @param batchNanos
+   *          the time the lock was held, in nanoseconds
+   * @param hasMore
+   *          {@code true} if misfired triggers remain
+   */
+  void recordBatch(int handled, long batchNanos, boolean hasMore) {
+    long now = System.nanoTime();
+    lastBatchNanos = batchNanos;
+    handledCount.addAndGet(handled);
+
+    // While draining, the time between batches counts, so the rate shows how
+    // fast the backlog really goes down.
+    long elapsedNanos = lastBatchEndNanos != 0 ? now - lastBatchEndNanos : batchNanos;
+    if (handled > 0 && elapsedNanos > 0) {
+      double rate = handled * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+      drainRate = drainRate == 0 ? rate : drainRate + RATE_SMOOTHING * (rate - drainRate);
+    }
+    lastBatchEndNanos = hasMore ? now : 0;
+
+    backlog = hasMore ? Math.max(0, backlog - handled) : 0;
+  }
+
+  /**
+   * Set the estimated backlog.
+   *
+   * @param backlog
+   *          the number of misfired triggers waiting to be handled
+   */
+  void setBacklog(long backlog) {
+    this.backlog = backlog;
+  }
+
+  /**
+   * Set the size of the next batch.
+   *
+   * @param batchSize
+   *          the number of triggers
+   */
+  void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Note that a bulk recovery started.
+   *
+   * @param total
+   *          the estimated number of triggers to recover
+   */
+  void startBulkRecovery(long total) {
+    bulkRecoveryTotal = total;
+    bulkRecoveryDone.set(0);
+    bulkRecoveryStartNanos = System.nanoTime();
+    bulkRecovering = true;
+  }
+
+  /**
+   * Note the progress of a bulk recovery.
+   *
+   * @param handled
+   *          the number of triggers just handled
+   */
+  void recordBulkRecoveryProgress(int handled) {
+    handledCount.addAndGet(handled);
+    long done = bulkRecoveryDone.addAndGet(handled);
+    backlog = Math.max(0, bulkRecoveryTotal - done);
+  }
+
+  /**
+   * Note that a bulk recovery ended.
+   */
+  void endBulkRecovery() {
+    bulkRecovering = false;
+    lastBatchEndNanos = 0;
+  }
+
+  @Override
+  public long getBacklog() {
+    return backlog;
+  }
+
+  @Override
+  public double getDrainRate() {
+    return drainRate;
+  }
+
+  @Override
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  @Override
+  public double getLastBatchMillis() {
+    return lastBatchNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public long getHandledCount() {
+    return handledCount.get();
+  }
+
+  @Override
+  public boolean isBulkRecovering() {
+    return bulkRecovering;
+  }
+
+  @Override
+  public long getBulkRecoveryTotal() {
+    return bulkRecoveryTotal;
+  }
+
+  @Override
+  public long getBulkRecoveryDone() {
+    return bulkRecoveryDone.get();
+  }
+
+  @Override
+  public long getBulkRecoveryEtaMillis() {
+    long done = bulkRecoveryDone.get();
+    if (!bulkRecovering || done == 0) {
+      return -1;
+    }
+
+    long elapsedNanos = System.nanoTime() - bulkRecoveryStartNanos;
+    long remaining = Math.max(0, bulkRecoveryTotal - done);
+
+    return TimeUnit.NANOSECONDS.toMillis((long) (elapsedNanos * (remaining / (double) done)));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.trigger;
+
+/**
+ * The JMX view of the misfire handling of a job store.
+ */
+public interface MisfireStatisticsMXBean {
+
+  /**
+   * Get the estimated number of misfired triggers waiting to be handled.
+   *
+   * @return the number of misfired triggers
+   */
+  long getBacklog();
+
+  /**
+   * Get the rate misfired triggers are handled at while a backlog drains.
+   *
+   * @return the number of triggers per second
+   */
+  double getDrainRate();
+
+  /**
+   * Get the number of misfired triggers handled in the next transaction.
+   *
+   * @return the batch size
+   */
+  int getBatchSize();
+
+  /**
+   * Get the time the lock was held for the last batch.
+   *
+   * @return the time in milliseconds
+   */
+  double getLastBatchMillis();
+
+  /**
+   * Get the total number of misfired triggers handled.
+   *
+   * @return the number of triggers
+   */
+  long getHandledCount();
+
+  /**
+   * Is a bulk recovery of a large backlog running?
+   *
+   * @return {@code true} if a bulk recovery is running
+   */
+  boolean isBulkRecovering();
+
+  /**
+   * Get the estimated number of misfired triggers of the current or last bulk
+   * recovery.
+   *
+   * @return the number of triggers
+   */
+  long getBulkRecoveryTotal();
+
+  /**
+   * Get the number of misfired triggers handled by the current or last bulk
+   * recovery.
+   *
+   * @return the number of triggers
+   */
+  long getBulkRecoveryDone();
+
+  /**
+   * Get the estimated time until the current bulk recovery finishes.
+   *
+   * @return the time in milliseconds, {@code -1} if unknown or not recovering
+   */
+  long getBulkRecoveryEtaMillis();
+}
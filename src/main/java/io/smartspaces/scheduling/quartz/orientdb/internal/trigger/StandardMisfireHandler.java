@@ -27,18 +27,23 @@ import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector;
 import io.smartspaces.scheduling.quartz.orientdb.internal.db.OrientDbConnector.TransactionMethod;
 import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
 
+import com.orientechnologies.orient.core.record.impl.ODocument;
 import org.quartz.Calendar;
 import org.quartz.JobPersistenceException;
 import org.quartz.Trigger;
-import org.quartz.TriggerKey;
 import org.quartz.spi.OperableTrigger;
 import org.quartz.spi.SchedulerSignaler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handle misfires.
@@ -46,9 +51,44 @@ import java.util.List;
 public class StandardMisfireHandler implements MisfireHandler {
 
   /**
-   * The time in milliseconds to sleep between misfire scans.
+   * The longest time in milliseconds between misfire scans.
+   * 
+   * <p>
+   * Scans are run when a trigger could misfire. This catches triggers which
+   * became waiting without the handler being told.
+   */
+  private static final long MAX_TIME_BETWEEN_SCANS = 5 * 60 * 1000L;
+
+  /**
+   * The default number of misfired triggers handled in the first transaction.
+   */
+  public static final int DEFAULT_MAX_MISFIRES_TO_HANDLE_AT_A_TIME = 20;
+
+  /**
+   * The default time in milliseconds the trigger lock may be held for one batch
+   * of misfires.
+   */
+  public static final long DEFAULT_LOCK_HOLD_BUDGET_MILLIS = 100;
+
+  /**
+   * The default backlog of misfired triggers at which a bulk recovery is run.
    */
-  private static final long TIME_TO_SLEEP_BETWEEN_SCANS = 50l;
+  public static final long DEFAULT_BULK_RECOVERY_THRESHOLD = 1000;
+
+  /**
+   * The smallest number of misfired triggers handled in one transaction.
+   */
+  private static final int MIN_BATCH_SIZE = 1;
+
+  /**
+   * The largest number of misfired triggers handled in one transaction.
+   */
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  /**
+   * The weight of a new sample in the smoothed time per trigger.
+   */
+  private static final double LATENCY_SMOOTHING = 0.3;
 
   /**
    * The logger for this class.
@@ -70,6 +110,11 @@ public class StandardMisfireHandler implements MisfireHandler {
    */
   private final StandardCalendarDao calendarDao;
 
+  /**
+   * The converter for trigger documents.
+   */
+  private final TriggerConverter triggerConverter;
+
   /**
    * The threshold for misfires, in milliseconds.
    */
@@ -81,9 +126,40 @@ public class StandardMisfireHandler implements MisfireHandler {
   private long dbRetryInterval;
 
   /**
-   * The maximum number of jobs to try and recover at a time.
+   * The number of misfired triggers to handle in the next transaction.
+   */
+  private int batchSize;
+
+  /**
+   * The time in nanoseconds the trigger lock may be held for one batch.
+   */
+  private final long lockHoldBudgetNanos;
+
+  /**
+   * The smoothed time in nanoseconds the lock is held per trigger handled,
+   * {@code 0} until measured.
+   */
+  private double nanosPerTrigger;
+
+  /**
+   * When the current batch got the lock, in {@link System#nanoTime()} units.
    */
-  private int maxToRecoverAtATime = 20;
+  private long batchStartNanos;
+
+  /**
+   * The statistics of the misfire handling.
+   */
+  private final MisfireStatistics statistics = new MisfireStatistics();
+
+  /**
+   * The backlog at which a bulk recovery is run, {@code 0} or less if never.
+   */
+  private final long bulkRecoveryThreshold;
+
+  /**
+   * The recovery for large backlogs.
+   */
+  private final BulkMisfireRecovery bulkRecovery;
 
   /**
    * The clock to use for time.
@@ -105,23 +181,63 @@ public class StandardMisfireHandler implements MisfireHandler {
    */
   private volatile boolean shutdownMisfireScan = false;
 
+  /**
+   * The lock for scheduling scans.
+   */
+  private final Object scanLock = new Object();
+
+  /**
+   * The executor scans run on, {@code null} until scanning starts.
+   */
+  private ScheduledExecutorService executorService;
+
+  /**
+   * The next scheduled scan, {@code null} if none.
+   */
+  private ScheduledFuture<?> scanFuture;
+
+  /**
+   * When the next scheduled scan runs.
+   */
+  private long nextScanTime = Long.MAX_VALUE;
+
+  /**
+   * {@code true} while a scan is running.
+   */
+  private boolean scanRunning;
+
+  /**
+   * The earliest time a scan was asked for while a scan was running.
+   */
+  private long requestedScanTime = Long.MAX_VALUE;
+
   /**
    * The number of failures there has been during misfire scans.
    */
   private int numMisfireScanFails = 0;
 
   public StandardMisfireHandler(TriggerAndJobPersister triggerAndJobPersister,
-      StandardTriggerDao triggerDao, StandardCalendarDao calendarDao, long misfireThreshold,
-      long dbRetryInterval, OrientDbConnector orientDbConnector, Clock clock,
+      StandardTriggerDao triggerDao, StandardCalendarDao calendarDao,
+      TriggerConverter triggerConverter, long misfireThreshold, long dbRetryInterval,
+      int maxMisfiresToHandleAtATime, long lockHoldBudgetMillis, long bulkRecoveryThreshold,
+      int bulkRecoveryThreads, OrientDbConnector orientDbConnector, Clock clock,
       SchedulerSignaler schedulerSignaler) {
     this.triggerAndJobPersister = triggerAndJobPersister;
     this.triggerDao = triggerDao;
     this.calendarDao = calendarDao;
+    this.triggerConverter = triggerConverter;
     this.misfireThreshold = misfireThreshold;
     this.dbRetryInterval = dbRetryInterval;
+    this.batchSize =
+        Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, maxMisfiresToHandleAtATime));
+    this.lockHoldBudgetNanos = TimeUnit.MILLISECONDS.toNanos(lockHoldBudgetMillis);
+    statistics.setBatchSize(batchSize);
     this.orientDbConnector = orientDbConnector;
     this.clock = clock;
     this.schedulerSignaler = schedulerSignaler;
+    this.bulkRecoveryThreshold = bulkRecoveryThreshold;
+    this.bulkRecovery = new BulkMisfireRecovery(triggerDao, calendarDao, triggerConverter,
+        orientDbConnector, schedulerSignaler, statistics, bulkRecoveryThreads);
   }
 
   @Override
@@ -173,69 +289,184 @@ public class StandardMisfireHandler implements MisfireHandler {
     return misfireTime;
   }
 
-  private int getMaxMisfiresToHandleAtATime() {
-    return maxToRecoverAtATime;
+  @Override
+  public int getMaxMisfiresToHandleAtATime() {
+    return batchSize;
   }
 
   @Override
-  public void scanForMisfires() {
+  public MisfireStatistics getStatistics() {
+    return statistics;
+  }
 
-    while (!shutdownMisfireScan) {
+  @Override
+  public boolean isRecovering() {
+    return statistics.isBulkRecovering();
+  }
 
-      long sTime = clock.millis();
+  @Override
+  public void startScanForMisfires(ScheduledExecutorService executorService) {
+    synchronized (scanLock) {
+      this.executorService = executorService;
+      shutdownMisfireScan = false;
+      scheduleScan(clock.millis());
+    }
+  }
 
-      RecoverMisfiredJobsResult recoverMisfiredJobsResult = scanAndProcessMisfires();
+  @Override
+  public void shutdownScanForMisfires() {
+    synchronized (scanLock) {
+      shutdownMisfireScan = true;
+      if (scanFuture != null) {
+        scanFuture.cancel(false);
+        scanFuture = null;
+      }
+    }
+  }
 
-      if (recoverMisfiredJobsResult.getProcessedMisfiredTriggerCount() > 0) {
-        schedulerSignaler.signalSchedulingChange(recoverMisfiredJobsResult.getEarliestNewTime());
+  @Override
+  public void schedulingChanged(long earliestFireTime) {
+    long scanTime = earliestFireTime > 0 ? getScanTime(earliestFireTime) : clock.millis();
+    synchronized (scanLock) {
+      if (scanRunning) {
+        requestedScanTime = Math.min(requestedScanTime, scanTime);
+      } else if (scanTime < nextScanTime) {
+        scheduleScan(scanTime);
       }
+    }
+  }
 
-      if (!shutdownMisfireScan) {
-        // At least a short pause to help balance threads
-        long timeToSleep = TIME_TO_SLEEP_BETWEEN_SCANS;
-        if (!recoverMisfiredJobsResult.hasMoreMisfiredTriggers()) {
-          timeToSleep = misfireThreshold - (clock.millis() - sTime);
-          if (timeToSleep <= 0) {
-            timeToSleep = TIME_TO_SLEEP_BETWEEN_SCANS;
-          }
+  /**
+   * Handle misfires until none are left, then schedule the next scan.
+   */
+  private void scan() {
+    synchronized (scanLock) {
+      if (shutdownMisfireScan) {
+        return;
+      }
+      scanRunning = true;
+      requestedScanTime = Long.MAX_VALUE;
+    }
 
-          if (numMisfireScanFails > 0) {
-            timeToSleep = Math.max(dbRetryInterval, timeToSleep);
-          }
-        }
+    long scanTime = Long.MAX_VALUE;
+    try {
+      scanTime = scanAndProcessMisfires();
+    } finally {
+      synchronized (scanLock) {
+        scanRunning = false;
+        scheduleScan(Math.min(scanTime, requestedScanTime));
+      }
+    }
+  }
 
-        try {
-          Thread.sleep(timeToSleep);
-        } catch (Exception ignore) {
-        }
-      } // while !shutdown
+  /**
+   * Schedule the next scan, replacing any scan scheduled already.
+   * 
+   * <p>
+   * The caller must hold the scan lock.
+   * 
+   * @param scanTime
+   *          when the scan should run
+   */
+  private void scheduleScan(long scanTime) {
+    if (shutdownMisfireScan || executorService == null) {
+      return;
     }
+
+    if (scanFuture != null) {
+      scanFuture.cancel(false);
+    }
+
+    long now = clock.millis();
+    nextScanTime = Math.min(scanTime, now + MAX_TIME_BETWEEN_SCANS);
+    LOG.debug("MisfireHandler: next scan at {}", new Date(nextScanTime));
+    scanFuture = executorService.schedule(new Runnable() {
+      @Override
+      public void run() {
+        scan();
+      }
+    }, Math.max(0, nextScanTime - now), TimeUnit.MILLISECONDS);
   }
 
-  @Override
-  public void shutdownScanForMisfires() {
-    shutdownMisfireScan = true;
+  /**
+   * Get the time a trigger misfires at.
+   * 
+   * @param fireTime
+   *          the time the trigger should fire
+   * 
+   * @return the first time the trigger counts as misfired
+   */
+  private long getScanTime(long fireTime) {
+    return fireTime + Math.max(0, misfireThreshold) + 1;
   }
 
   /**
    * Scan and process any misfires.
    * 
-   * @return the result of the processing
+   * <p>
+   * While a backlog drains, batches follow one another directly. The lock
+   * is released in between, and the scheduler thread gets it first if it is
+   * waiting.
+   * 
+   * <p>
+   * A backlog too large to drain batch by batch, as after an outage, is
+   * handled by one bulk recovery per scan.
+   * 
+   * @return when the next scan should run
    */
-  private RecoverMisfiredJobsResult scanAndProcessMisfires() {
+  private long scanAndProcessMisfires() {
     try {
       LOG.debug("MisfireHandler: scanning for misfires...");
 
-      RecoverMisfiredJobsResult res = doRecoverMisfires();
+      boolean bulkRecovered = false;
+      RecoverMisfiredJobsResult res;
+      do {
+        res = doRecoverMisfires();
+        if (res.getProcessedMisfiredTriggerCount() > 0) {
+          schedulerSignaler.signalSchedulingChange(res.getEarliestNewTime());
+        }
+
+        if (res.hasMoreMisfiredTriggers() && !bulkRecovered && bulkRecoveryThreshold > 0
+            && statistics.getBacklog() >= bulkRecoveryThreshold) {
+          bulkRecovered = true;
+          long earliestNewTime = bulkRecovery.recover(statistics.getBacklog(),
+              this::getMisfireTime, () -> shutdownMisfireScan);
+          schedulerSignaler.signalSchedulingChange(
+              earliestNewTime != Long.MAX_VALUE ? earliestNewTime : 0L);
+        }
+      } while (res.hasMoreMisfiredTriggers() && !shutdownMisfireScan);
       numMisfireScanFails = 0;
-      return res;
+
+      return findNextScanTime();
     } catch (Exception e) {
       if (numMisfireScanFails % 4 == 0) {
         LOG.error("MisfireHandler: Error handling misfires: " + e.getMessage(), e);
       }
       numMisfireScanFails++;
     }
-    return RecoverMisfiredJobsResult.NO_OP;
+
+    return clock.millis() + dbRetryInterval;
+  }
+
+  /**
+   * Find when the earliest waiting trigger which has not misfired yet would
+   * misfire.
+   * 
+   * @return the time, {@link Long#MAX_VALUE} if no trigger can misfire
+   * 
+   * @throws JobPersistenceException
+   *           the database could not be read
+   */
+  private long findNextScanTime() throws JobPersistenceException {
+    Long earliestFireTime = orientDbConnector.doInTransactionWithoutLock(
+        new TransactionMethod<Long>() {
+          @Override
+          public Long doInTransaction() throws JobPersistenceException {
+            return triggerDao.getEarliestNextFireTime(Constants.STATE_WAITING, getMisfireTime());
+          }
+        });
+
+    return earliestFireTime != null ? getScanTime(earliestFireTime) : Long.MAX_VALUE;
   }
 
   /**
@@ -249,14 +480,55 @@ public class StandardMisfireHandler implements MisfireHandler {
    * @throws JobPersistenceException
    */
   private RecoverMisfiredJobsResult doRecoverMisfires() throws JobPersistenceException {
-    return orientDbConnector.doInTransaction(LockProvider.LOCK_TRIGGER,
-        new TransactionMethod<RecoverMisfiredJobsResult>() {
+    RecoverMisfiredJobsResult result = orientDbConnector.doInTransaction(
+        LockProvider.LOCK_TRIGGER, new TransactionMethod<RecoverMisfiredJobsResult>() {
 
           @Override
           public RecoverMisfiredJobsResult doInTransaction() throws JobPersistenceException {
+            batchStartNanos = System.nanoTime();
             return recoverMisfiredJobs(false);
           }
         });
+
+    // The time includes the commit, but not the wait for the lock.
+    long batchNanos = System.nanoTime() - batchStartNanos;
+    if (result.getProcessedMisfiredTriggerCount() > 0) {
+      statistics.recordBatch(result.getProcessedMisfiredTriggerCount(), batchNanos,
+          result.hasMoreMisfiredTriggers());
+      adaptBatchSize(result.getProcessedMisfiredTriggerCount(), batchNanos);
+    } else {
+      statistics.setBacklog(0);
+    }
+
+    return result;
+  }
+
+  /**
+   * Size the next batch so that it should hold the lock for about the budget.
+   * 
+   * <p>
+   * The batch at most doubles from one batch to the next and is not made
+   * larger than the known backlog.
+   * 
+   * @param handled
+   *          the number of triggers handled in the last batch
+   * @param batchNanos
+   *          the time the lock was held for the last batch, in nanoseconds
+   */
+  private void adaptBatchSize(int handled, long batchNanos) {
+    double sample = (double) batchNanos / handled;
+    nanosPerTrigger = nanosPerTrigger == 0 ? sample
+        : nanosPerTrigger + LATENCY_SMOOTHING * (sample - nanosPerTrigger);
+
+    long size = (long) (lockHoldBudgetNanos / nanosPerTrigger);
+    size = Math.min(size, 2L * batchSize);
+    long backlog = statistics.getBacklog();
+    if (backlog > 0) {
+      size = Math.min(size, backlog);
+    }
+
+    batchSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+    statistics.setBatchSize(batchSize);
   }
 
   private RecoverMisfiredJobsResult recoverMisfiredJobs(boolean recovering)
@@ -266,8 +538,7 @@ public class StandardMisfireHandler implements MisfireHandler {
     // triggers right away.
     int maxMisfiresToHandleAtATime = (recovering) ? -1 : getMaxMisfiresToHandleAtATime();
 
-    List<TriggerKey> misfiredTriggers = new LinkedList<TriggerKey>();
-    long earliestNewTime = Long.MAX_VALUE;
+    List<ODocument> misfiredTriggers = new ArrayList<>();
 
     // We must still look for the MISFIRED state in case triggers were left
     // in this state when upgrading to this version that does not support it.
@@ -275,6 +546,10 @@ public class StandardMisfireHandler implements MisfireHandler {
         getMisfireTime(), maxMisfiresToHandleAtATime, misfiredTriggers);
 
     if (hasMoreMisfiredTriggers) {
+      if (statistics.getBacklog() <= misfiredTriggers.size()) {
+        statistics.setBacklog(
+            triggerDao.countMisfiredTriggersInState(Constants.STATE_WAITING, getMisfireTime()));
+      }
       LOG.debug("Handling the first " + misfiredTriggers.size()
           + " triggers that missed their scheduled fire-time.  "
           + "More misfired triggers remain to be processed.");
@@ -286,67 +561,53 @@ public class StandardMisfireHandler implements MisfireHandler {
       return RecoverMisfiredJobsResult.NO_OP;
     }
 
-    for (TriggerKey triggerKey : misfiredTriggers) {
-
-      OperableTrigger trig = triggerDao.getTrigger(triggerKey);
-
-      if (trig == null) {
-        continue;
-      }
-
-      doUpdateOfMisfiredTrigger(trig, false, Constants.STATE_WAITING, recovering);
-
-      if (trig.getNextFireTime() != null && trig.getNextFireTime().getTime() < earliestNewTime)
-        earliestNewTime = trig.getNextFireTime().getTime();
-    }
+    long earliestNewTime = updateMisfiredTriggers(misfiredTriggers);
 
     return new RecoverMisfiredJobsResult(hasMoreMisfiredTriggers, misfiredTriggers.size(),
         earliestNewTime);
   }
 
   @Override
-  public boolean updateMisfiredTrigger(TriggerKey triggerKey, String newStateIfNotComplete,
-      boolean forceState) throws JobPersistenceException {
-    // TODO(keith): For resumeTrigger
-    try {
+  public long updateMisfiredTriggers(List<ODocument> triggerDocs)
+      throws JobPersistenceException {
+    long earliestNewTime = Long.MAX_VALUE;
 
-      OperableTrigger trig = triggerDao.getTrigger(triggerKey);
+    // The triggers of a batch often share a calendar.
+    Map<String, Calendar> calendars = new HashMap<>();
+    for (ODocument triggerDoc : triggerDocs) {
 
-      long misfireTime = getMisfireTime();
+      OperableTrigger trig = triggerConverter.toTrigger(triggerDoc);
 
-      if (trig.getNextFireTime().getTime() > misfireTime) {
-        return false;
+      if (trig == null) {
+        continue;
       }
 
-      doUpdateOfMisfiredTrigger(trig, forceState, newStateIfNotComplete, false);
-
-      return true;
-
-    } catch (Exception e) {
-      throw new JobPersistenceException(
-          "Couldn't update misfired trigger '" + triggerKey + "': " + e.getMessage(), e);
-    }
-  }
+      Calendar cal = null;
+      String calendarName = trig.getCalendarName();
+      if (calendarName != null) {
+        cal = calendars.get(calendarName);
+        if (cal == null) {
+          cal = calendarDao.getCalendar(calendarName);
+          calendars.put(calendarName, cal);
+        }
+      }
 
-  private void doUpdateOfMisfiredTrigger(OperableTrigger trig, boolean forceState,
-      String newStateIfNotComplete, boolean recovering) throws JobPersistenceException {
-    Calendar cal = null;
-    if (trig.getCalendarName() != null) {
-      cal = calendarDao.getCalendar(trig.getCalendarName());
-    }
+      schedulerSignaler.notifyTriggerListenersMisfired(trig);
 
-    schedulerSignaler.notifyTriggerListenersMisfired(trig);
+      trig.updateAfterMisfire(cal);
 
-    trig.updateAfterMisfire(cal);
+      if (trig.getNextFireTime() == null) {
+        triggerAndJobPersister.updateTrigger(triggerDoc, trig, Constants.STATE_COMPLETE);
+        schedulerSignaler.notifySchedulerListenersFinalized(trig);
+      } else {
+        triggerAndJobPersister.updateTrigger(triggerDoc, trig, Constants.STATE_WAITING);
+      }
 
-    if (trig.getNextFireTime() == null) {
-      triggerAndJobPersister.storeTrigger(trig, null, true, Constants.STATE_COMPLETE, forceState,
-          recovering);
-      schedulerSignaler.notifySchedulerListenersFinalized(trig);
-    } else {
-      triggerAndJobPersister.storeTrigger(trig, null, true, newStateIfNotComplete, forceState,
-          false);
+      if (trig.getNextFireTime() != null && trig.getNextFireTime().getTime() < earliestNewTime)
+        earliestNewTime = trig.getNextFireTime().getTime();
     }
+
+    return earliestNewTime;
   }
 
   private boolean misfireIsNotApplicable(OperableTrigger trigger, Date fireTime) {
@@ -19,7 +19,6 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.trigger;
 
-import java.io.IOException;
 import java.util.Date;
 
 import org.quartz.*;
@@ -33,7 +32,8 @@ import com.orientechnologies.orient.core.record.impl.ODocument;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.dao.StandardJobDao;
-import io.smartspaces.scheduling.quartz.orientdb.internal.util.SerialUtils;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.JobDataCodecs;
+import io.smartspaces.scheduling.quartz.orientdb.internal.jobdata.JobDataMigrator;
 
 public class TriggerConverter {
 
@@ -41,31 +41,28 @@ public class TriggerConverter {
 
   private StandardJobDao jobDao;
   private ClassLoadHelper classLoadHelper;
+  private JobDataCodecs jobDataCodecs;
+  private JobDataMigrator jobDataMigrator;
   private String iClassName = "Trigger";
 
-  public TriggerConverter(StandardJobDao jobDao, ClassLoadHelper classLoadHelper) {
+  public TriggerConverter(StandardJobDao jobDao, ClassLoadHelper classLoadHelper,
+      JobDataCodecs jobDataCodecs, JobDataMigrator jobDataMigrator) {
     this.jobDao = jobDao;
     this.classLoadHelper = classLoadHelper;
-
+    this.jobDataCodecs = jobDataCodecs;
+    this.jobDataMigrator = jobDataMigrator;
   };
 
-  public TriggerConverter(StandardJobDao jobDao, ClassLoadHelper classLoadHelper, String collectionPrefix) {
-    this(jobDao, classLoadHelper);
+  public TriggerConverter(StandardJobDao jobDao, ClassLoadHelper classLoadHelper,
+      JobDataCodecs jobDataCodecs, JobDataMigrator jobDataMigrator, String collectionPrefix) {
+    this(jobDao, classLoadHelper, jobDataCodecs, jobDataMigrator);
     this.iClassName = new StringBuilder(collectionPrefix).append(this.iClassName).toString();
   };
 
   public ODocument toDocument(OperableTrigger newTrigger, ORID jobId, String state)
       throws JobPersistenceException {
     ODocument trigger = convertToDocument(newTrigger, jobId, state);
-    if (newTrigger.getJobDataMap().size() > 0) {
-      try {
-        String jobDataString = SerialUtils.serialize(newTrigger.getJobDataMap());
-        trigger.field(Constants.JOB_DATA, jobDataString);
-      } catch (IOException ioe) {
-        throw new JobPersistenceException(
-            "Could not serialise job data map on the trigger for " + newTrigger.getKey(), ioe);
-      }
-    }
+    jobDataCodecs.encode(newTrigger.getJobDataMap(), trigger);
 
     TriggerPropertiesConverter tpd = TriggerPropertiesConverter.getConverterFor(newTrigger);
     trigger = tpd.injectExtraPropertiesForInsert(newTrigger, trigger);
@@ -173,16 +170,8 @@ public class TriggerConverter {
 
   private void loadJobData(ODocument triggerDoc, OperableTrigger trigger)
       throws JobPersistenceException {
-    String jobDataString = triggerDoc.field(Constants.JOB_DATA);
-
-    if (jobDataString != null) {
-      try {
-        trigger.setJobDataMap(new JobDataMap(SerialUtils.deserialize(trigger.getJobDataMap(), jobDataString)));
-      } catch (IOException e) {
-        throw new JobPersistenceException(
-            "Could not deserialize job data for trigger " + trigger.getClass().getName());
-      }
-    }
+    trigger.setJobDataMap(jobDataCodecs.decodeLazily(triggerDoc, null));
+    jobDataMigrator.migrateIfNeeded(triggerDoc, null);
   }
 
   private void loadStartAndEndTimes(ODocument triggerDoc, OperableTrigger trigger) {
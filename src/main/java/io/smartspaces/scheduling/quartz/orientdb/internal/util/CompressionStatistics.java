@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics about the compression of stored payloads.
+ */
+public class CompressionStatistics implements CompressionStatisticsMXBean {
+
+  /**
+   * The number of payloads stored compressed.
+   */
+  private final AtomicLong compressedCount = new AtomicLong();
+
+  /**
+   * The number of payloads stored as they are.
+   */
+  private final AtomicLong uncompressedCount = new AtomicLong();
+
+  /**
+   * The total size of the payloads before compression.
+   */
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+
+  /**
+   * The total size of the payloads as stored.
+   */
+  private final AtomicLong compressedBytes = new AtomicLong();
+
+  @Override
+  public long getCompressedCount() {
+    return compressedCount.get();
+  }
+
+  @Override
+  public long getUncompressedCount() {
+    return uncompressedCount.get();
+  }
+
+  @Override
+  public long getUncompressedBytes() {
+    return uncompressedBytes.get();
+  }
+
+  @Override
+  public long getCompressedBytes() {
+    return compressedBytes.get();
+  }
+
+  @Override
+  public double getCompressionRatio() {
+    long uncompressed = uncompressedBytes.get();
+    return uncompressed > 0 ? (double) compressedBytes.get() / uncompressed : 1;
+  }
+
+  /**
+   * Note a stored payload.
+   *
+   * @param originalSize
+   *          the size of the payload before compression
+   * @param storedSize
+   *          the size of the payload as stored
+   * @param compressed
+   *          {@code true} if the payload was compressed
+   */
+  void recordPayload(int originalSize, int storedSize, boolean compressed) {
+    if (compressed) {
+      compressedCount.incrementAndGet();
+    } else {
+      uncompressedCount.incrementAndGet();
+    }
+    uncompressedBytes.addAndGet(originalSize);
+    compressedBytes.addAndGet(storedSize);
+  }
+}
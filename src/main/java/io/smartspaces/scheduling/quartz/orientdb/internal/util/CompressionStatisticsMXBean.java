@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.util;
+
+/**
+ * The JMX view of the compression of stored payloads of a job store.
+ */
+public interface CompressionStatisticsMXBean {
+
+  /**
+   * Get the number of payloads stored compressed.
+   *
+   * @return the number of payloads
+   */
+  long getCompressedCount();
+
+  /**
+   * Get the number of payloads stored as they are, because they were below
+   * the threshold or did not shrink.
+   *
+   * @return the number of payloads
+   */
+  long getUncompressedCount();
+
+  /**
+   * Get the total size of the payloads before compression.
+   *
+   * @return the size in bytes
+   */
+  long getUncompressedBytes();
+
+  /**
+   * Get the total size of the payloads as stored.
+   *
+   * @return the size in bytes
+   */
+  long getCompressedBytes();
+
+  /**
+   * Get the size of the stored payloads relative to their size before
+   * compression.
+   *
+   * @return the ratio, {@code 1} if nothing was stored
+   */
+  double getCompressionRatio();
+}
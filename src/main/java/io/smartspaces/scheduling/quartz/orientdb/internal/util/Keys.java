@@ -25,6 +25,7 @@ import org.quartz.TriggerKey;
 import org.quartz.utils.Key;
 
 import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.executor.OResult;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants.LockType;
@@ -38,4 +39,12 @@ public class Keys {
   public static TriggerKey toTriggerKey(ODocument dbo) {
     return new TriggerKey((String)dbo.field(Constants.KEY_NAME), (String)dbo.field(Constants.KEY_GROUP));
   }
+
+  public static JobKey toJobKey(OResult result) {
+    return new JobKey(result.getProperty(Constants.KEY_NAME), result.getProperty(Constants.KEY_GROUP));
+  }
+
+  public static TriggerKey toTriggerKey(OResult result) {
+    return new TriggerKey(result.getProperty(Constants.KEY_NAME), result.getProperty(Constants.KEY_GROUP));
+  }
 }
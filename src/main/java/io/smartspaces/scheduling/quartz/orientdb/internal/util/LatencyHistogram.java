@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of durations.
+ *
+ * <p>
+ * Bucket {@code 0} counts durations below one microsecond, bucket {@code i}
+ * counts durations of at least {@code 2^(i-1)} and less than {@code 2^i}
+ * microseconds. The last bucket also counts everything longer.
+ */
+public class LatencyHistogram {
+
+  /**
+   * The number of buckets, the last one starts at about 18 minutes.
+   */
+  public static final int NUMBER_BUCKETS = 32;
+
+  /**
+   * The counts for each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(NUMBER_BUCKETS);
+
+  /**
+   * The total of all recorded durations, in nanoseconds.
+   */
+  private final LongAdder total = new LongAdder();
+
+  /**
+   * The longest recorded duration, in nanoseconds.
+   */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a duration.
+   *
+   * @param nanos
+   *          the duration in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    counts.incrementAndGet(getBucket(nanos));
+    total.add(nanos);
+
+    long currentMax = max.get();
+    while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+      currentMax = max.get();
+    }
+  }
+
+  /**
+   * Get a consistent enough copy of the histogram.
+   *
+   * @return the snapshot
+   */
+  public Snapshot getSnapshot() {
+    long[] bucketCounts = new long[NUMBER_BUCKETS];
+    long count = 0;
+    for (int i = 0; i < NUMBER_BUCKETS; i++) {
+      bucketCounts[i] = counts.get(i);
+      count += bucketCounts[i];
+    }
+
+    return new Snapshot(bucketCounts, count, total.sum(), max.get());
+  }
+
+  /**
+   * Get the bucket for a duration.
+   *
+   * @param nanos
+   *          the duration in nanoseconds
+   *
+   * @return the bucket index
+   */
+  private static int getBucket(long nanos) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    return Math.min(bucket, NUMBER_BUCKETS - 1);
+  }
+
+  /**
+   * Get the exclusive upper bound of a bucket.
+   *
+   * @param bucket
+   *          the bucket index
+   *
+   * @return the upper bound in milliseconds, {@link Double#POSITIVE_INFINITY}
+   *         for the last bucket
+   */
+  private static double getUpperBoundMillis(int bucket) {
+    if (bucket == NUMBER_BUCKETS - 1) {
+      return Double.POSITIVE_INFINITY;
+    }
+
+    return (1L << bucket) / 1000.0;
+  }
+
+  /**
+   * An immutable copy of a histogram.
+   */
+  public static class Snapshot {
+
+    /**
+     * The counts for each bucket.
+     */
+    private final long[] counts;
+
+    /**
+     * The number of recorded durations.
+     */
+    private final long count;
+
+    /**
+     * The total of all recorded durations, in nanoseconds.
+     */
+    private final long totalNanos;
+
+    /**
+     * The longest recorded duration, in nanoseconds.
+     */
+    private final long maxNanos;
+
+    /**
+     * Construct a new snapshot.
+     *
+     * @param counts
+     *          the counts for each bucket
+     * @param count
+     *          the number of recorded durations
+     * @param totalNanos
+     *          the total of all recorded durations, in nanoseconds
+     * @param maxNanos
+     *          the longest recorded duration, in nanoseconds
+     */
+    Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+      this.counts = counts;
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    /**
+     * Get the number of recorded durations.
+     *
+     * @return the count
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Get the mean duration.
+     *
+     * @return the mean in milliseconds, {@code 0} if nothing was recorded
+     */
+    public double getMeanMillis() {
+      return count == 0 ? 0 : totalNanos / 1000000.0 / count;
+    }
+
+    /**
+     * Get the longest duration.
+     *
+     * @return the maximum in milliseconds
+     */
+    public double getMaxMillis() {
+      return maxNanos / 1000000.0;
+    }
+
+    /**
+     * Get the median duration.
+     *
+     * @return the upper bound of the bucket holding the median, in
+     *         milliseconds
+     */
+    public double getP50Millis() {
+      return getPercentileMillis(0.5);
+    }
+
+    /**
+     * Get the 90th percentile duration.
+     *
+     * @return the upper bound of the bucket holding the percentile, in
+     *         milliseconds
+     */
+    public double getP90Millis() {
+      return getPercentileMillis(0.9);
+    }
+
+    /**
+     * Get the 99th percentile duration.
+     *
+     * @return the upper bound of the bucket holding the percentile, in
+     *         milliseconds
+     */
+    public double getP99Millis() {
+      return getPercentileMillis(0.99);
+    }
+
+    /**
+     * Get the counts for each bucket.
+     *
+     * @return a copy of the counts
+     */
+    public long[] getBucketCounts() {
+      return counts.clone();
+    }
+
+    /**
+     * Get the exclusive upper bounds for each bucket.
+     *
+     * @return the bounds in milliseconds
+     */
+    public double[] getBucketUpperBoundsMillis() {
+      double[] bounds = new double[NUMBER_BUCKETS];
+      for (int i = 0; i < NUMBER_BUCKETS; i++) {
+        bounds[i] = getUpperBoundMillis(i);
+      }
+
+      return bounds;
+    }
+
+    /**
+     * Get a percentile of the recorded durations.
+     *
+     * <p>
+     * The result is the upper bound of the bucket the percentile falls in,
+     * capped by the longest duration.
+     *
+     * @param fraction
+     *          the percentile as a fraction between {@code 0} and {@code 1}
+     *
+     * @return the percentile in milliseconds, {@code 0} if nothing was
+     *         recorded
+     */
+    public double getPercentileMillis(double fraction) {
+      if (count == 0) {
+        return 0;
+      }
+
+      long rank = (long) Math.ceil(fraction * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(getUpperBoundMillis(i), getMaxMillis());
+        }
+      }
+
+      return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", count,
+          getMeanMillis(), getP50Millis(), getP99Millis(), getMaxMillis());
+    }
+  }
+}
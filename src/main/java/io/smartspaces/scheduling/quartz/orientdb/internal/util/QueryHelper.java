@@ -18,53 +18,253 @@
 
 package io.smartspaces.scheduling.quartz.orientdb.internal.util;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.impl.matchers.StringMatcher.StringOperatorName;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.index.OCompositeKey;
+import com.orientechnologies.orient.core.sql.executor.OResult;
+import com.orientechnologies.orient.core.sql.executor.OResultSet;
 
 import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry;
+import io.smartspaces.scheduling.quartz.orientdb.internal.db.StatementRegistry.StatementId;
 
 /**
  * A helper for piecing queries together.
  */
 public class QueryHelper {
 
+  /**
+   * Get the condition selecting the records whose group matches a group
+   * matcher.
+   *
+   * <p>
+   * The condition has positional parameters, given by
+   * {@link #matchingKeysParametersFor(GroupMatcher)}. Prefixes are matched
+   * with a range, so the key index, which leads with the group, can be used.
+   *
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the condition
+   */
   public String matchingKeysConditionFor(GroupMatcher<?> matcher) {
-    final String compareToValue = matcher.getCompareToValue();
+    final String compareToValue = getCompareToValue(matcher);
+
+    switch (matcher.getCompareWithOperator()) {
+      case EQUALS:
+        return Constants.KEY_GROUP + " = ?";
+      case STARTS_WITH:
+        if (compareToValue.isEmpty()) {
+          break;
+        } else if (successorOfPrefix(compareToValue) == null) {
+          return Constants.KEY_GROUP + " >= ?";
+        } else {
+          return Constants.KEY_GROUP + " >= ? and " + Constants.KEY_GROUP + " < ?";
+        }
+      case ENDS_WITH:
+        return Constants.KEY_GROUP + ".right(?) = ?";
+      case CONTAINS:
+        return Constants.KEY_GROUP + ".indexOf(?) > -1";
+      default:
+        break;
+    }
+
+    return Constants.KEY_GROUP + " is not null";
+  }
+
+  /**
+   * Get the parameters of the condition given by
+   * {@link #matchingKeysConditionFor(GroupMatcher)}.
+   *
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the parameters, in order
+   */
+  public List<Object> matchingKeysParametersFor(GroupMatcher<?> matcher) {
+    final String compareToValue = getCompareToValue(matcher);
 
     switch (matcher.getCompareWithOperator()) {
       case EQUALS:
-        return Constants.KEY_GROUP + " = '" + compareToValue + "'";
+        return Collections.<Object>singletonList(compareToValue);
       case STARTS_WITH:
-        return Constants.KEY_GROUP + " MATCHES '^" + compareToValue + ".*'";
+        if (compareToValue.isEmpty()) {
+          break;
+        }
+        String successor = successorOfPrefix(compareToValue);
+        if (successor == null) {
+          return Collections.<Object>singletonList(compareToValue);
+        } else {
+          return Arrays.<Object>asList(compareToValue, successor);
+        }
       case ENDS_WITH:
-        return Constants.KEY_GROUP + "MATCHES '.*" + compareToValue + "$'";
+        return Arrays.<Object>asList(compareToValue.length(), compareToValue);
       case CONTAINS:
-        return Constants.KEY_GROUP + "MATCHES '" + compareToValue + "'";
+        return Collections.<Object>singletonList(compareToValue);
+      default:
+        break;
+    }
+
+    return Collections.emptyList();
+  }
+
+  /**
+   * Get the groups in a key index which match a group matcher, in order.
+   *
+   * <p>
+   * The key index is on the group and name. The groups are visited by seeking
+   * past each group in turn, so one entry is read per group. Equality and
+   * prefixes start at the compare value and stop at the first group which
+   * cannot match.
+   *
+   * @param database
+   *          the database to query
+   * @param registry
+   *          the registry of statements
+   * @param firstFromId
+   *          the statement getting the first key of a group or later
+   * @param firstAfterId
+   *          the statement getting the first key after a group
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the matching groups
+   */
+  public List<String> matchingGroupsInKeyIndex(ODatabaseDocumentTx database,
+      StatementRegistry registry, StatementId firstFromId, StatementId firstAfterId,
+      GroupMatcher<?> matcher) {
+    final String compareToValue = getCompareToValue(matcher);
+    StringOperatorName operator = matcher.getCompareWithOperator();
+    boolean prefix =
+        operator == StringOperatorName.EQUALS || operator == StringOperatorName.STARTS_WITH;
+
+    List<String> groups = new ArrayList<>();
+    String group = firstGroupInKeyIndex(database, registry, firstFromId,
+        prefix ? compareToValue : "");
+    while (group != null) {
+      if (prefix && !group.startsWith(compareToValue)) {
+        break;
+      }
+      if (operator.evaluate(group, compareToValue)) {
+        groups.add(group);
+      }
+      if (operator == StringOperatorName.EQUALS) {
+        break;
+      }
+
+      group = firstGroupInKeyIndex(database, registry, firstAfterId, group);
+    }
+
+    return groups;
+  }
+
+  /**
+   * Get the names of all keys of a group in a key index.
+   *
+   * @param database
+   *          the database to query
+   * @param registry
+   *          the registry of statements
+   * @param inGroupId
+   *          the statement getting the keys between two groups
+   * @param group
+   *          the group
+   *
+   * @return the names of the keys in the group
+   */
+  public List<String> namesInKeyIndex(ODatabaseDocumentTx database, StatementRegistry registry,
+      StatementId inGroupId, String group) {
+    List<String> names = new ArrayList<>();
+    List<String> groupKey = Collections.singletonList(group);
+    try (OResultSet result = registry.execute(database, inGroupId, groupKey, groupKey)) {
+      while (result.hasNext()) {
+        names.add((String) getKeyFields(result.next()).get(1));
+      }
+    }
+
+    return names;
+  }
+
+  /**
+   * Get the group of the first key found by a key index statement.
+   *
+   * @param database
+   *          the database to query
+   * @param registry
+   *          the registry of statements
+   * @param id
+   *          the statement, taking a partial key
+   * @param group
+   *          the group of the partial key
+   *
+   * @return the group of the first key, or {@code null} if there is none
+   */
+  private String firstGroupInKeyIndex(ODatabaseDocumentTx database, StatementRegistry registry,
+      StatementId id, String group) {
+    try (OResultSet result =
+        registry.execute(database, id, Collections.singletonList(group))) {
+      if (result.hasNext()) {
+        return (String) getKeyFields(result.next()).get(0);
+      } else {
+        return null;
+      }
     }
+  }
 
-    return "";
+  /**
+   * Get the fields of the key of an index entry.
+   *
+   * @param result
+   *          the index entry
+   *
+   * @return the group and name
+   */
+  private List<?> getKeyFields(OResult result) {
+    Object key = result.getProperty("key");
+    if (key instanceof OCompositeKey) {
+      return ((OCompositeKey) key).getKeys();
+    } else {
+      return (List<?>) key;
+    }
   }
 
   /**
-   * Create a query extension that will check if the group name is in a
-   * collection of groups.
-   * 
-   * @param groups
-   *          the group names to check in
-   * 
-   * @return a SQL clause that checks for the group name of a record to be in a
-   *         collection of groups
+   * Get the value a group matcher compares with.
+   *
+   * @param matcher
+   *          the group matcher
+   *
+   * @return the value, empty if there is none
    */
-  public String inGroups(Collection<String> groups) {
-    StringBuilder builder = new StringBuilder();
+  private String getCompareToValue(GroupMatcher<?> matcher) {
+    String compareToValue = matcher.getCompareToValue();
+    return compareToValue != null ? compareToValue : "";
+  }
 
-    for (String group : groups) {
-      if (builder.length() != 0) {
-        builder.append(", ");
+  /**
+   * Get the smallest string greater than all strings with a prefix.
+   *
+   * @param prefix
+   *          the prefix
+   *
+   * @return the string, or {@code null} if the prefix is only made of the
+   *         largest character
+   */
+  private String successorOfPrefix(String prefix) {
+    for (int i = prefix.length() - 1; i >= 0; i--) {
+      char c = prefix.charAt(i);
+      if (c != Character.MAX_VALUE) {
+        return prefix.substring(0, i) + (char) (c + 1);
       }
-      builder.append("'").append(group).append("'");
     }
-    return Constants.KEY_GROUP + " IN (" + builder + ")";
+
+    return null;
   }
 }
@@ -24,8 +24,14 @@ import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.commons.codec.binary.Base64;
 import org.quartz.Calendar;
@@ -41,6 +47,18 @@ public class SerialUtils {
       "Unable to serialize JobDataMap for insertion into "
           + "database because the value of property '%s' " + "is not serializable: %s";
 
+  /**
+   * The header of compressed payloads, followed by the uncompressed size and
+   * the deflated bytes. Java serialization streams start with {@code 0xACED},
+   * so uncompressed payloads never start with it.
+   */
+  private static final byte[] COMPRESSED_HEADER = { 'Q', 'Z', 1 };
+
+  /**
+   * The size of the header and the uncompressed size.
+   */
+  private static final int COMPRESSED_PREFIX_LENGTH = COMPRESSED_HEADER.length + 4;
+
   public static byte[] serialize(Calendar calendar) throws JobPersistenceException {
     // ToDO(keith): Serialize better than Java serialization.
     ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
@@ -57,7 +75,7 @@ public class SerialUtils {
   public static <T> T deserialize(byte[] serialized, Class<T> clazz)
       throws JobPersistenceException {
     // ToDO(keith): Serialize better than Java serialization.
-    ByteArrayInputStream byteStream = new ByteArrayInputStream(serialized);
+    ByteArrayInputStream byteStream = new ByteArrayInputStream(decompress(serialized));
     try {
       ObjectInputStream objectStream = new ObjectInputStream(byteStream);
       Object deserialized = objectStream.readObject();
@@ -90,12 +108,160 @@ public class SerialUtils {
     } catch (NotSerializableException e) {
       rethrowEnhanced(jobDataMap, e);
     } catch (ClassNotFoundException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      throw new IOException("Could not load the class of a job data value", e);
     }
     return Collections.emptyMap();
   }
 
+  /**
+   * Java serialize a map of values.
+   *
+   * @param values
+   *          the values
+   *
+   * @return the serialized map
+   *
+   * @throws JobPersistenceException
+   *           a value could not be serialized
+   */
+  public static byte[] serializeMap(Map<String, ?> values) throws JobPersistenceException {
+    try {
+      return stringMapToBytes(new HashMap<>(values));
+    } catch (NotSerializableException e) {
+      String key = getKeyOfNonSerializableStringMapEntry(values);
+      throw new JobPersistenceException(String.format(SERIALIZE_MESSAGE_FORMAT, key,
+          e.getMessage()), e);
+    } catch (IOException e) {
+      throw new JobPersistenceException("Could not serialize job data.", e);
+    }
+  }
+
+  /**
+   * Read a map of values serialized by {@link #serializeMap(Map)}.
+   *
+   * @param bytes
+   *          the serialized map
+   *
+   * @return the values
+   *
+   * @throws JobPersistenceException
+   *           the map could not be deserialized
+   */
+  public static Map<String, ?> deserializeMap(byte[] bytes) throws JobPersistenceException {
+    try {
+      return stringMapFromBytes(decompress(bytes));
+    } catch (IOException | ClassNotFoundException e) {
+      throw new JobPersistenceException("Could not deserialize job data.", e);
+    }
+  }
+
+  /**
+   * Compress a payload if it is at least a threshold size and gets smaller.
+   *
+   * @param bytes
+   *          the payload
+   * @param threshold
+   *          the smallest size compressed, no compression if not positive
+   * @param statistics
+   *          the statistics to record the sizes in
+   *
+   * @return the payload to store, readable by {@link #decompress(byte[])}
+   */
+  public static byte[] compress(byte[] bytes, int threshold, CompressionStatistics statistics) {
+    if (threshold <= 0 || bytes.length < threshold || bytes.length <= COMPRESSED_PREFIX_LENGTH) {
+      statistics.recordPayload(bytes.length, bytes.length, false);
+      return bytes;
+    }
+
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+
+      // Not worth storing compressed if it does not get smaller.
+      byte[] compressed = new byte[bytes.length];
+      ByteBuffer.wrap(compressed).put(COMPRESSED_HEADER).putInt(bytes.length);
+      int length = COMPRESSED_PREFIX_LENGTH;
+      while (!deflater.finished() && length < compressed.length) {
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+      if (!deflater.finished()) {
+        statistics.recordPayload(bytes.length, bytes.length, false);
+        return bytes;
+      }
+
+      statistics.recordPayload(bytes.length, length, true);
+      return Arrays.copyOf(compressed, length);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Get the original payload of a stored payload, which may not have been
+   * compressed.
+   *
+   * @param bytes
+   *          the stored payload
+   *
+   * @return the original payload
+   *
+   * @throws JobPersistenceException
+   *           the compressed payload is damaged
+   */
+  public static byte[] decompress(byte[] bytes) throws JobPersistenceException {
+    if (!isCompressed(bytes)) {
+      return bytes;
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    buffer.position(COMPRESSED_HEADER.length);
+    byte[] decompressed = new byte[buffer.getInt()];
+
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes, COMPRESSED_PREFIX_LENGTH, bytes.length - COMPRESSED_PREFIX_LENGTH);
+      int length = 0;
+      while (length < decompressed.length && !inflater.finished()) {
+        int inflated = inflater.inflate(decompressed, length, decompressed.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += inflated;
+      }
+      if (length != decompressed.length) {
+        throw new JobPersistenceException("Compressed payload is truncated");
+      }
+
+      return decompressed;
+    } catch (DataFormatException e) {
+      throw new JobPersistenceException("Could not decompress payload.", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Is a stored payload compressed?
+   *
+   * @param bytes
+   *          the stored payload
+   *
+   * @return {@code true} if the payload starts with the compressed header
+   */
+  private static boolean isCompressed(byte[] bytes) {
+    if (bytes.length < COMPRESSED_PREFIX_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < COMPRESSED_HEADER.length; i++) {
+      if (bytes[i] != COMPRESSED_HEADER[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
   private static byte[] stringMapToBytes(Object object) throws IOException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     ObjectOutputStream out = new ObjectOutputStream(baos);
@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb;
+
+import static io.smartspaces.scheduling.quartz.orientdb.JobStoreTestSupport.createTrigger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.quartz.JobBuilder.newJob;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
+
+/**
+ * Tests for storing and removing many jobs and triggers at once.
+ */
+public class BulkOperationsTest {
+
+  private static final String ORIENTDB_URI = "memory:bulkOperationsTest";
+
+  private static final String GROUP = "bulk";
+
+  private OrientDbJobStore store;
+
+  private Date later;
+
+  @Before
+  public void setUp() throws Exception {
+    store = JobStoreTestSupport.startStore(JobStoreTestSupport.createStore(ORIENTDB_URI, "bulk"));
+    store.clearAllSchedulingData();
+    later = new Date(System.currentTimeMillis() + 3600000);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    store.clearAllSchedulingData();
+    store.shutdown();
+  }
+
+  /**
+   * All jobs and their triggers are stored.
+   */
+  @Test
+  public void jobsAndTriggersAreStored() throws Exception {
+    store.storeJobsAndTriggers(createJobsAndTriggers(0, 3), false);
+
+    assertEquals(3, store.getNumberOfJobs());
+    assertEquals(6, store.getNumberOfTriggers());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(jobKey(i), store.retrieveTrigger(triggerKey(i, 1)).getJobKey());
+    }
+  }
+
+  /**
+   * Nothing is stored if one of the jobs exists and may not be replaced, all
+   * is stored if it may.
+   */
+  @Test
+  public void existingJobStopsStoreWithoutReplace() throws Exception {
+    store.storeJob(createJob(1), false);
+
+    try {
+      store.storeJobsAndTriggers(createJobsAndTriggers(0, 3), false);
+      fail("The existing job was replaced");
+    } catch (ObjectAlreadyExistsException e) {
+      // Expected.
+    }
+    assertEquals(1, store.getNumberOfJobs());
+    assertEquals(0, store.getNumberOfTriggers());
+
+    store.storeJobsAndTriggers(createJobsAndTriggers(0, 3), true);
+    assertEquals(3, store.getNumberOfJobs());
+    assertEquals(6, store.getNumberOfTriggers());
+  }
+
+  /**
+   * Removing jobs removes their triggers, and tells whether all jobs were
+   * found.
+   */
+  @Test
+  public void jobsAreRemovedWithTheirTriggers() throws Exception {
+    store.storeJobsAndTriggers(createJobsAndTriggers(0, 3), false);
+
+    assertTrue(store.removeJobs(Arrays.asList(jobKey(0), jobKey(1))));
+    assertNull(store.retrieveJob(jobKey(0)));
+    assertNull(store.retrieveTrigger(triggerKey(1, 0)));
+    assertEquals(1, store.getNumberOfJobs());
+    assertEquals(2, store.getNumberOfTriggers());
+
+    assertFalse(store.removeJobs(Arrays.asList(jobKey(1), jobKey(2))));
+    assertEquals(0, store.getNumberOfJobs());
+    assertEquals(0, store.getNumberOfTriggers());
+  }
+
+  /**
+   * Removing triggers tells whether all triggers were found, and removes the
+   * jobs left without triggers unless they are durable.
+   */
+  @Test
+  public void triggersAreRemoved() throws Exception {
+    store.storeJobsAndTriggers(createJobsAndTriggers(0, 2), false);
+
+    assertTrue(store.removeTriggers(Arrays.asList(triggerKey(0, 0), triggerKey(0, 1))));
+    assertNull(store.retrieveJob(jobKey(0)));
+    assertEquals(2, store.getNumberOfTriggers());
+
+    assertFalse(store.removeTriggers(
+        Arrays.asList(triggerKey(1, 0), TriggerKey.triggerKey("missing", GROUP))));
+    assertEquals(1, store.getNumberOfTriggers());
+    assertEquals(1, store.getNumberOfJobs());
+  }
+
+  /**
+   * Create jobs, each with two triggers.
+   *
+   * @param first
+   *          the number of the first job
+   * @param count
+   *          the number of jobs
+   *
+   * @return the triggers of each job
+   */
+  private Map<JobDetail, Set<? extends Trigger>> createJobsAndTriggers(int first, int count) {
+    Map<JobDetail, Set<? extends Trigger>> jobsAndTriggers = new LinkedHashMap<>();
+    for (int i = first; i < first + count; i++) {
+      Set<Trigger> triggers = new HashSet<>();
+      for (int j = 0; j < 2; j++) {
+        triggers.add(createTrigger(triggerKey(i, j), jobKey(i), later));
+      }
+      jobsAndTriggers.put(createJob(i), Collections.unmodifiableSet(triggers));
+    }
+
+    return jobsAndTriggers;
+  }
+
+  /**
+   * Create a job which is not durable.
+   *
+   * @param number
+   *          the number of the job
+   *
+   * @return the job
+   */
+  private static JobDetail createJob(int number) {
+    return newJob(JobStoreTestSupport.NoOpJob.class).withIdentity(jobKey(number)).build();
+  }
+
+  private static JobKey jobKey(int number) {
+    return JobKey.jobKey("job" + number, GROUP);
+  }
+
+  private static TriggerKey triggerKey(int jobNumber, int number) {
+    return TriggerKey.triggerKey("trigger" + jobNumber + "." + number, GROUP);
+  }
+}
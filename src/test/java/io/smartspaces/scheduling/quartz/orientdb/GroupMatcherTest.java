@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb;
+
+import static io.smartspaces.scheduling.quartz.orientdb.JobStoreTestSupport.createTrigger;
+import static org.junit.Assert.assertEquals;
+import static org.quartz.JobBuilder.newJob;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.impl.matchers.StringMatcher.StringOperatorName;
+import org.quartz.utils.Key;
+
+/**
+ * Tests for selecting jobs and triggers by group, with groups and values
+ * holding characters special to queries.
+ */
+public class GroupMatcherTest {
+
+  private static final String ORIENTDB_URI = "memory:groupMatcherTest";
+
+  private static final String[] GROUPS = { "alpha", "alpha2", "alphb", "o'brien", "a%b",
+      "a_b", "x\uffff", "x\uffffy", "ALPHA", "zeta.alpha", "back\\slash" };
+
+  private static final String[] VALUES = { "alpha", "a", "", "o'b", "'", "%", "_", "x\uffff",
+      "\uffff", "ALPHA", ".alpha", "\\", "nope" };
+
+  private OrientDbJobStore store;
+
+  private final Set<JobKey> jobKeys = new HashSet<>();
+
+  private final Set<TriggerKey> triggerKeys = new HashSet<>();
+
+  @Before
+  public void setUp() throws Exception {
+    store = JobStoreTestSupport
+        .startStore(JobStoreTestSupport.createStore(ORIENTDB_URI, "matchers"));
+    store.clearAllSchedulingData();
+
+    Date later = new Date(System.currentTimeMillis() + 3600000);
+    for (String group : GROUPS) {
+      JobDetail job =
+          newJob(JobStoreTestSupport.NoOpJob.class).withIdentity("job'1", group).build();
+      TriggerKey triggerKey = TriggerKey.triggerKey("trigger", group);
+      store.storeJobAndTrigger(job, createTrigger(triggerKey, job.getKey(), later));
+      jobKeys.add(job.getKey());
+      triggerKeys.add(triggerKey);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    store.clearAllSchedulingData();
+    store.shutdown();
+  }
+
+  /**
+   * Every operator selects the same keys as Quartz evaluates it to.
+   */
+  @Test
+  public void keysMatchLikeQuartz() throws Exception {
+    for (StringOperatorName operator : StringOperatorName.values()) {
+      for (String value : VALUES) {
+        String message = operator + " '" + value + "'";
+        assertEquals(message, expectedKeys(jobKeys, operator, value),
+            store.getJobKeys(new TestGroupMatcher<JobKey>(value, operator)));
+        assertEquals(message, expectedKeys(triggerKeys, operator, value),
+            store.getTriggerKeys(new TestGroupMatcher<TriggerKey>(value, operator)));
+      }
+    }
+  }
+
+  /**
+   * Pausing by matcher pauses the groups Quartz evaluates it to.
+   */
+  @Test
+  public void pausedGroupsMatchLikeQuartz() throws Exception {
+    for (StringOperatorName operator : StringOperatorName.values()) {
+      for (String value : VALUES) {
+        Set<String> expected = new HashSet<>();
+        for (TriggerKey key : expectedKeys(triggerKeys, operator, value)) {
+          expected.add(key.getGroup());
+        }
+
+        store.pauseTriggers(new TestGroupMatcher<TriggerKey>(value, operator));
+        assertEquals(operator + " '" + value + "'", expected,
+            new HashSet<>(store.getPausedTriggerGroups()));
+        store.resumeAll();
+      }
+    }
+  }
+
+  /**
+   * Get the keys whose groups Quartz evaluates an operator to match.
+   *
+   * @param keys
+   *          all keys
+   * @param operator
+   *          the operator
+   * @param value
+   *          the value compared to
+   *
+   * @return the matching keys
+   */
+  private static <T extends Key<T>> Set<T> expectedKeys(Set<T> keys,
+      StringOperatorName operator, String value) {
+    Set<T> expected = new HashSet<>();
+    for (T key : keys) {
+      if (operator.evaluate(key.getGroup(), value)) {
+        expected.add(key);
+      }
+    }
+
+    return expected;
+  }
+
+  /**
+   * A group matcher for any operator.
+   */
+  private static class TestGroupMatcher<T extends Key<T>>
+      extends GroupMatcher<T> {
+    private static final long serialVersionUID = 1L;
+
+    TestGroupMatcher(String value, StringOperatorName operator) {
+      super(value, operator);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb;
+
+import static org.quartz.SimpleScheduleBuilder.simpleSchedule;
+
+import java.util.Date;
+
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+import org.quartz.simpl.CascadingClassLoadHelper;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.SchedulerSignaler;
+
+/**
+ * Helpers for tests running job stores on in-memory databases.
+ */
+public final class JobStoreTestSupport {
+
+  private JobStoreTestSupport() {
+  }
+
+  /**
+   * Create a store on a database, ready to be started.
+   *
+   * @param orientDbUri
+   *          the URI of the database
+   * @param instanceId
+   *          the ID of the scheduler instance
+   *
+   * @return the store
+   */
+  public static OrientDbJobStore createStore(String orientDbUri, String instanceId) {
+    OrientDbJobStore store = new OrientDbJobStore(orientDbUri, "admin", "admin");
+    store.setInstanceId(instanceId);
+    store.setInstanceName("JobStoreTest");
+
+    return store;
+  }
+
+  /**
+   * Start a store.
+   *
+   * @param store
+   *          the store
+   *
+   * @return the started store
+   *
+   * @throws SchedulerException
+   *           the store could not be started
+   */
+  public static OrientDbJobStore startStore(OrientDbJobStore store) throws SchedulerException {
+    CascadingClassLoadHelper loadHelper = new CascadingClassLoadHelper();
+    loadHelper.initialize();
+    store.initialize(loadHelper, new NoOpSignaler());
+    store.schedulerStarted();
+
+    return store;
+  }
+
+  /**
+   * Create a trigger which fires once an hour, ready to be stored.
+   *
+   * @param triggerKey
+   *          the key of the trigger
+   * @param jobKey
+   *          the key of the job the trigger fires
+   * @param startTime
+   *          the first fire time
+   *
+   * @return the trigger
+   */
+  public static OperableTrigger createTrigger(TriggerKey triggerKey, JobKey jobKey,
+      Date startTime) {
+    OperableTrigger trigger = (OperableTrigger) TriggerBuilder.newTrigger()
+        .withIdentity(triggerKey).forJob(jobKey).startAt(startTime)
+        .withSchedule(simpleSchedule().withIntervalInHours(1).repeatForever()).build();
+    trigger.computeFirstFireTime(null);
+
+    return trigger;
+  }
+
+  /**
+   * A job which does nothing.
+   */
+  public static class NoOpJob implements Job {
+    @Override
+    public void execute(JobExecutionContext context) {
+    }
+  }
+
+  /**
+   * A signaler which ignores all signals.
+   */
+  public static class NoOpSignaler implements SchedulerSignaler {
+    @Override
+    public void notifyTriggerListenersMisfired(Trigger trigger) {
+    }
+
+    @Override
+    public void notifySchedulerListenersFinalized(Trigger trigger) {
+    }
+
+    @Override
+    public void notifySchedulerListenersJobDeleted(JobKey jobKey) {
+    }
+
+    @Override
+    public void signalSchedulingChange(long candidateNewNextFireTime) {
+    }
+
+    @Override
+    public void notifySchedulerListenersError(String string, SchedulerException jpe) {
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb;
+
+import static io.smartspaces.scheduling.quartz.orientdb.JobStoreTestSupport.createTrigger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.quartz.JobBuilder.newJob;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.Trigger.TriggerState;
+import org.quartz.TriggerKey;
+import org.quartz.impl.calendar.HolidayCalendar;
+import org.quartz.impl.calendar.WeeklyCalendar;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.spi.OperableTrigger;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.transfer.ScheduleImportResult;
+
+/**
+ * Tests for exporting a schedule from one store and importing it into another.
+ */
+public class ScheduleTransferTest {
+
+  private static final String SOURCE_URI = "memory:scheduleTransferSource";
+
+  private static final String TARGET_URI = "memory:scheduleTransferTarget";
+
+  private static final JobKey JOB_KEY = JobKey.jobKey("job", "transfer");
+
+  private static final JobKey DURABLE_JOB_KEY = JobKey.jobKey("durable", "transfer");
+
+  private static final TriggerKey TRIGGER_KEY = TriggerKey.triggerKey("trigger", "transfer");
+
+  private static final TriggerKey PAUSED_KEY = TriggerKey.triggerKey("trigger", "paused");
+
+  /**
+   * The number of records exported, a calendar, two jobs, two triggers and a
+   * paused trigger group.
+   */
+  private static final int RECORDS = 6;
+
+  private OrientDbJobStore source;
+
+  private OrientDbJobStore target;
+
+  private Date later;
+
+  private HolidayCalendar calendar;
+
+  @Before
+  public void setUp() throws Exception {
+    source = JobStoreTestSupport.startStore(JobStoreTestSupport.createStore(SOURCE_URI, "source"));
+    source.clearAllSchedulingData();
+    target = JobStoreTestSupport.startStore(JobStoreTestSupport.createStore(TARGET_URI, "target"));
+    target.clearAllSchedulingData();
+    later = new Date(System.currentTimeMillis() + 3600000);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (OrientDbJobStore store : new OrientDbJobStore[] { source, target }) {
+      store.clearAllSchedulingData();
+      store.shutdown();
+    }
+  }
+
+  /**
+   * Calendars, jobs with their data, triggers and paused groups are copied.
+   */
+  @Test
+  public void scheduleIsCopied() throws Exception {
+    String export = exportSchedule();
+
+    ScheduleImportResult result = target.importSchedule(new StringReader(export), 0, false);
+    assertEquals(RECORDS + 1, result.getLinesImported());
+    assertEquals(RECORDS, result.getRecordsStored());
+    assertEquals(0, result.getRecordsSkipped());
+
+    HolidayCalendar copiedCalendar = (HolidayCalendar) target.retrieveCalendar("holidays");
+    assertEquals(calendar.getExcludedDates(), copiedCalendar.getExcludedDates());
+    assertTrue(copiedCalendar.getBaseCalendar() instanceof WeeklyCalendar);
+
+    JobDataMap jobDataMap = target.retrieveJob(JOB_KEY).getJobDataMap();
+    assertEquals(Long.valueOf(5), jobDataMap.get("long"));
+    assertEquals(Float.valueOf(1.5f), jobDataMap.get("float"));
+    assertEquals("value", jobDataMap.get("string"));
+    assertTrue(target.retrieveJob(DURABLE_JOB_KEY).isDurable());
+
+    OperableTrigger trigger = target.retrieveTrigger(TRIGGER_KEY);
+    assertEquals(JOB_KEY, trigger.getJobKey());
+    assertEquals("holidays", trigger.getCalendarName());
+    assertEquals(later.getTime(), trigger.getNextFireTime().getTime());
+    assertEquals(TriggerState.NORMAL, target.getTriggerState(TRIGGER_KEY));
+    assertEquals(TriggerState.PAUSED, target.getTriggerState(PAUSED_KEY));
+    assertEquals(Collections.singleton("paused"), target.getPausedTriggerGroups());
+  }
+
+  /**
+   * Importing again leaves the records alone unless they are replaced, and
+   * an import resumes after the lines already imported.
+   */
+  @Test
+  public void existingRecordsAreSkipped() throws Exception {
+    String export = exportSchedule();
+    target.importSchedule(new StringReader(export), 0, false);
+
+    ScheduleImportResult again = target.importSchedule(new StringReader(export), 0, false);
+    assertEquals(RECORDS + 1, again.getLinesImported());
+    assertEquals(0, again.getRecordsStored());
+    assertEquals(RECORDS, again.getRecordsSkipped());
+
+    ScheduleImportResult resumed =
+        target.importSchedule(new StringReader(export), RECORDS - 1, true);
+    assertEquals(RECORDS + 1, resumed.getLinesImported());
+    assertEquals(2, resumed.getRecordsStored() + resumed.getRecordsSkipped());
+    assertEquals(2, target.getNumberOfTriggers());
+  }
+
+  /**
+   * Text which is not an export is refused.
+   */
+  @Test
+  public void otherTextIsRefused() throws Exception {
+    try {
+      target.importSchedule(new StringReader("not an export\n"), 0, false);
+      fail("The text was imported");
+    } catch (JobPersistenceException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Fill the source store and export it.
+   *
+   * @return the export
+   *
+   * @throws JobPersistenceException
+   *           the schedule could not be stored or exported
+   */
+  private String exportSchedule() throws JobPersistenceException {
+    calendar = new HolidayCalendar(new WeeklyCalendar());
+    calendar.addExcludedDate(new Date(0));
+    source.storeCalendar("holidays", calendar, false, false);
+
+    JobDetail job = newJob(JobStoreTestSupport.NoOpJob.class).withIdentity(JOB_KEY)
+        .usingJobData("long", 5L).usingJobData("float", 1.5f).usingJobData("string", "value")
+        .build();
+    OperableTrigger trigger = createTrigger(TRIGGER_KEY, JOB_KEY, later);
+    trigger.setCalendarName("holidays");
+    source.storeJobAndTrigger(job, trigger);
+    source.storeTrigger(createTrigger(PAUSED_KEY, JOB_KEY, later), false);
+    source.storeJob(newJob(JobStoreTestSupport.NoOpJob.class).withIdentity(DURABLE_JOB_KEY)
+        .storeDurably().build(), false);
+    source.pauseTriggers(GroupMatcher.triggerGroupEquals("paused"));
+
+    StringWriter writer = new StringWriter();
+    assertEquals(RECORDS, source.exportSchedule(writer));
+
+    return writer.toString();
+  }
+}
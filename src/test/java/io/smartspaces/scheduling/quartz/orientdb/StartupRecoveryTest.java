@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb;
+
+import static io.smartspaces.scheduling.quartz.orientdb.JobStoreTestSupport.createTrigger;
+import static org.junit.Assert.assertEquals;
+import static org.quartz.JobBuilder.newJob;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger.TriggerState;
+import org.quartz.TriggerKey;
+import org.quartz.spi.OperableTrigger;
+
+/**
+ * Tests for the recovery of trigger states when a store starts.
+ */
+public class StartupRecoveryTest {
+
+  private static final String ORIENTDB_URI = "memory:startupRecoveryTest";
+
+  private static final TriggerKey FIRED_KEY = TriggerKey.triggerKey("fired", "recovery");
+  private static final TriggerKey WAITING_KEY = TriggerKey.triggerKey("waiting", "recovery");
+  private static final TriggerKey PAUSED_KEY = TriggerKey.triggerKey("paused", "recovery");
+
+  private OrientDbJobStore firstStore;
+
+  private OrientDbJobStore secondStore;
+
+  @Before
+  public void setUp() throws Exception {
+    firstStore = startStore("test", false);
+    firstStore.clearAllSchedulingData();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (secondStore != null) {
+      secondStore.clearAllSchedulingData();
+      secondStore.shutdown();
+    }
+    if (firstStore != null) {
+      firstStore.shutdown();
+    }
+  }
+
+  /**
+   * A non-concurrent job whose scheduler stopped while it ran must not keep its
+   * triggers blocked after a restart.
+   */
+  @Test
+  public void restartUnblocksTriggersOfUnfinishedJob() throws Exception {
+    Date later = fireNonConcurrentJob(firstStore);
+
+    // The job never completes.
+    firstStore.shutdown();
+    firstStore = null;
+    secondStore = startStore("test", false);
+
+    assertEquals(TriggerState.NORMAL, secondStore.getTriggerState(FIRED_KEY));
+    assertEquals(TriggerState.NORMAL, secondStore.getTriggerState(WAITING_KEY));
+    assertEquals(TriggerState.PAUSED, secondStore.getTriggerState(PAUSED_KEY));
+    secondStore.resumeTrigger(PAUSED_KEY);
+    assertEquals(TriggerState.NORMAL, secondStore.getTriggerState(PAUSED_KEY));
+
+    // Only one trigger of a non-concurrent job is acquired at a time.
+    List<OperableTrigger> acquired =
+        secondStore.acquireNextTriggers(later.getTime() + 1000, 3, 0);
+    assertEquals(1, acquired.size());
+  }
+
+  /**
+   * A node starting while another node runs a non-concurrent job must leave the
+   * triggers of the job blocked, only the node which blocked them recovers
+   * them.
+   */
+  @Test
+  public void distributedStartLeavesTriggersBlockedByOtherNode() throws Exception {
+    firstStore.shutdown();
+    firstStore = startStore("first", true);
+    Date later = fireNonConcurrentJob(firstStore);
+
+    secondStore = startStore("second", true);
+
+    assertEquals(TriggerState.BLOCKED, secondStore.getTriggerState(FIRED_KEY));
+    assertEquals(TriggerState.BLOCKED, secondStore.getTriggerState(WAITING_KEY));
+    assertEquals(TriggerState.PAUSED, secondStore.getTriggerState(PAUSED_KEY));
+    assertEquals(0, secondStore.acquireNextTriggers(later.getTime() + 1000, 3, 0).size());
+
+    // The job never completes on the first node.
+    firstStore.shutdown();
+    firstStore = startStore("first", true);
+
+    assertEquals(TriggerState.NORMAL, secondStore.getTriggerState(FIRED_KEY));
+    assertEquals(TriggerState.NORMAL, secondStore.getTriggerState(WAITING_KEY));
+    assertEquals(1, secondStore.acquireNextTriggers(later.getTime() + 1000, 3, 0).size());
+  }
+
+  /**
+   * Store a non-concurrent job with three triggers, one of them paused, and
+   * fire the one which is due, leaving the others blocked.
+   *
+   * @param store
+   *          the store to fire the job in
+   *
+   * @return a time after which all triggers are due
+   *
+   * @throws JobPersistenceException
+   *           the job could not be stored or fired
+   */
+  private static Date fireNonConcurrentJob(OrientDbJobStore store)
+      throws JobPersistenceException {
+    Date later = new Date(System.currentTimeMillis() + 3600000);
+    JobDetail job =
+        newJob(NonConcurrentJob.class).withIdentity("job", "recovery").storeDurably().build();
+    store.storeJob(job, false);
+    store.storeTrigger(createTrigger(FIRED_KEY, job.getKey(), new Date()), false);
+    store.storeTrigger(createTrigger(WAITING_KEY, job.getKey(), later), false);
+    store.storeTrigger(createTrigger(PAUSED_KEY, job.getKey(), later), false);
+    store.pauseTrigger(PAUSED_KEY);
+
+    List<OperableTrigger> acquired =
+        store.acquireNextTriggers(System.currentTimeMillis() + 1000, 1, 0);
+    assertEquals(1, acquired.size());
+    assertEquals(1, store.triggersFired(acquired).size());
+    assertEquals(TriggerState.BLOCKED, store.getTriggerState(FIRED_KEY));
+    assertEquals(TriggerState.BLOCKED, store.getTriggerState(WAITING_KEY));
+    assertEquals(TriggerState.PAUSED, store.getTriggerState(PAUSED_KEY));
+
+    return later;
+  }
+
+  /**
+   * Start a store on the test database.
+   *
+   * @param instanceId
+   *          the ID of the scheduler instance
+   * @param distributed
+   *          {@code true} if the store should take distributed locks
+   *
+   * @return the started store
+   *
+   * @throws SchedulerException
+   *           the store could not be started
+   */
+  private static OrientDbJobStore startStore(String instanceId, boolean distributed)
+      throws SchedulerException {
+    OrientDbJobStore store = JobStoreTestSupport.createStore(ORIENTDB_URI, instanceId);
+    store.setLockDistributed(distributed);
+
+    return JobStoreTestSupport.startStore(store);
+  }
+
+  /**
+   * A job which disallows concurrent execution.
+   */
+  @DisallowConcurrentExecution
+  public static class NonConcurrentJob implements Job {
+    @Override
+    public void execute(JobExecutionContext context) {
+    }
+  }
+}
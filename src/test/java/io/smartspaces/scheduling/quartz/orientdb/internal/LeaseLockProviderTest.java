@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.SchedulerConfigException;
+import org.quartz.impl.calendar.HolidayCalendar;
+import org.quartz.simpl.CascadingClassLoadHelper;
+
+import io.smartspaces.scheduling.quartz.orientdb.JobStoreTestSupport;
+import io.smartspaces.scheduling.quartz.orientdb.OrientDbJobStore;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.Clock;
+
+/**
+ * Tests for leases held by two nodes sharing one database.
+ */
+public class LeaseLockProviderTest {
+
+  private static final String ORIENTDB_URI = "memory:leaseLockProviderTest";
+
+  /**
+   * The time a lease lasts without being renewed, in milliseconds.
+   */
+  private static final long LEASE_MILLIS = 500;
+
+  private final ScheduledExecutorService renewalExecutor =
+      Executors.newSingleThreadScheduledExecutor();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  private StandardOrientDbStoreAssembler firstNode;
+
+  private StandardOrientDbStoreAssembler secondNode;
+
+  @Before
+  public void setUp() throws Exception {
+    firstNode = buildNode("first");
+    secondNode = buildNode("second");
+    secondNode.getLeaseLockProvider().startRenewal(renewalExecutor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    for (StandardOrientDbStoreAssembler node : new StandardOrientDbStoreAssembler[] {
+        firstNode, secondNode }) {
+      node.getLeaseLockProvider().shutdown();
+      node.getOrientDbConnector().shutdown();
+    }
+    renewalExecutor.shutdownNow();
+  }
+
+  /**
+   * A lease its holder renews is waited for until it is released.
+   */
+  @Test
+  public void renewedLeaseIsWaitedFor() throws Exception {
+    LeaseLockProvider first = firstNode.getLeaseLockProvider();
+    LeaseLockProvider second = secondNode.getLeaseLockProvider();
+    first.startRenewal(renewalExecutor);
+
+    first.obtainLock("renewed");
+    Future<?> waiting = executor.submit(() -> {
+      second.obtainLock("renewed");
+      second.releaseLock("renewed");
+      return null;
+    });
+    Thread.sleep(LEASE_MILLIS * 3);
+    assertFalse(waiting.isDone());
+
+    first.releaseLock("renewed");
+    waiting.get(5, TimeUnit.SECONDS);
+    assertEquals(0, first.getLostLeaseCount());
+  }
+
+  /**
+   * A lease which is not renewed is taken over once it expires, and its
+   * former holder learns it lost it.
+   */
+  @Test
+  public void expiredLeaseIsTakenOver() throws Exception {
+    LeaseLockProvider first = firstNode.getLeaseLockProvider();
+    LeaseLockProvider second = secondNode.getLeaseLockProvider();
+
+    first.obtainLock("expired");
+    executor.submit(() -> {
+      second.obtainLock("expired");
+      second.releaseLock("expired");
+      return null;
+    }).get(5, TimeUnit.SECONDS);
+    assertEquals(0, second.getLostLeaseCount());
+
+    try {
+      first.releaseLock("expired");
+      fail("The lost lease was released");
+    } catch (LockException e) {
+      assertEquals(1, first.getLostLeaseCount());
+    }
+  }
+
+  /**
+   * A holder stalled past the expiry of its lease cannot commit after another
+   * node took the lease over.
+   */
+  @Test
+  public void stalledHolderCannotCommit() throws Exception {
+    CountDownLatch firstEntered = new CountDownLatch(1);
+    CountDownLatch secondCommitted = new CountDownLatch(1);
+
+    Future<?> stalled = executor.submit(() -> firstNode.getOrientDbConnector()
+        .doInTransaction(LockProvider.LOCK_TRIGGER, () -> {
+          firstNode.getCalendarDao().store("fenced", new HolidayCalendar());
+          firstEntered.countDown();
+          try {
+            secondCommitted.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new JobPersistenceException("Interrupted while stalled", e);
+          }
+          return null;
+        }));
+    assertTrue(firstEntered.await(5, TimeUnit.SECONDS));
+
+    secondNode.getOrientDbConnector().doInTransaction(LockProvider.LOCK_TRIGGER, () -> {
+      secondNode.getCalendarDao().store("taken over", new HolidayCalendar());
+      return null;
+    });
+    secondCommitted.countDown();
+
+    try {
+      stalled.get(5, TimeUnit.SECONDS);
+      fail("The stalled transaction committed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof JobPersistenceException);
+    }
+    secondNode.getOrientDbConnector().doInTransactionWithoutLock(() -> {
+      assertNull(secondNode.getCalendarDao().getCalendar("fenced"));
+      assertTrue(secondNode.getCalendarDao().exists("taken over"));
+      secondNode.getCalendarDao().remove("taken over");
+      return null;
+    });
+  }
+
+  /**
+   * Key leases of one node hold off the named lease of another, but not key
+   * leases on other keys.
+   */
+  @Test
+  public void keyLeasesExcludeNamedLease() throws Exception {
+    LeaseLockProvider first = firstNode.getLeaseLockProvider();
+    LeaseLockProvider second = secondNode.getLeaseLockProvider();
+    first.startRenewal(renewalExecutor);
+    List<JobKey> firstKey = Collections.singletonList(JobKey.jobKey("first", "group"));
+    List<JobKey> secondKey = Collections.singletonList(JobKey.jobKey("second", "group"));
+
+    first.obtainLock("keyed", firstKey);
+    executor.submit(() -> {
+      second.obtainLock("keyed", secondKey);
+      second.releaseLock("keyed", secondKey);
+      return null;
+    }).get(5, TimeUnit.SECONDS);
+
+    Future<?> named = executor.submit(() -> {
+      second.obtainLock("keyed");
+      second.releaseLock("keyed");
+      return null;
+    });
+    Thread.sleep(LEASE_MILLIS * 3);
+    assertFalse(named.isDone());
+
+    first.releaseLock("keyed", firstKey);
+    named.get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Build the components of a node taking distributed locks.
+   *
+   * @param instanceId
+   *          the ID of the node
+   *
+   * @return the components
+   *
+   * @throws SchedulerConfigException
+   *           the components could not be built
+   */
+  private static StandardOrientDbStoreAssembler buildNode(String instanceId)
+      throws SchedulerConfigException {
+    OrientDbJobStore store = JobStoreTestSupport.createStore(ORIENTDB_URI, instanceId);
+    store.setLockDistributed(true);
+    store.setLockLeaseMillis(LEASE_MILLIS);
+
+    CascadingClassLoadHelper loadHelper = new CascadingClassLoadHelper();
+    loadHelper.initialize();
+    StandardOrientDbStoreAssembler assembler = new StandardOrientDbStoreAssembler();
+    assembler.build(store, loadHelper, new JobStoreTestSupport.NoOpSignaler(),
+        Clock.SYSTEM_CLOCK, 1000);
+
+    return assembler;
+  }
+}
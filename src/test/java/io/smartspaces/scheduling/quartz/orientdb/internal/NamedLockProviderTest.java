@@ -0,0 +1,257 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.quartz.JobKey;
+import org.quartz.TriggerKey;
+
+/**
+ * Tests for the priorities, timeouts and key locks of the named lock provider.
+ */
+public class NamedLockProviderTest {
+
+  private static final String LOCK_NAME = "lock";
+
+  /**
+   * The timeout of the providers with short timeouts, in milliseconds.
+   */
+  private static final long TIMEOUT_MILLIS = 200;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /**
+   * The failures of lock requests made in threads of their own.
+   */
+  private final List<LockException> failures = new CopyOnWriteArrayList<>();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * A scheduler request waiting for the lock gets it before an admin request
+   * which was waiting first.
+   */
+  @Test
+  public void schedulerRequestGoesAheadOfWaitingAdminRequest() throws Exception {
+    NamedLockProvider provider = new NamedLockProvider();
+    List<LockPriority> order = new CopyOnWriteArrayList<>();
+
+    provider.obtainLock(LOCK_NAME, LockPriority.ADMIN);
+    Thread admin = startLocking(provider, LockPriority.ADMIN, order);
+    awaitBlocked(admin);
+    Thread scheduler = startLocking(provider, LockPriority.SCHEDULER, order);
+    awaitBlocked(scheduler);
+    provider.releaseLock(LOCK_NAME);
+
+    scheduler.join(5000);
+    admin.join(5000);
+    assertTrue(failures.isEmpty());
+    assertEquals(Arrays.asList(LockPriority.SCHEDULER, LockPriority.ADMIN), order);
+  }
+
+  /**
+   * A holder of the lock coming back for it does not wait for scheduler
+   * requests, which are waiting for the holder.
+   */
+  @Test
+  public void holderReentersWhileSchedulerRequestWaits() throws Exception {
+    NamedLockProvider provider = new NamedLockProvider();
+    List<LockPriority> order = new CopyOnWriteArrayList<>();
+
+    provider.obtainLock(LOCK_NAME, LockPriority.ADMIN);
+    Thread scheduler = startLocking(provider, LockPriority.SCHEDULER, order);
+    awaitBlocked(scheduler);
+
+    assertTrue(provider.obtainLock(LOCK_NAME, LockPriority.ADMIN));
+    provider.releaseLock(LOCK_NAME);
+    provider.releaseLock(LOCK_NAME);
+
+    scheduler.join(5000);
+    assertTrue(failures.isEmpty());
+    assertEquals(Collections.singletonList(LockPriority.SCHEDULER), order);
+  }
+
+  /**
+   * Requests of each priority give up after their own timeout and are
+   * counted.
+   */
+  @Test
+  public void requestsTimeOutByPriority() throws Exception {
+    NamedLockProvider provider =
+        new NamedLockProvider(false, NamedLockProvider.DEFAULT_STRIPES, false,
+            TIMEOUT_MILLIS, TIMEOUT_MILLIS * 2);
+
+    provider.obtainLock(LOCK_NAME, LockPriority.ADMIN);
+    for (LockPriority priority : LockPriority.values()) {
+      long start = System.nanoTime();
+      assertTimesOut(executor.submit(() -> provider.obtainLock(LOCK_NAME, priority)));
+      long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      long timeoutMillis =
+          priority == LockPriority.SCHEDULER ? TIMEOUT_MILLIS : TIMEOUT_MILLIS * 2;
+      assertTrue("Waited " + waitedMillis + " ms", waitedMillis >= timeoutMillis);
+      assertEquals(1, provider.getTimeoutCount(priority));
+    }
+    provider.releaseLock(LOCK_NAME);
+
+    // The lock is usable after the timeouts.
+    assertTrue(executor.submit(() -> {
+      provider.obtainLock(LOCK_NAME, LockPriority.ADMIN);
+      provider.releaseLock(LOCK_NAME);
+      return true;
+    }).get(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Key locks on different keys are held at the same time, the same key
+   * excludes.
+   */
+  @Test
+  public void keyLocksOnlyExcludeTheSameKey() throws Exception {
+    for (int stripes : new int[] { 0, NamedLockProvider.DEFAULT_STRIPES }) {
+      NamedLockProvider provider =
+          new NamedLockProvider(false, stripes, false, TIMEOUT_MILLIS, TIMEOUT_MILLIS);
+      List<JobKey> firstKey = Collections.singletonList(JobKey.jobKey("first", "group"));
+      List<JobKey> bothKeys =
+          Arrays.asList(JobKey.jobKey("second", "group"), JobKey.jobKey("first", "group"));
+
+      provider.obtainLock(LOCK_NAME, firstKey);
+      assertTrue(executor.submit(() -> {
+        List<TriggerKey> otherKey = Collections.singletonList(TriggerKey.triggerKey("t", "g"));
+        provider.obtainLock(LOCK_NAME, otherKey);
+        provider.releaseLock(LOCK_NAME, otherKey);
+        return true;
+      }).get(5, TimeUnit.SECONDS));
+      assertTimesOut(executor.submit(() -> provider.obtainLock(LOCK_NAME, bothKeys)));
+      provider.releaseLock(LOCK_NAME, firstKey);
+
+      // A failed request for several keys leaves none of them locked.
+      assertTrue(executor.submit(() -> {
+        provider.obtainLock(LOCK_NAME, bothKeys);
+        provider.releaseLock(LOCK_NAME, bothKeys);
+        return true;
+      }).get(5, TimeUnit.SECONDS));
+    }
+  }
+
+  /**
+   * The named lock waits for all key locks under its name and holds off new
+   * ones.
+   */
+  @Test
+  public void namedLockExcludesKeyLocks() throws Exception {
+    NamedLockProvider provider = new NamedLockProvider(false, NamedLockProvider.DEFAULT_STRIPES,
+        false, TIMEOUT_MILLIS, TIMEOUT_MILLIS);
+    List<JobKey> key = Collections.singletonList(JobKey.jobKey("job", "group"));
+
+    provider.obtainLock(LOCK_NAME, key);
+    assertTimesOut(executor.submit(() -> provider.obtainLock(LOCK_NAME, LockPriority.ADMIN)));
+    assertTrue(executor.submit(() -> {
+      provider.obtainLock("other", LockPriority.ADMIN);
+      provider.releaseLock("other");
+      return true;
+    }).get(5, TimeUnit.SECONDS));
+    provider.releaseLock(LOCK_NAME, key);
+
+    provider.obtainLock(LOCK_NAME, LockPriority.ADMIN);
+    assertTimesOut(executor.submit(() -> provider.obtainLock(LOCK_NAME, key)));
+    provider.releaseLock(LOCK_NAME);
+  }
+
+  /**
+   * Obtain the lock in a new thread, record the priority once obtained and
+   * release it.
+   *
+   * @param provider
+   *          the provider
+   * @param priority
+   *          the priority to obtain the lock with
+   * @param order
+   *          the priorities in the order the lock was obtained
+   *
+   * @return the started thread
+   */
+  private Thread startLocking(NamedLockProvider provider, LockPriority priority,
+      List<LockPriority> order) {
+    Thread thread = new Thread(() -> {
+      try {
+        provider.obtainLock(LOCK_NAME, priority);
+        order.add(priority);
+        provider.releaseLock(LOCK_NAME);
+      } catch (LockException e) {
+        failures.add(e);
+      }
+    });
+    thread.start();
+
+    return thread;
+  }
+
+  /**
+   * Wait until a thread is blocked.
+   *
+   * @param thread
+   *          the thread
+   *
+   * @throws InterruptedException
+   *           the wait was interrupted
+   */
+  private static void awaitBlocked(Thread thread) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (System.currentTimeMillis() < deadline) {
+      Thread.State state = thread.getState();
+      if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    fail("The lock request did not start waiting");
+  }
+
+  /**
+   * Assert that a lock request made in another thread timed out.
+   *
+   * @param request
+   *          the future for the request
+   *
+   * @throws Exception
+   *           the request did not complete
+   */
+  private static void assertTimesOut(Future<?> request) throws Exception {
+    try {
+      request.get(5, TimeUnit.SECONDS);
+      fail("The lock was obtained");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof LockException);
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.quartz.Calendar;
+import org.quartz.JobPersistenceException;
+import org.quartz.impl.calendar.AnnualCalendar;
+import org.quartz.impl.calendar.BaseCalendar;
+import org.quartz.impl.calendar.CronCalendar;
+import org.quartz.impl.calendar.DailyCalendar;
+import org.quartz.impl.calendar.HolidayCalendar;
+import org.quartz.impl.calendar.MonthlyCalendar;
+import org.quartz.impl.calendar.WeeklyCalendar;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.JobStoreTestSupport;
+import io.smartspaces.scheduling.quartz.orientdb.OrientDbJobStore;
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+
+/**
+ * Tests for storing the built-in calendars as document fields.
+ */
+public class CalendarConverterTest {
+
+  private static final String ORIENTDB_URI = "memory:calendarConverterTest";
+
+  private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("America/New_York");
+
+  /**
+   * The time the included times are compared from, 2020-01-01 UTC.
+   */
+  private static final long START_TIME = 1577836800000L;
+
+  /**
+   * The interval between the times compared, a little over seven hours so
+   * that all hours of the day are visited.
+   */
+  private static final long SAMPLE_INTERVAL = 7 * 3600000L + 61000L;
+
+  /**
+   * Every built-in calendar reads back including the same times.
+   */
+  @Test
+  public void calendarsRoundTrip() throws Exception {
+    for (Calendar calendar : createCalendars()) {
+      ODocument doc = new ODocument();
+      CalendarConverter.toDocument(calendar, doc);
+
+      assertSameCalendar(calendar, CalendarConverter.toCalendar(doc));
+    }
+  }
+
+  /**
+   * A calendar and its base calendars read back from the database.
+   */
+  @Test
+  public void storedCalendarsRoundTrip() throws Exception {
+    OrientDbJobStore store = JobStoreTestSupport
+        .startStore(JobStoreTestSupport.createStore(ORIENTDB_URI, "calendars"));
+    try {
+      store.clearAllSchedulingData();
+      List<Calendar> calendars = createCalendars();
+      for (int i = 0; i < calendars.size(); i++) {
+        store.storeCalendar("calendar" + i, calendars.get(i), false, false);
+      }
+
+      for (int i = 0; i < calendars.size(); i++) {
+        assertSameCalendar(calendars.get(i), store.retrieveCalendar("calendar" + i));
+      }
+    } finally {
+      store.clearAllSchedulingData();
+      store.shutdown();
+    }
+  }
+
+  /**
+   * Subclasses of the built-in calendars, and calendars based on them, are
+   * left to serialization.
+   */
+  @Test
+  public void subclassesAreNotConverted() throws Exception {
+    HolidayCalendar subclass = new HolidayCalendar() {
+      private static final long serialVersionUID = 1L;
+    };
+
+    assertFalse(CalendarConverter.canConvert(subclass));
+    assertFalse(CalendarConverter.canConvert(new WeeklyCalendar(subclass)));
+    assertTrue(CalendarConverter.canConvert(new WeeklyCalendar(new HolidayCalendar())));
+  }
+
+  /**
+   * A holiday calendar whose days were added before its time zone was changed
+   * is left to serialization, which keeps its days as they are.
+   */
+  @Test
+  public void holidaysOutsideTheirTimeZoneAreNotConverted() throws Exception {
+    HolidayCalendar holidays = new HolidayCalendar(TimeZone.getTimeZone("UTC"));
+    holidays.addExcludedDate(new Date(START_TIME + 10 * 86400000L));
+    holidays.setTimeZone(TIME_ZONE);
+    assertFalse(CalendarConverter.canConvert(holidays));
+    assertFalse(CalendarConverter.canConvert(new WeeklyCalendar(holidays)));
+
+    OrientDbJobStore store = JobStoreTestSupport
+        .startStore(JobStoreTestSupport.createStore(ORIENTDB_URI, "calendars"));
+    try {
+      store.clearAllSchedulingData();
+      store.storeCalendar("holidays", holidays, false, false);
+
+      assertSameCalendar(holidays, store.retrieveCalendar("holidays"));
+    } finally {
+      store.clearAllSchedulingData();
+      store.shutdown();
+    }
+  }
+
+  /**
+   * A document without calendar fields holds no calendar, one with an unknown
+   * type cannot be read.
+   */
+  @Test
+  public void unknownDocumentsAreNotRead() throws Exception {
+    assertNull(CalendarConverter.toCalendar(new ODocument()));
+
+    ODocument doc = new ODocument();
+    doc.field(Constants.CALENDAR_TYPE, "unknown");
+    try {
+      CalendarConverter.toCalendar(doc);
+      fail("The unknown calendar was read");
+    } catch (JobPersistenceException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Create one of each built-in calendar, with descriptions, time zones and
+   * base calendars.
+   *
+   * @return the calendars
+   *
+   * @throws Exception
+   *           a calendar could not be created
+   */
+  private static List<Calendar> createCalendars() throws Exception {
+    HolidayCalendar holidays = new HolidayCalendar(TIME_ZONE);
+    holidays.addExcludedDate(new Date(START_TIME + 10 * 86400000L));
+    holidays.addExcludedDate(new Date(START_TIME + 100 * 86400000L));
+    holidays.setDescription("holidays");
+
+    WeeklyCalendar weekly = new WeeklyCalendar(holidays, TIME_ZONE);
+    weekly.setDayExcluded(java.util.Calendar.WEDNESDAY, true);
+    weekly.setDescription("weekly");
+
+    DailyCalendar daily = new DailyCalendar(weekly, "08:30", "17:15:30:500");
+    daily.setInvertTimeRange(true);
+    daily.setTimeZone(TIME_ZONE);
+
+    MonthlyCalendar monthly = new MonthlyCalendar();
+    monthly.setDayExcluded(1, true);
+    monthly.setDayExcluded(31, true);
+
+    AnnualCalendar annual = new AnnualCalendar(monthly);
+    java.util.Calendar christmas = java.util.Calendar.getInstance();
+    christmas.set(java.util.Calendar.MONTH, java.util.Calendar.DECEMBER);
+    christmas.set(java.util.Calendar.DAY_OF_MONTH, 25);
+    annual.setDayExcluded(christmas, true);
+
+    CronCalendar cron = new CronCalendar(annual, "* * 0-6 ? * *", TIME_ZONE);
+    cron.setDescription("nights");
+
+    return Arrays.<Calendar>asList(holidays, weekly, daily, monthly, annual, cron);
+  }
+
+  /**
+   * Assert that a calendar read back matches the calendar written.
+   *
+   * @param expected
+   *          the calendar written
+   * @param actual
+   *          the calendar read back
+   */
+  private static void assertSameCalendar(Calendar expected, Calendar actual) {
+    assertEquals(expected.getClass(), actual.getClass());
+    assertEquals(expected.getDescription(), actual.getDescription());
+    assertEquals(((BaseCalendar) expected).getTimeZone(), ((BaseCalendar) actual).getTimeZone());
+    for (long time = START_TIME; time < START_TIME + 400 * 86400000L;
+        time += SAMPLE_INTERVAL) {
+      assertEquals(expected + " at " + new Date(time), expected.isTimeIncluded(time),
+          actual.isTimeIncluded(time));
+      assertEquals(expected.getNextIncludedTime(time), actual.getNextIncludedTime(time));
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.smartspaces.scheduling.quartz.orientdb.internal.jobdata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Test;
+import org.quartz.JobDataMap;
+import org.quartz.JobPersistenceException;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import io.smartspaces.scheduling.quartz.orientdb.internal.Constants;
+import io.smartspaces.scheduling.quartz.orientdb.internal.util.CompressionStatistics;
+
+/**
+ * Tests for storing job data through the codecs.
+ */
+public class JobDataCodecsTest {
+
+  /**
+   * The smallest payload compressed by the codecs under test.
+   */
+  private static final int COMPRESSION_THRESHOLD = 256;
+
+  private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+  private final JobDataCodecs codecs = new JobDataCodecs(
+      Arrays.asList(new TypedJobDataCodec(COMPRESSION_THRESHOLD),
+          new BinaryJobDataCodec(COMPRESSION_THRESHOLD, compressionStatistics)));
+
+  /**
+   * Values of every kind come back with their types.
+   */
+  @Test
+  public void valuesRoundTrip() throws Exception {
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put("string", "value");
+    jobDataMap.put("int", 1);
+    jobDataMap.put("long", 2L);
+    jobDataMap.put("float", 3.5f);
+    jobDataMap.put("double", 4.25);
+    jobDataMap.put("boolean", true);
+    jobDataMap.put("date", new Date(5000));
+    jobDataMap.put("list", Arrays.asList("a", "b"));
+
+    ODocument doc = new ODocument();
+    codecs.encode(jobDataMap, doc);
+
+    Map<?, ?> typed = doc.field(Constants.JOB_DATA_TYPED);
+    assertEquals(6, typed.size());
+    assertNotNull(doc.field(Constants.JOB_DATA_BINARY));
+    assertEquals(JobDataCodecs.FORMAT, (int) doc.field(Constants.JOB_DATA_FORMAT));
+
+    JobDataMap decoded = codecs.decode(doc, Collections.<String>emptySet());
+    assertEquals(jobDataMap.getWrappedMap(), decoded.getWrappedMap());
+    assertEquals(Long.class, decoded.get("long").getClass());
+    assertEquals(Float.class, decoded.get("float").getClass());
+    assertFalse(decoded.isDirty());
+  }
+
+  /**
+   * Writing a map over one holding other kinds of values clears the fields
+   * of the codecs no longer used.
+   */
+  @Test
+  public void unusedCodecFieldsAreCleared() throws Exception {
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put("date", new Date(5000));
+    ODocument doc = new ODocument();
+    codecs.encode(jobDataMap, doc);
+
+    JobDataMap replacement = new JobDataMap();
+    replacement.put("int", 1);
+    codecs.encode(replacement, doc);
+
+    assertNull(doc.field(Constants.JOB_DATA_BINARY));
+    assertEquals(replacement.getWrappedMap(),
+        codecs.decode(doc, Collections.<String>emptySet()).getWrappedMap());
+  }
+
+  /**
+   * Strings too long for the typed field are stored compressed.
+   */
+  @Test
+  public void longStringsAreCompressed() throws Exception {
+    char[] chars = new char[10000];
+    Arrays.fill(chars, 'x');
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put("long string", new String(chars));
+
+    ODocument doc = new ODocument();
+    codecs.encode(jobDataMap, doc);
+
+    assertNull(doc.field(Constants.JOB_DATA_TYPED));
+    byte[] stored = doc.field(Constants.JOB_DATA_BINARY);
+    assertEquals(1, compressionStatistics.getCompressedCount());
+    assertEquals(stored.length, compressionStatistics.getCompressedBytes());
+    assertTrue(compressionStatistics.getCompressedBytes() < chars.length);
+    assertEquals(jobDataMap.getWrappedMap(),
+        codecs.decode(doc, Collections.<String>emptySet()).getWrappedMap());
+  }
+
+  /**
+   * Payloads below the threshold are stored as they are.
+   */
+  @Test
+  public void smallPayloadsAreNotCompressed() throws Exception {
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put("date", new Date(5000));
+
+    codecs.encode(jobDataMap, new ODocument());
+
+    assertEquals(0, compressionStatistics.getCompressedCount());
+    assertEquals(1, compressionStatistics.getUncompressedCount());
+  }
+
+  /**
+   * A damaged compressed payload fails to decode instead of giving wrong
+   * values.
+   */
+  @Test
+  public void truncatedPayloadFails() throws Exception {
+    char[] chars = new char[10000];
+    Arrays.fill(chars, 'x');
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put("long string", new String(chars));
+    ODocument doc = new ODocument();
+    codecs.encode(jobDataMap, doc);
+
+    byte[] stored = doc.field(Constants.JOB_DATA_BINARY);
+    doc.field(Constants.JOB_DATA_BINARY, Arrays.copyOf(stored, stored.length / 2));
+    try {
+      codecs.decode(doc, Collections.<String>emptySet());
+      fail("The truncated payload was decoded");
+    } catch (JobPersistenceException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * A lazily decoded map which is stored again without being used is written
+   * back as it was, without decoding it.
+   */
+  @Test
+  public void lazyMapIsWrittenBackUndecoded() throws Exception {
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put("int", 1);
+    jobDataMap.put("date", new Date(5000));
+    ODocument doc = new ODocument();
+    codecs.encode(jobDataMap, doc);
+
+    LazyJobDataMap lazy =
+        (LazyJobDataMap) codecs.decodeLazily(doc, Collections.<String>emptySet());
+    assertFalse(lazy.isDecoded());
+
+    ODocument copy = new ODocument();
+    codecs.encode(lazy, copy);
+    assertFalse(lazy.isDecoded());
+    assertArrayEquals((byte[]) doc.field(Constants.JOB_DATA_BINARY),
+        (byte[]) copy.field(Constants.JOB_DATA_BINARY));
+
+    assertEquals(new Date(5000), lazy.get("date"));
+    assertTrue(lazy.isDecoded());
+    assertEquals(jobDataMap.getWrappedMap(), lazy.getWrappedMap());
+  }
+
+  /**
+   * A value no codec accepts is refused.
+   */
+  @Test
+  public void valueWithoutCodecIsRefused() throws Exception {
+    JobDataCodecs typedOnly =
+        new JobDataCodecs(Collections.<JobDataCodec>singletonList(new TypedJobDataCodec()));
+    JobDataMap jobDataMap = new JobDataMap();
+    jobDataMap.put("date", new Date(5000));
+
+    try {
+      typedOnly.encode(jobDataMap, new ODocument());
+      fail("The value was stored");
+    } catch (JobPersistenceException e) {
+      // Expected.
+    }
+  }
+}